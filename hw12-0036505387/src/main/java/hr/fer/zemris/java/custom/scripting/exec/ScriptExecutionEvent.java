@@ -0,0 +1,25 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder event of executing a single Smart Script template.
+ *
+ * @author Marko Lazarić
+ */
+@Name("smarthttp.ScriptExecution")
+@Label("Script Execution")
+@Category("SmartHttpServer")
+@StackTrace(false)
+class ScriptExecutionEvent extends Event {
+
+    /**
+     * The name of the executed template, {@code null} if it has not been named.
+     */
+    @Label("Template")
+    String template;
+}
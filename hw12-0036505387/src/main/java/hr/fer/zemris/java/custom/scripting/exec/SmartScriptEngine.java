@@ -24,6 +24,11 @@ public class SmartScriptEngine {
      */
     private RequestContext requestContext;
 
+    /**
+     * The name of the template, recorded in the flight recorder events of its executions.
+     */
+    private String template;
+
     /**
      * The {@link ObjectMultistack} used for execution.
      */
@@ -167,14 +172,35 @@ public class SmartScriptEngine {
      * @param requestContext the {@link RequestContext} used for execution
      */
     public SmartScriptEngine(DocumentNode documentNode, RequestContext requestContext) {
+        this(documentNode, requestContext, null);
+    }
+
+    /**
+     * Creates a new {@link SmartScriptEngine} with the given arguments.
+     *
+     * @param documentNode the smart script's {@link DocumentNode}
+     * @param requestContext the {@link RequestContext} used for execution
+     * @param template the name of the template, recorded in the flight recorder events of its executions, may be
+     *                 {@code null}
+     */
+    public SmartScriptEngine(DocumentNode documentNode, RequestContext requestContext, String template) {
         this.documentNode = Objects.requireNonNull(documentNode, "Document node cannot be null.");
         this.requestContext = Objects.requireNonNull(requestContext, "Request context cannot be null.");
+        this.template = template;
     }
 
     /**
-     * Executes the Smart Script document.
+     * Executes the Smart Script document. The execution is recorded as a {@link ScriptExecutionEvent}.
      */
     public void execute() {
+        ScriptExecutionEvent event = new ScriptExecutionEvent();
+
+        event.begin();
         documentNode.accept(visitor);
+
+        if (event.shouldCommit()) {
+            event.template = template;
+            event.commit();
+        }
     }
 }
\ No newline at end of file
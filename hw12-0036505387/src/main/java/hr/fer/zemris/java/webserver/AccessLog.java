@@ -0,0 +1,527 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log which keeps the requests from waiting for the disk. Answered requests are recorded into a
+ * preallocated ring buffer without locking, and a background thread drains the buffer in batches, formats the
+ * entries and appends them to the log file. Once the file grows over its maximum size, it is rotated.
+ *
+ * If the buffer is full because the disk cannot keep up, new entries are either dropped and counted, or the requests
+ * recording them wait until there is space, depending on the policy.
+ *
+ * Every line of the log consists of the time the request was answered, its method, its path, the status code, the
+ * number of bytes of the response, the time it took to answer the request in microseconds and the session ID. Spaces,
+ * control characters and backslashes in the method and the path are written as {@code \xHH}, so every line has the
+ * same fields.
+ *
+ * If the log file cannot be written, the writer reports the error, keeps the entries in the buffer and tries to reopen
+ * the file after waiting for longer and longer. Such errors are reported at most once every minute.
+ *
+ * @author Marko Lazarić
+ */
+public class AccessLog {
+
+    /**
+     * The maximum number of entries written before the file is flushed.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * How long the writer waits for new entries once the buffer is empty, in nanoseconds.
+     */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * How long a request waits before checking the full buffer again, in nanoseconds.
+     */
+    private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * How long the writer waits before reopening the log file after the first error, in nanoseconds.
+     */
+    private static final long MIN_ERROR_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The longest the writer waits before reopening the log file after an error, in nanoseconds.
+     */
+    private static final long MAX_ERROR_WAIT = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The shortest time between two reported errors, in nanoseconds.
+     */
+    private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * The digits used to escape characters.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The slots of the ring buffer.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The mask which turns a sequence number into the index of its slot.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next slot to record into.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Whether requests wait for space when the buffer is full, instead of dropping their entries.
+     */
+    private final boolean blocking;
+
+    /**
+     * The path to the log file.
+     */
+    private final Path file;
+
+    /**
+     * The size of the log file at which it is rotated in bytes, the file is never rotated if it is not positive.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The number of rotated log files which are kept.
+     */
+    private final int maxFiles;
+
+    /**
+     * The number of dropped entries.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The thread which writes the entries to the log file.
+     */
+    private final Thread writer;
+
+    /**
+     * Whether the log has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The stream of the log file, {@code null} if it has to be reopened after an error. Used only by the writer.
+     */
+    private OutputStream output;
+
+    /**
+     * The size of the log file in bytes. Used only by the writer.
+     */
+    private long fileSize;
+
+    /**
+     * When the last error was reported, in nanoseconds. Used only by the writer.
+     */
+    private long lastReport;
+
+    /**
+     * The number of errors which have not been reported since the last reported one, {@code -1} if no error has been
+     * reported yet. Used only by the writer.
+     */
+    private long suppressed = -1;
+
+    /**
+     * Creates a new {@link AccessLog} with the given arguments and starts its writer.
+     *
+     * @param file the path to the log file, it is created together with its directory if it does not exist
+     * @param capacity the number of entries the buffer can hold, rounded up to a power of two
+     * @param blocking whether requests wait for space when the buffer is full, instead of dropping their entries
+     * @param maxFileSize the size of the log file at which it is rotated in bytes, the file is never rotated if it is
+     *                    not positive
+     * @param maxFiles the number of rotated log files which are kept
+     *
+     * @throws IllegalArgumentException if {@code capacity} is not positive or too large, or {@code maxFiles} is
+     *                                  negative
+     * @throws IOException if the log file cannot be opened
+     */
+    public AccessLog(Path file, int capacity, boolean blocking, long maxFileSize, int maxFiles) throws IOException {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30, was " + capacity + ".");
+        }
+
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("Number of rotated files cannot be negative, was " + maxFiles + ".");
+        }
+
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.blocking = blocking;
+        this.file = file.toAbsolutePath().normalize();
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+
+        open();
+
+        writer = new Thread(this::drain, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records an answered request. Does not wait for the disk, and only waits for space in the buffer if the log is
+     * blocking.
+     *
+     * @param method the method of the request, {@code null} if it is not known
+     * @param path the path of the request, {@code null} if it is not known
+     * @param statusCode the status code of the response
+     * @param bytes the number of bytes of the response
+     * @param nanos the time it took to answer the request in nanoseconds
+     * @param sid the session ID of the request, {@code null} if there is none
+     */
+    public void log(String method, String path, int statusCode, long bytes, long nanos, String sid) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+
+        long time = System.currentTimeMillis();
+        Slot slot;
+        long sequence;
+
+        while (true) {
+            sequence = tail.get();
+            slot = slots[(int) sequence & mask];
+
+            long difference = slot.sequence - sequence;
+
+            if (difference == 0) { // The slot is free, claim it unless another request already has
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            }
+            else if (difference < 0) { // The writer has not drained the slot yet, so the buffer is full
+                if (!blocking) {
+                    dropped.increment();
+                    return;
+                }
+
+                LockSupport.unpark(writer); // The writer may be waiting for entries it has not noticed yet
+                LockSupport.parkNanos(FULL_WAIT);
+            }
+        }
+
+        slot.time = time;
+        slot.method = method;
+        slot.path = path;
+        slot.statusCode = statusCode;
+        slot.bytes = bytes;
+        slot.micros = nanos / 1000;
+        slot.sid = sid;
+        slot.sequence = sequence + 1; // Publishes the entry to the writer
+    }
+
+    /**
+     * Returns the number of entries dropped because the buffer was full or the log was closed.
+     *
+     * @return the number of dropped entries
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes out the recorded entries and stops the writer. Entries recorded afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the recorded entries to the log file until the log is closed. Runs on the writer thread.
+     */
+    private void drain() {
+        long head = 0;
+        long errorWait = 0;
+        StringBuilder sb = new StringBuilder();
+
+        while (true) {
+            boolean closing = closed; // Read before draining, so the entries recorded before closing are written
+            int drained = 0;
+
+            try {
+                if (output == null) {
+                    open();
+                }
+
+                while (drained < BATCH_SIZE) {
+                    Slot slot = slots[(int) head & mask];
+
+                    if (slot.sequence != head + 1) { // Not published yet
+                        break;
+                    }
+
+                    sb.setLength(0);
+                    format(slot, sb);
+                    write(sb); // An entry which cannot be written stays in the buffer until the file is reopened
+
+                    slot.method = slot.path = slot.sid = null;
+                    slot.sequence = head + slots.length; // Frees the slot for the next round
+                    head++;
+                    drained++;
+                }
+
+                if (drained == 0) {
+                    output.flush();
+
+                    if (closing) {
+                        output.close();
+                        return;
+                    }
+
+                    errorWait = 0;
+                    LockSupport.parkNanos(IDLE_WAIT);
+                }
+            } catch (IOException e) {
+                report(e);
+                discardOutput();
+
+                if (closing) {
+                    return;
+                }
+
+                // The error is most likely not gone yet, so the writer does not try again right away
+                errorWait = Math.min(Math.max(2 * errorWait, MIN_ERROR_WAIT), MAX_ERROR_WAIT);
+                LockSupport.parkNanos(errorWait);
+            }
+        }
+    }
+
+    /**
+     * Reports an error of the log file, unless another one has been reported recently.
+     *
+     * @param e the error
+     */
+    private void report(IOException e) {
+        long now = System.nanoTime();
+
+        if (suppressed >= 0 && now - lastReport < REPORT_INTERVAL) {
+            suppressed++;
+            return;
+        }
+
+        System.err.println("Could not write the access log '" + file + "': " + e.getMessage()
+                           + (suppressed > 0 ? " (" + suppressed + " more errors since the last report)" : ""));
+        lastReport = now;
+        suppressed = 0;
+    }
+
+    /**
+     * Closes the stream of the log file after an error, ignoring further errors, so that the file is reopened.
+     */
+    private void discardOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+                // The file is reopened anyway
+            }
+
+            output = null;
+        }
+    }
+
+    /**
+     * Formats the entry of a slot as a line of the log.
+     *
+     * @param slot the slot of the entry
+     * @param sb the builder to append the line to
+     */
+    private void format(Slot slot, StringBuilder sb) {
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.time), sb);
+
+        sb.append(' ');
+        appendEscaped(slot.method, sb);
+        sb.append(' ');
+        appendEscaped(slot.path, sb);
+        sb.append(' ').append(slot.statusCode)
+          .append(' ').append(slot.bytes)
+          .append(' ').append(slot.micros)
+          .append(' ').append(slot.sid == null ? "-" : slot.sid)
+          .append('\n');
+    }
+
+    /**
+     * Appends a field of the request to a line, escaping the characters which could be taken for the end of the field
+     * or the line.
+     *
+     * @param value the field, {@code null} if it is not known
+     * @param sb the builder to append the field to
+     */
+    static void appendEscaped(String value, StringBuilder sb) {
+        if (value == null || value.isEmpty()) {
+            sb.append('-');
+            return;
+        }
+
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+
+            if (c <= ' ' || c == 0x7f || c == '\\') {
+                sb.append("\\x").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends a line to the log file, rotating the file first if the line would not fit into it.
+     *
+     * @param line the line to append
+     *
+     * @throws IOException if an error occurs while writing the line or rotating the file
+     */
+    private void write(CharSequence line) throws IOException {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (maxFileSize > 0 && fileSize > 0 && fileSize + bytes.length > maxFileSize) {
+            rotate();
+        }
+
+        output.write(bytes);
+        fileSize += bytes.length;
+    }
+
+    /**
+     * Opens the log file for appending.
+     *
+     * @throws IOException if the log file cannot be opened
+     */
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+
+        output = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                                                                StandardOpenOption.APPEND), 65536);
+        fileSize = Files.size(file);
+    }
+
+    /**
+     * Rotates the log file, the current file becomes the first rotated file and the oldest rotated file is deleted.
+     *
+     * @throws IOException if an error occurs while rotating the file
+     */
+    private void rotate() throws IOException {
+        output.close();
+
+        if (maxFiles == 0) {
+            Files.delete(file);
+        }
+        else {
+            Files.deleteIfExists(rotated(maxFiles));
+
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        open();
+    }
+
+    /**
+     * Returns the path to a rotated log file.
+     *
+     * @param index the index of the rotated file, starting with 1 for the most recent one
+     * @return the path to the rotated log file
+     */
+    private Path rotated(int index) {
+        return Paths.get(file + "." + index);
+    }
+
+    /**
+     * A slot of the ring buffer, reused for every entry which falls into it.
+     *
+     * @author Marko Lazarić
+     */
+    private static class Slot {
+
+        /**
+         * The sequence number of the slot. It equals the sequence number of the next entry to record into the slot
+         * while the slot is free, and that sequence number plus one once the entry has been published.
+         */
+        private volatile long sequence;
+
+        /**
+         * The time the request was answered, in milliseconds since the epoch.
+         */
+        private long time;
+
+        /**
+         * The method of the request.
+         */
+        private String method;
+
+        /**
+         * The path of the request.
+         */
+        private String path;
+
+        /**
+         * The status code of the response.
+         */
+        private int statusCode;
+
+        /**
+         * The number of bytes of the response.
+         */
+        private long bytes;
+
+        /**
+         * The time it took to answer the request in microseconds.
+         */
+        private long micros;
+
+        /**
+         * The session ID of the request.
+         */
+        private String sid;
+
+        /**
+         * Creates a new {@link Slot} with the given argument.
+         *
+         * @param sequence the sequence number of the first entry to record into the slot
+         */
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package hr.fer.zemris.java.webserver;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits the number of connections which are open from the same address at the same time, so that a single client
+ * cannot take up all of the connections the server can handle.
+ *
+ * @author Marko Lazarić
+ */
+public class AddressLimit {
+
+    /**
+     * The maximum number of open connections from an address.
+     */
+    private final int limit;
+
+    /**
+     * The number of open connections, by their address. Addresses without open connections are removed.
+     */
+    private final ConcurrentMap<InetAddress, Integer> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@link AddressLimit} with the given argument.
+     *
+     * @param limit the maximum number of open connections from an address
+     *
+     * @throws IllegalArgumentException if {@code limit} is not positive
+     */
+    public AddressLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit + ".");
+        }
+
+        this.limit = limit;
+    }
+
+    /**
+     * Opens a connection from the address if the limit has not been reached yet. Every opened connection has to be
+     * closed using {@link #release(InetAddress)}.
+     *
+     * @param address the address of the connection
+     * @return whether the connection has been opened
+     */
+    public boolean tryAcquire(InetAddress address) {
+        boolean[] acquired = new boolean[1];
+
+        connections.compute(address, (a, open) -> {
+            if (open == null) {
+                acquired[0] = true;
+                return 1;
+            }
+
+            acquired[0] = open < limit;
+            return acquired[0] ? open + 1 : open;
+        });
+
+        return acquired[0];
+    }
+
+    /**
+     * Closes a connection opened using {@link #tryAcquire(InetAddress)}.
+     *
+     * @param address the address of the connection
+     */
+    public void release(InetAddress address) {
+        connections.computeIfPresent(address, (a, open) -> open == 1 ? null : open - 1);
+    }
+
+    /**
+     * Returns the maximum number of open connections from an address.
+     *
+     * @return the maximum number of open connections from an address
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,180 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Models a single range of bytes of a file, as requested by the {@code Range} header of a request.
+ *
+ * @author Marko Lazarić
+ */
+public class ByteRange {
+
+    /**
+     * The maximum number of ranges accepted in a single request. Requests with more ranges are answered with the
+     * whole file, so a client cannot make the server produce a huge number of tiny parts.
+     */
+    private static final int MAX_RANGES = 32;
+
+    /**
+     * The position of the first byte of the range.
+     */
+    private final long start;
+
+    /**
+     * The position of the last byte of the range, inclusive.
+     */
+    private final long end;
+
+    /**
+     * Creates a new {@link ByteRange} with the given arguments.
+     *
+     * @param start the position of the first byte of the range
+     * @param end the position of the last byte of the range, inclusive
+     */
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the position of the first byte of the range.
+     *
+     * @return the position of the first byte of the range
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the position of the last byte of the range, inclusive.
+     *
+     * @return the position of the last byte of the range
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     *
+     * @return the number of bytes in the range
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the value of the {@code Content-Range} header for this range.
+     *
+     * @param size the size of the whole file in bytes
+     * @return the value of the {@code Content-Range} header
+     */
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header. Ranges which are past the end of the file are dropped, while
+     * overlapping and adjacent ranges are merged and sorted.
+     *
+     * @param header the value of the {@code Range} header
+     * @param size the size of the whole file in bytes
+     * @return the requested ranges, an empty list if none of them can be satisfied or {@code null} if the header is
+     *         invalid and should be ignored
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        header = header.strip();
+
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+
+        for (String spec : specs) {
+            spec = spec.strip();
+            int dash = spec.indexOf('-');
+
+            if (dash < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+
+            try {
+                if (dash == 0) { // Suffix range, the last n bytes of the file
+                    long suffix = Long.parseLong(spec.substring(1));
+
+                    if (suffix < 0) {
+                        return null;
+                    }
+
+                    start = Math.max(size - suffix, 0);
+                    end = size - 1;
+
+                    if (suffix == 0) {
+                        continue;
+                    }
+                }
+                else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+
+                    end = Math.min(end, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < size) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+
+        return merge(ranges);
+    }
+
+    /**
+     * Sorts the ranges and merges the ones which overlap or are adjacent.
+     *
+     * @param ranges the ranges to merge
+     * @return the merged ranges
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, range.end));
+            }
+            else {
+                merged.add(current);
+                current = range;
+            }
+        }
+
+        merged.add(current);
+
+        return merged;
+    }
+}
@@ -0,0 +1,70 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output stream which encodes everything written to it using the {@code chunked} transfer coding. Every write
+ * becomes a single chunk, so the stream should be written to in reasonably large blocks. Closing the stream writes
+ * the last chunk, but does not close the underlying stream.
+ *
+ * @author Marko Lazarić
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+    /**
+     * The line terminator of the chunked transfer coding.
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The last chunk, followed by an empty trailer.
+     */
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    /**
+     * Whether the last chunk has been written.
+     */
+    private boolean closed;
+
+    /**
+     * Creates a new {@link ChunkedOutputStream} with the given argument.
+     *
+     * @param out the underlying output stream
+     */
+    ChunkedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("The last chunk has already been written.");
+        }
+
+        if (len == 0) { // An empty chunk would end the body
+            return;
+        }
+
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+}
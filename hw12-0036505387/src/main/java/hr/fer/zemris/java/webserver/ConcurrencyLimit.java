@@ -0,0 +1,98 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of tasks which are in progress at the same time. Tasks over the limit are rejected right away
+ * instead of waiting, so that an overloaded server answers quickly with an error rather than slowly with nothing.
+ *
+ * @author Marko Lazarić
+ */
+public class ConcurrencyLimit {
+
+    /**
+     * The maximum number of tasks in progress.
+     */
+    private final int limit;
+
+    /**
+     * The number of tasks in progress.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * The number of rejected tasks.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a new {@link ConcurrencyLimit} with the given argument.
+     *
+     * @param limit the maximum number of tasks in progress
+     *
+     * @throws IllegalArgumentException if {@code limit} is not positive
+     */
+    public ConcurrencyLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, was " + limit + ".");
+        }
+
+        this.limit = limit;
+    }
+
+    /**
+     * Starts a task if the limit has not been reached yet. Every started task has to be ended using
+     * {@link #release()}.
+     *
+     * @return whether the task has been started
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a task started using {@link #tryAcquire()}.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Returns the maximum number of tasks in progress.
+     *
+     * @return the maximum number of tasks in progress
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the number of tasks in progress.
+     *
+     * @return the number of tasks in progress
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of rejected tasks.
+     *
+     * @return the number of rejected tasks
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
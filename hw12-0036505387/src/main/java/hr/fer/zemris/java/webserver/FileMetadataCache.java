@@ -0,0 +1,182 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe cache of the metadata of static files which is used for conditional requests. The attributes of a
+ * file are read on every lookup, but its headers are only formatted again once they have changed. When the cache is
+ * full, the least recently used file is evicted.
+ *
+ * The entity tag is derived from the size, the modification time and the identity (the inode on Unix) of the file,
+ * instead of its contents, so a lookup never reads the file. A file replaced by another one, as editors and
+ * deployments do by renaming, gets a new tag even if it keeps the size and the modification time.
+ *
+ * @author Marko Lazarić
+ */
+public class FileMetadataCache {
+
+    /**
+     * The formatter of HTTP dates (IMF-fixdate).
+     */
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                                                                           Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * The maximum number of cached files.
+     */
+    private final int capacity;
+
+    /**
+     * The mapping of absolute file paths to their metadata, ordered from the least to the most recently used.
+     */
+    private final Map<Path, FileMetadata> files;
+
+    /**
+     * Creates a new {@link FileMetadataCache} with the given argument.
+     *
+     * @param capacity the maximum number of cached files, the headers are formatted on every lookup if it is not
+     *                 positive
+     */
+    public FileMetadataCache(int capacity) {
+        this.capacity = capacity;
+        this.files = new LinkedHashMap<>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileMetadata> eldest) {
+                return size() > FileMetadataCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the up to date metadata of the file.
+     *
+     * @param file the path to the file
+     * @return the metadata of the file
+     *
+     * @throws IOException if an error occurs while reading the attributes of the file
+     */
+    public FileMetadata get(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        FileMetadata cached;
+
+        synchronized (files) {
+            cached = files.get(key);
+        }
+
+        if (cached != null && cached.size == attributes.size() &&
+            cached.lastModified.equals(attributes.lastModifiedTime()) &&
+            Objects.equals(cached.fileKey, attributes.fileKey())) {
+            return cached;
+        }
+
+        FileMetadata metadata = new FileMetadata(attributes.size(), attributes.lastModifiedTime(),
+                                                 attributes.fileKey());
+
+        if (capacity > 0) {
+            synchronized (files) {
+                files.put(key, metadata);
+            }
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Models the metadata of a single static file.
+     *
+     * @author Marko Lazarić
+     */
+    public static class FileMetadata {
+
+        /**
+         * The size of the file in bytes.
+         */
+        private final long size;
+
+        /**
+         * The modification time of the file.
+         */
+        private final FileTime lastModified;
+
+        /**
+         * The object which identifies the file, {@code null} if the file system does not provide one.
+         */
+        private final Object fileKey;
+
+        /**
+         * The entity tag of the file.
+         */
+        private final String eTag;
+
+        /**
+         * The modification time of the file formatted as an HTTP date.
+         */
+        private final String lastModifiedHeader;
+
+        /**
+         * Creates a new {@link FileMetadata} with the given arguments.
+         *
+         * @param size the size of the file in bytes
+         * @param lastModified the modification time of the file
+         * @param fileKey the object which identifies the file, {@code null} if the file system does not provide one
+         */
+        private FileMetadata(long size, FileTime lastModified, Object fileKey) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            // The time has the full precision of the file system, so a file rewritten within a second gets a new tag
+            this.eTag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified.to(TimeUnit.NANOSECONDS))
+                        + (fileKey == null ? "" : "-" + Integer.toHexString(fileKey.hashCode())) + "\"";
+            this.lastModifiedHeader = HTTP_DATE.format(lastModified.toInstant());
+        }
+
+        /**
+         * Returns the size of the file in bytes.
+         *
+         * @return the size of the file in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the modification time of the file.
+         *
+         * @return the modification time of the file
+         */
+        public FileTime getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the entity tag of the file, including the quotes.
+         *
+         * @return the entity tag of the file
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * Returns the modification time of the file formatted as an HTTP date.
+         *
+         * @return the modification time of the file formatted as an HTTP date
+         */
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stores the sessions of the server on the heap without a global lock. Sessions are kept in a {@link ConcurrentHashMap}, so
+ * looking up, extending and creating sessions only contends on a single bin of the map. A session is checked and
+ * extended or removed while its bin is locked, so the cleaner cannot remove a session which is just being extended.
+ *
+ * Expired sessions are found using a hashed timing wheel. Every session is put into the slot of the tick in which it
+ * expires. Extending a session does not move it, instead, when its slot is expired, a session which is still valid
+ * is moved to the slot of its new expiration time. This way, the cleaner only ever looks at the sessions which might
+ * have expired, instead of scanning all of them.
+ *
+ * @author Marko Lazarić
+ */
+class HeapSessionStore implements SessionStore {
+
+    /**
+     * The number of slots in the timing wheel, must be a power of two. Sessions which expire more than a full turn
+     * of the wheel later are just moved back into the same slot when it is expired.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The duration of a session in milliseconds.
+     */
+    private final long timeout;
+
+    /**
+     * The mapping of session IDs to sessions.
+     */
+    private final Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The slots of the timing wheel.
+     */
+    private final AtomicReferenceArray<Queue<SessionMapEntry>> wheel = new AtomicReferenceArray<>(WHEEL_SIZE);
+
+    /**
+     * The last tick which has been expired.
+     */
+    private long expiredTick;
+
+    /**
+     * Creates a new {@link HeapSessionStore} with the given argument.
+     *
+     * @param timeout the duration of a session in milliseconds
+     */
+    HeapSessionStore(long timeout) {
+        this.timeout = timeout;
+        this.expiredTick = System.currentTimeMillis() / TICK;
+
+        for (int index = 0; index < WHEEL_SIZE; index++) {
+            wheel.set(index, new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    @Override
+    public SessionMapEntry get(String sid, String host) {
+        long now = System.currentTimeMillis();
+        SessionMapEntry entry = sessions.computeIfPresent(sid, (key, current) -> {
+            if (current.validUntil < now) {
+                return null;
+            }
+
+            if (current.host.equals(host)) {
+                current.validUntil = now + timeout;
+            }
+
+            return current;
+        });
+
+        return entry == null || !entry.host.equals(host) ? null : entry;
+    }
+
+    @Override
+    public SessionMapEntry create(String host) {
+        while (true) {
+            SessionMapEntry entry = new SessionMapEntry(SessionStore.generateSessionID(), host,
+                                                        System.currentTimeMillis() + timeout);
+
+            if (sessions.putIfAbsent(entry.sid, entry) == null) {
+                schedule(entry);
+
+                return entry;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getEvictions() {
+        return 0; // Sessions are only limited by the heap
+    }
+
+    @Override
+    public void expire(long now) {
+        long currentTick = now / TICK;
+
+        // After a long pause, there is no need to expire the same slots more than once
+        long firstTick = Math.max(expiredTick + 1, currentTick - WHEEL_SIZE + 1);
+
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            // Swap the slot, so that the sessions moved back into it are not seen again in this pass
+            Queue<SessionMapEntry> slot = wheel.getAndSet(slotOf(tick), new ConcurrentLinkedQueue<>());
+
+            for (SessionMapEntry entry : slot) {
+                SessionMapEntry current = sessions.computeIfPresent(entry.sid, (sid, stored) ->
+                        stored == entry && stored.validUntil < now ? null : stored);
+
+                if (current == entry) { // Extended in the meantime, otherwise it has been removed
+                    schedule(entry);
+                }
+            }
+        }
+
+        expiredTick = currentTick;
+    }
+
+    /**
+     * Puts the session into the slot of the tick in which it expires.
+     *
+     * @param entry the session to schedule
+     */
+    private void schedule(SessionMapEntry entry) {
+        wheel.get(slotOf(entry.validUntil / TICK + 1)).add(entry);
+    }
+
+    /**
+     * Returns the index of the slot of the tick.
+     *
+     * @param tick the tick
+     * @return the index of the slot of the tick
+     */
+    private static int slotOf(long tick) {
+        return (int) (tick & (WHEEL_SIZE - 1));
+    }
+}
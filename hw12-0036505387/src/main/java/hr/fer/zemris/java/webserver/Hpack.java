@@ -0,0 +1,696 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The HPACK header compression of HTTP/2 (RFC 7541). Header fields are replaced with indexes into a static table of
+ * common fields and a dynamic table of recently sent fields, and literal strings may be Huffman coded.
+ *
+ * Every connection has one {@link Decoder} for the headers it receives and one {@link Encoder} for the headers it
+ * sends. Both keep the dynamic table of their direction, so header blocks must be decoded and encoded in the order
+ * they are received and sent.
+ *
+ * @author Marko Lazarić
+ */
+final class Hpack {
+
+    /**
+     * The static table, the index of an entry is its position in the array plus one.
+     */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /**
+     * The mapping of the names in the static table to the index of their first entry.
+     */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /**
+     * The mapping of the fields in the static table with a value to their index, keyed by the name and the value
+     * separated by a NUL character.
+     */
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    /**
+     * The Huffman codes of the octets and of the end of string, right-aligned.
+     */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    /**
+     * The lengths of the Huffman codes in bits.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    /**
+     * The decoding tree of the Huffman code. The children of the node {@code n} are at {@code 2 * n} for a zero bit
+     * and {@code 2 * n + 1} for a one bit. A positive child is the index of an inner node, a negative one is a leaf
+     * holding the symbol {@code -child - 1}, and zero is missing.
+     */
+    private static final int[] HUFFMAN_TREE = new int[2 * HUFFMAN_CODES.length];
+
+    /**
+     * The additional size of every entry of a dynamic table, on top of the lengths of its name and value.
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+
+        int nodes = 1; // The root is node 0
+
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int node = 0;
+
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+
+                if (bit == 0) {
+                    HUFFMAN_TREE[child] = -symbol - 1;
+                }
+                else {
+                    if (HUFFMAN_TREE[child] == 0) {
+                        HUFFMAN_TREE[child] = nodes++;
+                    }
+
+                    node = HUFFMAN_TREE[child];
+                }
+            }
+        }
+    }
+
+    /**
+     * Prevents instantiation.
+     */
+    private Hpack() {
+    }
+
+    /**
+     * Returns the size of a header field as counted by the dynamic tables and the header list size limits.
+     *
+     * @param name the name of the field
+     * @param value the value of the field
+     * @return the size of the field
+     */
+    static int sizeOf(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Thrown if a header block cannot be decoded.
+     *
+     * @author Marko Lazarić
+     */
+    static class HpackException extends IOException {
+
+        /**
+         * The serial version UID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new {@link HpackException} with the given argument.
+         *
+         * @param message the detail message
+         */
+        HpackException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A dynamic table of header fields, the most recently added field has the lowest index.
+     *
+     * @author Marko Lazarić
+     */
+    private static class DynamicTable {
+
+        /**
+         * The fields of the table, the most recently added one first.
+         */
+        private final ArrayDeque<String[]> fields = new ArrayDeque<>();
+
+        /**
+         * The size of the table.
+         */
+        private int size;
+
+        /**
+         * The maximum size of the table.
+         */
+        private int maxSize = 4096;
+
+        /**
+         * Returns the field with the given index, counted from the first index after the static table.
+         *
+         * @param index the index of the field, starting with 0
+         * @return the field, or {@code null} if there is no such field
+         */
+        private String[] get(int index) {
+            if (index >= fields.size()) {
+                return null;
+            }
+
+            Iterator<String[]> it = fields.iterator();
+
+            for (int i = 0; i < index; i++) {
+                it.next();
+            }
+
+            return it.next();
+        }
+
+        /**
+         * Adds a field, evicting the oldest fields until it fits. A field larger than the whole table empties it.
+         *
+         * @param name the name of the field
+         * @param value the value of the field
+         */
+        private void add(String name, String value) {
+            int fieldSize = sizeOf(name, value);
+
+            evict(maxSize - fieldSize);
+
+            if (fieldSize <= maxSize) {
+                fields.addFirst(new String[] {name, value});
+                size += fieldSize;
+            }
+        }
+
+        /**
+         * Sets the maximum size of the table, evicting the oldest fields which no longer fit.
+         *
+         * @param maxSize the maximum size of the table
+         */
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        /**
+         * Evicts the oldest fields until the size of the table is at most the given size.
+         *
+         * @param target the size to shrink the table to
+         */
+        private void evict(int target) {
+            while (size > target && !fields.isEmpty()) {
+                String[] field = fields.removeLast();
+
+                size -= sizeOf(field[0], field[1]);
+            }
+        }
+    }
+
+    /**
+     * Decodes the header blocks received on a connection.
+     *
+     * @author Marko Lazarić
+     */
+    static class Decoder {
+
+        /**
+         * The dynamic table of the received headers.
+         */
+        private final DynamicTable table = new DynamicTable();
+
+        /**
+         * The maximum size of the dynamic table the peer may use, as announced in the settings.
+         */
+        private final int maxTableSize;
+
+        /**
+         * Creates a new {@link Decoder} with the given argument. The dynamic table starts at the maximum size, until
+         * the peer shrinks it.
+         *
+         * @param maxTableSize the maximum size of the dynamic table the peer may use
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.setMaxSize(maxTableSize);
+        }
+
+        /**
+         * Decodes a header block, passing every field to the consumer in order.
+         *
+         * @param block the bytes of the header block
+         * @param length the number of bytes of the header block
+         * @param consumer the consumer of the names and values of the fields
+         *
+         * @throws HpackException if the header block is invalid
+         */
+        void decode(byte[] block, int length, BiConsumer<String, String> consumer) throws HpackException {
+            int[] position = {0};
+            boolean fieldSeen = false;
+
+            while (position[0] < length) {
+                int b = block[position[0]] & 0xff;
+
+                if ((b & 0x80) != 0) { // Indexed field
+                    String[] field = field(readInteger(block, length, position, 7));
+
+                    consumer.accept(field[0], field[1]);
+                    fieldSeen = true;
+                }
+                else if ((b & 0x40) != 0) { // Literal field with incremental indexing
+                    String[] field = readLiteral(block, length, position, 6);
+
+                    table.add(field[0], field[1]);
+                    consumer.accept(field[0], field[1]);
+                    fieldSeen = true;
+                }
+                else if ((b & 0x20) != 0) { // Dynamic table size update
+                    if (fieldSeen) {
+                        throw new HpackException("Table size update after a header field.");
+                    }
+
+                    int size = readInteger(block, length, position, 5);
+
+                    if (size > maxTableSize) {
+                        throw new HpackException("Table size " + size + " exceeds the maximum " + maxTableSize + ".");
+                    }
+
+                    table.setMaxSize(size);
+                }
+                else { // Literal field without indexing or never indexed
+                    String[] field = readLiteral(block, length, position, 4);
+
+                    consumer.accept(field[0], field[1]);
+                    fieldSeen = true;
+                }
+            }
+        }
+
+        /**
+         * Returns the field with the given index in the static or the dynamic table.
+         *
+         * @param index the index of the field
+         * @return the field with the index
+         *
+         * @throws HpackException if there is no field with the index
+         */
+        private String[] field(int index) throws HpackException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+
+            String[] field = index > STATIC_TABLE.length ? table.get(index - STATIC_TABLE.length - 1) : null;
+
+            if (field == null) {
+                throw new HpackException("Invalid table index " + index + ".");
+            }
+
+            return field;
+        }
+
+        /**
+         * Reads a literal field whose name is either indexed or a literal string.
+         *
+         * @param block the bytes of the header block
+         * @param length the number of bytes of the header block
+         * @param position the position of the field, advanced past it
+         * @param prefix the number of bits of the prefix of the name index
+         * @return the name and the value of the field
+         *
+         * @throws HpackException if the field is invalid
+         */
+        private String[] readLiteral(byte[] block, int length, int[] position, int prefix) throws HpackException {
+            int index = readInteger(block, length, position, prefix);
+            String name = index == 0 ? readString(block, length, position) : field(index)[0];
+
+            return new String[] {name, readString(block, length, position)};
+        }
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection.
+     *
+     * @author Marko Lazarić
+     */
+    static class Encoder {
+
+        /**
+         * The dynamic table of the sent headers.
+         */
+        private final DynamicTable table = new DynamicTable();
+
+        /**
+         * Whether the maximum size of the dynamic table has changed since the last header block.
+         */
+        private boolean tableSizeChanged;
+
+        /**
+         * The smallest maximum size of the dynamic table set since the last header block.
+         */
+        private int smallestTableSize = Integer.MAX_VALUE;
+
+        /**
+         * The maximum size of the dynamic table last signalled to the peer.
+         */
+        private int signalledTableSize = table.maxSize;
+
+        /**
+         * Sets the maximum size of the dynamic table, as allowed by the peer.
+         *
+         * @param maxSize the maximum size of the dynamic table
+         */
+        void setMaxTableSize(int maxSize) {
+            if (maxSize != table.maxSize) {
+                table.setMaxSize(maxSize);
+                tableSizeChanged = true;
+                smallestTableSize = Math.min(smallestTableSize, maxSize);
+            }
+        }
+
+        /**
+         * Encodes a header field. Fields are added to the dynamic table if {@code indexed} is set, fields whose value
+         * changes with every response should not be.
+         *
+         * @param name the lower case name of the field
+         * @param value the value of the field
+         * @param indexed whether the field should be added to the dynamic table
+         * @param out the stream to write the header block to
+         */
+        void encode(String name, String value, boolean indexed, ByteArrayOutputStream out) {
+            if (tableSizeChanged) { // Must be signalled at the start of the next header block
+                // The peer has to evict what the smaller size has evicted here, even if the table has grown since
+                if (smallestTableSize < Math.min(signalledTableSize, table.maxSize)) {
+                    writeInteger(out, 0x20, 5, smallestTableSize);
+                }
+
+                writeInteger(out, 0x20, 5, table.maxSize);
+                tableSizeChanged = false;
+                smallestTableSize = Integer.MAX_VALUE;
+                signalledTableSize = table.maxSize;
+            }
+
+            Integer fieldIndex = STATIC_FIELDS.get(name + '\0' + value);
+            int nameIndex = 0;
+            int dynamicIndex = 0;
+
+            for (String[] field : table.fields) {
+                dynamicIndex++;
+
+                if (field[0].equals(name)) {
+                    if (field[1].equals(value)) {
+                        fieldIndex = STATIC_TABLE.length + dynamicIndex;
+                        break;
+                    }
+
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + dynamicIndex;
+                    }
+                }
+            }
+
+            if (fieldIndex != null) {
+                writeInteger(out, 0x80, 7, fieldIndex);
+                return;
+            }
+
+            Integer staticName = STATIC_NAMES.get(name);
+
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+
+            if (indexed) {
+                writeInteger(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            else {
+                writeInteger(out, 0x00, 4, nameIndex);
+            }
+
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Reads an integer with a prefix of the given number of bits.
+     *
+     * @param block the bytes of the header block
+     * @param length the number of bytes of the header block
+     * @param position the position of the integer, advanced past it
+     * @param prefix the number of bits of the prefix
+     * @return the integer
+     *
+     * @throws HpackException if the integer is truncated or too large
+     */
+    private static int readInteger(byte[] block, int length, int[] position, int prefix) throws HpackException {
+        int mask = (1 << prefix) - 1;
+        int value = block[position[0]++] & mask;
+
+        if (value < mask) {
+            return value;
+        }
+
+        for (int shift = 0; ; shift += 7) {
+            if (position[0] >= length || shift > 21) {
+                throw new HpackException("Invalid integer.");
+            }
+
+            int b = block[position[0]++] & 0xff;
+
+            value += (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Reads a string literal, which may be Huffman coded.
+     *
+     * @param block the bytes of the header block
+     * @param length the number of bytes of the header block
+     * @param position the position of the string, advanced past it
+     * @return the string
+     *
+     * @throws HpackException if the string is truncated or its Huffman code is invalid
+     */
+    private static String readString(byte[] block, int length, int[] position) throws HpackException {
+        if (position[0] >= length) {
+            throw new HpackException("Missing string.");
+        }
+
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int stringLength = readInteger(block, length, position, 7);
+        int start = position[0];
+
+        if (stringLength > length - start) {
+            throw new HpackException("Truncated string.");
+        }
+
+        position[0] += stringLength;
+
+        return huffman ? decodeHuffman(block, start, start + stringLength)
+                       : new String(block, start, stringLength, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes a Huffman coded string.
+     *
+     * @param bytes the bytes of the string
+     * @param start the index of the first byte of the string
+     * @param end the index just after the last byte of the string
+     * @return the decoded string
+     *
+     * @throws HpackException if the code is invalid
+     */
+    private static String decodeHuffman(byte[] bytes, int start, int end) throws HpackException {
+        StringBuilder sb = new StringBuilder((end - start) * 8 / 5);
+        int node = 0;
+        int pendingBits = 0; // The number of bits read since the last symbol
+        boolean pendingOnes = true; // Whether those bits are all ones
+
+        for (int index = start; index < end; index++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int b = bytes[index] >>> bit & 1;
+                int child = HUFFMAN_TREE[2 * node + b];
+
+                pendingBits++;
+                pendingOnes &= b == 1;
+
+                if (child < 0) {
+                    if (child == -257) {
+                        throw new HpackException("End of string in a Huffman coded string.");
+                    }
+
+                    sb.append((char) (-child - 1));
+                    node = 0;
+                    pendingBits = 0;
+                    pendingOnes = true;
+                }
+                else {
+                    node = child;
+                }
+            }
+        }
+
+        // The padding is the shortest prefix of the end of string code, which consists of ones
+        if (pendingBits > 7 || !pendingOnes) {
+            throw new HpackException("Invalid Huffman padding.");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Writes an integer with a prefix of the given number of bits.
+     *
+     * @param out the stream to write to
+     * @param flags the bits of the first byte above the prefix
+     * @param prefix the number of bits of the prefix
+     * @param value the integer
+     */
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | mask);
+        value -= mask;
+
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    /**
+     * Writes a string literal, Huffman coded if that makes it shorter.
+     *
+     * @param out the stream to write to
+     * @param s the string, with one byte per character
+     */
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+        }
+
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength >= s.length()) {
+            writeInteger(out, 0x00, 7, s.length());
+
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+
+            return;
+        }
+
+        writeInteger(out, 0x80, 7, huffmanLength);
+
+        long buffer = 0;
+        int buffered = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = s.charAt(i) & 0xff;
+
+            buffer = buffer << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+            buffered += HUFFMAN_LENGTHS[symbol];
+
+            while (buffered >= 8) {
+                buffered -= 8;
+                out.write((int) (buffer >>> buffered));
+            }
+        }
+
+        if (buffered > 0) { // Pads the last byte with the most significant bits of the end of string code
+            out.write((int) (buffer << (8 - buffered) | 0xff >>> buffered));
+        }
+    }
+}
@@ -0,0 +1,1517 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a connection which speaks HTTP/2 over cleartext TCP (h2c), either because the client knew the server
+ * supports it or because the connection has been upgraded from HTTP/1.1.
+ *
+ * Every stream carries one request, which is handed to a {@link StreamHandler} as an {@link HttpRequest} together
+ * with the {@link ResponseStream} of the stream. The handler answers it by writing an HTTP/1.x response to the stream,
+ * which turns the response header into a HEADERS frame and the body into DATA frames, so requests are answered by the
+ * same code regardless of the version of HTTP. Streams are answered concurrently and their frames are interleaved on
+ * the connection.
+ *
+ * The frames of the connection are read by the thread calling {@link #serve(HttpRequest, byte[])}. Response bodies
+ * are only sent while the flow control windows of both the connection and the stream allow it, and request bodies are
+ * discarded, with their flow control credit returned right away.
+ *
+ * @author Marko Lazarić
+ */
+class Http2Connection {
+
+    /**
+     * The preface every client starts an HTTP/2 connection with.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * The number of bytes of the preface which form a request header of its own, as read by HTTP/1.x parsers.
+     */
+    static final int PREFACE_REQUEST_LENGTH = 18;
+
+    /**
+     * The length of the header of a frame in bytes.
+     */
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    /**
+     * The maximum size of a frame payload which every peer accepts, frames are never larger in either direction.
+     */
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * The initial size of every flow control window.
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /**
+     * The size of the dynamic table used to compress headers, in both directions.
+     */
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    /**
+     * The types of frames.
+     */
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+    /**
+     * The flags of frames.
+     */
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    /**
+     * The identifiers of settings.
+     */
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_ENABLE_PUSH = 0x2,
+            SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5,
+            SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * The error codes of reset streams and closed connections.
+     */
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+            STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, COMPRESSION_ERROR = 0x9,
+            ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * The pseudo-headers a request may have.
+     */
+    private static final Set<String> REQUEST_PSEUDO_HEADERS = Set.of(":method", ":scheme", ":authority", ":path");
+
+    /**
+     * The response headers which only apply to HTTP/1.x connections and are not sent in HTTP/2.
+     */
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+                                                                 "transfer-encoding", "upgrade");
+
+    /**
+     * The response headers whose values change with nearly every response, so they are not worth keeping in the
+     * dynamic table.
+     */
+    private static final Set<String> UNINDEXED_HEADERS = Set.of("content-length", "content-range", "date", "etag",
+                                                                "last-modified", "set-cookie");
+
+    /**
+     * The input stream of the connection.
+     */
+    private final InputStream input;
+
+    /**
+     * The output stream of the connection, guarded by {@link #writeLock}.
+     */
+    private final OutputStream output;
+
+    /**
+     * Answers the requests of the streams.
+     */
+    private final StreamHandler handler;
+
+    /**
+     * Creates the requests of the streams from their headers.
+     */
+    private final HttpRequestParser parser;
+
+    /**
+     * The maximum size of the header list of a request.
+     */
+    private final int maxHeaderListSize;
+
+    /**
+     * The maximum number of streams which are answered at once.
+     */
+    private final int maxConcurrentStreams;
+
+    /**
+     * How long an idle connection is kept open and a stream waits for its flow control window, in milliseconds.
+     */
+    private final long timeout;
+
+    /**
+     * Decodes the headers of the requests. Used only by the reading thread.
+     */
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+
+    /**
+     * Encodes the headers of the responses, guarded by {@link #writeLock} as the header blocks have to be sent in the
+     * order they are encoded.
+     */
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    /**
+     * The lock which keeps frames from being interleaved on the output stream.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The header of the frame being written, guarded by {@link #writeLock}.
+     */
+    private final byte[] outputHeader = new byte[FRAME_HEADER_LENGTH];
+
+    /**
+     * The header of the frame being read. Used only by the reading thread.
+     */
+    private final byte[] inputHeader = new byte[FRAME_HEADER_LENGTH];
+
+    /**
+     * The payload of the frame being read. Used only by the reading thread.
+     */
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+
+    /**
+     * The header block of the request being received. Used only by the reading thread.
+     */
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    /**
+     * The stream whose header block is being received, 0 if none is. Used only by the reading thread.
+     */
+    private int headerBlockStream;
+
+    /**
+     * Whether the header block being received ends its stream. Used only by the reading thread.
+     */
+    private boolean headerBlockEndsStream;
+
+    /**
+     * The highest identifier of a stream opened by the client. Used only by the reading thread.
+     */
+    private int lastStreamId;
+
+    /**
+     * The streams whose requests the client has not ended yet. Used only by the reading thread.
+     */
+    private final Set<Integer> requestsOpen = new HashSet<>();
+
+    /**
+     * The last streams reset before the client has ended their requests, whose frames may still arrive, 0 where
+     * there is none. Used only by the reading thread.
+     */
+    private final int[] resetRequests = new int[16];
+
+    /**
+     * The number of streams ever added to {@link #resetRequests}. Used only by the reading thread.
+     */
+    private int resetRequestsCount;
+
+    /**
+     * The streams which are being answered, by their identifier, guarded by this connection.
+     */
+    private final Map<Integer, ResponseStream> streams = new HashMap<>();
+
+    /**
+     * The flow control window of the connection, guarded by this connection.
+     */
+    private int connectionWindow = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * The initial flow control window of the streams, guarded by this connection.
+     */
+    private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Creates a new {@link Http2Connection} with the given arguments.
+     *
+     * @param input the input stream of the connection
+     * @param output the output stream of the connection
+     * @param handler answers the requests of the streams
+     * @param maxHeaderListSize the maximum size of the header list of a request
+     * @param maxConcurrentStreams the maximum number of streams which are answered at once
+     * @param timeout how long an idle connection is kept open and a stream waits for its flow control window, in
+     *                milliseconds
+     */
+    Http2Connection(InputStream input, OutputStream output, StreamHandler handler, int maxHeaderListSize,
+                    int maxConcurrentStreams, long timeout) {
+        this.input = input;
+        this.output = output;
+        this.handler = handler;
+        this.parser = new HttpRequestParser(maxHeaderListSize);
+        this.maxHeaderListSize = maxHeaderListSize;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Serves the connection until it is closed by either side. The streams still being answered are reset once it
+     * is.
+     *
+     * @param upgrade the request which has upgraded the connection, answered as the first stream, or {@code null}
+     *                if the client has started the connection with the preface, whose first
+     *                {@value #PREFACE_REQUEST_LENGTH} bytes have already been read
+     * @param upgradeSettings the settings sent with the upgrade request, ignored if there is none
+     */
+    void serve(HttpRequest upgrade, byte[] upgradeSettings) {
+        try {
+            writeSettings();
+
+            if (upgrade != null) {
+                applySettings(upgradeSettings, upgradeSettings.length);
+                lastStreamId = 1;
+                open(1, upgrade);
+            }
+
+            readPreface(upgrade == null ? PREFACE_REQUEST_LENGTH : 0);
+
+            while (readFrame()) {
+                // Frames are handled as they are read
+            }
+        } catch (ConnectionException e) {
+            goAway(e.errorCode);
+        } catch (Hpack.HpackException e) {
+            goAway(COMPRESSION_ERROR);
+        } catch (SocketTimeoutException e) { // The connection has been idle for too long
+            goAway(NO_ERROR);
+        } catch (IOException ignored) { // The connection has been lost
+        } finally {
+            synchronized (this) {
+                streams.values().forEach(stream -> stream.reset = true);
+                streams.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Refuses the connection without answering any of its streams, as the server is overloaded. The client may retry
+     * them on another connection.
+     */
+    void refuse() {
+        try {
+            writeSettings(); // The server preface has to come before anything else
+        } catch (IOException e) {
+            return;
+        }
+
+        goAway(REFUSED_STREAM);
+    }
+
+    /**
+     * Reads the rest of the preface.
+     *
+     * @param alreadyRead the number of bytes of the preface which have already been read
+     *
+     * @throws IOException if an error occurs while reading or the preface is invalid
+     */
+    private void readPreface(int alreadyRead) throws IOException {
+        int length = PREFACE.length - alreadyRead;
+
+        readFully(payload, length, false);
+
+        if (!Arrays.equals(payload, 0, length, PREFACE, alreadyRead, PREFACE.length)) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid preface.");
+        }
+    }
+
+    /**
+     * Reads and handles a single frame.
+     *
+     * @return whether the connection stays open
+     *
+     * @throws IOException if an error occurs while reading or writing, or the frame violates the protocol
+     */
+    private boolean readFrame() throws IOException {
+        if (!readFully(inputHeader, FRAME_HEADER_LENGTH, true)) {
+            return false;
+        }
+
+        int length = (inputHeader[0] & 0xff) << 16 | (inputHeader[1] & 0xff) << 8 | inputHeader[2] & 0xff;
+        int type = inputHeader[3] & 0xff;
+        int flags = inputHeader[4] & 0xff;
+        int streamId = readInt(inputHeader, 5) & 0x7fffffff;
+
+        if (length > MAX_FRAME_SIZE) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "Frame of " + length + " bytes.");
+        }
+
+        readFully(payload, length, false);
+
+        // A header block must not be interrupted by any other frame
+        if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Expected a CONTINUATION frame.");
+        }
+
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case PRIORITY: // Streams are answered as soon as possible regardless of their priority
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionException(PROTOCOL_ERROR, "Clients cannot push streams.");
+            case PING:
+                onPing(flags, streamId, length);
+                break;
+            case GOAWAY: // The streams already opened are still answered
+                awaitStreams();
+                return false;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                onContinuation(flags, streamId, length);
+                break;
+            default: // Frames of unknown types must be ignored
+                break;
+        }
+
+        return true;
+    }
+
+    /**
+     * Handles a DATA frame. Request bodies are not used, so the data is discarded and its flow control credit is
+     * returned.
+     *
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onData(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionException(PROTOCOL_ERROR, "DATA frame on an idle stream.");
+        }
+
+        if ((flags & END_STREAM) != 0) {
+            requestsOpen.remove(streamId);
+        }
+
+        if (length == 0) {
+            return;
+        }
+
+        boolean streamOpen;
+
+        synchronized (this) {
+            streamOpen = (flags & END_STREAM) == 0 && streams.containsKey(streamId);
+        }
+
+        byte[] increment = new byte[4];
+
+        writeInt(increment, 0, length);
+
+        synchronized (writeLock) {
+            writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, 4, !streamOpen);
+
+            if (streamOpen) {
+                writeFrame(WINDOW_UPDATE, 0, streamId, increment, 0, 4, true);
+            }
+        }
+    }
+
+    /**
+     * Handles a HEADERS frame, which starts the header block of a request.
+     *
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onHeaders(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "HEADERS frame on the connection.");
+        }
+
+        int start = 0;
+        int end = length;
+
+        if ((flags & PADDED) != 0) {
+            if (length == 0) {
+                throw new ConnectionException(PROTOCOL_ERROR, "Missing padding length.");
+            }
+
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+
+        if ((flags & PRIORITY_FLAG) != 0) {
+            start += 5;
+        }
+
+        if (start > end) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Invalid padding.");
+        }
+
+        headerBlock.reset();
+        headerBlock.write(payload, start, end - start);
+        headerBlockStream = streamId;
+        headerBlockEndsStream = (flags & END_STREAM) != 0;
+
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    /**
+     * Handles a CONTINUATION frame, which continues the header block of a request.
+     *
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onContinuation(int flags, int streamId, int length) throws IOException {
+        if (headerBlockStream == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "CONTINUATION frame without a header block.");
+        }
+
+        headerBlock.write(payload, 0, length);
+
+        // Compressed headers are never much larger than the headers themselves
+        if (headerBlock.size() > 2 * maxHeaderListSize + MAX_FRAME_SIZE) {
+            throw new ConnectionException(ENHANCE_YOUR_CALM, "Header block too large.");
+        }
+
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    /**
+     * Handles a complete header block, opening a new stream for the request.
+     *
+     * @throws IOException if an error occurs while writing or the header block violates the protocol
+     */
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerBlockStream;
+        boolean endsStream = headerBlockEndsStream;
+        Map<String, String> pseudoHeaders = new HashMap<>();
+        Map<String, String> headers = new HashMap<>();
+        int[] size = {0};
+        boolean[] malformed = {false};
+
+        headerBlockStream = 0;
+
+        // Decoded even if the stream is not opened, so the dynamic table stays the same as the client's
+        decoder.decode(headerBlock.toByteArray(), headerBlock.size(), (name, value) -> {
+            size[0] += Hpack.sizeOf(name, value);
+            malformed[0] |= !isValidValue(value);
+
+            if (name.startsWith(":")) { // Pseudo-headers come first and only once
+                malformed[0] |= !headers.isEmpty() || !REQUEST_PSEUDO_HEADERS.contains(name)
+                                || pseudoHeaders.put(name, value) != null;
+            }
+            else {
+                malformed[0] |= !isValidName(name);
+
+                if (size[0] <= maxHeaderListSize) {
+                    // Repeated headers are combined into one, just like in HTTP/1.x
+                    headers.merge(name, value, (previous, next) -> previous + ("cookie".equals(name) ? "; " : ", ")
+                                                                   + next);
+                }
+            }
+        });
+
+        if (streamId <= lastStreamId) {
+            onTrailers(streamId, endsStream, malformed[0] || !pseudoHeaders.isEmpty());
+            return;
+        }
+
+        if ((streamId & 1) == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "Stream " + streamId + " is not a client stream.");
+        }
+
+        lastStreamId = streamId;
+
+        String method = pseudoHeaders.get(":method");
+        String path = pseudoHeaders.get(":path");
+
+        // Every request but CONNECT has its scheme and path, and a space would split the request line
+        if (malformed[0] || method == null || !isValidToken(method) || path == null || !isValidToken(path)
+            || !"CONNECT".equals(method) && pseudoHeaders.get(":scheme") == null) {
+            resetRequest(streamId, endsStream, PROTOCOL_ERROR);
+            return;
+        }
+
+        if (!endsStream) {
+            // Streams whose requests go on count as open even once they have been answered
+            if (requestsOpen.size() >= maxConcurrentStreams) {
+                resetRequest(streamId, false, REFUSED_STREAM);
+                return;
+            }
+
+            requestsOpen.add(streamId);
+        }
+
+        if (size[0] > maxHeaderListSize) {
+            writeStatus(streamId, 431);
+            return;
+        }
+
+        String authority = pseudoHeaders.get(":authority");
+
+        if (authority != null) {
+            headers.putIfAbsent("host", authority);
+        }
+
+        HttpRequest request;
+
+        try {
+            // Answered as HTTP/1.0, so the length of the body does not have to be known upfront
+            request = parser.parse(method, path, "HTTP/1.0", headers);
+        } catch (HttpRequestParserException e) {
+            writeStatus(streamId, e.getStatusCode());
+            return;
+        }
+
+        open(streamId, request);
+    }
+
+    /**
+     * Handles a header block of a stream which has already been opened, which may only be the trailers ending its
+     * request. Trailers are discarded together with the body of the request.
+     *
+     * @param streamId the stream of the header block
+     * @param endsStream whether the header block ends the stream
+     * @param malformed whether the header block is malformed, or has pseudo-headers
+     *
+     * @throws IOException if an error occurs while writing or the header block violates the protocol
+     */
+    private void onTrailers(int streamId, boolean endsStream, boolean malformed) throws IOException {
+        if (requestsOpen.remove(streamId)) {
+            if (!endsStream || malformed) {
+                resetRequest(streamId, endsStream, PROTOCOL_ERROR);
+            }
+
+            return;
+        }
+
+        for (int id : resetRequests) {
+            if (id == streamId) { // Sent before the client has learned of the reset
+                return;
+            }
+        }
+
+        throw new ConnectionException(STREAM_CLOSED, "HEADERS frame on closed stream " + streamId + ".");
+    }
+
+    /**
+     * Resets the stream of a request, remembering it if the client may still send frames on it.
+     *
+     * @param streamId the stream to reset
+     * @param requestEnded whether the client has ended the request
+     * @param errorCode the reason for the reset
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void resetRequest(int streamId, boolean requestEnded, int errorCode) throws IOException {
+        requestsOpen.remove(streamId);
+
+        if (!requestEnded) {
+            resetRequests[resetRequestsCount++ & (resetRequests.length - 1)] = streamId;
+        }
+
+        writeResetStream(streamId, errorCode);
+    }
+
+    /**
+     * Returns whether a header name is valid in HTTP/2, where names are lower case.
+     *
+     * @param name the name of the header
+     * @return whether the name is valid
+     */
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0, n = name.length(); i < n; i++) {
+            char c = name.charAt(i);
+
+            if (c <= ' ' || c >= 0x7f || c >= 'A' && c <= 'Z' || c == ':') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether a header value is valid, which it is unless it contains a character ending a line.
+     *
+     * @param value the value of the header
+     * @return whether the value is valid
+     */
+    private static boolean isValidValue(String value) {
+        return value.indexOf('\0') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0;
+    }
+
+    /**
+     * Returns whether the method or the path of a request is valid, which it is if it is not empty and contains no
+     * spaces or control characters.
+     *
+     * @param token the method or the path
+     * @return whether the method or the path is valid
+     */
+    private static boolean isValidToken(String token) {
+        if (token.isEmpty()) {
+            return false;
+        }
+
+        for (int i = 0, n = token.length(); i < n; i++) {
+            char c = token.charAt(i);
+
+            if (c <= ' ' || c == 0x7f) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Opens a stream and hands its request to the handler, unless too many streams are already being answered.
+     *
+     * @param streamId the identifier of the stream
+     * @param request the request of the stream
+     *
+     * @throws IOException if an error occurs while refusing the stream
+     */
+    private void open(int streamId, HttpRequest request) throws IOException {
+        ResponseStream stream = null;
+
+        synchronized (this) {
+            if (streams.size() < maxConcurrentStreams) {
+                stream = new ResponseStream(streamId, initialWindowSize);
+                streams.put(streamId, stream);
+            }
+        }
+
+        if (stream == null || !handler.handle(request, stream)) { // The client may retry refused streams
+            if (stream != null) {
+                remove(stream);
+            }
+
+            resetRequest(streamId, !requestsOpen.contains(streamId), REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Handles a RST_STREAM frame, which cancels a stream.
+     *
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws ConnectionException if the frame violates the protocol
+     */
+    private void onResetStream(int streamId, int length) throws ConnectionException {
+        if (length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "RST_STREAM frame of " + length + " bytes.");
+        }
+
+        if (streamId == 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "RST_STREAM frame on the connection.");
+        }
+
+        requestsOpen.remove(streamId);
+
+        synchronized (this) {
+            ResponseStream stream = streams.remove(streamId);
+
+            if (stream != null) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Handles a SETTINGS frame, applying and acknowledging the settings of the client.
+     *
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onSettings(int flags, int streamId, int length) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId + ".");
+        }
+
+        if ((flags & ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload.");
+            }
+
+            return;
+        }
+
+        applySettings(payload, length);
+        writeFrame(SETTINGS, ACK, 0, payload, 0, 0, true);
+    }
+
+    /**
+     * Applies the settings of the client.
+     *
+     * @param settings the payload of a SETTINGS frame
+     * @param length the length of the payload
+     *
+     * @throws ConnectionException if the settings are invalid
+     */
+    private void applySettings(byte[] settings, int length) throws ConnectionException {
+        if (length % 6 != 0) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS frame of " + length + " bytes.");
+        }
+
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            int value = readInt(settings, i + 2);
+
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE: // Values over 2^31 - 1 are negative
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value < 0 || value > HEADER_TABLE_SIZE ? HEADER_TABLE_SIZE : value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid push setting " + value + ".");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new ConnectionException(FLOW_CONTROL_ERROR, "Initial window too large.");
+                    }
+
+                    synchronized (this) { // The windows of open streams change by the same amount
+                        int delta = value - initialWindowSize;
+
+                        for (ResponseStream stream : streams.values()) {
+                            if ((long) stream.window + delta > Integer.MAX_VALUE) {
+                                throw new ConnectionException(FLOW_CONTROL_ERROR, "Stream window too large.");
+                            }
+
+                            stream.window += delta;
+                        }
+
+                        initialWindowSize = value;
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE: // Frames are never larger than the minimum anyway
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionException(PROTOCOL_ERROR, "Invalid maximum frame size " + value + ".");
+                    }
+                    break;
+                default: // Unknown settings must be ignored
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Handles a PING frame, answering it unless it is an answer itself.
+     *
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onPing(int flags, int streamId, int length) throws IOException {
+        if (length != 8) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "PING frame of " + length + " bytes.");
+        }
+
+        if (streamId != 0) {
+            throw new ConnectionException(PROTOCOL_ERROR, "PING frame on stream " + streamId + ".");
+        }
+
+        if ((flags & ACK) == 0) {
+            writeFrame(PING, ACK, 0, payload, 0, 8, true);
+        }
+    }
+
+    /**
+     * Handles a WINDOW_UPDATE frame, which widens the flow control window of the connection or of a stream.
+     *
+     * @param streamId the stream of the frame, 0 for the connection
+     * @param length the length of the payload
+     *
+     * @throws IOException if an error occurs while writing or the frame violates the protocol
+     */
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new ConnectionException(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + length + " bytes.");
+        }
+
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        int error;
+
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0) {
+                    throw new ConnectionException(PROTOCOL_ERROR, "Empty window update.");
+                }
+
+                if ((long) connectionWindow + increment > Integer.MAX_VALUE) {
+                    throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window too large.");
+                }
+
+                connectionWindow += increment;
+                notifyAll();
+                return;
+            }
+
+            ResponseStream stream = streams.get(streamId);
+
+            if (stream == null) { // Updates may still arrive for streams which have just been finished
+                return;
+            }
+
+            if (increment != 0 && (long) stream.window + increment <= Integer.MAX_VALUE) {
+                stream.window += increment;
+                notifyAll();
+                return;
+            }
+
+            error = increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR;
+            streams.remove(streamId);
+            stream.reset = true;
+            notifyAll();
+        }
+
+        writeResetStream(streamId, error);
+    }
+
+    /**
+     * Waits until the streams being answered are finished, or the connection times out.
+     */
+    private synchronized void awaitStreams() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        try {
+            for (long remaining = timeout; !streams.isEmpty() && remaining > 0;
+                 remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes a finished or reset stream.
+     *
+     * @param stream the stream to remove
+     */
+    private synchronized void remove(ResponseStream stream) {
+        streams.remove(stream.id, stream);
+        notifyAll();
+    }
+
+    /**
+     * Returns whether any streams are being answered.
+     *
+     * @return whether any streams are being answered
+     */
+    private synchronized boolean hasStreams() {
+        return !streams.isEmpty();
+    }
+
+    /**
+     * Reads the given number of bytes.
+     *
+     * @param bytes the array to read into
+     * @param length the number of bytes to read
+     * @param frameStart whether the bytes start a new frame, so the connection may end or be idle before them
+     * @return {@code false} if the connection has ended before a new frame, otherwise {@code true}
+     *
+     * @throws IOException if an error occurs while reading, the connection ends within a frame or it is idle for
+     *                     too long
+     */
+    private boolean readFully(byte[] bytes, int length, boolean frameStart) throws IOException {
+        int read = 0;
+
+        while (read < length) {
+            int n;
+
+            try {
+                n = input.read(bytes, read, length - read);
+            } catch (SocketTimeoutException e) {
+                if (read == 0 && frameStart && hasStreams()) { // Not idle while responses are still being sent
+                    continue;
+                }
+
+                throw e;
+            }
+
+            if (n == -1) {
+                if (read == 0 && frameStart) {
+                    return false;
+                }
+
+                throw new EOFException("Connection ended within a frame.");
+            }
+
+            read += n;
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the settings of the server.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[12];
+
+        settings[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+        writeInt(settings, 2, maxConcurrentStreams);
+        settings[7] = SETTINGS_MAX_HEADER_LIST_SIZE;
+        writeInt(settings, 8, maxHeaderListSize);
+
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, true);
+    }
+
+    /**
+     * Answers a stream with just a status code.
+     *
+     * @param streamId the stream to answer
+     * @param statusCode the status code
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeStatus(int streamId, int statusCode) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+        synchronized (writeLock) {
+            encoder.encode(":status", Integer.toString(statusCode), true, block);
+            writeHeaderBlock(streamId, block, true);
+        }
+    }
+
+    /**
+     * Resets a stream.
+     *
+     * @param streamId the stream to reset
+     * @param errorCode the reason for the reset
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeResetStream(int streamId, int errorCode) throws IOException {
+        byte[] error = new byte[4];
+
+        writeInt(error, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, error, 0, 4, true);
+    }
+
+    /**
+     * Tells the client the connection is being closed, ignoring errors as it is closed anyway.
+     *
+     * @param errorCode the reason for closing the connection
+     */
+    private void goAway(int errorCode) {
+        byte[] goAway = new byte[8];
+
+        writeInt(goAway, 0, lastStreamId);
+        writeInt(goAway, 4, errorCode);
+
+        try {
+            writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length, true);
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Writes a header block as a HEADERS frame followed by as many CONTINUATION frames as needed. Must be called
+     * while holding {@link #writeLock}, so no other frame comes between them.
+     *
+     * @param streamId the stream of the header block
+     * @param block the encoded header block
+     * @param endStream whether the header block ends the stream, only then is the output flushed
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeHeaderBlock(int streamId, ByteArrayOutputStream block, boolean endStream) throws IOException {
+        byte[] bytes = block.toByteArray();
+        int offset = 0;
+        int type = HEADERS;
+        int flags = endStream ? END_STREAM : 0;
+
+        do {
+            int length = Math.min(bytes.length - offset, MAX_FRAME_SIZE);
+
+            if (offset + length == bytes.length) {
+                flags |= END_HEADERS;
+            }
+
+            writeFrame(type, flags, streamId, bytes, offset, length, endStream && (flags & END_HEADERS) != 0);
+            offset += length;
+            type = CONTINUATION;
+            flags = 0;
+        } while (offset < bytes.length);
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param type the type of the frame
+     * @param flags the flags of the frame
+     * @param streamId the stream of the frame
+     * @param bytes the array holding the payload
+     * @param offset the index of the first byte of the payload
+     * @param length the length of the payload
+     * @param flush whether the output is flushed after the frame
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] bytes, int offset, int length, boolean flush)
+            throws IOException {
+        synchronized (writeLock) {
+            outputHeader[0] = (byte) (length >>> 16);
+            outputHeader[1] = (byte) (length >>> 8);
+            outputHeader[2] = (byte) length;
+            outputHeader[3] = (byte) type;
+            outputHeader[4] = (byte) flags;
+            writeInt(outputHeader, 5, streamId);
+
+            output.write(outputHeader);
+            output.write(bytes, offset, length);
+
+            if (flush) {
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes the output.
+     *
+     * @throws IOException if an error occurs while flushing
+     */
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Reads a big-endian 32-bit integer.
+     *
+     * @param bytes the array to read from
+     * @param offset the index of the first byte of the integer
+     * @return the integer
+     */
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+               | bytes[offset + 3] & 0xff;
+    }
+
+    /**
+     * Writes a big-endian 32-bit integer.
+     *
+     * @param bytes the array to write to
+     * @param offset the index of the first byte of the integer
+     * @param value the integer
+     */
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Answers the requests of the streams.
+     *
+     * @author Marko Lazarić
+     */
+    interface StreamHandler {
+
+        /**
+         * Starts answering the request of a stream. The response has to be written to the stream, which has to be
+         * closed once the response is finished.
+         *
+         * @param request the request of the stream
+         * @param stream the stream to write the response to
+         * @return whether the request will be answered, if it is not the stream is refused
+         */
+        boolean handle(HttpRequest request, ResponseStream stream);
+    }
+
+    /**
+     * Thrown if the client violates the protocol in a way which closes the connection.
+     *
+     * @author Marko Lazarić
+     */
+    private static class ConnectionException extends IOException {
+
+        /**
+         * The serial version UID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The error code sent to the client.
+         */
+        private final int errorCode;
+
+        /**
+         * Creates a new {@link ConnectionException} with the given arguments.
+         *
+         * @param errorCode the error code sent to the client
+         * @param message the detail message
+         */
+        private ConnectionException(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * The stream an HTTP/1.x response to the request of a stream is written to. The response header is sent as a
+     * HEADERS frame without the headers which only apply to HTTP/1.x connections, and the body is sent in DATA frames
+     * of the maximum size. The last frame is sent once the stream is closed, which also ends the stream.
+     *
+     * @author Marko Lazarić
+     */
+    class ResponseStream extends OutputStream {
+
+        /**
+         * The identifier of the stream.
+         */
+        private final int id;
+
+        /**
+         * The flow control window of the stream, guarded by the connection.
+         */
+        private int window;
+
+        /**
+         * Whether the stream has been reset or the connection closed, guarded by the connection.
+         */
+        private boolean reset;
+
+        /**
+         * The response header written so far.
+         */
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+
+        /**
+         * The last four bytes of the response header written so far, used to find its end.
+         */
+        private int headTail;
+
+        /**
+         * The status code of the response, 0 until the whole response header has been written.
+         */
+        private int statusCode;
+
+        /**
+         * The names and values of the headers of the response which are sent.
+         */
+        private final List<String[]> headers = new ArrayList<>();
+
+        /**
+         * Whether the HEADERS frame has been sent.
+         */
+        private boolean headersSent;
+
+        /**
+         * The body written since the last DATA frame.
+         */
+        private final byte[] pending = new byte[MAX_FRAME_SIZE];
+
+        /**
+         * The number of bytes in {@link #pending}.
+         */
+        private int pendingLength;
+
+        /**
+         * Whether the stream has been closed.
+         */
+        private boolean finished;
+
+        /**
+         * Creates a new {@link ResponseStream} with the given arguments.
+         *
+         * @param id the identifier of the stream
+         * @param window the initial flow control window of the stream
+         */
+        private ResponseStream(int id, int window) {
+            this.id = id;
+            this.window = window;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Stream " + id + " is already closed.");
+            }
+
+            if (statusCode == 0) {
+                int headLength = writeHead(b, off, len);
+
+                off += headLength;
+                len -= headLength;
+            }
+
+            while (len > 0) {
+                if (pendingLength == 0 && len > pending.length) { // Large writes are sent without copying them
+                    int direct = (len - 1) / pending.length * pending.length;
+
+                    send(b, off, direct, false);
+                    off += direct;
+                    len -= direct;
+                }
+
+                int n = Math.min(len, pending.length - pendingLength);
+
+                System.arraycopy(b, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+
+                // A full frame is only sent once more follows, so the last one can end the stream
+                if (pendingLength == pending.length && len > 0) {
+                    send(pending, 0, pendingLength, false);
+                    pendingLength = 0;
+                }
+            }
+        }
+
+        /**
+         * Does nothing, the body is sent in frames of the maximum size and the rest once the stream is closed.
+         */
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Finishes the response, sending the rest of it and ending the stream. If the response cannot be finished,
+         * the stream is reset instead.
+         */
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+
+            try {
+                if (statusCode == 0) {
+                    throw new IOException("Incomplete response header.");
+                }
+
+                send(pending, 0, pendingLength, true);
+            } catch (IOException e) {
+                boolean wasReset;
+
+                synchronized (Http2Connection.this) {
+                    wasReset = reset;
+                }
+
+                if (!wasReset) {
+                    try {
+                        writeResetStream(id, INTERNAL_ERROR);
+                    } catch (IOException ignored) {}
+                }
+            } finally {
+                finished = true;
+                remove(this);
+            }
+        }
+
+        /**
+         * Buffers the bytes of the response header until it is complete, and then parses it.
+         *
+         * @param b the written bytes
+         * @param off the index of the first written byte
+         * @param len the number of written bytes
+         * @return the number of bytes which belong to the response header
+         *
+         * @throws IOException if the response header is invalid
+         */
+        private int writeHead(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                headTail = headTail << 8 | b[off + i] & 0xff;
+
+                if (headTail == 0x0d0a0d0a) { // \r\n\r\n
+                    head.write(b, off, i + 1);
+                    parseHead();
+                    return i + 1;
+                }
+            }
+
+            head.write(b, off, len);
+
+            return len;
+        }
+
+        /**
+         * Parses the complete response header.
+         *
+         * @throws IOException if the response header is invalid
+         */
+        private void parseHead() throws IOException {
+            String[] lines = head.toString(StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+
+            try {
+                statusCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+
+                if (colon <= 0) {
+                    continue;
+                }
+
+                String name = lines[i].substring(0, colon).strip().toLowerCase(Locale.ROOT);
+
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    headers.add(new String[] {name, lines[i].substring(colon + 1).strip()});
+                }
+            }
+        }
+
+        /**
+         * Sends the HEADERS frame if it has not been sent yet, and the body in DATA frames as the flow control
+         * windows allow.
+         *
+         * @param bytes the array holding the body
+         * @param offset the index of the first byte of the body
+         * @param length the length of the body
+         * @param endStream whether the body ends the stream
+         *
+         * @throws IOException if an error occurs while writing, or the stream has been reset
+         */
+        private void send(byte[] bytes, int offset, int length, boolean endStream) throws IOException {
+            if (!headersSent) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                boolean headersOnly = length == 0 && endStream;
+
+                synchronized (writeLock) {
+                    checkReset();
+                    encoder.encode(":status", Integer.toString(statusCode), true, block);
+
+                    for (String[] header : headers) {
+                        encoder.encode(header[0], header[1], !UNINDEXED_HEADERS.contains(header[0]), block);
+                    }
+
+                    // Flushed together with the first DATA frame
+                    writeHeaderBlock(id, block, headersOnly);
+                }
+
+                headersSent = true;
+
+                if (headersOnly) {
+                    return;
+                }
+            }
+
+            if (length == 0 && endStream) {
+                writeFrame(DATA, END_STREAM, id, bytes, offset, 0, true);
+            }
+
+            while (length > 0) {
+                int n = reserve(length);
+
+                writeFrame(DATA, n == length && endStream ? END_STREAM : 0, id, bytes, offset, n, true);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Takes as much of the flow control windows of the connection and the stream as possible, waiting until
+         * they are open.
+         *
+         * @param wanted the number of bytes waiting to be sent
+         * @return the number of bytes which can be sent in the next frame
+         *
+         * @throws IOException if the stream has been reset, or the windows stay closed for too long
+         */
+        private int reserve(int wanted) throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            boolean flushed = false;
+
+            while (true) {
+                synchronized (Http2Connection.this) {
+                    checkReset();
+
+                    int available = Math.min(connectionWindow, window);
+
+                    if (available > 0) {
+                        int n = Math.min(wanted, Math.min(available, MAX_FRAME_SIZE));
+
+                        connectionWindow -= n;
+                        window -= n;
+
+                        return n;
+                    }
+
+                    if (flushed) {
+                        long remaining = deadline - System.nanoTime();
+
+                        if (remaining <= 0) {
+                            throw new IOException("Flow control window of stream " + id + " stayed closed.");
+                        }
+
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(Http2Connection.this, remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for the flow control window.");
+                        }
+
+                        continue;
+                    }
+                }
+
+                flush(); // The client may be waiting for what has been sent so far before it opens the window
+                flushed = true;
+            }
+        }
+
+        /**
+         * Checks whether the stream can still be written to.
+         *
+         * @throws IOException if the stream has been reset or the connection closed
+         */
+        private void checkReset() throws IOException {
+            synchronized (Http2Connection.this) {
+                if (reset) {
+                    throw new IOException("Stream " + id + " has been reset.");
+                }
+            }
+        }
+    }
+}
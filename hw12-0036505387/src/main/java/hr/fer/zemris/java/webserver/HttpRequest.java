@@ -0,0 +1,129 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Models a parsed HTTP request header.
+ *
+ * @author Marko Lazarić
+ */
+public class HttpRequest {
+
+    /**
+     * The method of the request.
+     */
+    private final String method;
+
+    /**
+     * The requested path, without the query string.
+     */
+    private final String path;
+
+    /**
+     * The version of HTTP.
+     */
+    private final String version;
+
+    /**
+     * The mapping of lower case header names to header values.
+     */
+    private final Map<String, String> headers;
+
+    /**
+     * The mapping of cookie names to cookie values.
+     */
+    private final Map<String, String> cookies;
+
+    /**
+     * The mapping of URL-decoded GET parameter names to their values.
+     */
+    private final Map<String, String> parameters;
+
+    /**
+     * Creates a new {@link HttpRequest} with the given arguments.
+     *
+     * @param method the method of the request
+     * @param path the requested path, without the query string
+     * @param version the version of HTTP
+     * @param headers the mapping of lower case header names to header values
+     * @param cookies the mapping of cookie names to cookie values
+     * @param parameters the mapping of URL-decoded GET parameter names to their values
+     *
+     * @throws NullPointerException if any of the arguments are {@code null}
+     */
+    public HttpRequest(String method, String path, String version, Map<String, String> headers,
+                       Map<String, String> cookies, Map<String, String> parameters) {
+        this.method = Objects.requireNonNull(method, "Method cannot be null.");
+        this.path = Objects.requireNonNull(path, "Path cannot be null.");
+        this.version = Objects.requireNonNull(version, "Version cannot be null.");
+        this.headers = Objects.requireNonNull(headers, "Headers cannot be null.");
+        this.cookies = Objects.requireNonNull(cookies, "Cookies cannot be null.");
+        this.parameters = Objects.requireNonNull(parameters, "Parameters cannot be null.");
+    }
+
+    /**
+     * Returns the method of the request.
+     *
+     * @return the method of the request
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the requested path, without the query string.
+     *
+     * @return the requested path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the version of HTTP.
+     *
+     * @return the version of HTTP
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value of the header with the specified name or null.
+     *
+     * @param name the case insensitive name of the header
+     * @return the value of the header or null
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Returns the mapping of lower case header names to header values.
+     *
+     * @return the mapping of lower case header names to header values
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the mapping of cookie names to cookie values.
+     *
+     * @return the mapping of cookie names to cookie values
+     */
+    public Map<String, String> getCookies() {
+        return cookies;
+    }
+
+    /**
+     * Returns the mapping of URL-decoded GET parameter names to their values. The map is modifiable, so it can be
+     * used directly as the parameters of a {@link RequestContext}.
+     *
+     * @return the mapping of GET parameter names to their values
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+}
@@ -0,0 +1,485 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses HTTP request headers from a reusable buffer. One parser is used for the whole lifetime of a connection, the
+ * bytes of the connection are read into its buffer and every complete header is parsed in a single pass into the
+ * header map, the cookie map, the path and the URL-decoded GET parameters. Bytes which follow a parsed header, such
+ * as pipelined requests, are kept in the buffer for the next request.
+ *
+ * @author Marko Lazarić
+ */
+public class HttpRequestParser {
+
+    /**
+     * The buffer the bytes of the connection are read into. It is always kept in write mode, so the bytes read so
+     * far are the ones between zero and its position.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The buffer used for URL-decoding.
+     */
+    private final byte[] scratch;
+
+    /**
+     * The number of buffered bytes already checked for the end of the header.
+     */
+    private int scanned = 0;
+
+    /**
+     * Creates a new {@link HttpRequestParser} with the given argument.
+     *
+     * @param maxHeaderSize the maximum size of a request header in bytes
+     *
+     * @throws IllegalArgumentException if {@code maxHeaderSize} is not positive
+     */
+    public HttpRequestParser(int maxHeaderSize) {
+        if (maxHeaderSize <= 0) {
+            throw new IllegalArgumentException("Maximum header size must be positive.");
+        }
+
+        buffer = ByteBuffer.allocate(maxHeaderSize);
+        scratch = new byte[maxHeaderSize];
+    }
+
+    /**
+     * Returns the buffer the bytes of the connection should be read into.
+     *
+     * @return the buffer the bytes of the connection should be read into
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Reads from the input stream until a complete request header has been buffered and parses it.
+     *
+     * @param istream the input stream to read from
+     * @return the parsed request or {@code null} if the stream ended before a complete header
+     *
+     * @throws IOException if an error occurs while reading from the input stream
+     * @throws HttpRequestParserException if the header is invalid or too large
+     */
+    public HttpRequest read(InputStream istream) throws IOException {
+        while (true) {
+            HttpRequest request = next();
+
+            if (request != null) {
+                return request;
+            }
+
+            int read = istream.read(buffer.array(), buffer.position(), buffer.remaining());
+
+            if (read == -1) {
+                return null;
+            }
+
+            buffer.position(buffer.position() + read);
+        }
+    }
+
+    /**
+     * Parses the first buffered request if its header is complete. Parsing is recorded as a
+     * {@link RequestEvents.HeaderParse} event.
+     *
+     * @return the parsed request or {@code null} if the header has not been completely read yet
+     *
+     * @throws HttpRequestParserException if the header is invalid or too large
+     */
+    public HttpRequest next() {
+        int headerEnd = findHeaderEnd();
+
+        if (headerEnd == -1) {
+            if (!buffer.hasRemaining()) {
+                throw new HttpRequestParserException(431, "Request Header Fields Too Large");
+            }
+
+            return null;
+        }
+
+        RequestEvents.HeaderParse event = new RequestEvents.HeaderParse();
+
+        event.begin();
+
+        try {
+            HttpRequest request = parse(buffer.array(), headerEnd);
+
+            if (event.shouldCommit()) {
+                event.method = request.getMethod();
+                event.path = request.getPath();
+                event.bytes = headerEnd;
+                event.commit();
+            }
+
+            return request;
+        } finally {
+            // Keep the bytes after the header for the next request
+            buffer.flip().position(headerEnd);
+            buffer.compact();
+            scanned = 0;
+        }
+    }
+
+    /**
+     * Returns whether there are buffered bytes which have not been parsed yet.
+     *
+     * @return whether there are buffered bytes which have not been parsed yet
+     */
+    public boolean hasBufferedBytes() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Removes the buffered bytes which have not been parsed yet and returns them, so the rest of the connection can
+     * be read by something other than this parser.
+     *
+     * @return the buffered bytes which have not been parsed yet
+     */
+    public byte[] takeBufferedBytes() {
+        byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+
+        buffer.clear();
+        scanned = 0;
+
+        return bytes;
+    }
+
+    /**
+     * Creates a request from a header which has already been split into its fields, as it is in HTTP/2. The target is
+     * split into the path and the GET parameters, and the cookies are parsed from the cookie header.
+     *
+     * @param method the method of the request
+     * @param target the request target, consisting of the path and the optional query string
+     * @param version the version of HTTP
+     * @param headers the mapping of lower case header names to header values
+     * @return the created request
+     *
+     * @throws HttpRequestParserException if the target is too large
+     */
+    public HttpRequest parse(String method, String target, String version, Map<String, String> headers) {
+        byte[] bytes = target.getBytes(StandardCharsets.ISO_8859_1);
+
+        if (bytes.length > scratch.length) {
+            throw new HttpRequestParserException(414, "URI Too Long");
+        }
+
+        int queryStart = indexOf(bytes, 0, bytes.length, (byte) '?');
+        Map<String, String> parameters = new HashMap<>();
+
+        if (queryStart < bytes.length) {
+            parseParameters(bytes, queryStart + 1, bytes.length, parameters);
+        }
+
+        Map<String, String> cookies = new HashMap<>();
+        String cookieHeader = headers.get("cookie");
+
+        if (cookieHeader != null) {
+            parseCookies(cookieHeader, cookies);
+        }
+
+        return new HttpRequest(method, ascii(bytes, 0, queryStart), version, headers, cookies, parameters);
+    }
+
+    /**
+     * Returns the index just after the {@code \r\n\r\n} which ends the header or -1 if it has not been read yet.
+     *
+     * @return the index just after the end of the header or -1
+     */
+    private int findHeaderEnd() {
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+
+        for (int index = Math.max(scanned, 3); index < end; index++) {
+            if (bytes[index] == '\n' && bytes[index - 1] == '\r' &&
+                bytes[index - 2] == '\n' && bytes[index - 3] == '\r') {
+                return index + 1;
+            }
+        }
+
+        scanned = end;
+
+        return -1;
+    }
+
+    /**
+     * Parses the header which occupies the bytes from zero to {@code end}.
+     *
+     * @param bytes the bytes of the header
+     * @param end the index just after the end of the header
+     * @return the parsed request
+     *
+     * @throws HttpRequestParserException if the header is invalid
+     */
+    private HttpRequest parse(byte[] bytes, int end) {
+        int lineEnd = indexOf(bytes, 0, end, (byte) '\n');
+        int lineContentEnd = trimLineEnd(bytes, 0, lineEnd);
+
+        // The request line is "METHOD TARGET VERSION"
+        int methodEnd = indexOf(bytes, 0, lineContentEnd, (byte) ' ');
+        int targetStart = skipWhitespace(bytes, methodEnd, lineContentEnd);
+        int targetEnd = indexOf(bytes, targetStart, lineContentEnd, (byte) ' ');
+        int versionStart = skipWhitespace(bytes, targetEnd, lineContentEnd);
+
+        if (methodEnd == 0 || targetStart == targetEnd || versionStart == lineContentEnd) {
+            throw new HttpRequestParserException(400, "Invalid header");
+        }
+
+        String method = ascii(bytes, 0, methodEnd);
+        String version = ascii(bytes, versionStart, lineContentEnd);
+
+        int queryStart = indexOf(bytes, targetStart, targetEnd, (byte) '?');
+        String path = ascii(bytes, targetStart, queryStart);
+        Map<String, String> parameters = new HashMap<>();
+
+        if (queryStart < targetEnd) {
+            parseParameters(bytes, queryStart + 1, targetEnd, parameters);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        String lastName = null;
+
+        for (int lineStart = lineEnd + 1; lineStart < end; lineStart = lineEnd + 1) {
+            lineEnd = indexOf(bytes, lineStart, end, (byte) '\n');
+            lineContentEnd = trimLineEnd(bytes, lineStart, lineEnd);
+
+            if (lineStart == lineContentEnd) { // The empty line which ends the header
+                break;
+            }
+
+            if (bytes[lineStart] == ' ' || bytes[lineStart] == '\t') { // Continuation of a multiline header
+                if (lastName == null) {
+                    throw new HttpRequestParserException(400, "Invalid header");
+                }
+
+                headers.put(lastName, headers.get(lastName) + " " + value(bytes, lineStart, lineContentEnd));
+                continue;
+            }
+
+            int colon = indexOf(bytes, lineStart, lineContentEnd, (byte) ':');
+
+            if (colon == lineContentEnd || colon == lineStart) {
+                throw new HttpRequestParserException(400, "Invalid header");
+            }
+
+            String name = lowerCaseAscii(bytes, lineStart, colon);
+            String value = value(bytes, colon + 1, lineContentEnd);
+            String previous = headers.get(name);
+
+            if (previous != null) { // Repeated headers are combined into one
+                value = previous + ("cookie".equals(name) ? "; " : ", ") + value;
+            }
+
+            headers.put(name, value);
+            lastName = name;
+        }
+
+        Map<String, String> cookies = new HashMap<>();
+        String cookieHeader = headers.get("cookie");
+
+        if (cookieHeader != null) {
+            parseCookies(cookieHeader, cookies);
+        }
+
+        return new HttpRequest(method, path, version, headers, cookies, parameters);
+    }
+
+    /**
+     * Parses the URL-encoded parameters in the bytes from {@code start} to {@code end} into the map.
+     *
+     * @param bytes the bytes of the header
+     * @param start the index of the first byte of the query string
+     * @param end the index just after the last byte of the query string
+     * @param parameters the map to put the parameters into
+     */
+    private void parseParameters(byte[] bytes, int start, int end, Map<String, String> parameters) {
+        while (start < end) {
+            int paramEnd = indexOf(bytes, start, end, (byte) '&');
+            int equals = indexOf(bytes, start, paramEnd, (byte) '=');
+
+            if (equals > start) {
+                String name = decode(bytes, start, equals);
+                // If the name was given without the value, the value is empty
+                String value = equals < paramEnd ? decode(bytes, equals + 1, paramEnd) : "";
+
+                parameters.put(name, value);
+            }
+
+            start = paramEnd + 1;
+        }
+    }
+
+    /**
+     * Parses the value of a cookie header into the map. Quotes around the cookie values are removed.
+     *
+     * @param header the value of the cookie header
+     * @param cookies the map to put the cookies into
+     */
+    private static void parseCookies(String header, Map<String, String> cookies) {
+        int start = 0;
+        int length = header.length();
+
+        while (start < length) {
+            int end = header.indexOf(';', start);
+
+            if (end == -1) {
+                end = length;
+            }
+
+            int equals = header.indexOf('=', start);
+
+            if (equals != -1 && equals < end) {
+                String name = header.substring(start, equals).strip();
+                String value = header.substring(equals + 1, end).strip();
+
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+
+                if (!name.isEmpty()) {
+                    cookies.put(name, value);
+                }
+            }
+
+            start = end + 1;
+        }
+    }
+
+    /**
+     * URL-decodes the bytes from {@code start} to {@code end}. Invalid escape sequences are kept as they are.
+     *
+     * @param bytes the bytes to decode
+     * @param start the index of the first byte to decode
+     * @param end the index just after the last byte to decode
+     * @return the decoded string
+     */
+    private String decode(byte[] bytes, int start, int end) {
+        int length = 0;
+
+        for (int index = start; index < end; index++) {
+            byte b = bytes[index];
+
+            if (b == '+') {
+                b = ' ';
+            }
+            else if (b == '%' && index + 2 < end) {
+                int high = Character.digit(bytes[index + 1], 16);
+                int low = Character.digit(bytes[index + 2], 16);
+
+                if (high != -1 && low != -1) {
+                    b = (byte) ((high << 4) | low);
+                    index += 2;
+                }
+            }
+
+            scratch[length++] = b;
+        }
+
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of the first occurrence of the byte between {@code start} and {@code end} or {@code end} if
+     * it does not occur.
+     *
+     * @param bytes the bytes to search
+     * @param start the index to start searching from
+     * @param end the index to stop searching at
+     * @param b the byte to search for
+     * @return the index of the first occurrence of the byte or {@code end}
+     */
+    private static int indexOf(byte[] bytes, int start, int end, byte b) {
+        for (int index = start; index < end; index++) {
+            if (bytes[index] == b) {
+                return index;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Returns the index of the first byte at or after {@code start} which is not a space or a tab, or {@code end}.
+     *
+     * @param bytes the bytes to search
+     * @param start the index to start searching from
+     * @param end the index to stop searching at
+     * @return the index of the first byte which is not a space or a tab or {@code end}
+     */
+    private static int skipWhitespace(byte[] bytes, int start, int end) {
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+            start++;
+        }
+
+        return start;
+    }
+
+    /**
+     * Returns the end of the line content, without the {@code \r} before the {@code \n}.
+     *
+     * @param bytes the bytes of the header
+     * @param start the index of the first byte of the line
+     * @param end the index of the {@code \n} which ends the line
+     * @return the end of the line content
+     */
+    private static int trimLineEnd(byte[] bytes, int start, int end) {
+        return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    /**
+     * Returns the header value between {@code start} and {@code end}, without the surrounding spaces and tabs.
+     *
+     * @param bytes the bytes of the header
+     * @param start the index of the first byte of the value
+     * @param end the index just after the last byte of the value
+     * @return the header value
+     */
+    private static String value(byte[] bytes, int start, int end) {
+        start = skipWhitespace(bytes, start, end);
+
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+            end--;
+        }
+
+        return ascii(bytes, start, end);
+    }
+
+    /**
+     * Returns the bytes from {@code start} to {@code end} as a string, one character per byte.
+     *
+     * @param bytes the bytes to convert
+     * @param start the index of the first byte
+     * @param end the index just after the last byte
+     * @return the bytes as a string
+     */
+    private static String ascii(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the bytes from {@code start} to {@code end} as a lower case string, one character per byte.
+     *
+     * @param bytes the bytes to convert
+     * @param start the index of the first byte
+     * @param end the index just after the last byte
+     * @return the bytes as a lower case string
+     */
+    private String lowerCaseAscii(byte[] bytes, int start, int end) {
+        int length = 0;
+
+        for (int index = start; index < end; index++) {
+            byte b = bytes[index];
+
+            scratch[length++] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        return new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,40 @@
+package hr.fer.zemris.java.webserver;
+
+/**
+ * An exception thrown in {@link HttpRequestParser} when it has encountered an invalid or too large request header.
+ *
+ * @author Marko Lazarić
+ */
+public class HttpRequestParserException extends RuntimeException {
+
+    /**
+     * The serial version UID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The status code which should be returned to the client.
+     */
+    private final int statusCode;
+
+    /**
+     * Creates a new {@link HttpRequestParserException} with the given arguments.
+     *
+     * @param statusCode the status code which should be returned to the client
+     * @param message the message to pass to super, used as the status text
+     */
+    public HttpRequestParserException(int statusCode, String message) {
+        super(message);
+
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Returns the status code which should be returned to the client.
+     *
+     * @return the status code which should be returned to the client
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
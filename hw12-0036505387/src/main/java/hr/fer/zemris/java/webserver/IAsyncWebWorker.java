@@ -0,0 +1,38 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Models a web worker which processes requests asynchronously. The worker starts processing a request and returns
+ * right away, the response is finished once the returned stage completes. While the stage is incomplete the request
+ * does not occupy any of the server's threads, so workers which wait for I/O do not take up the thread pool.
+ * <p>
+ * Asynchronous workers are registered in {@code workers.properties} just like any other {@link IWebWorker}.
+ *
+ * @author Marko Lazarić
+ */
+public interface IAsyncWebWorker extends IWebWorker {
+
+    /**
+     * Starts processing a request. The context may be written to from any thread until the returned stage
+     * completes, but not after it.
+     *
+     * @param context the context of the request to process
+     * @return a stage which completes once the response has been written, an exceptionally completed stage if an
+     *         error is encountered while processing the request
+     * @throws Exception an exception is thrown if an unexpected error is encountered while starting to process the
+     *                   request
+     */
+    CompletionStage<?> processRequestAsync(RequestContext context) throws Exception;
+
+    /**
+     * Processes a request and waits until the response has been written.
+     *
+     * @param context the context of the request to process
+     * @throws Exception an exception is thrown if an unexpected error is encountered while processing the request
+     */
+    @Override
+    default void processRequest(RequestContext context) throws Exception {
+        processRequestAsync(context).toCompletableFuture().get();
+    }
+}
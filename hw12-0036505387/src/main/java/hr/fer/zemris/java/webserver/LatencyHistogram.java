@@ -0,0 +1,165 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in microseconds, with buckets laid out like the ones of an HDR histogram. Every
+ * power of two is split into {@value #SUB_BUCKETS} equally wide buckets, so a recorded value is off by at most about
+ * 3%, whether it is a few microseconds or a few minutes. Values above the range are counted in the last bucket.
+ *
+ * @author Marko Lazarić
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a value which select its bucket within its power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets each power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two which is tracked, 2^36 microseconds are about 19 hours.
+     */
+    private static final int MAX_EXPONENT = 36;
+
+    /**
+     * The counts of the recorded values in each of the buckets.
+     */
+    private final LongAdder[] buckets = new LongAdder[indexOf(Long.MAX_VALUE) + 1];
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The largest recorded value.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Creates a new empty {@link LatencyHistogram}.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param micros the latency in microseconds
+     */
+    public void record(long micros) {
+        micros = Math.max(micros, 0);
+
+        buckets[indexOf(micros)].increment();
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded values in microseconds.
+     *
+     * @return the sum of the recorded values
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the largest recorded value in microseconds.
+     *
+     * @return the largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given fraction of the recorded values are. Since the histogram is not
+     * locked, the values recorded while it is being calculated may or may not be taken into account.
+     *
+     * @param quantile the fraction of the recorded values, between 0 and 1
+     * @return the highest value of the bucket containing the quantile, in microseconds, or 0 if nothing has been
+     *         recorded
+     */
+    public long getQuantile(double quantile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the index of the bucket of the value.
+     *
+     * @param value the non-negative value
+     * @return the index of the bucket of the value
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) { // Small values have a bucket each
+            return (int) value;
+        }
+
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) Math.min(value >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest value which falls into the bucket.
+     *
+     * @param index the index of the bucket
+     * @return the highest value of the bucket
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,704 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stores the sessions in a memory-mapped file, so they are shared by all server processes on the same host which use
+ * the same file, and survive restarts. The sessions are kept off the heap, so they add nothing to the work of the
+ * garbage collector either.
+ *
+ * The file is divided into slots of a fixed size. A session is stored in one of the few slots following the hash of
+ * its ID, and a slot whose session has expired is free to be reused. If all of those slots are taken, a few other
+ * IDs are tried, whose slots are elsewhere in the file. Only if their slots are all taken as well, which happens
+ * once the file is nearly full, the session which expires first is evicted. Evictions are counted, see
+ * {@link #getEvictions()}, as they log users out early and mean that the file should have more slots. Every slot is
+ * guarded by a lock word taken using compare-and-set, which is atomic across processes as they map the same pages.
+ * The lock word holds the process which has taken the lock, so a lock is only taken over once that process is no
+ * longer running, however long a running process holds it.
+ *
+ * Expired slots are freed as the sessions are expired, which keeps the number of stored sessions in the header of
+ * the file up to date. Every process keeps the slots of the sessions it has created or extended in a hashed timing
+ * wheel, just like {@link HeapSessionStore}, so expiring only looks at the sessions which might have expired instead
+ * of scanning the whole file. The sessions already in the file are scanned once, when it is opened. The sessions of
+ * a process which exits are expired by the processes which extend them, or by the next one to open the file.
+ *
+ * The persistent parameters of a session are read when the session is looked up. Every change is written to the slot
+ * right away, merged with the changes other processes have made to the session in the meantime.
+ *
+ * @author Marko Lazarić
+ */
+class MappedSessionStore implements SessionStore {
+
+    /**
+     * The magic number at the start of the file.
+     */
+    private static final int MAGIC = 0x534D5353;
+
+    /**
+     * The version of the layout of the file.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the header of the file in bytes, it holds the magic number, the version, the layout and the number
+     * of stored sessions.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * The offset of the number of stored sessions in the header.
+     */
+    private static final int SESSIONS = 16;
+
+    /**
+     * The number of slots a session may be stored in.
+     */
+    private static final int PROBES = 8;
+
+    /**
+     * The number of session IDs tried before a valid session is evicted.
+     */
+    private static final int EVICTION_ATTEMPTS = 4;
+
+    /**
+     * The number of slots in the timing wheel, must be a power of two.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The number of attempts to take a lock between the checks whether its owner is still running.
+     */
+    private static final int LIVENESS_CHECK = 1000;
+
+    /**
+     * The owner of the locks taken by this process. The upper half is the process ID, and the lower half a random
+     * number which tells this process apart from an earlier process with the same ID, such as the server restarted
+     * in a container.
+     */
+    private static final long OWNER = ProcessHandle.current().pid() << 32
+                                      | (ThreadLocalRandom.current().nextInt() | 1) & 0xFFFFFFFFL;
+
+    /**
+     * The offset of the lock word in a slot. It is {@code 0} while the slot is unlocked, and the owner of the lock
+     * otherwise.
+     */
+    private static final int LOCK = 0;
+
+    /**
+     * The offset of the expiration time in a slot. It is {@code 0} while the slot is free.
+     */
+    private static final int VALID_UNTIL = 8;
+
+    /**
+     * The offset of the session ID in a slot.
+     */
+    private static final int SID = 16;
+
+    /**
+     * The offset of the length of the session data in a slot.
+     */
+    private static final int DATA_LENGTH = SID + 24;
+
+    /**
+     * The offset of the session data in a slot, consisting of the host and the persistent parameters.
+     */
+    private static final int DATA = DATA_LENGTH + 4;
+
+    /**
+     * Accesses the longs of the file atomically.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+                                                                                  ByteOrder.nativeOrder());
+
+    /**
+     * The duration of a session in milliseconds.
+     */
+    private final long timeout;
+
+    /**
+     * The mapped file. Its position is never changed, so it can be shared by all threads.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The number of slots.
+     */
+    private final int slots;
+
+    /**
+     * The size of a slot in bytes.
+     */
+    private final int slotSize;
+
+    /**
+     * The offsets of the slots in the timing wheel. A slot is only added or removed while it is locked.
+     */
+    private final Set<Integer> scheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The slots of the timing wheel, holding the offsets of the slots of the file.
+     */
+    private final AtomicReferenceArray<Queue<Integer>> wheel = new AtomicReferenceArray<>(WHEEL_SIZE);
+
+    /**
+     * The last tick which has been expired.
+     */
+    private volatile long expiredTick;
+
+    /**
+     * The number of valid sessions evicted by this process.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new {@link MappedSessionStore} with the given arguments. The file is created if it does not exist,
+     * otherwise its sessions are used.
+     *
+     * @param file the path to the file
+     * @param timeout the duration of a session in milliseconds
+     * @param slots the number of slots
+     * @param slotSize the size of a slot in bytes, a multiple of 8
+     *
+     * @throws IllegalArgumentException if the number or the size of the slots is invalid
+     * @throws RuntimeException if the file cannot be mapped or has a different layout
+     */
+    MappedSessionStore(Path file, long timeout, int slots, int slotSize) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("Number of slots must be positive, was " + slots + ".");
+        }
+
+        if (slotSize < 2 * DATA || slotSize % 8 != 0) {
+            throw new IllegalArgumentException("Slot size must be a multiple of 8 and at least " + 2 * DATA
+                                               + ", was " + slotSize + ".");
+        }
+
+        long size = HEADER_SIZE + (long) slots * slotSize;
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Session store cannot be larger than 2 GB, was " + size + " bytes.");
+        }
+
+        this.timeout = timeout;
+        this.slots = slots;
+        this.slotSize = slotSize;
+
+        file = file.toAbsolutePath().normalize();
+
+        try {
+            Files.createDirectories(file.getParent());
+
+            // The mapping stays valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock(); // Other processes may be initializing the same file
+
+                try {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                    if (buffer.getInt(0) == 0) {
+                        buffer.putInt(4, VERSION);
+                        buffer.putInt(8, slots);
+                        buffer.putInt(12, slotSize);
+                        buffer.putInt(0, MAGIC);
+                    }
+                    else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != slots
+                             || buffer.getInt(12) != slotSize) {
+                        throw new RuntimeException("Session store '" + file + "' has a different layout.");
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        expiredTick = System.currentTimeMillis() / TICK;
+
+        for (int index = 0; index < WHEEL_SIZE; index++) {
+            wheel.set(index, new ConcurrentLinkedQueue<>());
+        }
+
+        // Not locked, as no other thread uses the store yet, expired slots are freed by the first expiration
+        for (int index = 0; index < slots; index++) {
+            track(HEADER_SIZE + index * slotSize);
+        }
+    }
+
+    @Override
+    public SessionMapEntry get(String sid, String host) {
+        if (sid.length() != SID_LENGTH) {
+            return null;
+        }
+
+        byte[] sidBytes = sid.getBytes(StandardCharsets.ISO_8859_1);
+        long now = System.currentTimeMillis();
+
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = slotOf(sid, probe);
+
+            // Checked without the lock first, so only the slot of the session is locked
+            if (validUntil(slot) < now || !holds(slot, sidBytes)) {
+                continue;
+            }
+
+            lock(slot);
+
+            try {
+                Map<String, String> parameters = new ConcurrentHashMap<>();
+
+                if (validUntil(slot) < now || !holds(slot, sidBytes) || !host.equals(read(slot, parameters))) {
+                    return null;
+                }
+
+                long validUntil = now + timeout;
+
+                LONGS.setVolatile(buffer, slot + VALID_UNTIL, validUntil);
+                track(slot); // The session may have been created by a process which has exited since
+
+                return new SessionMapEntry(sid, host, validUntil, new SlotMap(slot, sidBytes, parameters));
+            } finally {
+                unlock(slot);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public SessionMapEntry create(String host) {
+        byte[] data = encode(host, Collections.emptyMap());
+
+        for (int attempt = 1; ; attempt++) {
+            String sid = SessionStore.generateSessionID();
+            byte[] sidBytes = sid.getBytes(StandardCharsets.ISO_8859_1);
+            long now = System.currentTimeMillis();
+            int victim = -1;
+            long victimValidUntil = Long.MAX_VALUE;
+            boolean taken = false;
+
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = slotOf(sid, probe);
+                long validUntil = validUntil(slot);
+
+                if (validUntil >= now && holds(slot, sidBytes)) { // The ID is already in use
+                    taken = true;
+                    break;
+                }
+
+                if (validUntil < victimValidUntil) { // Free and expired slots come first
+                    victim = slot;
+                    victimValidUntil = validUntil;
+                }
+            }
+
+            // The slots of another ID are tried before a valid session is evicted
+            if (taken || victimValidUntil >= now && attempt < EVICTION_ATTEMPTS) {
+                continue;
+            }
+
+            lock(victim);
+
+            try {
+                if (validUntil(victim) != victimValidUntil) { // Another session has just been stored in the slot
+                    continue;
+                }
+
+                long validUntil = now + timeout;
+
+                write(victim, data);
+                buffer.duplicate().position(victim + SID).put(sidBytes);
+                LONGS.setVolatile(buffer, victim + VALID_UNTIL, validUntil);
+
+                if (victimValidUntil == 0) { // Otherwise the expired or evicted session is replaced
+                    LONGS.getAndAdd(buffer, SESSIONS, 1L);
+                }
+                else if (victimValidUntil >= now) {
+                    evictions.increment();
+                }
+
+                track(victim);
+
+                return new SessionMapEntry(sid, host, validUntil,
+                                           new SlotMap(victim, sidBytes, new ConcurrentHashMap<>()));
+            } finally {
+                unlock(victim);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) (long) LONGS.getVolatile(buffer, SESSIONS);
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public void expire(long now) {
+        long currentTick = now / TICK;
+
+        // After a long pause, there is no need to expire the same slots more than once
+        long firstTick = Math.max(expiredTick + 1, currentTick - WHEEL_SIZE + 1);
+
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            // Swap the slot, so that the slots moved back into it are not seen again in this pass
+            Queue<Integer> due = wheel.getAndSet(wheelSlotOf(tick), new ConcurrentLinkedQueue<>());
+
+            for (int slot : due) {
+                lock(slot);
+
+                try {
+                    // The session may have been extended, replaced, or freed by another process in the meantime
+                    long validUntil = validUntil(slot);
+
+                    if (validUntil == 0 || validUntil < now) {
+                        scheduled.remove(slot);
+
+                        if (validUntil != 0) {
+                            LONGS.setVolatile(buffer, slot + VALID_UNTIL, 0L);
+                            LONGS.getAndAdd(buffer, SESSIONS, -1L);
+                        }
+                    }
+                    else {
+                        schedule(slot, validUntil);
+                    }
+                } finally {
+                    unlock(slot);
+                }
+            }
+        }
+
+        expiredTick = currentTick;
+    }
+
+    /**
+     * Puts a locked slot which holds a session into the timing wheel, unless it is already there.
+     *
+     * @param slot the offset of the slot
+     */
+    private void track(int slot) {
+        long validUntil = validUntil(slot);
+
+        if (validUntil != 0 && scheduled.add(slot)) {
+            schedule(slot, validUntil);
+        }
+    }
+
+    /**
+     * Puts a slot into the slot of the timing wheel of the tick in which its session expires, or of the next tick if
+     * the session has already expired.
+     *
+     * @param slot the offset of the slot
+     * @param validUntil the expiration time of the session in the slot
+     */
+    private void schedule(int slot, long validUntil) {
+        wheel.get(wheelSlotOf(Math.max(validUntil / TICK + 1, expiredTick + 1))).add(slot);
+    }
+
+    /**
+     * Returns the index of the slot of the timing wheel of the tick.
+     *
+     * @param tick the tick
+     * @return the index of the slot of the timing wheel
+     */
+    private static int wheelSlotOf(long tick) {
+        return (int) (tick & (WHEEL_SIZE - 1));
+    }
+
+    /**
+     * Returns the offset of a slot the session may be stored in.
+     *
+     * @param sid the session ID
+     * @param probe the index of the slot among the slots the session may be stored in
+     * @return the offset of the slot
+     */
+    private int slotOf(String sid, int probe) {
+        return HEADER_SIZE + Math.floorMod(sid.hashCode() + probe, slots) * slotSize;
+    }
+
+    /**
+     * Returns the expiration time of the session in a slot.
+     *
+     * @param slot the offset of the slot
+     * @return the expiration time of the session in the slot in milliseconds, {@code 0} if the slot has never been
+     *         used
+     */
+    private long validUntil(int slot) {
+        return (long) LONGS.getVolatile(buffer, slot + VALID_UNTIL);
+    }
+
+    /**
+     * Returns whether a slot holds the session with the ID.
+     *
+     * @param slot the offset of the slot
+     * @param sid the bytes of the session ID
+     * @return whether the slot holds the session with the ID
+     */
+    private boolean holds(int slot, byte[] sid) {
+        byte[] stored = new byte[SID_LENGTH];
+
+        buffer.duplicate().position(slot + SID).get(stored);
+
+        return Arrays.equals(stored, sid);
+    }
+
+    /**
+     * Locks a slot, waiting until it is unlocked or the process holding its lock is no longer running.
+     *
+     * @param slot the offset of the slot
+     */
+    private void lock(int slot) {
+        for (int spins = 0; ; spins++) {
+            long owner = (long) LONGS.getVolatile(buffer, slot + LOCK);
+
+            if ((owner == 0 || spins % LIVENESS_CHECK == LIVENESS_CHECK - 1 && !isRunning(owner))
+                && LONGS.compareAndSet(buffer, slot + LOCK, owner, OWNER)) {
+                return;
+            }
+
+            if (spins < 100) {
+                Thread.onSpinWait();
+            }
+            else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Unlocks a slot locked by this process.
+     *
+     * @param slot the offset of the slot
+     */
+    private void unlock(int slot) {
+        LONGS.setVolatile(buffer, slot + LOCK, 0L);
+    }
+
+    /**
+     * Returns whether the owner of a lock is still running. A lock left behind by a process whose ID has been reused
+     * by another running process is kept until that process exits.
+     *
+     * @param owner the owner of the lock
+     * @return whether the owner of the lock is still running
+     */
+    private static boolean isRunning(long owner) {
+        long pid = owner >>> 32;
+
+        if (pid == OWNER >>> 32) { // No other running process has the same ID
+            return owner == OWNER;
+        }
+
+        return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    /**
+     * Reads the data of a locked slot.
+     *
+     * @param slot the offset of the slot
+     * @param parameters the map to put the persistent parameters into
+     * @return the session host, or {@code null} if the data is corrupt
+     */
+    private String read(int slot, Map<String, String> parameters) {
+        int length = buffer.getInt(slot + DATA_LENGTH);
+
+        if (length < 0 || length > slotSize - DATA) { // Left behind by a crashed process
+            return null;
+        }
+
+        byte[] data = new byte[length];
+
+        buffer.duplicate().position(slot + DATA).get(data);
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            String host = input.readUTF();
+
+            for (int count = input.readInt(); count > 0; count--) {
+                parameters.put(input.readUTF(), input.readUTF());
+            }
+
+            return host;
+        } catch (IOException e) {
+            parameters.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the data to a locked slot.
+     *
+     * @param slot the offset of the slot
+     * @param data the data
+     */
+    private void write(int slot, byte[] data) {
+        buffer.putInt(slot + DATA_LENGTH, data.length);
+        buffer.duplicate().position(slot + DATA).put(data);
+    }
+
+    /**
+     * Encodes the data of a session.
+     *
+     * @param host the session host
+     * @param parameters the persistent parameters
+     * @return the encoded data
+     *
+     * @throws IllegalArgumentException if the data does not fit into a slot
+     */
+    private byte[] encode(String host, Map<String, String> parameters) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeUTF(host);
+            output.writeInt(parameters.size());
+
+            for (var entry : parameters.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue());
+            }
+        } catch (IOException e) { // Strings longer than 64 KB do not fit anyway
+            throw new IllegalArgumentException("Session data does not fit into a slot of " + slotSize + " bytes.");
+        }
+
+        if (bytes.size() > slotSize - DATA) {
+            throw new IllegalArgumentException("Session data does not fit into a slot of " + slotSize + " bytes.");
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The persistent parameters of a session stored in a slot. Reads are served from memory, and every change is
+     * written to the slot right away.
+     *
+     * @author Marko Lazarić
+     */
+    private class SlotMap extends AbstractMap<String, String> {
+
+        /**
+         * The offset of the slot.
+         */
+        private final int slot;
+
+        /**
+         * The bytes of the session ID.
+         */
+        private final byte[] sid;
+
+        /**
+         * The persistent parameters, as of the last change.
+         */
+        private final Map<String, String> parameters;
+
+        /**
+         * Creates a new {@link SlotMap} with the given arguments.
+         *
+         * @param slot the offset of the slot
+         * @param sid the bytes of the session ID
+         * @param parameters the persistent parameters read from the slot
+         */
+        private SlotMap(int slot, byte[] sid, Map<String, String> parameters) {
+            this.slot = slot;
+            this.sid = sid;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public String get(Object key) {
+            return parameters.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return parameters.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return parameters.size();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return Collections.unmodifiableSet(parameters.keySet());
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return Collections.unmodifiableMap(parameters).entrySet();
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return update(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return key instanceof String ? update((String) key, null) : null;
+        }
+
+        /**
+         * Sets or removes a persistent parameter, merging the change with the current data of the slot. If the
+         * session has been evicted or has expired, the change is only made in memory.
+         *
+         * @param key the name of the parameter
+         * @param value the new value of the parameter, {@code null} to remove it
+         * @return the previous value of the parameter
+         *
+         * @throws IllegalArgumentException if the data would not fit into the slot
+         */
+        private String update(String key, String value) {
+            lock(slot);
+
+            try {
+                Map<String, String> current = new ConcurrentHashMap<>();
+                String host = validUntil(slot) >= System.currentTimeMillis() && holds(slot, sid)
+                              ? read(slot, current) : null;
+
+                if (host == null) {
+                    return value == null ? parameters.remove(key) : parameters.put(key, value);
+                }
+
+                String previous = value == null ? current.remove(key) : current.put(key, value);
+
+                write(slot, encode(host, current));
+
+                parameters.keySet().retainAll(current.keySet());
+                parameters.putAll(current);
+
+                return previous;
+            } finally {
+                unlock(slot);
+            }
+        }
+    }
+}
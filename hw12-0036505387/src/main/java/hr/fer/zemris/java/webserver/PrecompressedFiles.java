@@ -0,0 +1,107 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps gzip compressed variants of the static files from the document root in a separate directory, so that
+ * compressible files are compressed once instead of on every request. A variant is regenerated whenever the
+ * modification time of its file changes.
+ *
+ * @author Marko Lazarić
+ */
+public class PrecompressedFiles {
+
+    /**
+     * The document root of the static files.
+     */
+    private final Path documentRoot;
+
+    /**
+     * The directory in which the compressed variants are kept.
+     */
+    private final Path directory;
+
+    /**
+     * Creates a new {@link PrecompressedFiles} with the given arguments.
+     *
+     * @param documentRoot the document root of the static files
+     * @param directory the directory in which the compressed variants are kept
+     */
+    public PrecompressedFiles(Path documentRoot, Path directory) {
+        this.documentRoot = documentRoot.toAbsolutePath().normalize();
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Returns the up to date gzip compressed variant of the file, compressing the file if necessary.
+     *
+     * @param file the file from the document root
+     * @return the path to the compressed variant of the file
+     *
+     * @throws IOException if an error occurs while compressing the file
+     * @throws IllegalArgumentException if {@code file} is not in the document root
+     */
+    public Path get(Path file) throws IOException {
+        Path source = file.toAbsolutePath().normalize();
+
+        if (!source.startsWith(documentRoot)) {
+            throw new IllegalArgumentException("'" + file + "' is not in the document root.");
+        }
+
+        Path compressed = directory.resolve(documentRoot.relativize(source) + ".gz");
+        FileTime lastModified = Files.getLastModifiedTime(source);
+
+        if (Files.isRegularFile(compressed) && Files.getLastModifiedTime(compressed).equals(lastModified)) {
+            return compressed;
+        }
+
+        Files.createDirectories(compressed.getParent());
+
+        // Compress into a temporary file first, so a partially written variant is never served
+        Path temporary = Files.createTempFile(compressed.getParent(), compressed.getFileName().toString(), ".tmp");
+
+        try {
+            try (InputStream is = Files.newInputStream(source);
+                 OutputStream os = new GZIPOutputStream(Files.newOutputStream(temporary), 8192)) {
+                is.transferTo(os);
+            }
+
+            Files.setLastModifiedTime(temporary, lastModified);
+            Files.move(temporary, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Compresses all of the files in the document root which satisfy the predicate.
+     *
+     * @param compressible the predicate which decides whether a file should be compressed
+     *
+     * @throws IOException if an error occurs while walking the document root
+     */
+    public void precompress(Predicate<Path> compressible) throws IOException {
+        try (Stream<Path> files = Files.walk(documentRoot)) {
+            files.filter(Files::isRegularFile)
+                 .filter(compressible)
+                 .forEach(f -> {
+                     try {
+                         get(f);
+                     } catch (IOException e) {
+                         System.err.println("Could not compress '" + f + "': " + e.getMessage());
+                     }
+                 });
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Models the context of a request made by the client to the server.
@@ -13,10 +19,42 @@ import java.util.*;
  */
 public class RequestContext {
 
+    /**
+     * The size of the buffer in which the body is collected before it is written to the output stream.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The buffers which are reused by the following responses.
+     */
+    private static final BlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(256);
+
     /**
      * The output stream used for writing the response to.
      */
-    private OutputStream outputStream;
+    private final OutputStream outputStream;
+
+    /**
+     * The output stream used for writing the body of the response to, which encodes the body as necessary before
+     * writing it to {@link #outputStream}. Created when the header is written.
+     */
+    private OutputStream bodyStream;
+
+    /**
+     * The compressor of the {@code deflate} content coding, whose native memory has to be freed once the response
+     * is finished, {@code null} if it is not used.
+     */
+    private Deflater deflater;
+
+    /**
+     * The buffer in which the body is collected, {@code null} until something is written.
+     */
+    private byte[] buffer;
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    private int buffered;
 
     /**
      * The charset used for the response.
@@ -69,10 +107,66 @@ public class RequestContext {
     private final List<RCCookie> outputCookies;
 
     /**
-     * Whether the header has already been generated.
+     * Whether the header has already been generated, after which it cannot be modified.
      */
     private boolean headerGenerated = false;
 
+    /**
+     * Whether the header has already been written to the output stream.
+     */
+    private boolean headerWritten = false;
+
+    /**
+     * Whether the response has been finished.
+     */
+    private boolean finished = false;
+
+    /**
+     * Whether a body of unknown length can be sent using the {@code chunked} transfer coding.
+     */
+    private boolean chunkingAllowed = false;
+
+    /**
+     * Whether the body is collected in a buffer, instead of being written to the output stream on every write.
+     */
+    private boolean buffering = false;
+
+    /**
+     * Whether the connection should be kept alive after the response.
+     */
+    private boolean keepAlive = false;
+
+    /**
+     * Whether only the body is written to the output stream, while the header is kept for another context.
+     */
+    private boolean capturing = false;
+
+    /**
+     * The additional headers of the response.
+     */
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * The header lines formatted in advance, written before the additional headers, {@code null} if there are none.
+     */
+    private byte[] headerLines;
+
+    /**
+     * Whether the header lines formatted in advance set the content coding of the body.
+     */
+    private boolean headerLinesEncoded;
+
+    /**
+     * The content coding used to compress the response ({@code gzip} or {@code deflate}), {@code null} if the
+     * response should not be compressed.
+     */
+    private String compression;
+
+    /**
+     * The mime types which are compressed.
+     */
+    private Set<String> compressibleTypes = Collections.emptySet();
+
     /**
      * The object which has created this {@link RequestContext}.
      */
@@ -306,6 +400,206 @@ public class RequestContext {
         this.contentLength = contentLength;
     }
 
+    /**
+     * Returns the status code of the response.
+     *
+     * @return the status code of the response
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the status text of the response.
+     *
+     * @return the status text of the response
+     */
+    String getStatusText() {
+        return statusText;
+    }
+
+    /**
+     * Returns the mime type of the response, without the charset information.
+     *
+     * @return the mime type of the response
+     */
+    String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the encoding of the response.
+     *
+     * @return the encoding of the response
+     */
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the additional headers of the response.
+     *
+     * @return an unmodifiable view of the additional headers of the response
+     */
+    Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Sets whether only the body is written to the output stream, without the header, the transfer coding or the
+     * compression, so that the response can be sent later using another context.
+     *
+     * @param capturing whether only the body is written
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setCapturing(boolean capturing) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.capturing = capturing;
+    }
+
+    /**
+     * Sets whether the connection should be kept alive after the response. The connection is only kept alive if the
+     * content length is known when the header is generated, otherwise the end of the response is marked by closing
+     * the connection.
+     *
+     * @param keepAlive whether the connection should be kept alive
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setKeepAlive(boolean keepAlive) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns whether the header has been generated and it allows the connection to be kept alive.
+     *
+     * @return whether the connection can be kept alive after the response
+     */
+    boolean isKeepAlive() {
+        return headerWritten && keepAlive;
+    }
+
+    /**
+     * Sets whether a body of unknown length can be sent using the {@code chunked} transfer coding, which is the case
+     * for HTTP/1.1 clients. Otherwise the end of such a body is marked by closing the connection.
+     *
+     * @param chunkingAllowed whether the chunked transfer coding can be used
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setChunkingAllowed(boolean chunkingAllowed) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.chunkingAllowed = chunkingAllowed;
+    }
+
+    /**
+     * Sets whether the body is collected in a buffer and written to the output stream in larger blocks. A buffered
+     * response has to be finished using {@link #finish()}, otherwise the end of its body is never written.
+     *
+     * @param buffering whether the body is buffered
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setBuffering(boolean buffering) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.buffering = buffering;
+    }
+
+    /**
+     * Sets an additional header of the response, replacing the previous value of the header if it was set.
+     *
+     * @param name the name of the header
+     * @param value the value of the header
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    public void setHeader(String name, String value) {
+        throwIfHeaderAlreadyGenerated();
+
+        headers.put(Objects.requireNonNull(name, "Header name cannot be null."),
+                    Objects.requireNonNull(value, "Header value cannot be null."));
+    }
+
+    /**
+     * Sets header lines formatted in advance, which are written as they are before the additional headers.
+     *
+     * @param headerLines the header lines in ISO-8859-1, each ending with CRLF, which must not be modified
+     * @param encoded whether the lines set the content coding of the body, so it must not be compressed again
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setHeaderLines(byte[] headerLines, boolean encoded) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.headerLines = headerLines;
+        this.headerLinesEncoded = encoded;
+    }
+
+    /**
+     * Sets the compression of the response. The response is only compressed if its mime type is one of the
+     * compressible types when the header is generated. A compressed response is written as a stream, so its content
+     * length is not sent.
+     *
+     * @param compression the content coding to use ({@code gzip} or {@code deflate}), {@code null} to disable
+     *                    compression
+     * @param compressibleTypes the mime types which are compressed
+     *
+     * @throws RuntimeException if the header has already been generated
+     */
+    void setCompression(String compression, Set<String> compressibleTypes) {
+        throwIfHeaderAlreadyGenerated();
+
+        this.compression = compression;
+        this.compressibleTypes = compressibleTypes == null ? Collections.emptySet() : compressibleTypes;
+    }
+
+    /**
+     * Finishes the response, writing out the buffered body and whatever the encoders are still holding. If the whole
+     * body is still buffered, its length is sent with it. Does not close the underlying output stream.
+     *
+     * @throws IOException if an error occurs while writing to the output stream
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        finished = true;
+
+        try {
+            if (!headerGenerated) {
+                return;
+            }
+
+            // The whole body is known by now, and an empty one is not compressed
+            if (!headerWritten && contentLength == null && (!isCompressed() || buffered == 0)) {
+                contentLength = (long) buffered;
+            }
+
+            flushBuffer();
+
+            if (bodyStream != outputStream) {
+                bodyStream.close(); // Only finishes the encoders, see generateHeader
+            }
+        } finally {
+            if (buffer != null) {
+                BUFFER_POOL.offer(buffer);
+                buffer = null;
+            }
+
+            if (deflater != null) { // Not ended by the stream, as it has been passed to it
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
     /**
      * Adds a cookie to the output cookies.
      *
@@ -354,15 +648,72 @@ public class RequestContext {
      * @throws IOException if an error occurs while writing to the output stream
      */
     public RequestContext write(byte[] data, int offset, int len) throws IOException {
-        if (!headerGenerated) {
-            generateHeader();
+        headerGenerated = true;
+
+        if (!buffering || finished || len >= BUFFER_SIZE) { // Large blocks are not worth copying
+            flushBuffer();
+            bodyStream.write(data, offset, len);
+
+            return this;
+        }
+
+        if (buffer == null) {
+            buffer = BUFFER_POOL.poll();
+
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+        }
+
+        if (buffered + len > buffer.length) {
+            flushBuffer();
         }
 
-        outputStream.write(data, offset, len);
+        System.arraycopy(data, offset, buffer, buffered, len);
+        buffered += len;
 
         return this;
     }
 
+    /**
+     * Generates the header and writes it, together with the body buffered so far, to the output stream. Used when
+     * the rest of the body of the response is sent past the output stream.
+     *
+     * @throws IOException if an error occurs while writing to the output stream
+     */
+    void writeHeader() throws IOException {
+        headerGenerated = true;
+
+        flushBuffer();
+        bodyStream.flush();
+    }
+
+    /**
+     * Writes the header if it has not been written yet, and then the buffered body.
+     *
+     * @throws IOException if an error occurs while writing to the output stream
+     */
+    private void flushBuffer() throws IOException {
+        if (!headerWritten) {
+            generateHeader();
+        }
+
+        if (buffered > 0) {
+            bodyStream.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Returns whether the body of the response is compressed.
+     *
+     * @return whether the body of the response is compressed
+     */
+    private boolean isCompressed() {
+        return compression != null && !headers.containsKey("Content-Encoding") && !headerLinesEncoded
+               && compressibleTypes.contains(mimeType.toLowerCase());
+    }
+
     /**
      * Generates the header and outputs it to the output stream.
      *
@@ -370,25 +721,102 @@ public class RequestContext {
      */
     private void generateHeader() throws IOException {
         headerGenerated = true;
+        headerWritten = true;
+
+        if (capturing) { // The body is written as it is, to be sent later using another context
+            bodyStream = outputStream;
+            return;
+        }
 
         StringBuilder sb = new StringBuilder();
 
+        boolean bodyless = statusCode == 304 || statusCode == 204;
+        // The encoders would add their own header and trailer even to an empty body
+        boolean compressed = isCompressed() && !bodyless && (contentLength == null || contentLength > 0);
+
+        if (compressed) { // The length of the compressed response is not known in advance
+            contentLength = null;
+        }
+        boolean chunked = contentLength == null && !bodyless && chunkingAllowed;
+
         sb.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusText).append("\r\n");
-        sb.append("Content-Type: ").append(getMimeType()).append("\r\n");
+        sb.append("Content-Type: ").append(getContentType()).append("\r\n");
 
         if (contentLength != null) {
             sb.append("Content-Length: ").append(contentLength).append("\r\n");
         }
 
+        if (chunked) {
+            sb.append("Transfer-Encoding: chunked\r\n");
+        }
+
+        if (compressed) {
+            sb.append("Content-Encoding: ").append(compression).append("\r\n");
+            sb.append("Vary: Accept-Encoding\r\n");
+        }
+
+        int headerLinesStart = sb.length();
+
+        for (var header : headers.entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
         for (RCCookie cookie : outputCookies) {
             sb.append(cookie).append("\r\n");
         }
         
-        sb.append("Connection: close\r\n");
+        // Without the content length or chunks, the client can only find the end of the response when the
+        // connection closes, unless the response has no body at all
+        if (contentLength == null && !bodyless && !chunked) {
+            keepAlive = false;
+        }
+
+        sb.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
 
         sb.append("\r\n");
 
-        outputStream.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        if (headerLines != null) { // Inserted as they are, every character has been encoded as a single byte
+            byte[] joined = new byte[head.length + headerLines.length];
+
+            System.arraycopy(head, 0, joined, 0, headerLinesStart);
+            System.arraycopy(headerLines, 0, joined, headerLinesStart, headerLines.length);
+            System.arraycopy(head, headerLinesStart, joined, headerLinesStart + headerLines.length,
+                             head.length - headerLinesStart);
+            head = joined;
+        }
+
+        outputStream.write(head);
+
+        bodyStream = outputStream;
+
+        if (chunked) { // Closing it only writes the last chunk
+            bodyStream = new ChunkedOutputStream(outputStream);
+        }
+        else if (compressed) {
+            // Closing the compressor finishes it and frees its native memory, but must not close the connection
+            bodyStream = new FilterOutputStream(outputStream) {
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+
+        if ("gzip".equals(compression) && compressed) {
+            bodyStream = new GZIPOutputStream(bodyStream, BUFFER_SIZE);
+        }
+        else if (compressed) {
+            deflater = new Deflater();
+            bodyStream = new DeflaterOutputStream(bodyStream, deflater, BUFFER_SIZE);
+        }
     }
 
     /**
@@ -396,7 +824,7 @@ public class RequestContext {
      *
      * @return the properly formatted mime type
      */
-    private String getMimeType() {
+    private String getContentType() {
         if (mimeType.toLowerCase().startsWith("text/")) {
             return mimeType + "; charset=" + encoding;
         }
@@ -0,0 +1,218 @@
+package hr.fer.zemris.java.webserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events of the phases of answering a request. The events are only recorded while a
+ * recording which has them enabled is running, otherwise beginning and committing them costs next to nothing.
+ *
+ * The phases nest, so a recording shows where the time of a single request has been spent: the dispatch of a request
+ * contains the execution of its worker or script, which in turn contains the flush of its response.
+ *
+ * @author Marko Lazarić
+ */
+final class RequestEvents {
+
+    /**
+     * Prevents creating instances of this class.
+     */
+    private RequestEvents() {}
+
+    /**
+     * Parsing the header of a request, once all of it has been read.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.HeaderParse")
+    @Label("Header Parse")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class HeaderParse extends Event {
+
+        /**
+         * The method of the request.
+         */
+        @Label("Method")
+        String method;
+
+        /**
+         * The path of the request.
+         */
+        @Label("Path")
+        String path;
+
+        /**
+         * The length of the header.
+         */
+        @Label("Header Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Checking the session of a request, which either extends the existing session or creates a new one.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.SessionCheck")
+    @Label("Session Check")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class SessionCheck extends Event {
+
+        /**
+         * The path of the request.
+         */
+        @Label("Path")
+        String path;
+
+        /**
+         * Whether a new session has been created.
+         */
+        @Label("Created")
+        @Description("Whether the request did not have a valid session, so a new one has been created")
+        boolean created;
+    }
+
+    /**
+     * Dispatching a request to the worker, script or file which answers it.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.Dispatch")
+    @Label("Dispatch")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class Dispatch extends Event {
+
+        /**
+         * The path of the request.
+         */
+        @Label("Path")
+        String path;
+
+        /**
+         * The route which has answered the request.
+         */
+        @Label("Route")
+        String route;
+
+        /**
+         * The status code of the response.
+         */
+        @Label("Status")
+        int status;
+
+        /**
+         * The number of bytes of the response written during the dispatch.
+         */
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Running a web worker. The execution of an asynchronous worker lasts until the stage it has returned completes,
+     * and its response is flushed only afterwards.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.WorkerExecution")
+    @Label("Worker Execution")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class WorkerExecution extends Event {
+
+        /**
+         * The path of the request.
+         */
+        @Label("Path")
+        String path;
+
+        /**
+         * The class of the worker.
+         */
+        @Label("Worker")
+        String worker;
+
+        /**
+         * Whether the worker is asynchronous.
+         */
+        @Label("Asynchronous")
+        boolean asynchronous;
+
+        /**
+         * The status code of the response.
+         */
+        @Label("Status")
+        int status;
+
+        /**
+         * The number of bytes of the response written by the worker.
+         */
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Reading and parsing a smart script which has not been cached.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.ScriptParse")
+    @Label("Script Parse")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class ScriptParse extends Event {
+
+        /**
+         * The path to the script.
+         */
+        @Label("Script")
+        String script;
+
+        /**
+         * The length of the script in characters.
+         */
+        @Label("Length")
+        long length;
+    }
+
+    /**
+     * Finishing and flushing the response of a request.
+     *
+     * @author Marko Lazarić
+     */
+    @Name("smarthttp.ResponseFlush")
+    @Label("Response Flush")
+    @Category("SmartHttpServer")
+    @StackTrace(false)
+    static class ResponseFlush extends Event {
+
+        /**
+         * The path of the request.
+         */
+        @Label("Path")
+        String path;
+
+        /**
+         * The status code of the response.
+         */
+        @Label("Status")
+        int status;
+
+        /**
+         * The number of bytes of the response written to the connection.
+         */
+        @Label("Response Size")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,432 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe cache of the generated responses of a single route. A response is reused for the requests with the
+ * same values of the selected parameters until its time to live runs out.
+ *
+ * Concurrent requests which miss the cache are coalesced, only the first one generates the response and the others
+ * wait for it. Responses which are not cacheable, such as errors or responses setting cookies, are not shared, every
+ * request waiting for one generates its own response instead, as a task of its own executor. The request which has
+ * generated the response thus never generates the responses of the others before its own is sent.
+ *
+ * @author Marko Lazarić
+ */
+public class ResponseCache {
+
+    /**
+     * The prefix of the selected parameters which are persistent parameters instead of GET parameters.
+     */
+    public static final String SESSION_PREFIX = "session.";
+
+    /**
+     * The maximum number of cached responses, expired responses are dropped once there are more.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    /**
+     * The time to live of the cached responses in nanoseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * The names of the parameters whose values select the response.
+     */
+    private final List<String> keyParameters;
+
+    /**
+     * The mapping of the keys to the cached and the currently generated responses.
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The number of requests answered with a cached or a coalesced response.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of requests which have generated a response.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new {@link ResponseCache} with the given arguments.
+     *
+     * @param timeToLive the time to live of the cached responses in seconds
+     * @param keyParameters the names of the parameters whose values select the response, names prefixed with
+     *                      {@value #SESSION_PREFIX} are persistent parameters
+     *
+     * @throws IllegalArgumentException if {@code timeToLive} is not positive
+     * @throws NullPointerException if {@code keyParameters} is {@code null}
+     */
+    public ResponseCache(long timeToLive, List<String> keyParameters) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive, was " + timeToLive + ".");
+        }
+
+        this.timeToLive = TimeUnit.SECONDS.toNanos(timeToLive);
+        this.keyParameters = List.copyOf(Objects.requireNonNull(keyParameters, "Key parameters cannot be null."));
+    }
+
+    /**
+     * Returns the key of a request.
+     *
+     * @param parameters the GET parameters of the request
+     * @param persistentParameters the persistent parameters of the request
+     * @return the key of the request
+     */
+    public String keyOf(Map<String, String> parameters, Map<String, String> persistentParameters) {
+        StringBuilder key = new StringBuilder();
+
+        for (String name : keyParameters) {
+            String value = name.startsWith(SESSION_PREFIX)
+                           ? persistentParameters.get(name.substring(SESSION_PREFIX.length()))
+                           : parameters.get(name);
+
+            // The length prefix keeps values containing the separators apart
+            key.append(value == null ? -1 : value.length()).append(':').append(value).append(';');
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns the response of the request, generating it if it is not cached and no other request is currently
+     * generating it.
+     *
+     * @param key the key of the request
+     * @param generator generates the response of the request
+     * @param executor runs the generator if the request has waited for a response which is not cacheable, may
+     *                 reject it with a {@link RejectedExecutionException}, which fails the returned stage
+     * @return the response of the request
+     */
+    public CompletionStage<Response> get(String key, Supplier<CompletionStage<Response>> generator,
+                                         Executor executor) {
+        while (true) {
+            long now = System.nanoTime();
+            Entry entry = entries.get(key);
+
+            if (entry != null && !entry.isExpired(now)) {
+                // The generated response may turn out to be specific to the request which generated it
+                return entry.response.thenCompose(r -> {
+                    if (!r.isCacheable()) { // Not generated here, this runs on the thread which completed the response
+                        return generate(generator, executor);
+                    }
+
+                    hits.increment();
+                    return CompletableFuture.completedFuture(r);
+                });
+            }
+
+            Entry created = new Entry();
+            boolean claimed = entry == null ? entries.putIfAbsent(key, created) == null
+                                            : entries.replace(key, entry, created);
+
+            if (!claimed) { // Another request has just started generating the response
+                continue;
+            }
+
+            if (entry == null && entries.size() > MAX_ENTRIES) {
+                evictExpired(now);
+            }
+
+            return generate(generator).whenComplete((response, exception) -> {
+                if (exception == null && response.isCacheable()) {
+                    created.expires = System.nanoTime() + timeToLive;
+                    created.response.complete(response);
+                }
+                else {
+                    entries.remove(key, created);
+                    created.response.complete(Response.UNCACHEABLE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of requests answered with a cached or a coalesced response.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests which have generated a response.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the time to live of the cached responses in seconds.
+     *
+     * @return the time to live of the cached responses
+     */
+    public long getTimeToLive() {
+        return TimeUnit.NANOSECONDS.toSeconds(timeToLive);
+    }
+
+    /**
+     * Returns the names of the parameters whose values select the response.
+     *
+     * @return the names of the parameters whose values select the response
+     */
+    public List<String> getKeyParameters() {
+        return keyParameters;
+    }
+
+    /**
+     * Generates a response, turning the exceptions thrown by the generator into a failed stage.
+     *
+     * @param generator generates the response
+     * @return the generated response
+     */
+    private CompletionStage<Response> generate(Supplier<CompletionStage<Response>> generator) {
+        misses.increment();
+
+        try {
+            return generator.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Generates a response as a task of the executor.
+     *
+     * @param generator generates the response
+     * @param executor runs the generator
+     * @return the generated response
+     */
+    private CompletionStage<Response> generate(Supplier<CompletionStage<Response>> generator, Executor executor) {
+        CompletableFuture<Response> response = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> generate(generator).whenComplete((r, exception) -> {
+                if (exception == null) {
+                    response.complete(r);
+                }
+                else {
+                    response.completeExceptionally(exception);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            response.completeExceptionally(e);
+        }
+
+        return response;
+    }
+
+    /**
+     * Removes the expired responses, and if that is not enough to stay within the maximum number of entries, all of
+     * the responses which are not being generated.
+     *
+     * @param now the current time in nanoseconds
+     */
+    private void evictExpired(long now) {
+        entries.values().removeIf(entry -> entry.isExpired(now));
+
+        for (Iterator<Entry> it = entries.values().iterator(); entries.size() > MAX_ENTRIES && it.hasNext(); ) {
+            if (it.next().response.isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A cached response, or one which is being generated.
+     *
+     * @author Marko Lazarić
+     */
+    private static class Entry {
+
+        /**
+         * The response, completed once it has been generated.
+         */
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        /**
+         * The time at which the response expires in nanoseconds, the response does not expire while it is being
+         * generated.
+         */
+        private volatile long expires = Long.MAX_VALUE;
+
+        /**
+         * Returns whether the response has expired.
+         *
+         * @param now the current time in nanoseconds
+         * @return whether the response has expired
+         */
+        private boolean isExpired(long now) {
+            return expires != Long.MAX_VALUE && now - expires >= 0;
+        }
+    }
+
+    /**
+     * A generated response, consisting of everything a worker or a script has set and written.
+     *
+     * @author Marko Lazarić
+     */
+    public static class Response {
+
+        /**
+         * The response shared with the requests waiting for a response which turned out not to be cacheable.
+         */
+        private static final Response UNCACHEABLE = new Response(500, "Internal server error.", "text/plain", "UTF-8",
+                                                                 Map.of(), List.of(), new byte[0]);
+
+        /**
+         * The status code of the response.
+         */
+        private final int statusCode;
+
+        /**
+         * The status text of the response.
+         */
+        private final String statusText;
+
+        /**
+         * The mime type of the response.
+         */
+        private final String mimeType;
+
+        /**
+         * The encoding of the response.
+         */
+        private final String encoding;
+
+        /**
+         * The additional headers of the response.
+         */
+        private final Map<String, String> headers;
+
+        /**
+         * The cookies set by the response.
+         */
+        private final List<RequestContext.RCCookie> cookies;
+
+        /**
+         * The body of the response.
+         */
+        private final byte[] body;
+
+        /**
+         * Creates a new {@link Response} with the given arguments.
+         *
+         * @param statusCode the status code of the response
+         * @param statusText the status text of the response
+         * @param mimeType the mime type of the response
+         * @param encoding the encoding of the response
+         * @param headers the additional headers of the response
+         * @param cookies the cookies set by the response
+         * @param body the body of the response
+         */
+        public Response(int statusCode, String statusText, String mimeType, String encoding,
+                        Map<String, String> headers, List<RequestContext.RCCookie> cookies, byte[] body) {
+            this.statusCode = statusCode;
+            this.statusText = statusText;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.headers = headers;
+            this.cookies = cookies;
+            this.body = body;
+        }
+
+        /**
+         * Returns whether the response can be sent to other requests, which is the case for successful responses
+         * which do not set any cookies.
+         *
+         * @return whether the response is cacheable
+         */
+        public boolean isCacheable() {
+            return this != UNCACHEABLE && statusCode == 200 && cookies.isEmpty();
+        }
+
+        /**
+         * Returns the status code of the response.
+         *
+         * @return the status code of the response
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * Returns the status text of the response.
+         *
+         * @return the status text of the response
+         */
+        public String getStatusText() {
+            return statusText;
+        }
+
+        /**
+         * Returns the mime type of the response.
+         *
+         * @return the mime type of the response
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Returns the encoding of the response.
+         *
+         * @return the encoding of the response
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * Returns the additional headers of the response.
+         *
+         * @return the additional headers of the response
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Returns the cookies set by the response.
+         *
+         * @return the cookies set by the response
+         */
+        public List<RequestContext.RCCookie> getCookies() {
+            return cookies;
+        }
+
+        /**
+         * Returns the body of the response. The returned array must not be modified.
+         *
+         * @return the body of the response
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Models a part of a response which is written to a non-blocking channel over one or more attempts.
+ *
+ * @author Marko Lazarić
+ */
+interface ResponsePart extends Closeable {
+
+    /**
+     * Writes as much of the part as the channel accepts.
+     *
+     * @param channel the channel to write the part to
+     * @return whether the whole part has been written
+     *
+     * @throws IOException if an error occurs while writing the part
+     */
+    default boolean writeTo(WritableByteChannel channel) throws IOException {
+        return writeTo(channel, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes as much of the part as the channel accepts, but at most the given number of bytes.
+     *
+     * @param channel the channel to write the part to
+     * @param limit the maximum number of bytes to write
+     * @return whether the whole part has been written
+     *
+     * @throws IOException if an error occurs while writing the part
+     */
+    boolean writeTo(WritableByteChannel channel, long limit) throws IOException;
+
+    /**
+     * Returns the total number of bytes of the part.
+     *
+     * @return the total number of bytes of the part
+     */
+    long getLength();
+
+    /**
+     * Returns the number of bytes of the part which have not been written yet.
+     *
+     * @return the number of bytes of the part which have not been written yet
+     */
+    long getRemaining();
+
+    @Override
+    default void close() throws IOException {}
+
+    /**
+     * Models a part of a response which is kept in a buffer.
+     *
+     * @author Marko Lazarić
+     */
+    class BufferPart implements ResponsePart {
+
+        /**
+         * The buffer which holds the bytes of the part.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * The total number of bytes of the part.
+         */
+        private final long length;
+
+        /**
+         * Creates a new {@link BufferPart} with the given argument.
+         *
+         * @param buffer the buffer which holds the bytes of the part
+         *
+         * @throws NullPointerException if {@code buffer} is {@code null}
+         */
+        public BufferPart(ByteBuffer buffer) {
+            this.buffer = Objects.requireNonNull(buffer, "Buffer cannot be null.");
+            this.length = buffer.remaining();
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public long getRemaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel, long limit) throws IOException {
+            if (limit >= buffer.remaining()) {
+                channel.write(buffer);
+            }
+            else {
+                int end = buffer.limit();
+
+                buffer.limit(buffer.position() + (int) limit);
+
+                try {
+                    channel.write(buffer);
+                } finally {
+                    buffer.limit(end);
+                }
+            }
+
+            return !buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * Models a part of a response which is a region of a file. The region is transferred directly from the file
+     * to the channel using {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so it is never copied
+     * onto the heap.
+     *
+     * @author Marko Lazarić
+     */
+    class FilePart implements ResponsePart {
+
+        /**
+         * The path to the file.
+         */
+        private final Path file;
+
+        /**
+         * The position of the next byte to transfer.
+         */
+        private long position;
+
+        /**
+         * The number of bytes left to transfer.
+         */
+        private long remaining;
+
+        /**
+         * The total number of bytes of the part.
+         */
+        private final long length;
+
+        /**
+         * The channel of the file, opened on the first write.
+         */
+        private FileChannel fileChannel;
+
+        /**
+         * Creates a new {@link FilePart} with the given arguments.
+         *
+         * @param file the path to the file
+         * @param position the position of the first byte of the region
+         * @param count the number of bytes in the region
+         *
+         * @throws NullPointerException if {@code file} is {@code null}
+         */
+        public FilePart(Path file, long position, long count) {
+            this.file = Objects.requireNonNull(file, "File cannot be null.");
+            this.position = position;
+            this.remaining = count;
+            this.length = count;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public long getRemaining() {
+            return remaining;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel channel, long limit) throws IOException {
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+
+            while (remaining > 0 && limit > 0) {
+                long transferred = fileChannel.transferTo(position, Math.min(remaining, limit), channel);
+
+                if (transferred == 0) {
+                    if (position >= fileChannel.size()) {
+                        throw new IOException("File '" + file + "' was truncated while it was being sent.");
+                    }
+
+                    return false; // The channel is full
+                }
+
+                position += transferred;
+                remaining -= transferred;
+                limit -= transferred;
+            }
+
+            if (remaining > 0) {
+                return false;
+            }
+
+            close();
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileChannel != null) {
+                fileChannel.close();
+                fileChannel = null;
+            }
+        }
+    }
+}
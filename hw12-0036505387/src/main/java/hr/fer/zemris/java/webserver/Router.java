@@ -0,0 +1,318 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Maps request paths to values using a trie of path segments, so the cost of finding the value of a path depends
+ * only on the number of its segments and not on the number of routes. Three kinds of routes are supported:
+ * <ul>
+ *     <li>exact routes, such as {@code /hello}, which match only the same path</li>
+ *     <li>parameterized routes, such as {@code /users/{id}}, whose {@code {name}} segments match any non-empty
+ *         segment, which becomes the value of the named parameter</li>
+ *     <li>prefix routes, such as {@code /files/*}, which match any path with at least one more segment</li>
+ * </ul>
+ * Literal segments take precedence over parameters, and parameters over prefixes. Of the prefix routes, the longest
+ * one wins.
+ * <p>
+ * Routes must not be added while paths are being matched, a fully built router can be shared between threads.
+ *
+ * @param <T> the type of the values of the routes
+ * @author Marko Lazarić
+ */
+public class Router<T> {
+
+    /**
+     * The node of the root of the paths.
+     */
+    private final Node<T> root = new Node<>();
+
+    /**
+     * The number of routes.
+     */
+    private int size;
+
+    /**
+     * Adds a route.
+     *
+     * @param pattern the pattern of the paths matched by the route
+     * @param value the value of the route
+     *
+     * @throws NullPointerException if either argument is {@code null}
+     * @throws IllegalArgumentException if the pattern is invalid, conflicts with a parameter of another route or is
+     *                                  already routed
+     */
+    public void add(String pattern, T value) {
+        Objects.requireNonNull(pattern, "Pattern cannot be null.");
+        Objects.requireNonNull(value, "Value cannot be null.");
+
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with '/', was '" + pattern + "'.");
+        }
+
+        Node<T> node = root;
+        List<String> parameterNames = new ArrayList<>();
+        String[] segments = pattern.substring(1).split("/", -1);
+
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+
+            if ("*".equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'*' can only be the last segment of '" + pattern + "'.");
+                }
+
+                if (node.prefixValue != null) {
+                    throw new IllegalArgumentException("Pattern is already routed: " + pattern);
+                }
+
+                node.prefixValue = value;
+                node.prefixPattern = pattern;
+                node.prefixParameterNames = List.copyOf(parameterNames);
+                size++;
+                return;
+            }
+
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+
+                if (name.isEmpty() || parameterNames.contains(name)) {
+                    throw new IllegalArgumentException("Invalid parameter '" + segment + "' in '" + pattern + "'.");
+                }
+
+                if (node.parameter == null) {
+                    node.parameter = new Node<>();
+                    node.parameterName = name;
+                }
+                else if (!node.parameterName.equals(name)) {
+                    throw new IllegalArgumentException("Parameter '" + segment + "' in '" + pattern
+                                                       + "' conflicts with '{" + node.parameterName + "}'.");
+                }
+
+                parameterNames.add(name);
+                node = node.parameter;
+            }
+            else {
+                node = node.children.computeIfAbsent(segment, s -> new Node<>());
+            }
+        }
+
+        if (node.value != null) {
+            throw new IllegalArgumentException("Pattern is already routed: " + pattern);
+        }
+
+        node.value = value;
+        node.pattern = pattern;
+        node.parameterNames = List.copyOf(parameterNames);
+        size++;
+    }
+
+    /**
+     * Returns the route matching the path.
+     *
+     * @param path the requested path
+     * @return the route matching the path, or {@code null} if there is none
+     */
+    public Match<T> match(String path) {
+        if (size == 0 || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+
+        return match(root, path, 1, new ArrayList<>(0));
+    }
+
+    /**
+     * Returns the number of routes.
+     *
+     * @return the number of routes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the route matching the rest of the path, starting at the node.
+     *
+     * @param node the node of the segments matched so far
+     * @param path the requested path
+     * @param start the index of the first character of the next segment, past the end of the path if there are no
+     *              more segments
+     * @param values the values of the parameters matched so far
+     * @return the matching route, or {@code null} if there is none
+     */
+    private Match<T> match(Node<T> node, String path, int start, List<String> values) {
+        if (start > path.length()) {
+            return node.value == null ? null : new Match<>(node.pattern, node.value, node.parameterNames, values);
+        }
+
+        int end = path.indexOf('/', start);
+
+        if (end == -1) {
+            end = path.length();
+        }
+
+        Node<T> child = node.children.get(path.substring(start, end));
+
+        if (child != null) {
+            Match<T> match = match(child, path, end + 1, values);
+
+            if (match != null) {
+                return match;
+            }
+        }
+
+        if (node.parameter != null && end > start) {
+            values.add(path.substring(start, end));
+
+            Match<T> match = match(node.parameter, path, end + 1, values);
+
+            if (match != null) {
+                return match;
+            }
+
+            values.remove(values.size() - 1);
+        }
+
+        if (node.prefixValue == null) {
+            return null;
+        }
+
+        return new Match<>(node.prefixPattern, node.prefixValue, node.prefixParameterNames, values);
+    }
+
+    /**
+     * A route which has matched a path.
+     *
+     * @param <T> the type of the value of the route
+     * @author Marko Lazarić
+     */
+    public static class Match<T> {
+
+        /**
+         * The pattern of the route.
+         */
+        private final String pattern;
+
+        /**
+         * The value of the route.
+         */
+        private final T value;
+
+        /**
+         * The values of the parameters of the route, by their name.
+         */
+        private final Map<String, String> parameters;
+
+        /**
+         * Creates a new {@link Match} with the given arguments.
+         *
+         * @param pattern the pattern of the route
+         * @param value the value of the route
+         * @param names the names of the parameters of the route
+         * @param values the values of the parameters of the route, in the same order as their names
+         */
+        private Match(String pattern, T value, List<String> names, List<String> values) {
+            this.pattern = pattern;
+            this.value = value;
+
+            if (names.isEmpty()) {
+                parameters = Collections.emptyMap();
+            }
+            else {
+                Map<String, String> parameters = new LinkedHashMap<>();
+
+                for (int i = 0; i < names.size(); i++) {
+                    parameters.put(names.get(i), values.get(i));
+                }
+
+                this.parameters = Collections.unmodifiableMap(parameters);
+            }
+        }
+
+        /**
+         * Returns the pattern of the route.
+         *
+         * @return the pattern of the route
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Returns the value of the route.
+         *
+         * @return the value of the route
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the values of the parameters of the route, by their name.
+         *
+         * @return an unmodifiable map of the values of the parameters
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+    }
+
+    /**
+     * A node of the trie, standing for the path segments leading to it.
+     *
+     * @param <T> the type of the values of the routes
+     * @author Marko Lazarić
+     */
+    private static class Node<T> {
+
+        /**
+         * The children of the node, by their literal segment.
+         */
+        private final Map<String, Node<T>> children = new HashMap<>();
+
+        /**
+         * The child of the node matching any segment, {@code null} if there is none.
+         */
+        private Node<T> parameter;
+
+        /**
+         * The name of the parameter matched by the parameter child.
+         */
+        private String parameterName;
+
+        /**
+         * The value of the route ending at the node, {@code null} if there is none.
+         */
+        private T value;
+
+        /**
+         * The pattern of the route ending at the node.
+         */
+        private String pattern;
+
+        /**
+         * The names of the parameters of the route ending at the node.
+         */
+        private List<String> parameterNames;
+
+        /**
+         * The value of the prefix route continuing from the node, {@code null} if there is none.
+         */
+        private T prefixValue;
+
+        /**
+         * The pattern of the prefix route continuing from the node.
+         */
+        private String prefixPattern;
+
+        /**
+         * The names of the parameters of the prefix route continuing from the node.
+         */
+        private List<String> prefixParameterNames;
+    }
+}
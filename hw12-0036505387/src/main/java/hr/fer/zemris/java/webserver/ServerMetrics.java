@@ -0,0 +1,244 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of a {@link SmartHttpServer}. Recording is lock-free, every counter is a {@link LongAdder}
+ * which is striped across the threads updating it, so recording does not slow down the requests being measured.
+ *
+ * @author Marko Lazarić
+ */
+public class ServerMetrics {
+
+    /**
+     * The number of answered requests, by the first digit of their status code.
+     */
+    private final LongAdder[] responses = new LongAdder[6];
+
+    /**
+     * The latencies of the requests, by their route.
+     */
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * The number of open connections.
+     */
+    private final LongAdder activeConnections = new LongAdder();
+
+    /**
+     * The number of bytes written to the connections.
+     */
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * The number of connections closed or turned away to protect the server, by the reason.
+     */
+    private final Map<Rejection, LongAdder> rejections = new EnumMap<>(Rejection.class);
+
+    /**
+     * The number of accepted connections, by the index of the acceptor which has accepted them.
+     */
+    private final ConcurrentMap<Integer, LongAdder> acceptedConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@link ServerMetrics} without any recorded values.
+     */
+    public ServerMetrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+
+        for (Rejection rejection : Rejection.values()) {
+            rejections.put(rejection, new LongAdder());
+        }
+    }
+
+    /**
+     * Records an answered request.
+     *
+     * @param route the route which has answered the request
+     * @param statusCode the status code of the response
+     * @param nanos the time it took to answer the request in nanoseconds
+     */
+    public void recordRequest(String route, int statusCode, long nanos) {
+        responses[Math.max(0, Math.min(statusCode / 100, 5))].increment();
+
+        LatencyHistogram histogram = latencies.get(route);
+
+        if (histogram == null) { // Only the first request of a route takes the slow path
+            histogram = latencies.computeIfAbsent(route, r -> new LatencyHistogram());
+        }
+
+        histogram.record(nanos / 1000);
+    }
+
+    /**
+     * Records that a connection has been opened.
+     */
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    /**
+     * Records that a connection has been accepted.
+     *
+     * @param acceptor the index of the acceptor which has accepted the connection
+     */
+    public void connectionAccepted(int acceptor) {
+        LongAdder counter = acceptedConnections.get(acceptor);
+
+        if (counter == null) { // Only the first connection of an acceptor takes the slow path
+            counter = acceptedConnections.computeIfAbsent(acceptor, a -> new LongAdder());
+        }
+
+        counter.increment();
+    }
+
+    /**
+     * Records that a connection has been closed or turned away to protect the server.
+     *
+     * @param rejection the reason
+     */
+    public void connectionRejected(Rejection rejection) {
+        rejections.get(rejection).increment();
+    }
+
+    /**
+     * Records that a connection has been closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Records bytes written to a connection.
+     *
+     * @param bytes the number of written bytes
+     */
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Returns the number of answered requests.
+     *
+     * @return the number of answered requests
+     */
+    public long getRequests() {
+        long requests = 0;
+
+        for (LongAdder counter : responses) {
+            requests += counter.sum();
+        }
+
+        return requests;
+    }
+
+    /**
+     * Returns the number of answered requests whose status code starts with the digit.
+     *
+     * @param statusClass the first digit of the status code, from 1 to 5
+     * @return the number of answered requests in the status class
+     */
+    public long getResponses(int statusClass) {
+        return responses[statusClass].sum();
+    }
+
+    /**
+     * Returns the latencies of the requests, by their route, sorted by the route.
+     *
+     * @return the latencies of the requests, by their route
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return the number of open connections
+     */
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    /**
+     * Returns the number of accepted connections, by the index of the acceptor which has accepted them, sorted by the
+     * index.
+     *
+     * @return the number of accepted connections, by the index of the acceptor
+     */
+    public Map<Integer, Long> getAcceptedConnections() {
+        Map<Integer, Long> accepted = new TreeMap<>();
+
+        acceptedConnections.forEach((acceptor, counter) -> accepted.put(acceptor, counter.sum()));
+
+        return accepted;
+    }
+
+    /**
+     * Returns the number of connections closed or turned away to protect the server for the reason.
+     *
+     * @param rejection the reason
+     * @return the number of connections closed or turned away for the reason
+     */
+    public long getRejections(Rejection rejection) {
+        return rejections.get(rejection).sum();
+    }
+
+    /**
+     * Returns the number of bytes written to the connections.
+     *
+     * @return the number of bytes written to the connections
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * The reasons for which connections are closed or turned away to protect the server.
+     *
+     * @author Marko Lazarić
+     */
+    public enum Rejection {
+
+        /**
+         * The client has not sent a complete request header in time.
+         */
+        HEADER_TIMEOUT,
+
+        /**
+         * No data has moved for too long while a request was being read or a response written.
+         */
+        IDLE_TIMEOUT,
+
+        /**
+         * The client has not sent the next request in time.
+         */
+        KEEP_ALIVE_TIMEOUT,
+
+        /**
+         * The client has read the response slower than the minimum rate.
+         */
+        MIN_DATA_RATE,
+
+        /**
+         * The address of the client already has the maximum number of open connections.
+         */
+        ADDRESS_LIMIT;
+
+        /**
+         * Returns the name of the reason used as a metric label.
+         *
+         * @return the name of the reason used as a metric label
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Models a single session map entry.
+ *
+ * @author Marko Lazarić
+ */
+class SessionMapEntry {
+
+    /**
+     * The session ID.
+     */
+    final String sid;
+
+    /**
+     * The session host.
+     */
+    final String host;
+
+    /**
+     * The expiration time of the session. Extending a session only writes this field.
+     */
+    volatile long validUntil;
+
+    /**
+     * The map of persistent parameters.
+     */
+    final Map<String, String> map;
+
+    /**
+     * Creates a new {@link SessionMapEntry} with the given arguments and an empty map of persistent parameters.
+     *
+     * @param sid the session ID
+     * @param host the session host
+     * @param validUntil the expiration time of the session
+     */
+    SessionMapEntry(String sid, String host, long validUntil) {
+        this(sid, host, validUntil, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Creates a new {@link SessionMapEntry} with the given arguments.
+     *
+     * @param sid the session ID
+     * @param host the session host
+     * @param validUntil the expiration time of the session
+     * @param map the thread-safe map of persistent parameters
+     */
+    SessionMapEntry(String sid, String host, long validUntil, Map<String, String> map) {
+        this.sid = sid;
+        this.host = host;
+        this.validUntil = validUntil;
+        this.map = map;
+    }
+}
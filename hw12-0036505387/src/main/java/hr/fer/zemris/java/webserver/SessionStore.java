@@ -0,0 +1,88 @@
+package hr.fer.zemris.java.webserver;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Stores the sessions of the server. Stores are thread-safe.
+ *
+ * @author Marko Lazarić
+ */
+interface SessionStore {
+
+    /**
+     * The length of the session IDs.
+     */
+    int SID_LENGTH = 20;
+
+    /**
+     * How often the expired sessions should be removed in milliseconds.
+     */
+    long TICK = 1000;
+
+    /**
+     * The random generators for session IDs, one per thread, so generating IDs never contends on a shared lock.
+     */
+    ThreadLocal<SecureRandom> SID_RANDOM = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
+
+    /**
+     * Returns the valid session with the specified ID and host and extends it. Returns {@code null} if there is no
+     * such session or it has expired.
+     *
+     * @param sid the session ID
+     * @param host the session host
+     * @return the extended session or {@code null}
+     */
+    SessionMapEntry get(String sid, String host);
+
+    /**
+     * Creates a new session for the specified host with a newly generated session ID.
+     *
+     * @param host the session host
+     * @return the new session
+     */
+    SessionMapEntry create(String host);
+
+    /**
+     * Returns the number of stored sessions, which may include expired sessions which have not been removed yet.
+     *
+     * @return the number of stored sessions
+     */
+    int size();
+
+    /**
+     * Returns the number of valid sessions which have been removed to make room for new sessions.
+     *
+     * @return the number of evicted sessions
+     */
+    long getEvictions();
+
+    /**
+     * Removes the sessions which expired since the last call. Should only be called from one thread.
+     *
+     * @param now the current time in milliseconds
+     */
+    void expire(long now);
+
+    /**
+     * Generates a session ID made of upper case letters.
+     *
+     * @return the generated session ID
+     */
+    static String generateSessionID() {
+        SecureRandom random = SID_RANDOM.get();
+        char[] sid = new char[SID_LENGTH];
+
+        for (int index = 0; index < sid.length; index++) {
+            sid[index] = (char) ('A' + random.nextInt(26));
+        }
+
+        return new String(sid);
+    }
+}
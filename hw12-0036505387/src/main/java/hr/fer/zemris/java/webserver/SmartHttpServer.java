@@ -1,24 +1,43 @@
 package hr.fer.zemris.java.webserver;
 
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.ServerMetrics.Rejection;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
-
-import static java.lang.Math.abs;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Models a simple HTTP server capable of running web workers, executing Smart Scripts and fetching resources.
@@ -27,6 +46,13 @@ import static java.lang.Math.abs;
  */
 public class SmartHttpServer {
 
+    /**
+     * The response which switches a connection to HTTP/2 after an upgrade request.
+     */
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n" +
+                                                       "Connection: Upgrade\r\n" +
+                                                       "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
     /**
      * The address on which the server listens.
      */
@@ -47,20 +73,154 @@ public class SmartHttpServer {
      */
     private int workerThreads;
 
+    /**
+     * The execution model of the thread pool, either {@code fixed}, {@code forkjoin} or {@code virtual}.
+     */
+    private String executor;
+
     /**
      * The session timeout.
      */
     private int sessionTimeout;
 
+    /**
+     * The connection mode of the server, either {@code blocking} or {@code nio}.
+     */
+    private String connectionMode;
+
+    /**
+     * The number of seconds an idle persistent connection is kept open.
+     */
+    private int keepAliveTimeout;
+
+    /**
+     * The maximum number of requests answered over a single connection.
+     */
+    private int maxKeepAliveRequests;
+
+    /**
+     * The number of seconds a client has to send a complete request header in, counted from its first byte, or from
+     * the opening of the connection for its first request.
+     */
+    private int headerTimeout;
+
+    /**
+     * The number of seconds a connection is kept open while no data moves during a request or a response.
+     */
+    private int idleTimeout;
+
+    /**
+     * The minimum rate at which clients have to read the responses in bytes per second, not enforced if it is not
+     * positive.
+     */
+    private long minDataRate;
+
+    /**
+     * The number of seconds a connection may spend writing before the minimum rate applies.
+     */
+    private int minDataRateGracePeriod;
+
+    /**
+     * Closes blocking connections whose writes stall or whose clients read slower than the minimum rate, {@code null}
+     * in nio mode.
+     */
+    private WriteWatchdog writeWatchdog;
+
+    /**
+     * The limit of the open connections from the same address, {@code null} if there is none.
+     */
+    private AddressLimit addressLimit;
+
+    /**
+     * The response sent to clients which already have the maximum number of open connections.
+     */
+    private byte[] tooManyConnections;
+
+    /**
+     * The maximum size of a request header in bytes.
+     */
+    private int maxHeaderSize;
+
+    /**
+     * Whether connections may switch to HTTP/2 over cleartext TCP (h2c).
+     */
+    private boolean http2;
+
+    /**
+     * The maximum number of streams of an HTTP/2 connection which are answered at once.
+     */
+    private int http2MaxStreams;
+
+    /**
+     * Limits the number of HTTP/2 connections which are served at once, each of which occupies a thread of the pool.
+     */
+    private ConcurrencyLimit http2Connections;
+
+    /**
+     * The size in bytes from which static files are transferred directly from the file to the socket instead of
+     * being read onto the heap.
+     */
+    private long zeroCopyThreshold;
+
+    /**
+     * The cache of parsed Smart Scripts.
+     */
+    private SmartScriptCache scriptCache;
+
     /**
      * The mapping of file extensions to mime types.
      */
     private Map<String, String> mimeTypes = new HashMap<>();
 
     /**
-     * The server thread currently running.
+     * The mime types of the responses which are compressed if the client accepts it.
+     */
+    private Set<String> compressibleTypes = new HashSet<>();
+
+    /**
+     * The minimum size in bytes of a static file which is compressed.
+     */
+    private long compressionMinSize;
+
+    /**
+     * The compressed variants of the static files, {@code null} if static files are not compressed.
+     */
+    private PrecompressedFiles precompressedFiles;
+
+    /**
+     * The cache of the metadata of static files used for conditional requests.
      */
-    private ServerThread serverThread;
+    private FileMetadataCache fileMetadata;
+
+    /**
+     * The cache of the contents of small static files, {@code null} if static files are not cached.
+     */
+    private StaticFileCache staticFiles;
+
+    /**
+     * The log of the answered requests, {@code null} if they are not logged.
+     */
+    private AccessLog accessLog;
+
+    /**
+     * The number of threads which accept connections.
+     */
+    private int acceptorThreads;
+
+    /**
+     * Whether every acceptor listens on a socket of its own, bound with {@code SO_REUSEPORT}.
+     */
+    private boolean reusePort;
+
+    /**
+     * The socket the acceptors listen on, {@code null} if every acceptor listens on a socket of its own.
+     */
+    private ServerSocketChannel sharedChannel;
+
+    /**
+     * The threads which accept connections.
+     */
+    private final List<ServerThread> serverThreads = new ArrayList<>();
 
     /**
      * The thread pool for answering requests to the server.
@@ -68,24 +228,44 @@ public class SmartHttpServer {
     private ExecutorService threadPool;
 
     /**
-     * The document root used for resolving relative paths.
+     * The limit of the tasks which are either waiting for or running in the thread pool.
      */
-    private Path documentRoot;
+    private ConcurrencyLimit admission;
+
+    /**
+     * The number of tasks waiting for a thread of the thread pool.
+     */
+    private final LongAdder queuedTasks = new LongAdder();
+
+    /**
+     * The number of seconds after which rejected clients are told to retry.
+     */
+    private int retryAfter;
+
+    /**
+     * The response sent to connections which are rejected before they are read from.
+     */
+    private byte[] serviceUnavailable;
+
+    /**
+     * The metrics of the server.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
 
     /**
-     * The mapping of paths to workers.
+     * The document root used for resolving relative paths.
      */
-    private Map<String, IWebWorker> workersMap = new HashMap<>();
+    private Path documentRoot;
 
     /**
-     * The mapping of session IDs to sessions.
+     * The registry of the workers and the limits of the concurrent requests of the paths.
      */
-    private Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<>();
+    private WorkerRegistry workers;
 
     /**
-     * The random generator for generating session IDs.
+     * The store of the sessions.
      */
-    private Random sessionRandom = new Random();
+    private SessionStore sessions;
 
     /**
      * Creates a new {@link SmartHttpServer} with the given argument.
@@ -95,7 +275,15 @@ public class SmartHttpServer {
     public SmartHttpServer(String configFileName) {
         loadServerConfiguration(configFileName);
 
-        serverThread = new ServerThread();
+        for (int acceptor = 0; acceptor < acceptorThreads; acceptor++) {
+            if ("nio".equalsIgnoreCase(connectionMode)) {
+                serverThreads.add(new SelectorServerThread(acceptor));
+            }
+            else {
+                serverThreads.add(new ServerThread(acceptor));
+            }
+        }
+
         new CleanerThread().start();
     }
 
@@ -111,41 +299,174 @@ public class SmartHttpServer {
         domainName = server.getProperty("server.domainName");
         port = Integer.parseInt(server.getProperty("server.port"));
         workerThreads = Integer.parseInt(server.getProperty("server.workerThreads"));
-        documentRoot = Paths.get(server.getProperty("server.documentRoot"));
+        documentRoot = Paths.get(server.getProperty("server.documentRoot")).normalize();
         sessionTimeout = Integer.parseInt(server.getProperty("session.timeout"));
+        String sessionStore = server.getProperty("session.store", "heap").toLowerCase();
+
+        switch (sessionStore) {
+            case "heap":
+                sessions = new HeapSessionStore(sessionTimeout * 1000L); // Seconds -> milliseconds
+                break;
+            case "mapped":
+                sessions = new MappedSessionStore(Paths.get(server.getProperty("session.storeFile",
+                                                                               "./sessions/sessions.dat")),
+                                                  sessionTimeout * 1000L,
+                                                  Integer.parseInt(server.getProperty("session.storeSlots", "65536")),
+                                                  Integer.parseInt(server.getProperty("session.storeSlotSize",
+                                                                                      "1024")));
+                break;
+            default:
+                throw new RuntimeException("Unknown session store: " + sessionStore);
+        }
+        connectionMode = server.getProperty("server.connectionMode", "blocking");
 
-        loadMimeConfiguration(server.getProperty("server.mimeConfig"));
-        loadWorkerConfiguration(server.getProperty("server.workers"));
-    }
+        if (!"blocking".equalsIgnoreCase(connectionMode) && !"nio".equalsIgnoreCase(connectionMode)) {
+            throw new RuntimeException("Unknown connection mode: " + connectionMode);
+        }
 
-    /**
-     * Loads worker configuration from the config file.
-     *
-     * @param filepath the path to the worker configuration
-     *
-     * @throws RuntimeException if it encounters an error while creating instances of the workers
-     */
-    private void loadWorkerConfiguration(String filepath)  {
-        Properties workers = loadProperty(filepath);
+        acceptorThreads = Integer.parseInt(server.getProperty("server.acceptorThreads", "1"));
+
+        if (acceptorThreads <= 0) {
+            throw new RuntimeException("Number of acceptor threads must be positive, was " + acceptorThreads + ".");
+        }
+
+        reusePort = Boolean.parseBoolean(server.getProperty("server.reusePort", "false"));
+        executor = server.getProperty("server.executor", "fixed").toLowerCase();
+
+        if (!Set.of("fixed", "forkjoin", "virtual").contains(executor)) {
+            throw new RuntimeException("Unknown executor: " + executor);
+        }
+
+        if ("virtual".equals(executor) && virtualThreadFactory() == null) { // A fixed pool is used instead
+            executor = "fixed";
+        }
+
+        // A blocked virtual thread does not hold on to a thread of the pool, only to its memory, so the number of
+        // tasks is limited separately, as a keep-alive connection is a task for as long as it is open
+        admission = new ConcurrencyLimit("virtual".equals(executor)
+                                         ? Integer.parseInt(server.getProperty("server.virtualThreadLimit", "10000"))
+                                         : workerThreads + Integer.parseInt(server.getProperty("server.queueCapacity",
+                                                                                               "1000")));
+        retryAfter = Integer.parseInt(server.getProperty("server.retryAfter", "1"));
+        serviceUnavailable = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                              "Content-Type: text/plain\r\n" +
+                              "Content-Length: 0\r\n" +
+                              "Retry-After: " + retryAfter + "\r\n" +
+                              "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        keepAliveTimeout = Integer.parseInt(server.getProperty("server.keepAliveTimeout", "5"));
+        maxKeepAliveRequests = Integer.parseInt(server.getProperty("server.maxKeepAliveRequests", "100"));
+        headerTimeout = Integer.parseInt(server.getProperty("server.headerTimeout", "10"));
+        idleTimeout = Integer.parseInt(server.getProperty("server.idleTimeout", "30"));
+        minDataRate = Long.parseLong(server.getProperty("server.minDataRate", "0"));
+        minDataRateGracePeriod = Integer.parseInt(server.getProperty("server.minDataRateGracePeriod", "5"));
+
+        if (headerTimeout <= 0 || idleTimeout <= 0) {
+            throw new RuntimeException("Header and idle timeouts must be positive.");
+        }
 
-        for (var entry : workers.entrySet()) {
-            String path = (String) entry.getKey();
-            String fqcn = (String) entry.getValue();
+        if (!"nio".equalsIgnoreCase(connectionMode)) { // The selectors check the writes themselves
+            writeWatchdog = new WriteWatchdog(idleTimeout, minDataRate, minDataRateGracePeriod,
+                                              metrics::connectionRejected);
+        }
+
+        int maxConnectionsPerIp = Integer.parseInt(server.getProperty("server.maxConnectionsPerIp", "0"));
+
+        if (maxConnectionsPerIp > 0) {
+            addressLimit = new AddressLimit(maxConnectionsPerIp);
+        }
+
+        tooManyConnections = ("HTTP/1.1 429 Too Many Requests\r\n" +
+                              "Content-Type: text/plain\r\n" +
+                              "Content-Length: 0\r\n" +
+                              "Retry-After: " + retryAfter + "\r\n" +
+                              "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        maxHeaderSize = Integer.parseInt(server.getProperty("server.maxHeaderSize", "8192"));
+        http2 = Boolean.parseBoolean(server.getProperty("server.http2", "false"));
+        http2MaxStreams = Integer.parseInt(server.getProperty("server.http2MaxStreams", "100"));
+
+        if (http2) {
+            int http2MaxConnections = Integer.parseInt(server.getProperty("server.http2MaxConnections",
+                                                                          Integer.toString(workerThreads / 2)));
+
+            // The connections wait for frames on pool threads, so some threads have to be left for their streams
+            if (http2MaxConnections <= 0 || http2MaxConnections >= workerThreads) {
+                throw new RuntimeException("Maximum number of HTTP/2 connections must be between 1 and the number of "
+                                           + "worker threads minus one, was " + http2MaxConnections + ".");
+            }
+
+            http2Connections = new ConcurrencyLimit(http2MaxConnections);
+        }
+        zeroCopyThreshold = Long.parseLong(server.getProperty("server.zeroCopyThreshold", "65536"));
+        scriptCache = new SmartScriptCache(Integer.parseInt(server.getProperty("server.scriptCacheSize", "256")));
 
-            if (workersMap.containsKey(path)) {
-                throw new RuntimeException("Multiple worker definitions for path: " + path);
+        if (Boolean.parseBoolean(server.getProperty("server.scriptCachePrewarm", "false"))) {
+            try {
+                scriptCache.prewarm(documentRoot);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+        }
+
+        loadMimeConfiguration(server.getProperty("server.mimeConfig"));
+
+        Map<String, IWebWorker> builtInWorkers = new HashMap<>();
+        String metricsPath = server.getProperty("server.metricsPath", "/metrics");
+
+        if (!metricsPath.isBlank()) {
+            builtInWorkers.put(metricsPath.strip(), new MetricsWorker());
+        }
+
+        // Keys of the form limit.<path> set the maximum number of concurrent requests for any path
+        workers = new WorkerRegistry(Paths.get(server.getProperty("server.workers")), builtInWorkers);
 
+        fileMetadata = new FileMetadataCache(Integer.parseInt(server.getProperty("server.fileMetadataCacheSize",
+                                                                                "1024")));
+        long staticCacheSize = Long.parseLong(server.getProperty("server.staticCacheSize", "0"));
+
+        if (staticCacheSize > 0) {
             try {
-                Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-                Object newObject = referenceToClass.newInstance();
-                IWebWorker iww = (IWebWorker) newObject;
+                staticFiles = new StaticFileCache(documentRoot, staticCacheSize,
+                                                  Long.parseLong(server.getProperty("server.staticCacheMaxFileSize",
+                                                                                    "1048576")));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        String accessLogFile = server.getProperty("server.accessLog", "");
 
-                workersMap.put(path, iww);
-            } catch (IllegalAccessException | InstantiationException | ClassNotFoundException e) {
+        if (!accessLogFile.isBlank()) {
+            String policy = server.getProperty("server.accessLogPolicy", "drop").toLowerCase();
+
+            if (!"drop".equals(policy) && !"block".equals(policy)) {
+                throw new RuntimeException("Unknown access log policy: " + policy);
+            }
+
+            try {
+                accessLog = new AccessLog(Paths.get(accessLogFile.strip()),
+                                          Integer.parseInt(server.getProperty("server.accessLogBufferSize", "8192")),
+                                          "block".equals(policy),
+                                          Long.parseLong(server.getProperty("server.accessLogMaxSize", "10485760")),
+                                          Integer.parseInt(server.getProperty("server.accessLogMaxFiles", "5")));
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+
+        compressionMinSize = Long.parseLong(server.getProperty("server.compressionMinSize", "256"));
+        String compressionCache = server.getProperty("server.compressionCache");
+
+        if (compressionCache != null) {
+            precompressedFiles = new PrecompressedFiles(documentRoot, Paths.get(compressionCache));
+
+            if (Boolean.parseBoolean(server.getProperty("server.compressionPrewarm", "false"))) {
+                try {
+                    precompressedFiles.precompress(this::isPrecompressible);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
     }
 
     /**
@@ -155,8 +476,86 @@ public class SmartHttpServer {
      */
     private void loadMimeConfiguration(String filepath) {
         Properties mimes = loadProperty(filepath);
+        String compressible = (String) mimes.remove("compressible.types");
 
         mimes.forEach((k, v) -> mimeTypes.put(k.toString(), v.toString()));
+
+        if (compressible != null) {
+            for (String type : compressible.split(",")) {
+                if (!type.isBlank()) {
+                    compressibleTypes.add(type.strip().toLowerCase());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the mime type of the file based on its extension.
+     *
+     * @param filename the name of the file
+     * @return the mime type of the file
+     */
+    private String getMimeType(String filename) {
+        String mime = null;
+        int index = filename.lastIndexOf('.');
+
+        if (index != -1) {
+            mime = mimeTypes.get(filename.substring(index + 1));
+        }
+
+        return mime == null ? "application/octet-stream" : mime;
+    }
+
+    /**
+     * Returns whether a compressed variant of the static file should be kept.
+     *
+     * @param file the static file
+     * @return whether a compressed variant of the static file should be kept
+     */
+    private boolean isPrecompressible(Path file) {
+        try {
+            return compressibleTypes.contains(getMimeType(file.getFileName().toString()).toLowerCase()) &&
+                   Files.size(file) >= compressionMinSize;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the content coding is accepted according to the value of the {@code Accept-Encoding} header.
+     *
+     * @param acceptEncoding the value of the {@code Accept-Encoding} header, can be {@code null}
+     * @param coding the content coding
+     * @return whether the content coding is accepted
+     */
+    private static boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String part : acceptEncoding.split(",")) {
+            String[] codingAndParams = part.split(";");
+
+            if (!codingAndParams[0].strip().equalsIgnoreCase(coding)) {
+                continue;
+            }
+
+            for (int index = 1; index < codingAndParams.length; index++) {
+                String param = codingAndParams[index].strip();
+
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        return false;
     }
 
     /**
@@ -185,504 +584,2331 @@ public class SmartHttpServer {
      * Starts the server.
      */
     protected synchronized void start() {
-        if (!serverThread.isAlive()) {
-            serverThread.start();
+        // The pool has to exist before the server threads start handing requests to it
+        threadPool = createThreadPool();
+
+        if (reusePort && !isReusePortSupported()) { // The acceptors share a single socket instead
+            reusePort = false;
         }
 
-        threadPool = Executors.newFixedThreadPool(workerThreads);
+        if (!reusePort && sharedChannel == null) {
+            try {
+                sharedChannel = openServerChannel();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        for (ServerThread serverThread : serverThreads) {
+            if (!serverThread.isAlive()) {
+                serverThread.start();
+            }
+        }
     }
 
     /**
-     * Stops the server.
+     * Returns whether sockets can be bound with {@code SO_REUSEPORT} on this platform.
+     *
+     * @return whether {@code SO_REUSEPORT} is supported
      */
-    protected synchronized void stop() {
-        serverThread.turnOff();
-
-        threadPool.shutdown();
+    private static boolean isReusePortSupported() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
-     * Models a server thread which responds to requests.
+     * Opens a socket listening on the port of the server, bound with {@code SO_REUSEPORT} if every acceptor listens
+     * on a socket of its own.
      *
-     * @author Marko Lazarić
+     * @return the listening socket
+     *
+     * @throws IOException if the socket cannot be opened or bound
      */
-    protected class ServerThread extends Thread {
-
-        /**
-         * Whether the thread is currently running.
-         */
-        private volatile boolean running = false;
-
-        @Override
-        public void run() {
-            running = true;
+    private ServerSocketChannel openServerChannel() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
 
-            try (ServerSocket serverSocket = new ServerSocket()) {
-                serverSocket.bind(new InetSocketAddress((InetAddress) null, port));
+        try {
+            if (reusePort) { // The kernel spreads the new connections across all sockets bound to the port
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
 
-                while (true) {
-                    if (!running) {
-                        break;
-                    }
+            channel.bind(new InetSocketAddress((InetAddress) null, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
 
-                    Socket client = serverSocket.accept();
+        return channel;
+    }
 
-                    ClientWorker clientWorker = new ClientWorker(client);
+    /**
+     * Returns the factory of executors which start a new virtual thread per task. Virtual threads are only available
+     * on JDK 21 and newer, so the factory is looked up reflectively.
+     *
+     * @return the factory of virtual thread executors, {@code null} if virtual threads are not available
+     */
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
 
-                    threadPool.submit(clientWorker);
+    /**
+     * Creates the thread pool according to the configured execution model.
+     *
+     * @return the thread pool for answering requests
+     */
+    private ExecutorService createThreadPool() {
+        switch (executor) {
+            case "forkjoin":
+                // Requests are independent tasks which are never joined, so they are processed in submission order
+                return new ForkJoinPool(workerThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            case "virtual":
+                try {
+                    return (ExecutorService) virtualThreadFactory().invoke(null);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RuntimeException(e);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            default:
+                return Executors.newFixedThreadPool(workerThreads);
         }
+    }
 
-        /**
-         * Turns the thread off.
-         */
-        public void turnOff() {
-            running = false;
+    /**
+     * Counts a connection from the address as closed towards the limit of the connections per address.
+     *
+     * @param clientAddress the address of the client
+     */
+    private void releaseAddress(InetAddress clientAddress) {
+        if (addressLimit != null) {
+            addressLimit.release(clientAddress);
         }
-
     }
 
     /**
-     * Models a single client worker which responds to a single request.
+     * Submits the task to the thread pool, unless there are already too many tasks waiting for or running in it.
      *
-     * @author Marko Lazarić
+     * @param task the task to submit
+     * @return whether the task has been submitted
      */
-    private class ClientWorker implements Runnable, IDispatcher {
+    private boolean trySubmit(Runnable task) {
+        if (!admission.tryAcquire()) {
+            return false;
+        }
 
-        /**
-         * The socket of the request.
-         */
-        private Socket csocket;
+        queuedTasks.increment();
 
-        /**
-         * The input stream of the request.
-         */
-        private PushbackInputStream istream;
+        try {
+            threadPool.execute(() -> {
+                queuedTasks.decrement();
 
-        /**
-         * The output stream for the response.
-         */
-        private OutputStream ostream;
+                try {
+                    task.run();
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) { // The pool has been shut down
+            queuedTasks.decrement();
+            admission.release();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Answers the request of a stream of an HTTP/2 connection in the thread pool, just like a request of its own
+     * connection which is closed after the response.
+     *
+     * @param request the request of the stream
+     * @param stream the stream to write the response to
+     * @return whether the request has been submitted
+     */
+    private boolean serveStream(HttpRequest request, Http2Connection.ResponseStream stream) {
+        return trySubmit(() -> new ClientWorker(null, stream, stream, 1, null).serve(request)
+                                                                                 .whenComplete((k, e) -> stream.close()));
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread of the thread pool.
+     *
+     * @return the number of tasks waiting for a thread of the thread pool
+     */
+    long getQueueDepth() {
+        return queuedTasks.sum();
+    }
+
+    /**
+     * Returns the number of tasks which have been admitted and not finished yet, whether they are waiting for or
+     * running in the thread pool.
+     *
+     * @return the number of admitted tasks
+     */
+    int getAdmittedTasks() {
+        return admission.getInFlight();
+    }
+
+    /**
+     * Returns the number of requests rejected because the server or their route was overloaded.
+     *
+     * @return the number of rejected requests
+     */
+    long getRejectedRequests() {
+        return admission.getRejected() + workers.getRejected();
+    }
+
+    /**
+     * Stops the server.
+     */
+    protected synchronized void stop() {
+        serverThreads.forEach(ServerThread::turnOff);
+
+        threadPool.shutdown();
+
+        if (accessLog != null) {
+            try {
+                threadPool.awaitTermination(1, TimeUnit.SECONDS); // Lets the requests in progress be logged
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            accessLog.close();
+        }
+    }
+
+    /**
+     * Models a server thread which responds to requests.
+     *
+     * @author Marko Lazarić
+     */
+    protected class ServerThread extends Thread {
+
+        /**
+         * The index of the acceptor.
+         */
+        protected final int acceptor;
+
+        /**
+         * Whether the thread is currently running.
+         */
+        protected volatile boolean running = false;
+
+        /**
+         * The socket the thread listens on, {@code null} until the thread has started.
+         */
+        protected volatile ServerSocketChannel serverChannel;
+
+        /**
+         * Creates a new {@link ServerThread} with the given argument.
+         *
+         * @param acceptor the index of the acceptor
+         */
+        public ServerThread(int acceptor) {
+            super("acceptor-" + acceptor);
+            this.acceptor = acceptor;
+        }
+
+        @Override
+        public void run() {
+            running = true;
+
+            try {
+                // The socket is opened through a channel, so that files can be transferred to it directly
+                ServerSocketChannel serverChannel = openChannel();
+
+                try {
+                    acceptConnections(serverChannel);
+                } finally {
+                    closeChannel();
+                }
+            } catch (IOException e) {
+                if (running) { // Otherwise the socket has been closed to turn the thread off
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        /**
+         * Accepts connections and hands them to the thread pool until the thread is turned off.
+         *
+         * @param serverChannel the socket to accept the connections from
+         *
+         * @throws IOException if an error occurs while accepting a connection
+         */
+        private void acceptConnections(ServerSocketChannel serverChannel) throws IOException {
+            while (running) {
+                Socket client = serverChannel.accept().socket();
+
+                metrics.connectionAccepted(acceptor);
+
+                InetAddress clientAddress = client.getInetAddress();
+
+                if (addressLimit != null && !addressLimit.tryAcquire(clientAddress)) {
+                    metrics.connectionRejected(Rejection.ADDRESS_LIMIT);
+
+                    try {
+                        client.getOutputStream().write(tooManyConnections);
+                    } catch (IOException ignored) {}
+
+                    client.close();
+                    continue;
+                }
+
+                try {
+                    // The workers shorten the timeout while a request header is being read
+                    client.setSoTimeout(keepAliveTimeout * 1000); // Seconds -> milliseconds
+                    // Responses are buffered, so small writes do not have to wait for the previous to be acked
+                    client.setTcpNoDelay(true);
+
+                    // Overloaded servers answer right away, instead of letting the connection wait in the queue
+                    if (!trySubmit(new ClientWorker(client))) {
+                        client.getOutputStream().write(serviceUnavailable);
+                        releaseAddress(clientAddress);
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    releaseAddress(clientAddress);
+                    client.close();
+                }
+            }
+        }
+
+        /**
+         * Returns the socket the thread listens on, opening a socket of its own unless the acceptors share one.
+         *
+         * @return the socket the thread listens on
+         *
+         * @throws IOException if the socket cannot be opened or bound
+         */
+        protected ServerSocketChannel openChannel() throws IOException {
+            serverChannel = sharedChannel != null ? sharedChannel : openServerChannel();
+
+            if (!running) { // Turned off while the socket was being opened
+                closeChannel();
+            }
+
+            return serverChannel;
+        }
+
+        /**
+         * Closes the socket the thread listens on, which also stops a blocked accept.
+         */
+        protected void closeChannel() {
+            ServerSocketChannel serverChannel = this.serverChannel;
+
+            if (serverChannel != null) {
+                try {
+                    serverChannel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        /**
+         * Turns the thread off.
+         */
+        public void turnOff() {
+            running = false;
+            closeChannel();
+        }
+
+    }
+
+    /**
+     * Models a server thread which accepts connections, reads request headers and writes responses using a single
+     * {@link Selector}. Only the processing of a complete request is handed to the thread pool, so idle and slow
+     * connections do not occupy any of the worker threads.
+     *
+     * @author Marko Lazarić
+     */
+    protected class SelectorServerThread extends ServerThread {
+
+        /**
+         * How often idle connections are checked for, in milliseconds.
+         */
+        private static final long IDLE_CHECK_INTERVAL = 1000;
+
+        /**
+         * The selector used for waiting on all of the channels.
+         */
+        private volatile Selector selector;
+
+        /**
+         * The connections whose responses have been generated and are waiting to be written.
+         */
+        private final Queue<NioConnection> respondedConnections = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Creates a new {@link SelectorServerThread} with the given argument.
+         *
+         * @param acceptor the index of the acceptor
+         */
+        public SelectorServerThread(int acceptor) {
+            super(acceptor);
+        }
+
+        @Override
+        public void run() {
+            running = true;
+
+            // A shared socket is registered with the selector of every acceptor, and the first one to wake up wins
+            try (Selector selector = Selector.open()) {
+                ServerSocketChannel serverChannel = openChannel();
+
+                this.selector = selector;
+
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+                long lastIdleCheck = System.currentTimeMillis();
+
+                while (running) {
+                    selector.select(IDLE_CHECK_INTERVAL);
+
+                    registerResponses();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                            continue;
+                        }
+
+                        NioConnection connection = (NioConnection) key.attachment();
+
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            else if (key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+
+                    if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                        checkTimeouts(now);
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    throw new RuntimeException(e);
+                }
+            } finally {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Accepts a new connection and registers it for reading.
+         *
+         * @param serverChannel the channel which is accepting connections
+         */
+        private void accept(ServerSocketChannel serverChannel) {
+            SocketChannel channel = null;
+
+            try {
+                channel = serverChannel.accept();
+
+                if (channel == null) { // Another acceptor has already accepted it
+                    return;
+                }
+
+                metrics.connectionAccepted(acceptor);
+
+                InetAddress clientAddress = channel.socket().getInetAddress();
+
+                if (addressLimit != null && !addressLimit.tryAcquire(clientAddress)) {
+                    metrics.connectionRejected(Rejection.ADDRESS_LIMIT);
+                    channel.configureBlocking(false);
+                    channel.write(ByteBuffer.wrap(tooManyConnections)); // Fits into the empty socket buffer
+                    channel.close();
+                    return;
+                }
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key, clientAddress));
+                } catch (IOException e) {
+                    releaseAddress(clientAddress);
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        /**
+         * Switches the connections whose responses are ready to writing.
+         */
+        private void registerResponses() {
+            NioConnection connection;
+
+            while ((connection = respondedConnections.poll()) != null) {
+                if (connection.key.isValid()) {
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                    connection.writeStart = connection.lastActivity = System.currentTimeMillis();
+                    connection.written = 0;
+                }
+            }
+        }
+
+        /**
+         * Closes the connections which have timed out. A connection times out if it has been waiting for the next
+         * request for longer than the keep alive timeout, if no data has moved for longer than the idle timeout while
+         * a request header was being read or a response written, or if its client reads the response slower than the
+         * minimum rate. A request header which has not been completely read in time is answered with an error.
+         *
+         * @param now the current time in milliseconds
+         */
+        private void checkTimeouts(long now) {
+            long gracePeriod = minDataRateGracePeriod * 1000L; // Seconds -> milliseconds
+
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+
+                if (!(attachment instanceof NioConnection)) {
+                    continue;
+                }
+
+                NioConnection connection = (NioConnection) attachment;
+                long idle = now - connection.lastActivity;
+
+                if (connection.headerStart != 0) {
+                    if (now - connection.headerStart > headerTimeout * 1000L) {
+                        metrics.connectionRejected(Rejection.HEADER_TIMEOUT);
+                        connection.headerStart = 0;
+                        connection.dispatch(null, new HttpRequestParserException(408, "Request Timeout"));
+                    }
+                    else if (idle > idleTimeout * 1000L) {
+                        metrics.connectionRejected(Rejection.IDLE_TIMEOUT);
+                        connection.close();
+                    }
+                }
+                else if (connection.isIdle()) {
+                    if (idle > keepAliveTimeout * 1000L) {
+                        metrics.connectionRejected(Rejection.KEEP_ALIVE_TIMEOUT);
+                        connection.close();
+                    }
+                }
+                else if (connection.writeStart != 0) {
+                    long writing = now - connection.writeStart;
+
+                    if (idle > idleTimeout * 1000L) {
+                        metrics.connectionRejected(Rejection.IDLE_TIMEOUT);
+                        connection.close();
+                    }
+                    else if (minDataRate > 0 && writing > gracePeriod
+                             && connection.written * 1000 / writing < minDataRate) {
+                        metrics.connectionRejected(Rejection.MIN_DATA_RATE);
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void turnOff() {
+            super.turnOff();
+
+            Selector selector = this.selector;
+
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Models the state of a single non-blocking connection. The connection alternates between reading a request
+         * header, waiting for the thread pool to process the request and writing the response. Bytes of pipelined
+         * requests which arrive with the current header are kept in the parser's buffer until the current response is
+         * written.
+         *
+         * @author Marko Lazarić
+         */
+        private class NioConnection {
+
+            /**
+             * The channel of the connection.
+             */
+            private final SocketChannel channel;
+
+            /**
+             * The selection key of the channel.
+             */
+            private final SelectionKey key;
+
+            /**
+             * The parser whose buffer the request headers are collected in.
+             */
+            private final HttpRequestParser parser = new HttpRequestParser(maxHeaderSize);
+
+            /**
+             * The parts of the response which is being written, {@code null} while the request is being read or
+             * processed.
+             */
+            private volatile Queue<ResponsePart> output;
+
+            /**
+             * Whether the connection should be kept alive after the response is written.
+             */
+            private volatile boolean keepAlive;
+
+            /**
+             * Whether a request is currently being processed or its response written.
+             */
+            private boolean busy = false;
+
+            /**
+             * The number of requests answered over the connection.
+             */
+            private int servedRequests = 0;
+
+            /**
+             * The time of the last activity on the connection in milliseconds.
+             */
+            private long lastActivity = System.currentTimeMillis();
+
+            /**
+             * The time at which reading the current request header has started in milliseconds, {@code 0} if no
+             * header is being read. The first header is read from the moment the connection is opened.
+             */
+            private long headerStart = lastActivity;
+
+            /**
+             * The time at which writing the current response has started in milliseconds, {@code 0} if no response
+             * is being written.
+             */
+            private long writeStart;
+
+            /**
+             * The number of bytes of the current response written so far.
+             */
+            private long written;
+
+            /**
+             * The address of the client.
+             */
+            private final InetAddress clientAddress;
+
+            /**
+             * Creates a new {@link NioConnection} with the given arguments.
+             *
+             * @param channel the channel of the connection
+             * @param key the selection key of the channel
+             * @param clientAddress the address of the client
+             */
+            private NioConnection(SocketChannel channel, SelectionKey key, InetAddress clientAddress) {
+                this.channel = channel;
+                this.key = key;
+                this.clientAddress = clientAddress;
+
+                metrics.connectionOpened();
+            }
+
+            /**
+             * Reads the available bytes and dispatches the request to the thread pool once its header is complete.
+             *
+             * @throws IOException if an error occurs while reading from the channel
+             */
+            private void read() throws IOException {
+                if (channel.read(parser.getBuffer()) == -1) {
+                    close();
+                    return;
+                }
+
+                lastActivity = System.currentTimeMillis();
+
+                if (headerStart == 0) { // The first bytes of the next request
+                    headerStart = lastActivity;
+                }
+
+                dispatchIfComplete();
+            }
+
+            /**
+             * Dispatches the first buffered request to the thread pool if its header is complete.
+             */
+            private void dispatchIfComplete() {
+                HttpRequest request = null;
+                HttpRequestParserException error = null;
+
+                try {
+                    request = parser.next();
+                } catch (HttpRequestParserException e) {
+                    error = e;
+                }
+
+                if (request == null && error == null) { // The header has not been completely read yet
+                    return;
+                }
+
+                dispatch(request, error);
+            }
+
+            /**
+             * Dispatches a request, or the error to answer an invalid request with, to the thread pool.
+             *
+             * @param request the request, {@code null} if it is invalid
+             * @param error the error to answer the invalid request with, {@code null} if it is valid
+             */
+            private void dispatch(HttpRequest request, HttpRequestParserException error) {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                Queue<ResponsePart> parts = new ArrayDeque<>();
+                int remainingRequests = maxKeepAliveRequests - ++servedRequests;
+
+                // Parts are queued after the bytes written so far and transferred by the selector thread
+                PartSender partSender = part -> {
+                    parts.add(new ResponsePart.BufferPart(ByteBuffer.wrap(response.toByteArray())));
+                    parts.add(part);
+                    response.reset();
+                };
+
+                ClientWorker worker = new ClientWorker(null, response, this::close, remainingRequests + 1,
+                                                       partSender);
+                HttpRequest parsedRequest = request;
+                HttpRequestParserException parseError = error;
+
+                // Stop listening for events until the response is generated
+                busy = true;
+                headerStart = 0;
+                key.interestOps(0);
+
+                boolean submitted = trySubmit(() -> {
+                    CompletionStage<Boolean> served = parseError == null
+                                                      ? worker.serve(parsedRequest)
+                                                      : CompletableFuture.completedFuture(worker.reject(parseError));
+
+                    // Asynchronous workers complete the response later, without holding on to the pool thread
+                    served.thenAccept(s -> {
+                        parts.add(new ResponsePart.BufferPart(ByteBuffer.wrap(response.toByteArray())));
+                        respond(parts, s && remainingRequests > 0);
+                    });
+                });
+
+                if (!submitted) { // Overloaded servers answer right away, without waiting for the thread pool
+                    parts.add(new ResponsePart.BufferPart(ByteBuffer.wrap(serviceUnavailable)));
+                    respond(parts, false);
+                }
+            }
+
+            /**
+             * Hands the generated response to the selector thread. Called from the thread pool, or from the thread
+             * which completed an asynchronous worker.
+             *
+             * @param parts the parts of the generated response
+             * @param keepAlive whether the connection should be kept alive after the response
+             */
+            private void respond(Queue<ResponsePart> parts, boolean keepAlive) {
+                this.keepAlive = keepAlive;
+                this.output = parts;
+
+                respondedConnections.add(this);
+                selector.wakeup();
+            }
+
+            /**
+             * Writes as much of the response as possible. Once it is fully written, the connection is either closed
+             * or goes back to reading the next request.
+             *
+             * @throws IOException if an error occurs while writing to the channel
+             */
+            private void write() throws IOException {
+                while (!output.isEmpty()) {
+                    ResponsePart part = output.peek();
+                    long remaining = part.getRemaining();
+                    boolean finished = part.writeTo(channel);
+
+                    if (part.getRemaining() < remaining) {
+                        written += remaining - part.getRemaining();
+                        lastActivity = System.currentTimeMillis();
+                    }
+
+                    if (!finished) {
+                        return; // The channel is full
+                    }
+
+                    metrics.addBytesWritten(output.remove().getLength());
+                }
+
+                output = null;
+                writeStart = 0;
+
+                if (!keepAlive) {
+                    close();
+                    return;
+                }
+
+                busy = false;
+                lastActivity = System.currentTimeMillis();
+                headerStart = parser.hasBufferedBytes() ? lastActivity : 0;
+                key.interestOps(SelectionKey.OP_READ);
+
+                // A pipelined request may already be waiting in the buffer
+                dispatchIfComplete();
+            }
+
+            /**
+             * Returns whether the connection is waiting for the next request.
+             *
+             * @return whether the connection is waiting for the next request
+             */
+            private boolean isIdle() {
+                return !busy;
+            }
+
+            /**
+             * Closes the connection.
+             */
+            private void close() {
+                key.cancel();
+
+                if (channel.isOpen()) {
+                    metrics.connectionClosed();
+                    releaseAddress(clientAddress);
+                }
+
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+
+                Queue<ResponsePart> output = this.output;
+
+                if (output != null) {
+                    for (ResponsePart part : output) {
+                        try {
+                            part.close();
+                        } catch (IOException ignored) {}
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Models a single client worker which responds to the requests made over a single connection. Requests are
+     * answered in the order they were sent for as long as the connection is kept alive.
+     *
+     * @author Marko Lazarić
+     */
+    private class ClientWorker implements Runnable, IDispatcher {
+
+        /**
+         * The socket of the connection, {@code null} if the requests are not read from a socket by the worker.
+         */
+        private Socket socket;
+
+        /**
+         * The time at which reading the current request header has started in nanoseconds, {@code 0} if no header
+         * is being read.
+         */
+        private long headerStart;
+
+        /**
+         * The connection of the request, it is closed once no more requests will be answered over it.
+         */
+        private Closeable connection;
+
+        /**
+         * The number of requests which can still be answered over the connection.
+         */
+        private int remainingRequests;
+
+        /**
+         * Whether the client asked for the connection to be kept alive.
+         */
+        private boolean keepAliveRequested;
+
+        /**
+         * Sends parts of the response directly to the connection, {@code null} if the connection does not support
+         * it.
+         */
+        private PartSender partSender;
+
+        /**
+         * The input stream of the request, {@code null} if the requests are parsed by the caller.
+         */
+        private InputStream istream;
+
+        /**
+         * The parser of the requests read from the input stream.
+         */
+        private HttpRequestParser parser;
+
+        /**
+         * The output stream for the response.
+         */
+        private OutputStream ostream;
+
+        /**
+         * The version of HTTP.
+         */
+        private String version;
+
+        /**
+         * The method of the request.
+         */
+        private String method;
+
+        /**
+         * The host the request was made to.
+         */
+        private String host;
+
+        /**
+         * The GET parameters.
+         */
+        private Map<String, String> params = new HashMap<>();
+
+        /**
+         * The temporary parameters.
+         */
+        private Map<String, String> tempParams = new HashMap<>();
+
+        /**
+         * The persistent parameters.
+         */
+        private Map<String, String> permPrams = new HashMap<>();
+
+        /**
+         * The output cookies.
+         */
+        private List<RequestContext.RCCookie> outputCookies = new ArrayList<>();
+
+        /**
+         * The session ID.
+         */
+        private String SID;
+
+        /**
+         * The context of the request.
+         */
+        private RequestContext context;
+
+        /**
+         * The current request.
+         */
+        private HttpRequest request;
+
+        /**
+         * The value of the {@code Accept-Encoding} header of the request.
+         */
+        private String acceptEncoding;
+
+        /**
+         * The route which has answered the current request, used for its metrics.
+         */
+        private String route;
+
+        /**
+         * The number of bytes written to the connection by this worker.
+         */
+        private long bytesSent;
+
+        /**
+         * The number of bytes written to the connection before the current request.
+         */
+        private long requestStartBytes;
+
+        /**
+         * The stage of the asynchronous worker answering the current request, {@code null} if the response is
+         * finished once the request has been dispatched.
+         */
+        private CompletionStage<?> pending;
+
+        /**
+         * Completed once the thread which has dispatched the current request no longer uses its state, {@code null}
+         * if nothing waits for that. A response generated on another thread must not start before.
+         */
+        private CompletableFuture<Void> dispatched;
+
+        /**
+         * Creates a new {@link ClientWorker} with the given argument.
+         *
+         * @param csocket the socket of the request
+         *
+         * @throws NullPointerException if {@code csocket} is {@code null}
+         * @throws IOException if the streams of the socket cannot be opened
+         */
+        public ClientWorker(Socket csocket) throws IOException {
+            this(Objects.requireNonNull(csocket, "Socket cannot be null."), writeWatchdog.guard(csocket));
+        }
+
+        /**
+         * Creates a new {@link ClientWorker} with the given arguments.
+         *
+         * @param csocket the socket of the request
+         * @param guard the guard of the writes to the socket
+         *
+         * @throws IOException if the streams of the socket cannot be opened
+         */
+        private ClientWorker(Socket csocket, WriteWatchdog.Guard guard) throws IOException {
+            this(csocket.getInputStream(),
+                 // The header and a small body are sent in a single segment, flushed when the response is finished
+                 new BufferedOutputStream(new FilterOutputStream(csocket.getOutputStream()) {
+
+                     @Override
+                     public void write(byte[] b, int off, int len) throws IOException {
+                         for (int end = off + len; off < end; off += WriteWatchdog.MAX_WRITE) {
+                             int length = Math.min(end - off, WriteWatchdog.MAX_WRITE);
+
+                             guard.beginWrite(length);
+
+                             try {
+                                 out.write(b, off, length);
+                             } finally {
+                                 guard.endWrite();
+                             }
+
+                             metrics.addBytesWritten(length);
+                         }
+                     }
+                 }, 8192), csocket, maxKeepAliveRequests, null);
+
+            this.socket = csocket;
+            this.headerStart = System.nanoTime(); // The first header is read from the moment the connection is opened
+
+            // Every read waits only as long as the state of the connection allows
+            istream = new FilterInputStream(istream) {
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    csocket.setSoTimeout(readTimeout());
+                    return in.read(b, off, len);
+                }
+            };
+
+            SocketChannel channel = csocket.getChannel();
+
+            if (channel != null) {
+                partSender = part -> {
+                    try {
+                        boolean finished = false;
+
+                        while (!finished) { // Blocking channels accept the whole slice
+                            long length = Math.min(part.getRemaining(), WriteWatchdog.MAX_WRITE);
+
+                            guard.beginWrite(length);
+
+                            try {
+                                finished = part.writeTo(channel, length);
+                            } finally {
+                                guard.endWrite();
+                            }
+                        }
+
+                        metrics.addBytesWritten(part.getLength());
+                    } finally {
+                        part.close();
+                    }
+                };
+            }
+        }
+
+        /**
+         * Creates a new {@link ClientWorker} with the given arguments.
+         *
+         * @param istream the input stream of the request, {@code null} if the requests are parsed by the caller and
+         *                answered using {@link #serve(HttpRequest)}
+         * @param ostream the output stream for the response
+         * @param connection the connection which is closed once no more requests will be answered over it
+         * @param remainingRequests the maximum number of requests to answer over the connection
+         * @param partSender sends parts of the response directly to the connection, {@code null} if the
+         *                   connection does not support it
+         *
+         * @throws NullPointerException if {@code ostream} or {@code connection} is {@code null}
+         */
+        public ClientWorker(InputStream istream, OutputStream ostream, Closeable connection, int remainingRequests,
+                            PartSender partSender) {
+            super();
+            this.istream = istream;
+            this.parser = istream == null ? null : new HttpRequestParser(maxHeaderSize);
+            this.ostream = Objects.requireNonNull(ostream, "Output stream cannot be null.");
+
+            // The size of each response is logged and recorded in the flight recorder events
+            this.ostream = new FilterOutputStream(ostream) {
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytesSent++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytesSent += len;
+                }
+            };
+            this.connection = Objects.requireNonNull(connection, "Connection cannot be null.");
+            this.remainingRequests = remainingRequests;
+            this.partSender = partSender;
+        }
+
+        @Override
+        public void run() {
+            metrics.connectionOpened();
+            serveConnection();
+        }
+
+        /**
+         * Answers requests while the connection is alive. If an asynchronous worker has not finished its response
+         * yet, the thread is released and answering continues in a new task once the worker completes.
+         */
+        private void serveConnection() {
+            boolean suspended = false;
+
+            try {
+                while (remainingRequests > 0) {
+                    CompletableFuture<Boolean> served = serve().toCompletableFuture();
+
+                    if (!served.isDone()) {
+                        suspended = true;
+                        served.thenAccept(this::resume);
+                        return;
+                    }
+
+                    if (!served.join()) {
+                        break;
+                    }
+                }
+            } finally {
+                if (!suspended) {
+                    closeConnection();
+                }
+            }
+        }
+
+        /**
+         * Continues answering requests after an asynchronous worker has finished its response.
+         *
+         * @param keepAlive whether the connection can be kept alive for the next request
+         */
+        private void resume(boolean keepAlive) {
+            // An overloaded server closes the connection instead of waiting for the thread pool
+            if (keepAlive && remainingRequests > 0 && trySubmit(this::serveConnection)) {
+                return;
+            }
+
+            closeConnection();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void closeConnection() {
+            metrics.connectionClosed();
+
+            if (socket != null) {
+                releaseAddress(socket.getInetAddress());
+            }
+
+            try {
+                connection.close();
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Reads and answers a single request.
+         *
+         * @return a stage which completes with whether the connection can be kept alive for the next request, once
+         *         the response has been finished
+         */
+        private CompletionStage<Boolean> serve() {
+            HttpRequest request;
+
+            try {
+                request = parser.read(istream);
+            } catch (HttpRequestParserException e) {
+                return CompletableFuture.completedFuture(reject(e));
+            } catch (SocketTimeoutException e) {
+                return CompletableFuture.completedFuture(timedOut());
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            headerStart = 0;
+
+            if (request == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            if (http2 && "PRI".equals(request.getMethod()) && "*".equals(request.getPath())
+                && "HTTP/2.0".equals(request.getVersion())) { // The start of the HTTP/2 preface
+                return serveHttp2(null, null);
+            }
+
+            if (http2 && "HTTP/1.1".equalsIgnoreCase(request.getVersion()) && request.getHeader("Upgrade") != null
+                && request.getHeader("Upgrade").toLowerCase().contains("h2c")) {
+                byte[] settings = decodeHttp2Settings(request.getHeader("HTTP2-Settings"));
+
+                if (settings != null) {
+                    return serveHttp2(request, settings);
+                }
+            }
+
+            return serve(request);
+        }
+
+        /**
+         * Switches the connection to HTTP/2 and reads its frames on the current thread of the pool until it is
+         * closed, so the connection counts against the thread pool and its admission limit just like an HTTP/1.1
+         * connection. The requests of its streams are answered by other threads of the pool.
+         *
+         * Only a limited number of HTTP/2 connections is served at once, so that the connections waiting for frames
+         * always leave threads for their streams. Over the limit, an upgrade is declined and the request is answered
+         * over HTTP/1.1, while a client which has started with the HTTP/2 preface is told to retry its streams later.
+         *
+         * @param upgrade the request which has asked for the upgrade, or {@code null} if the client has started with
+         *                the HTTP/2 preface
+         * @param settings the settings sent with the upgrade request, ignored if there is none
+         * @return a stage which completes with whether the connection can be kept alive, which is {@code false}
+         *         unless the upgrade has been declined
+         */
+        private CompletionStage<Boolean> serveHttp2(HttpRequest upgrade, byte[] settings) {
+            if (upgrade != null && !http2Connections.tryAcquire()) { // Clients have to accept HTTP/1.1 instead
+                return serve(upgrade);
+            }
+
+            byte[] buffered = parser.takeBufferedBytes(); // The frames which have already been read
+            InputStream input = buffered.length == 0 ? istream
+                                                     : new SequenceInputStream(new ByteArrayInputStream(buffered),
+                                                                               istream);
+            Http2Connection connection = new Http2Connection(input, ostream, SmartHttpServer.this::serveStream,
+                                                             maxHeaderSize, http2MaxStreams, keepAliveTimeout * 1000L);
+
+            if (upgrade == null && !http2Connections.tryAcquire()) {
+                connection.refuse();
+                return CompletableFuture.completedFuture(false);
+            }
+
+            try {
+                serveHttp2(connection, upgrade, settings);
+            } finally {
+                http2Connections.release();
+            }
+
+            return CompletableFuture.completedFuture(false);
+        }
+
+        /**
+         * Serves an HTTP/2 connection until it is closed by either side.
+         *
+         * @param connection the connection
+         * @param upgrade the request which has asked for the upgrade, or {@code null} if the client has started with
+         *                the HTTP/2 preface
+         * @param settings the settings sent with the upgrade request, ignored if there is none
+         */
+        private void serveHttp2(Http2Connection connection, HttpRequest upgrade, byte[] settings) {
+            if (upgrade != null) {
+                try {
+                    ostream.write(SWITCHING_PROTOCOLS);
+                } catch (IOException e) {
+                    return;
+                }
+
+                // The upgrade request becomes the first stream, whose response is never chunked
+                upgrade = new HttpRequest(upgrade.getMethod(), upgrade.getPath(), "HTTP/1.0", upgrade.getHeaders(),
+                                          upgrade.getCookies(), upgrade.getParameters());
+            }
+
+            connection.serve(upgrade, settings);
+        }
 
         /**
-         * The version of HTTP.
+         * Decodes the settings sent in the {@code HTTP2-Settings} header of an upgrade request.
+         *
+         * @param header the value of the header, may be {@code null}
+         * @return the payload of the settings, or {@code null} if the header is missing or invalid
          */
-        private String version;
+        private byte[] decodeHttp2Settings(String header) {
+            if (header == null) {
+                return null;
+            }
+
+            try {
+                byte[] settings = Base64.getUrlDecoder().decode(header.strip());
+
+                return settings.length % 6 == 0 ? settings : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
 
         /**
-         * The method of the request.
+         * Answers a single parsed request. The returned stage is already complete, unless the request is answered
+         * by an asynchronous worker which has not finished yet.
+         *
+         * @param request the request to answer
+         * @return a stage which completes with whether the connection can be kept alive for the next request, once
+         *         the response has been finished
          */
-        private String method;
+        private CompletionStage<Boolean> serve(HttpRequest request) {
+            long start = System.nanoTime();
+
+            reset();
+            remainingRequests--;
+
+            try {
+                unsafelyRun(request);
+            } catch (Exception e) {
+                failRequest(start);
+                return CompletableFuture.completedFuture(false);
+            }
+
+            if (pending == null) {
+                return CompletableFuture.completedFuture(completeRequest(start));
+            }
+
+            CompletionStage<Boolean> served = pending.handle((result, exception) -> {
+                if (exception != null) {
+                    exception.printStackTrace();
+                    failRequest(start);
+                    return false;
+                }
+
+                try {
+                    finishResponse();
+                } catch (IOException e) {
+                    keepAliveRequested = false;
+                }
+
+                return completeRequest(start);
+            });
+
+            if (dispatched != null) {
+                dispatched.complete(null);
+            }
+
+            return served;
+        }
 
         /**
-         * The host the request was made to.
+         * Records the metrics of the answered request.
+         *
+         * @param start the time at which answering the request started, in nanoseconds
+         * @return whether the connection can be kept alive for the next request
          */
-        private String host;
+        private boolean completeRequest(long start) {
+            int statusCode = context == null ? 500 : context.getStatusCode();
+            long nanos = System.nanoTime() - start;
+
+            metrics.recordRequest(route == null ? "other" : route, statusCode, nanos);
+
+            if (accessLog != null) {
+                accessLog.log(method, request == null ? null : request.getPath(), statusCode,
+                              bytesSent - requestStartBytes, nanos, SID);
+            }
+
+            return keepAliveRequested && context != null && context.isKeepAlive();
+        }
 
         /**
-         * The GET parameters.
+         * Answers the request which has failed with an error, if the response has not been started yet, and records
+         * its metrics. The connection is not kept alive after it.
+         *
+         * @param start the time at which answering the request started, in nanoseconds
          */
-        private Map<String, String> params = new HashMap<>();
+        private void failRequest(long start) {
+            try {
+                keepAliveRequested = false;
+                returnError(500, "Internal server error.");
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+
+            completeRequest(start);
+        }
 
         /**
-         * The temporary parameters.
+         * Returns how long the next read of the socket may wait in milliseconds. The connection may be idle for the
+         * keep alive timeout before the next request starts, and for the idle timeout while its header is being read,
+         * which has to be complete within the header timeout.
+         *
+         * @return how long the next read of the socket may wait in milliseconds
+         *
+         * @throws SocketTimeoutException if the header timeout has already run out
          */
-        private Map<String, String> tempParams = new HashMap<>();
+        private int readTimeout() throws SocketTimeoutException {
+            if (headerStart == 0) {
+                if (!parser.hasBufferedBytes()) { // Waiting for the next request, or for HTTP/2 frames
+                    return keepAliveTimeout * 1000; // Seconds -> milliseconds
+                }
+
+                headerStart = System.nanoTime();
+            }
+
+            long remaining = headerTimeout * 1000L - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - headerStart);
+
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Request header has not been read in time.");
+            }
+
+            return (int) Math.min(remaining, idleTimeout * 1000L);
+        }
 
         /**
-         * The persistent parameters.
+         * Handles a read of the socket which has timed out. A request header which has not been read within the
+         * header timeout is answered with an error, otherwise the connection is closed.
+         *
+         * @return {@code false} as the connection cannot be kept alive
          */
-        private Map<String, String> permPrams = new HashMap<>();
+        private boolean timedOut() {
+            if (headerStart == 0) {
+                metrics.connectionRejected(Rejection.KEEP_ALIVE_TIMEOUT);
+                return false;
+            }
+
+            if (System.nanoTime() - headerStart < TimeUnit.SECONDS.toNanos(headerTimeout)) {
+                metrics.connectionRejected(Rejection.IDLE_TIMEOUT);
+                return false;
+            }
+
+            metrics.connectionRejected(Rejection.HEADER_TIMEOUT);
+            return reject(new HttpRequestParserException(408, "Request Timeout"));
+        }
 
         /**
-         * The output cookies.
+         * Answers a request which could not be parsed with an error and closes the connection.
+         *
+         * @param exception the exception thrown while parsing the request
+         * @return {@code false} as the connection cannot be kept alive
          */
-        private List<RequestContext.RCCookie> outputCookies = new ArrayList<>();
+        private boolean reject(HttpRequestParserException exception) {
+            long start = System.nanoTime();
+
+            reset();
+            remainingRequests = 0;
+
+            try {
+                returnError(exception.getStatusCode(), exception.getMessage());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+
+            long nanos = System.nanoTime() - start;
+
+            metrics.recordRequest("invalid", exception.getStatusCode(), nanos);
+
+            if (accessLog != null) {
+                accessLog.log(null, null, exception.getStatusCode(), bytesSent - requestStartBytes, nanos, null);
+            }
+
+            return false;
+        }
 
         /**
-         * The session ID.
+         * Resets the state of the previous request, so that the next request on the same connection starts with a
+         * new context and new parameter maps.
          */
-        private String SID;
+        private void reset() {
+            version = null;
+            method = null;
+            host = null;
+            params = new HashMap<>();
+            tempParams = new HashMap<>();
+            permPrams = new HashMap<>();
+            outputCookies = new ArrayList<>();
+            SID = null;
+            context = null;
+            acceptEncoding = null;
+            request = null;
+            route = null;
+            pending = null;
+            dispatched = null;
+            keepAliveRequested = false;
+            requestStartBytes = bytesSent;
+        }
 
         /**
-         * The context of the request.
+         * Returns the context of the current request, creating it if necessary.
+         *
+         * @return the context of the current request
          */
-        private RequestContext context;
+        private RequestContext getContext() {
+            if (context == null) {
+                context = new RequestContext(ostream, params, permPrams, outputCookies, tempParams, this, SID);
+                context.setKeepAlive(keepAliveRequested && remainingRequests > 0);
+                context.setChunkingAllowed("HTTP/1.1".equalsIgnoreCase(version));
+                context.setBuffering(true);
+            }
+
+            return context;
+        }
 
         /**
-         * Creates a new {@link ClientWorker} with the given argument.
+         * Flushes the response of the current request. Flushing is recorded as a {@link RequestEvents.ResponseFlush}
+         * event.
          *
-         * @param csocket the socket of the request
+         * @throws IOException if an error occurs while flushing the response
+         */
+        private void finishResponse() throws IOException {
+            RequestEvents.ResponseFlush event = new RequestEvents.ResponseFlush();
+
+            event.begin();
+
+            if (context != null) {
+                context.finish();
+            }
+
+            ostream.flush();
+
+            if (event.shouldCommit()) {
+                event.path = request == null ? null : request.getPath();
+                event.status = context == null ? 0 : context.getStatusCode();
+                event.bytes = bytesSent - requestStartBytes;
+                event.commit();
+            }
+        }
+
+        /**
+         * Returns the context of the current request, with compression enabled if the client accepts it. Used for
+         * dynamically generated responses, which are compressed as they are written.
          *
-         * @throws NullPointerException if {@code csocket} is {@code null}
+         * @return the context of the current request
          */
-        public ClientWorker(Socket csocket) {
-            super();
-            this.csocket = Objects.requireNonNull(csocket, "Socket cannot be null.");
+        private RequestContext getCompressedContext() {
+            boolean firstUse = context == null;
+            RequestContext context = getContext();
+
+            // A worker may dispatch to a script using the same context
+            if (firstUse) {
+                if (acceptsEncoding(acceptEncoding, "gzip")) {
+                    context.setCompression("gzip", compressibleTypes);
+                }
+                else if (acceptsEncoding(acceptEncoding, "deflate")) {
+                    context.setCompression("deflate", compressibleTypes);
+                }
+            }
+
+            return context;
         }
 
-        @Override
-        public void run() {
+        /**
+         * Respond to a request made to the server.
+         *
+         * @param request the request to respond to
+         *
+         * @throws Exception if an error occurs while responding to the request
+         */
+        private void unsafelyRun(HttpRequest request) throws Exception {
+            this.request = request;
+            method = request.getMethod();
+            version = request.getVersion();
+
+            if (!method.equalsIgnoreCase("GET") ||
+                !(version.equalsIgnoreCase("HTTP/1.0") || version.equalsIgnoreCase("HTTP/1.1"))) {
+                returnError(400, "Invalid header");
+                return;
+            }
+
+            String connectionValue = request.getHeader("Connection");
+
+            if (connectionValue == null) {
+                connectionValue = "";
+            }
+
+            // HTTP/1.1 connections are persistent by default, HTTP/1.0 connections have to ask for it
+            if (version.equalsIgnoreCase("HTTP/1.1")) {
+                keepAliveRequested = !connectionValue.equalsIgnoreCase("close");
+            }
+            else {
+                keepAliveRequested = connectionValue.equalsIgnoreCase("keep-alive");
+            }
+
+            host = request.getHeader("Host");
+
+            if (host != null) {
+                int colon = host.lastIndexOf(':');
+
+                if (colon != -1 && host.indexOf(']', colon) == -1) { // Remove port, but not from an IPv6 address
+                    host = host.substring(0, colon);
+                }
+            }
+
+            params = request.getParameters();
+            acceptEncoding = request.getHeader("Accept-Encoding");
+
+            RequestEvents.SessionCheck sessionEvent = new RequestEvents.SessionCheck();
+
+            sessionEvent.begin();
+            boolean created = checkSession(request.getCookies());
+
+            if (sessionEvent.shouldCommit()) {
+                sessionEvent.path = request.getPath();
+                sessionEvent.created = created;
+                sessionEvent.commit();
+            }
+
+            RequestEvents.Dispatch dispatchEvent = new RequestEvents.Dispatch();
+
+            dispatchEvent.begin();
+            internalDispatchRequest(request.getPath(), true);
+
+            if (dispatchEvent.shouldCommit()) {
+                dispatchEvent.path = request.getPath();
+                dispatchEvent.route = route;
+                dispatchEvent.status = context == null ? 0 : context.getStatusCode();
+                dispatchEvent.bytes = bytesSent - requestStartBytes;
+                dispatchEvent.commit();
+            }
+        }
+
+        /**
+         * Checks the session of the request and either extends it or creates a new one.
+         *
+         * @param cookies the cookies of the request
+         * @return whether a new session has been created
+         */
+        private boolean checkSession(Map<String, String> cookies) {
+            String sidCandidate = null;
+
+            for (var cookie : cookies.entrySet()) {
+                String name = cookie.getKey();
+                String value = cookie.getValue();
+
+                if (name.equalsIgnoreCase("sid")) {
+                    sidCandidate = value;
+                }
+                else {
+                    outputCookies.add(new RequestContext.RCCookie(name, value, null,
+                            host == null ? domainName : host, null));
+                }
+            }
+
+            String sessionHost = host == null ? domainName : host;
+            SessionMapEntry entry = null;
+
+            if (sidCandidate != null) {
+                entry = sessions.get(sidCandidate, sessionHost);
+            }
+
+            boolean created = entry == null;
+
+            if (created) {
+                entry = sessions.create(sessionHost);
+            }
+
+            outputCookies.add(new RequestContext.RCCookie("sid", entry.sid, null, sessionHost, "/", true));
+
+            SID = entry.sid;
+            permPrams = entry.map;
+
+            return created;
+        }
+
+        /**
+         * Returns an error response with the specified parameters.
+         *
+         * @param statusCode the status code of the error
+         * @param statusText the status text of the error
+         *
+         * @throws IOException if an error occurs while respond to the request
+         */
+        private void returnError(int statusCode, String statusText) throws IOException {
+            RequestContext context = getContext();
+
+            context.setStatusCode(statusCode);
+            context.setStatusText(statusText);
+            context.setContentLength(0L);
+
+            context.write("");
+            finishResponse();
+        }
+
+        /**
+         * Dispatch the request internally.
+         *
+         * @param urlPath the path which was requested
+         * @param directCall whether it is a direct call or not
+         *
+         * @throws Exception if an error occurs while dispatching the request
+         */
+        public void internalDispatchRequest(String urlPath, boolean directCall) throws Exception {
+            Router.Match<IWebWorker> match = workers.route(urlPath);
+
+            if (match != null) { // The parameters of the route take precedence over the GET parameters
+                params.putAll(match.getParameters());
+            }
+
+            // Caches and limits are set per route, so all of the paths of a route share them
+            String route = match == null ? urlPath : match.getPattern();
+            ResponseCache cache = directCall ? workers.getCache(route) : null;
+
+            // Static files are sent past the context, so only generated responses can be cached
+            if (cache != null && (match != null || urlPath.startsWith("/ext/") || urlPath.endsWith(".smscr"))) {
+                setRoute(route);
+                dispatchCached(cache, urlPath, match);
+                return;
+            }
+
+            dispatchLimited(urlPath, match, directCall);
+        }
+
+        /**
+         * Dispatch the request to its route, unless too many requests are already being answered by the route.
+         *
+         * @param urlPath the path which was requested
+         * @param match the route of the worker matching the path, {@code null} if there is none
+         * @param directCall whether it is a direct call or not
+         *
+         * @throws Exception if an error occurs while dispatching the request
+         */
+        private void dispatchLimited(String urlPath, Router.Match<IWebWorker> match, boolean directCall)
+                throws Exception {
+            // Requests dispatched internally were already admitted as a part of the request which dispatched them
+            ConcurrencyLimit limit = directCall ? workers.getLimit(match == null ? urlPath : match.getPattern())
+                                                : null;
+
+            if (limit == null) {
+                dispatchRoute(urlPath, match, directCall);
+                return;
+            }
+
+            if (!limit.tryAcquire()) {
+                getContext().setHeader("Retry-After", Integer.toString(retryAfter));
+                returnError(503, "Service Unavailable");
+                return;
+            }
+
             try {
-                unsafelyRun();
+                dispatchRoute(urlPath, match, directCall);
             } catch (Exception e) {
+                limit.release();
+                throw e;
+            }
+
+            // The route is busy until an asynchronous worker has finished its response
+            if (pending == null) {
+                limit.release();
+            }
+            else {
+                pending = pending.whenComplete((result, exception) -> limit.release());
+            }
+        }
+
+        /**
+         * Answers the request with the cached response of its route, or generates the response if it is not cached.
+         *
+         * @param cache the cache of the responses of the route
+         * @param urlPath the path which was requested
+         * @param match the route of the worker matching the path, {@code null} if there is none
+         */
+        private void dispatchCached(ResponseCache cache, String urlPath, Router.Match<IWebWorker> match) {
+            CompletableFuture<Void> dispatched = new CompletableFuture<>();
+
+            // A request which has waited for a response that is not cacheable generates its own in the thread pool,
+            // but only once this thread is done with the request
+            Executor executor = task -> {
+                if (!trySubmit(() -> dispatched.thenRun(task))) {
+                    throw new RejectedExecutionException("Server is overloaded.");
+                }
+            };
+            CompletionStage<ResponseCache.Response> response = cache.get(cache.keyOf(params, permPrams),
+                                                                          () -> generate(urlPath, match), executor);
+
+            this.dispatched = dispatched;
+            pending = response.handle((r, exception) -> {
+                Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+
                 try {
-                    returnError(500, "Internal server error.");
-                } catch (IOException ex) {
-                    ex.printStackTrace();
+                    if (cause == null) {
+                        replay(r);
+                    }
+                    else if (cause instanceof RejectedExecutionException) {
+                        getContext().setHeader("Retry-After", Integer.toString(retryAfter));
+                        returnError(503, "Service Unavailable");
+                    }
+                    else {
+                        throw new CompletionException(cause);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+
+                return null;
+            });
+        }
+
+        /**
+         * Generates the response of the request without sending it, so that it can be cached.
+         *
+         * @param urlPath the path which was requested
+         * @param match the route of the worker matching the path, {@code null} if there is none
+         * @return the generated response
+         */
+        private CompletionStage<ResponseCache.Response> generate(String urlPath, Router.Match<IWebWorker> match) {
+            RequestContext original = context;
+            CompletionStage<?> outer = pending;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            List<RequestContext.RCCookie> cookies = new ArrayList<>();
+            RequestContext capture = new RequestContext(body, params, permPrams, cookies, tempParams, this, SID);
+            CompletionStage<?> generated;
+
+            capture.setCapturing(true);
+            context = capture;
+            pending = null;
+
+            try {
+                dispatchLimited(urlPath, match, true);
+                generated = pending == null ? CompletableFuture.completedFuture(null) : pending;
+            } catch (Exception e) {
+                generated = CompletableFuture.failedFuture(e);
+            } finally {
+                pending = outer;
             }
+
+            // An asynchronous worker keeps writing to the captured context until it completes
+            return generated.thenApply(result -> {
+                try {
+                    capture.finish();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                Map<String, String> headers = Collections.unmodifiableMap(new LinkedHashMap<>(capture.getHeaders()));
+
+                return new ResponseCache.Response(capture.getStatusCode(), capture.getStatusText(),
+                                                  capture.getMimeType(), capture.getEncoding(), headers,
+                                                  List.copyOf(cookies), body.toByteArray());
+            }).whenComplete((response, exception) -> context = original);
+        }
+
+        /**
+         * Sends a generated response as the response of the current request.
+         *
+         * @param response the generated response
+         *
+         * @throws IOException if an error occurs while sending the response
+         */
+        private void replay(ResponseCache.Response response) throws IOException {
+            RequestContext context = getCompressedContext();
+
+            context.setStatusCode(response.getStatusCode());
+            context.setStatusText(response.getStatusText());
+            context.setMimeType(response.getMimeType());
+            context.setEncoding(response.getEncoding());
+            response.getHeaders().forEach(context::setHeader);
+            response.getCookies().forEach(context::addRCCookie);
+            context.setContentLength((long) response.getBody().length);
+
+            context.write(response.getBody());
         }
 
         /**
-         * Respond to a request made to the server.
+         * Dispatch the request to its route.
          *
-         * @throws Exception if an error occurs while responding to the request
+         * @param urlPath the path which was requested
+         * @param match the route of the worker matching the path, {@code null} if there is none
+         * @param directCall whether it is a direct call or not
+         *
+         * @throws Exception if an error occurs while dispatching the request
          */
-        private void unsafelyRun() throws Exception {
-            istream = new PushbackInputStream(csocket.getInputStream());
-            ostream = csocket.getOutputStream();
+        private void dispatchRoute(String urlPath, Router.Match<IWebWorker> match, boolean directCall)
+                throws Exception {
+            if (match != null) {
+                setRoute(match.getPattern());
+                runWorker(match.getValue());
+                return;
+            }
+            else if (urlPath.startsWith("/ext/")) {
+                // /ext/
+                // 01234
+                setRoute("/ext/*");
+                executeWorker(urlPath.substring(5));
+                return;
+            }
+            else if (urlPath.startsWith("/private") && directCall) {
+                returnError(404, "File not found.");
+                return;
+            }
 
-            List<String> request = readRequest();
+            Path requestedFilePath = documentRoot.resolve(Paths.get(urlPath.substring(1))).normalize();
 
-            if (request.size() < 1) {
-                returnError(400, "Invalid header");
+            if (!requestedFilePath.startsWith(documentRoot)) {
+                returnError(403, "Forbidden");
                 return;
             }
 
-            String firstLine = request.get(0);
+            boolean script = urlPath.toLowerCase().endsWith(".smscr");
+            setRoute(script ? "*.smscr" : "static");
+            String mime = getMimeType(urlPath);
+            boolean compressible = precompressedFiles != null && compressibleTypes.contains(mime.toLowerCase());
+            boolean gzipAccepted = compressible && acceptsEncoding(acceptEncoding, "gzip");
 
-            String[] parts = firstLine.split("\\s+");
+            if (staticFiles != null && !script) {
+                StaticFileCache.Entry cached = staticFiles.get(requestedFilePath, gzipAccepted);
 
-            method = parts[0];
-            String requestedPath = parts[1];
-            version = parts[2];
+                if (cached != null) { // Served without touching the file system
+                    RequestContext context = getContext();
 
-            if (!method.equalsIgnoreCase("GET") ||
-                !(version.equalsIgnoreCase("HTTP/1.0") || version.equalsIgnoreCase("HTTP/1.1"))) {
-                returnError(400, "Invalid header");
+                    // Its headers have been formatted once it was cached
+                    context.setMimeType(cached.getMime());
+                    context.setHeaderLines(cached.getHeaderLines(), cached.isEncoded());
+
+                    if (!isAnsweredNotModified(cached.getETag(), cached.getMetadata())) {
+                        ByteBuffer contents = cached.getBody();
+
+                        sendStaticFile(cached.getMime(), cached.getMetadata(), cached.getETag(), contents.remaining(),
+                                       (position, count) -> sendRegion(contents, position, count));
+                    }
+
+                    return;
+                }
+            }
+
+            if (!Files.isReadable(requestedFilePath)) {
+                returnError(404, "File not found");
                 return;
             }
 
-            Optional<String> hostLine = request.stream().filter(s -> s.startsWith("Host:")).findFirst();
+            if (script) {
+                handleSmartScript(requestedFilePath);
+                return;
+            }
 
-            if (hostLine.isPresent()) {
-                host = hostLine.get()
-                        .substring(5)                                 // Remove "Host:"
-                        //         01234
-                        .strip()                                      // Remove leading and trailing spaces
-                        .replaceFirst(":\\d+", ""); // Remove port
+            FileMetadataCache.FileMetadata metadata = fileMetadata.get(requestedFilePath);
+            String eTag = metadata.getETag();
+            Map<String, String> headers = new LinkedHashMap<>();
+            boolean gzip = gzipAccepted && metadata.getSize() >= compressionMinSize;
 
+            if (compressible) {
+                headers.put("Vary", "Accept-Encoding");
             }
 
-            String path;
-            String paramString = "";
+            if (gzip) { // The compressed variant is a different representation, so it needs a different tag
+                eTag = eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+                headers.put("Content-Encoding", "gzip");
+            }
 
-            String[] partsOfPath = requestedPath.split("\\?");
+            if (isAnsweredNotModified(mime, metadata, eTag, headers)) {
+                return;
+            }
 
-            path = partsOfPath[0];
+            // The compressed variant is served as it is, without compressing the file again
+            Path body = gzip ? precompressedFiles.get(requestedFilePath) : requestedFilePath;
+            StaticFileCache.Entry cached = null;
 
-            if (partsOfPath.length > 1) {
-                paramString = partsOfPath[1];
+            if (staticFiles != null) {
+                cached = staticFiles.put(requestedFilePath, gzipAccepted, body, mime, metadata, eTag, headers);
             }
 
-            checkSession(request);
+            if (cached != null) {
+                ByteBuffer contents = cached.getBody();
 
-            parseParameters(paramString);
-
-            internalDispatchRequest(path, true);
+                sendStaticFile(mime, metadata, eTag, contents.remaining(),
+                               (position, count) -> sendRegion(contents, position, count));
+            }
+            else {
+                sendStaticFile(mime, metadata, eTag, Files.size(body),
+                               (position, count) -> sendRegion(body, position, count));
+            }
         }
 
         /**
-         * Checks the session of the request and either extends it or creates a new one.
+         * Sets the route of the current request, unless the request has already been routed and is now being
+         * dispatched internally.
          *
-         * @param request the header lines of the request
+         * @param route the route of the request
          */
-        private void checkSession(List<String> request) {
-            List<String> cookies = request.stream()
-                                          .filter(l -> l.startsWith("Cookie: "))
-                                          .collect(Collectors.toList());
-
-            String sidCandidate = null;
-
-            for (String cookieLine : cookies) {
-                String values = cookieLine.replaceAll("Cookie:\\s?", "");
-                String[] nameAndValues = values.split(";");
-
-                for (String nameAndValue : nameAndValues) {
-                    String[] parts = nameAndValue.split("=");
-
-                    String name = parts[0];
-                    String value = parts[1].substring(1, parts[1].length() - 1);
-
-                    if (name.equalsIgnoreCase("sid")) {
-                        sidCandidate = value;
-                    }
-                    else {
-                        outputCookies.add(new RequestContext.RCCookie(name, value, null,
-                                host == null ? domainName : host, null));
-                    }
-                }
+        private void setRoute(String route) {
+            if (this.route == null) {
+                this.route = route;
             }
+        }
 
-            synchronized (SmartHttpServer.this) {
-                if (sidCandidate != null) {
-                    SessionMapEntry entry = sessions.get(sidCandidate);
-
-                    if (entry == null || !entry.host.equals(host)) {
-                        sidCandidate = null;
-                    }
-                    else if (entry.validUntil < System.currentTimeMillis()) {
-                        sessions.remove(sidCandidate);
-                    }
-                    else {
-                        entry.validUntil = System.currentTimeMillis() + sessionTimeout * 1000; // Seconds -> milliseconds
-                    }
-                }
+        /**
+         * Sets the headers of a static file and answers the request with {@code 304 Not Modified} if the client
+         * already has the current version of the file.
+         *
+         * @param mime the mime type of the file
+         * @param metadata the metadata of the file
+         * @param eTag the entity tag of the representation of the file which would be sent
+         * @param headers the headers which are sent with the representation, besides the usual ones
+         * @return whether the request has been answered
+         *
+         * @throws IOException if an error occurs while responding to the request
+         */
+        private boolean isAnsweredNotModified(String mime, FileMetadataCache.FileMetadata metadata, String eTag,
+                                              Map<String, String> headers) throws IOException {
+            RequestContext context = getContext();
 
-                if (sidCandidate == null) {
-                    sidCandidate = generateSessionID();
+            headers.forEach(context::setHeader);
+            context.setHeader("ETag", eTag);
+            context.setHeader("Last-Modified", metadata.getLastModifiedHeader());
+            context.setMimeType(mime);
 
-                    SessionMapEntry entry = new SessionMapEntry(sidCandidate,
-                            host == null ? domainName : host, System.currentTimeMillis() + sessionTimeout * 1000);
-                                                                   // Seconds -> milliseconds
+            return isAnsweredNotModified(eTag, metadata);
+        }
 
-                    sessions.put(sidCandidate, entry);
-                }
+        /**
+         * Answers the request with {@code 304 Not Modified} if the client already has the current version of the
+         * file, once the headers describing the file have been set.
+         *
+         * @param eTag the entity tag of the representation of the file which would be sent
+         * @param metadata the metadata of the file
+         * @return whether the request has been answered
+         *
+         * @throws IOException if an error occurs while answering the request
+         */
+        private boolean isAnsweredNotModified(String eTag, FileMetadataCache.FileMetadata metadata)
+                throws IOException {
+            if (!isNotModified(eTag, metadata)) {
+                return false;
+            }
 
-                outputCookies.add(new RequestContext.RCCookie("sid", sidCandidate, null,
-                        host == null ? domainName : host, "/", true));
+            RequestContext context = getContext();
 
-                SessionMapEntry entry = sessions.get(sidCandidate);
+            context.setStatusCode(304);
+            context.setStatusText("Not Modified");
+            context.writeHeader();
+            finishResponse();
 
-                SID = sidCandidate;
-                permPrams = entry.map;
-            }
+            return true;
         }
 
         /**
-         * Generates a session ID made of 20 upper case letters.
+         * Sends the body of a static file, or the ranges of it which were requested.
+         *
+         * @param mime the mime type of the file
+         * @param metadata the metadata of the file
+         * @param eTag the entity tag of the representation of the file which is sent
+         * @param size the size of the body in bytes
+         * @param body sends the regions of the body
          *
-         * @return the generated session ID
+         * @throws IOException if an error occurs while sending the body
          */
-        private String generateSessionID() {
-            char[] sid = new char[20];
+        private void sendStaticFile(String mime, FileMetadataCache.FileMetadata metadata, String eTag, long size,
+                                    RegionSender body) throws IOException {
+            RequestContext context = getContext();
+            String range = request.getHeader("Range");
+            List<ByteRange> ranges = null;
 
-            synchronized (SmartHttpServer.this) {
-                for (int index = 0; index < sid.length; index++) {
-                    sid[index] = (char) ('A' + (abs(sessionRandom.nextInt()) % 26));
-                }
+            context.setHeader("Accept-Ranges", "bytes");
+
+            if (range != null && request.getMethod().equals("GET") && isRangeCurrent(eTag, metadata)) {
+                ranges = ByteRange.parse(range, size);
+            }
+
+            if (ranges == null) {
+                context.setContentLength(size);
+                body.send(0, size);
+            }
+            else if (ranges.isEmpty()) {
+                context.setHeader("Content-Range", "bytes */" + size);
+                returnError(416, "Range Not Satisfiable");
+                return;
+            }
+            else if (ranges.size() == 1) {
+                ByteRange only = ranges.get(0);
+
+                context.setStatusCode(206);
+                context.setStatusText("Partial Content");
+                context.setHeader("Content-Range", only.toContentRange(size));
+                context.setContentLength(only.getLength());
+                body.send(only.getStart(), only.getLength());
+            }
+            else {
+                sendRanges(body, mime, size, ranges);
             }
 
-            return new String(sid);
+            finishResponse();
         }
 
         /**
-         * Returns an error response with the specified parameters.
-         *
-         * @param statusCode the status code of the error
-         * @param statusText the status text of the error
+         * Returns whether the ranges of the request may be served, according to the {@code If-Range} header of the
+         * request. Ranges of a file which has changed since the client has seen it would not fit together, so the
+         * whole file is sent instead.
          *
-         * @throws IOException if an error occurs while respond to the request
+         * @param eTag the entity tag of the representation of the file which would be sent
+         * @param metadata the metadata of the file
+         * @return whether the ranges of the request may be served
          */
-        private void returnError(int statusCode, String statusText) throws IOException {
-            if (context == null) {
-                context = new RequestContext(ostream, null, null, null,
-                                              null, this,  SID);
+        private boolean isRangeCurrent(String eTag, FileMetadataCache.FileMetadata metadata) {
+            String ifRange = request.getHeader("If-Range");
+
+            if (ifRange == null) {
+                return true;
             }
 
-            context.setStatusCode(statusCode);
-            context.setStatusText(statusText);
+            ifRange = ifRange.strip();
 
-            context.write("");
-            ostream.flush();
-            csocket.close();
+            // Only strong comparison is allowed for entity tags, and dates have to match exactly
+            return ifRange.startsWith("\"") ? ifRange.equals(eTag) : ifRange.equals(metadata.getLastModifiedHeader());
         }
 
         /**
-         * Parses parameters from the parameter string.
+         * Sends multiple ranges of the file as a {@code multipart/byteranges} response.
+         *
+         * @param body sends the regions of the body of the file
+         * @param mime the mime type of the file
+         * @param size the size of the file in bytes
+         * @param ranges the ranges to send
          *
-         * @param paramString the string to parse parameters from
+         * @throws IOException if an error occurs while sending the ranges
          */
-        private void parseParameters(String paramString) {
-            if (paramString.isBlank()) {
-                return;
+        private void sendRanges(RegionSender body, String mime, long size, List<ByteRange> ranges)
+                throws IOException {
+            RequestContext context = getContext();
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            String[] partHeaders = new String[ranges.size()];
+            String closing = "\r\n--" + boundary + "--\r\n";
+            long length = closing.length();
+
+            // The length is known in advance, so the connection can be kept alive
+            for (int i = 0; i < partHeaders.length; i++) {
+                ByteRange range = ranges.get(i);
+
+                partHeaders[i] = "\r\n--" + boundary + "\r\n"
+                                 + "Content-Type: " + mime + "\r\n"
+                                 + "Content-Range: " + range.toContentRange(size) + "\r\n\r\n";
+                length += partHeaders[i].length() + range.getLength();
             }
 
-            String[] splitParams = paramString.split("&");
+            context.setStatusCode(206);
+            context.setStatusText("Partial Content");
+            context.setMimeType("multipart/byteranges; boundary=" + boundary);
+            context.setContentLength(length);
 
-            for (String param : splitParams) {
-                String[] splitParam = param.split("=");
+            for (int i = 0; i < partHeaders.length; i++) {
+                ByteRange range = ranges.get(i);
 
-                if (splitParam.length == 2) {
-                    params.put(splitParam[0], splitParam[1]);
-                }
-                else if (splitParam.length == 1) { // If the name was given without the value
-                    params.put(splitParam[0], "");
-                }
+                context.write(partHeaders[i].getBytes(StandardCharsets.ISO_8859_1));
+                body.send(range.getStart(), range.getLength());
             }
+
+            context.write(closing.getBytes(StandardCharsets.ISO_8859_1));
         }
 
         /**
-         * Reads the header lines from the request into a list.
+         * Sends a region of the file as a part of the body of the response. Large regions are sent directly to the
+         * connection if it supports it, while smaller ones are read through a file channel at their position, so the
+         * rest of the file is never read.
          *
-         * @return the list of the header lines
+         * @param file the path to the file
+         * @param position the position of the first byte of the region
+         * @param count the number of bytes in the region
          *
-         * @throws IOException if an error occurs while reading the header lines
+         * @throws IOException if an error occurs while sending the region
          */
-        private List<String> readRequest() throws IOException {
-            String request = getRequestHeader();
-                                   // Handle multiline headers by removing the new line character
-            String[] lines = request.replaceAll("\n(\t| )", "$1")
-                                    .split("\n");
+        private void sendRegion(Path file, long position, long count) throws IOException {
+            RequestContext context = getContext();
 
-            return List.of(lines);
-        }
+            if (partSender != null && count >= zeroCopyThreshold) {
+                context.writeHeader();
+                ostream.flush();
 
-        /**
-         * Extracts the header from the request.
-         *
-         * @return the header extracted from the request
-         * @throws IOException if an error occurs while extracting the header
-         */
-        private String getRequestHeader() throws IOException {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                partSender.send(new ResponsePart.FilePart(file, position, count));
+                bytesSent += count;
+                return;
+            }
 
-            // End of request is \r\n\r\n
-            int endOfRequest = ('\r' << 24) | ('\n' << 16) | ('\r' << 8) | ('\n' << 0);
-            int lastFourBytes = 0;
+            context.writeHeader();
 
-            while (true) {
-                int b = istream.read();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 8192));
 
-                // If the stream ends before the requests are ended, return null
-                if (b == -1) {
-                    return null;
-                }
+                while (count > 0) {
+                    buffer.clear().limit((int) Math.min(count, buffer.capacity()));
 
-                // Remove \r characters from the output, so only \n is left
-                if (b != '\r') {
-                    bos.write(b);
-                }
+                    int read = channel.read(buffer, position);
 
-                // Remove least recent byte by shifting it out and add the most recent byte
-                lastFourBytes = (lastFourBytes << 8) | b;
+                    if (read < 0) {
+                        throw new IOException("'" + file + "' has been truncated while being sent.");
+                    }
 
-                if (lastFourBytes == endOfRequest) {
-                    break;
+                    context.write(buffer.array(), 0, read);
+                    position += read;
+                    count -= read;
                 }
             }
-
-            return new String(bos.toByteArray(), StandardCharsets.US_ASCII);
         }
 
         /**
-         * Dispatch the request internally.
+         * Sends a region of cached contents as a part of the body of the response. Large regions are sent directly
+         * to the connection if it supports it, while smaller ones are copied into the response.
          *
-         * @param urlPath the path which was requested
-         * @param directCall whether it is a direct call or not
+         * @param contents the cached contents, positioned at their start
+         * @param position the position of the first byte of the region
+         * @param count the number of bytes in the region
          *
-         * @throws Exception if an error occurs while dispatching the request
+         * @throws IOException if an error occurs while sending the region
          */
-        public void internalDispatchRequest(String urlPath, boolean directCall) throws Exception {
-            if (workersMap.containsKey(urlPath)) {
-                if (context == null) {
-                    context = new RequestContext(ostream, params, permPrams, outputCookies, tempParams, this, SID);
-                }
+        private void sendRegion(ByteBuffer contents, long position, long count) throws IOException {
+            RequestContext context = getContext();
+            ByteBuffer region = contents.duplicate();
 
-                workersMap.get(urlPath).processRequest(context);
+            region.limit((int) (position + count)).position((int) position);
+            context.writeHeader();
 
+            if (partSender != null && count >= zeroCopyThreshold) {
                 ostream.flush();
-                csocket.close();
-                return;
-            }
-            else if (urlPath.startsWith("/ext/")) {
-                // /ext/
-                // 01234
-                executeWorker(urlPath.substring(5));
-                return;
-            }
-            else if (urlPath.startsWith("/private") && directCall) {
-                returnError(404, "File not found.");
-                return;
-            }
 
-            Path requestedFilePath = documentRoot.resolve(Paths.get(urlPath.substring(1)));
-
-            if (!requestedFilePath.startsWith(documentRoot)) {
-                returnError(403, "Forbidden");
+                partSender.send(new ResponsePart.BufferPart(region.slice()));
+                bytesSent += count;
                 return;
             }
 
-            String mime = null;
+            byte[] chunk = new byte[(int) Math.min(count, 8192)];
 
-            if (!Files.isReadable(requestedFilePath)) {
-                returnError(404, "File not found");
-                return;
+            while (region.hasRemaining()) {
+                int length = Math.min(chunk.length, region.remaining());
+
+                region.get(chunk, 0, length);
+                context.write(chunk, 0, length);
             }
-            else {
-                int index = urlPath.lastIndexOf('.');
+        }
+
+        /**
+         * Returns whether the client already has the current version of the file, according to the
+         * {@code If-None-Match} and {@code If-Modified-Since} headers of the request.
+         *
+         * @param eTag the entity tag of the representation of the file which would be sent
+         * @param metadata the metadata of the file
+         * @return whether the client already has the current version of the file
+         */
+        private boolean isNotModified(String eTag, FileMetadataCache.FileMetadata metadata) {
+            String ifNoneMatch = request.getHeader("If-None-Match");
 
-                if (index != -1) {
-                    String extension = urlPath.substring(index + 1);
+            // If-Modified-Since is ignored when If-None-Match is sent
+            if (ifNoneMatch != null) {
+                for (String candidate : ifNoneMatch.split(",")) {
+                    candidate = candidate.strip();
 
-                    if ("smscr".equalsIgnoreCase(extension)) {
-                        handleSmartScript(requestedFilePath);
-                        return;
+                    if (candidate.startsWith("W/")) { // Weak comparison
+                        candidate = candidate.substring(2);
                     }
 
-                    mime = mimeTypes.get(extension);
+                    if (candidate.equals("*") || candidate.equals(eTag)) {
+                        return true;
+                    }
                 }
-            }
 
-            if (mime == null) {
-                mime = "application/octet-stream";
+                return false;
             }
 
-            if (context == null) {
-                context = new RequestContext(ostream, params, permPrams, outputCookies, null, this, SID);
+            String ifModifiedSince = request.getHeader("If-Modified-Since");
+
+            if (ifModifiedSince == null) {
+                return false;
             }
 
-            context.setMimeType(mime);
-            context.setContentLength(Files.size(requestedFilePath));
-            context.write(Files.readAllBytes(requestedFilePath));
-            ostream.flush();
-            csocket.close();
+            try {
+                long since = DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifModifiedSince, Instant::from).getEpochSecond();
+
+                // HTTP dates only have a precision of seconds
+                return metadata.getLastModified().to(TimeUnit.SECONDS) <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
         }
 
         /**
          * Executes the specified web worker.
          *
-         * @param className the fully qualified class name of the web worker to execute
+         * @param className the class name of the web worker to execute, relative to the workers package
          *
          * @throws IOException if an error occurs while executing the web worker
          */
         private void executeWorker(String className) throws IOException {
-            try {
-                String fqcn = "hr.fer.zemris.java.webserver.workers." + className;
-                Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-                Object newObject = referenceToClass.newInstance();
-                IWebWorker iww = (IWebWorker) newObject;
+            IWebWorker iww = workers.getExtWorker(className);
 
-                if (context == null) {
-                    context = new RequestContext(ostream, params, permPrams, outputCookies, null, this, SID);
-                }
-
-                iww.processRequest(context);
-
-                ostream.flush();
-                csocket.close();
-            } catch (IllegalAccessException | InstantiationException | ClassNotFoundException e) {
+            if (iww == null) {
                 returnError(404, "Worker not found");
+                return;
+            }
+
+            try {
+                runWorker(iww);
             } catch (Exception e) {
                 returnError(404, "Worker not found");
                 e.printStackTrace();
             }
         }
 
+        /**
+         * Runs the web worker on the current request. The response of an asynchronous worker is finished once it
+         * completes, the response of any other worker right away. The execution is recorded as a
+         * {@link RequestEvents.WorkerExecution} event.
+         *
+         * @param worker the web worker to run
+         *
+         * @throws Exception if an error occurs while running the web worker
+         */
+        private void runWorker(IWebWorker worker) throws Exception {
+            RequestEvents.WorkerExecution event = new RequestEvents.WorkerExecution();
+            long startBytes = bytesSent;
+
+            event.begin();
+
+            if (worker instanceof IAsyncWebWorker && pending == null) {
+                pending = ((IAsyncWebWorker) worker).processRequestAsync(getCompressedContext());
+
+                if (pending == null) {
+                    finishResponse();
+                    commitWorkerEvent(event, worker, false, startBytes);
+                }
+                else {
+                    pending = pending.whenComplete((result, exception) -> commitWorkerEvent(event, worker, true,
+                                                                                            startBytes));
+                }
+                return;
+            }
+
+            worker.processRequest(getCompressedContext());
+
+            finishResponse();
+            commitWorkerEvent(event, worker, false, startBytes);
+        }
+
+        /**
+         * Commits the event of a worker which has finished its response, if it is being recorded.
+         *
+         * @param event the event of the worker
+         * @param worker the worker
+         * @param asynchronous whether the worker has finished asynchronously
+         * @param startBytes the number of bytes written to the connection before the worker was run
+         */
+        private void commitWorkerEvent(RequestEvents.WorkerExecution event, IWebWorker worker, boolean asynchronous,
+                                       long startBytes) {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.path = request == null ? null : request.getPath();
+                event.worker = worker.getClass().getName();
+                event.asynchronous = asynchronous;
+                event.status = context == null ? 0 : context.getStatusCode();
+                event.bytes = bytesSent - startBytes;
+                event.commit();
+            }
+        }
+
         /**
          * Executes a smart script file.
          *
@@ -691,19 +2917,12 @@ public class SmartHttpServer {
          * @throws IOException if an error occurs while executing the smart script file
          */
         private void handleSmartScript(Path file) throws IOException {
-            String contents = Files.readString(file);
-            SmartScriptParser parser = new SmartScriptParser(contents);
-
-            if (context == null) {
-                context = new RequestContext(ostream, params, permPrams, outputCookies, tempParams, this, SID);
-            }
-
-            SmartScriptEngine engine = new SmartScriptEngine(parser.getDocumentNode(), context);
+            SmartScriptEngine engine = new SmartScriptEngine(scriptCache.getDocumentNode(file), getCompressedContext(),
+                                                             file.toString());
 
             engine.execute();
 
-            ostream.flush();
-            csocket.close();
+            finishResponse();
         }
 
         @Override
@@ -713,49 +2932,190 @@ public class SmartHttpServer {
     }
 
     /**
-     * Models a single session map entry.
+     * Sends a part of a response directly to a connection, without copying it onto the heap.
      *
      * @author Marko Lazarić
      */
-    private static class SessionMapEntry {
+    @FunctionalInterface
+    private interface PartSender {
 
         /**
-         * The session ID.
+         * Sends the part after everything written to the connection so far.
+         *
+         * @param part the part to send
+         *
+         * @throws IOException if an error occurs while sending the part
          */
-        private String sid;
+        void send(ResponsePart part) throws IOException;
+    }
+
+    /**
+     * Sends a region of the body of a static file, wherever the body is kept.
+     *
+     * @author Marko Lazarić
+     */
+    @FunctionalInterface
+    private interface RegionSender {
 
         /**
-         * The session host.
+         * Sends the region of the body after everything written to the response so far.
+         *
+         * @param position the position of the first byte of the region
+         * @param count the number of bytes in the region
+         *
+         * @throws IOException if an error occurs while sending the region
          */
-        private String host;
+        void send(long position, long count) throws IOException;
+    }
+
+    /**
+     * Reports the metrics of the server in the Prometheus text format.
+     *
+     * @author Marko Lazarić
+     */
+    private class MetricsWorker implements IWebWorker {
+
+        /**
+         * The quantiles of the latencies which are reported.
+         */
+        private final double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+
+        @Override
+        public void processRequest(RequestContext context) throws Exception {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("# TYPE smarthttp_requests_total counter\n");
+
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                sb.append("smarthttp_requests_total{status=\"").append(statusClass).append("xx\"} ")
+                  .append(metrics.getResponses(statusClass)).append('\n');
+            }
+
+            sb.append("# TYPE smarthttp_request_duration_seconds summary\n");
+
+            for (var entry : metrics.getLatencies().entrySet()) {
+                String route = label(entry.getKey());
+                LatencyHistogram histogram = entry.getValue();
+
+                for (double quantile : quantiles) {
+                    sb.append("smarthttp_request_duration_seconds{").append(route).append(",quantile=\"")
+                      .append(quantile).append("\"} ").append(seconds(histogram.getQuantile(quantile))).append('\n');
+                }
+
+                sb.append("smarthttp_request_duration_seconds_sum{").append(route).append("} ")
+                  .append(seconds(histogram.getSum())).append('\n');
+                sb.append("smarthttp_request_duration_seconds_count{").append(route).append("} ")
+                  .append(histogram.getCount()).append('\n');
+                sb.append("smarthttp_request_duration_seconds_max{").append(route).append("} ")
+                  .append(seconds(histogram.getMax())).append('\n');
+            }
+
+            long queued = getQueueDepth();
+
+            appendGauge(sb, "smarthttp_active_connections", metrics.getActiveConnections());
+            sb.append("# TYPE smarthttp_accepted_connections_total counter\n");
+
+            for (var entry : metrics.getAcceptedConnections().entrySet()) {
+                sb.append("smarthttp_accepted_connections_total{acceptor=\"").append(entry.getKey()).append("\"} ")
+                  .append(entry.getValue()).append('\n');
+            }
+
+            sb.append("# TYPE smarthttp_rejected_connections_total counter\n");
+
+            for (Rejection rejection : Rejection.values()) {
+                sb.append("smarthttp_rejected_connections_total{reason=\"").append(rejection.label()).append("\"} ")
+                  .append(metrics.getRejections(rejection)).append('\n');
+            }
+
+            appendGauge(sb, "smarthttp_pool_threads", workerThreads);
+            appendGauge(sb, "smarthttp_pool_busy", Math.max(0, admission.getInFlight() - queued));
+            appendGauge(sb, "smarthttp_pool_queue_depth", queued);
+            appendCounter(sb, "smarthttp_rejected_requests_total", getRejectedRequests());
+            appendGauge(sb, "smarthttp_sessions", sessions.size());
+            appendCounter(sb, "smarthttp_session_evictions_total", sessions.getEvictions());
+
+            if (accessLog != null) {
+                appendCounter(sb, "smarthttp_access_log_dropped_total", accessLog.getDropped());
+            }
+
+            appendCounter(sb, "smarthttp_bytes_written_total", metrics.getBytesWritten());
+
+            Map<String, ResponseCache> caches = workers.getCaches();
+
+            if (!caches.isEmpty()) {
+                sb.append("# TYPE smarthttp_response_cache_hits_total counter\n");
+
+                for (var entry : caches.entrySet()) {
+                    sb.append("smarthttp_response_cache_hits_total{").append(label(entry.getKey())).append("} ")
+                      .append(entry.getValue().getHits()).append('\n');
+                }
+
+                sb.append("# TYPE smarthttp_response_cache_misses_total counter\n");
+
+                for (var entry : caches.entrySet()) {
+                    sb.append("smarthttp_response_cache_misses_total{").append(label(entry.getKey())).append("} ")
+                      .append(entry.getValue().getMisses()).append('\n');
+                }
+            }
+
+            if (staticFiles != null) {
+                appendCounter(sb, "smarthttp_static_cache_hits_total", staticFiles.getHits());
+                appendCounter(sb, "smarthttp_static_cache_misses_total", staticFiles.getMisses());
+                appendCounter(sb, "smarthttp_static_cache_evictions_total", staticFiles.getEvictions());
+                appendGauge(sb, "smarthttp_static_cache_bytes", staticFiles.getSize());
+                appendGauge(sb, "smarthttp_static_cache_entries", staticFiles.getEntryCount());
+            }
+
+            context.setMimeType("text/plain");
+            context.setHeader("Cache-Control", "no-store");
+            context.write(sb.toString());
+        }
+
+        /**
+         * Returns the route label of a series.
+         *
+         * @param route the route
+         * @return the route label, with the route escaped
+         */
+        private String label(String route) {
+            return "route=\"" + route.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
 
         /**
-         * The expiration time of the session.
+         * Appends a gauge to the report.
+         *
+         * @param sb the report
+         * @param name the name of the gauge
+         * @param value the value of the gauge
          */
-        private long validUntil;
+        private void appendGauge(StringBuilder sb, String name, long value) {
+            sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+        }
 
         /**
-         * The map of persistent parameters.
+         * Appends a counter to the report.
+         *
+         * @param sb the report
+         * @param name the name of the counter
+         * @param value the value of the counter
          */
-        private Map<String, String> map;
+        private void appendCounter(StringBuilder sb, String name, long value) {
+            sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+        }
 
         /**
-         * Creates a new {@link SessionMapEntry} with the given arguments.
+         * Converts microseconds to seconds.
          *
-         * @param sid the session ID
-         * @param host the session host
-         * @param validUntil the expiration time of the session
+         * @param micros the number of microseconds
+         * @return the number of seconds
          */
-        public SessionMapEntry(String sid, String host, long validUntil) {
-            this.sid = sid;
-            this.host = host;
-            this.validUntil = validUntil;
-            this.map = new ConcurrentHashMap<>();
+        private double seconds(long micros) {
+            return micros / 1e6;
         }
     }
 
     /**
-     * Cleaner thread which runs every 5 minutes and deletes expired sessions.
+     * Cleaner thread which runs every second and deletes the sessions which have expired in the meantime.
      *
      * @author Marko Lazarić
      */
@@ -769,16 +3129,9 @@ public class SmartHttpServer {
         public void run() {
             while (true) {
                 try {
-                    synchronized (SmartHttpServer.this) {
-                        // Remove expired sessions
-                        sessions.entrySet()
-                                .stream()
-                                .filter(e -> e.getValue().validUntil < System.currentTimeMillis())
-                                .map(Map.Entry<String, SessionMapEntry>::getKey)
-                                .forEach(sessions::remove);
-                    }
+                    sessions.expire(System.currentTimeMillis());
 
-                    Thread.sleep(5 * 60 * 1000); // Sleep 5 minutes
+                    Thread.sleep(SessionStore.TICK);
                 } catch (InterruptedException ignored) {}
             }
         }
@@ -0,0 +1,170 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A thread-safe cache of parsed Smart Scripts. A cached {@link DocumentNode} is reused for as long as the
+ * modification time of its file does not change. When the cache is full, the least recently used script is evicted.
+ *
+ * The cached trees are shared between all of the {@link hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine}s
+ * executing the script at the same time, so they must never be modified.
+ *
+ * @author Marko Lazarić
+ */
+public class SmartScriptCache {
+
+    /**
+     * The maximum number of cached scripts.
+     */
+    private final int capacity;
+
+    /**
+     * The mapping of absolute script paths to cached scripts, ordered from the least to the most recently used.
+     */
+    private final Map<Path, CachedScript> scripts;
+
+    /**
+     * Creates a new {@link SmartScriptCache} with the given argument.
+     *
+     * @param capacity the maximum number of cached scripts, scripts are parsed on every request if it is not positive
+     */
+    public SmartScriptCache(int capacity) {
+        this.capacity = capacity;
+        this.scripts = new LinkedHashMap<>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CachedScript> eldest) {
+                return size() > SmartScriptCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the parsed script from the file, parsing it only if it is not cached or it has been modified since it
+     * was cached.
+     *
+     * @param file the path to the script
+     * @return the parsed script
+     *
+     * @throws IOException if an error occurs while reading the script
+     * @throws SmartScriptParserException if the script cannot be parsed
+     */
+    public DocumentNode getDocumentNode(Path file) throws IOException {
+        if (capacity <= 0) {
+            return parse(file);
+        }
+
+        Path key = file.toAbsolutePath().normalize();
+        FileTime lastModified = Files.getLastModifiedTime(key);
+        CachedScript cached;
+
+        synchronized (scripts) {
+            cached = scripts.get(key);
+        }
+
+        if (cached != null && cached.lastModified.equals(lastModified)) {
+            return cached.documentNode;
+        }
+
+        // Parse outside of the lock, so other scripts can be served in the meantime
+        DocumentNode documentNode = parse(key);
+
+        synchronized (scripts) {
+            scripts.put(key, new CachedScript(documentNode, lastModified));
+        }
+
+        return documentNode;
+    }
+
+    /**
+     * Parses and caches all of the scripts in the directory and its subdirectories, until the cache is full. Scripts
+     * which cannot be parsed are skipped.
+     *
+     * @param directory the directory whose scripts should be cached
+     *
+     * @throws IOException if an error occurs while walking the directory
+     */
+    public void prewarm(Path directory) throws IOException {
+        if (capacity <= 0) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile)
+                 .filter(f -> f.getFileName().toString().toLowerCase().endsWith(".smscr"))
+                 .limit(capacity)
+                 .forEach(f -> {
+                     try {
+                         getDocumentNode(f);
+                     } catch (IOException | SmartScriptParserException e) {
+                         System.err.println("Could not cache '" + f + "': " + e.getMessage());
+                     }
+                 });
+        }
+    }
+
+    /**
+     * Reads and parses the script from the file. Parsing is recorded as a {@link RequestEvents.ScriptParse} event.
+     *
+     * @param file the path to the script
+     * @return the parsed script
+     *
+     * @throws IOException if an error occurs while reading the script
+     * @throws SmartScriptParserException if the script cannot be parsed
+     */
+    private static DocumentNode parse(Path file) throws IOException {
+        RequestEvents.ScriptParse event = new RequestEvents.ScriptParse();
+
+        event.begin();
+
+        String script = Files.readString(file);
+        DocumentNode documentNode = new SmartScriptParser(script).getDocumentNode();
+
+        if (event.shouldCommit()) {
+            event.script = file.toString();
+            event.length = script.length();
+            event.commit();
+        }
+
+        return documentNode;
+    }
+
+    /**
+     * Models a single cached script.
+     *
+     * @author Marko Lazarić
+     */
+    private static class CachedScript {
+
+        /**
+         * The parsed script.
+         */
+        private final DocumentNode documentNode;
+
+        /**
+         * The modification time of the file when it was parsed.
+         */
+        private final FileTime lastModified;
+
+        /**
+         * Creates a new {@link CachedScript} with the given arguments.
+         *
+         * @param documentNode the parsed script
+         * @param lastModified the modification time of the file when it was parsed
+         */
+        private CachedScript(DocumentNode documentNode, FileTime lastModified) {
+            this.documentNode = documentNode;
+            this.lastModified = lastModified;
+        }
+    }
+}
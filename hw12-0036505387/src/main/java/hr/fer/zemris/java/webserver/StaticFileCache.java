@@ -0,0 +1,497 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * A thread-safe cache of the contents of small, frequently requested static files. The contents are kept in direct
+ * buffers outside of the heap, together with everything needed to answer a request for the file, so a cached file
+ * is served without touching the file system. The headers describing the file are formatted once, when it is
+ * cached.
+ *
+ * Since cached files are not checked on every request, the document root is watched and the entries of files which
+ * are modified or deleted are dropped as soon as the change is noticed. When the total size of the cached contents
+ * exceeds the budget, the least recently used files are evicted.
+ *
+ * @author Marko Lazarić
+ */
+public class StaticFileCache {
+
+    /**
+     * The maximum total size of the cached contents in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * The maximum size of a single cached file in bytes.
+     */
+    private final long maxFileSize;
+
+    /**
+     * The mapping of cached representations to entries, ordered from the least to the most recently used.
+     */
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The total size of the cached contents in bytes.
+     */
+    private long size;
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of requests which could not be answered from the cache.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The number of entries evicted to stay within the budget.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The service which watches the document root for changes.
+     */
+    private final WatchService watchService;
+
+    /**
+     * Creates a new {@link StaticFileCache} with the given arguments and starts watching the document root.
+     *
+     * @param documentRoot the document root of the static files
+     * @param capacity the maximum total size of the cached contents in bytes
+     * @param maxFileSize the maximum size of a single cached file in bytes
+     *
+     * @throws IOException if the document root cannot be watched
+     */
+    public StaticFileCache(Path documentRoot, long capacity, long maxFileSize) throws IOException {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, capacity);
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        register(documentRoot.toAbsolutePath().normalize());
+
+        Thread watcher = new Thread(this::watch, "static-file-watcher");
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns the cached representation of the file, or {@code null} if it is not cached.
+     *
+     * @param file the path to the file
+     * @param gzip whether the client would be sent the compressed variant of the file if one exists
+     * @return the cached representation of the file, or {@code null} if it is not cached
+     */
+    public Entry get(Path file, boolean gzip) {
+        Entry entry;
+
+        synchronized (entries) {
+            entry = entries.get(new Key(file, gzip));
+        }
+
+        if (entry == null) {
+            misses.increment();
+        }
+        else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Reads and caches a representation of the file, if it is small enough. The file has to be cached under the
+     * same arguments it is looked up with, even if the compressed variant turns out not to exist. Nothing is cached
+     * if the file has changed since its metadata was read, as the contents would not match it.
+     *
+     * @param file the path to the file
+     * @param gzip whether the client would be sent the compressed variant of the file if one exists
+     * @param body the path to the contents which are sent, the file itself or its compressed variant
+     * @param mime the mime type of the file
+     * @param metadata the metadata of the file
+     * @param eTag the entity tag of the representation
+     * @param headers the headers which are sent with the representation, besides the usual ones
+     * @return the cached representation of the file, or {@code null} if it is too large to be cached or has changed
+     *
+     * @throws IOException if an error occurs while reading the contents
+     */
+    public Entry put(Path file, boolean gzip, Path body, String mime, FileMetadataCache.FileMetadata metadata,
+                     String eTag, Map<String, String> headers) throws IOException {
+        long length = Files.size(body);
+
+        if (length > maxFileSize) {
+            return null;
+        }
+
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) length);
+
+        try (FileChannel channel = FileChannel.open(body, StandardOpenOption.READ)) {
+            while (contents.hasRemaining() && channel.read(contents) >= 0) {
+                // Read until the buffer is full
+            }
+        }
+
+        if (contents.hasRemaining() || Files.size(body) != length) { // The file was resized in the meantime
+            return null;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+        // The file may have been replaced by one of the same size while it was read, or even before
+        if (attributes.size() != metadata.getSize()
+            || !attributes.lastModifiedTime().equals(metadata.getLastModified())) {
+            return null;
+        }
+
+        Entry entry = new Entry(mime, metadata, eTag, headers, contents.flip().asReadOnlyBuffer());
+
+        synchronized (entries) {
+            Entry previous = entries.put(new Key(file, gzip), entry);
+
+            size += length;
+
+            if (previous != null) {
+                size -= previous.body.capacity();
+            }
+
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (size > capacity && iterator.hasNext()) {
+                size -= iterator.next().body.capacity();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Drops the cached representations of the file, or of all files in the directory.
+     *
+     * @param path the path to the file or directory which has changed
+     */
+    public void invalidate(Path path) {
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> entry = iterator.next();
+
+                if (entry.getKey().file.startsWith(path)) {
+                    size -= entry.getValue().body.capacity();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all cached representations.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return the number of requests answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests which could not be answered from the cache.
+     *
+     * @return the number of requests which could not be answered from the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the budget.
+     *
+     * @return the number of entries evicted to stay within the budget
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the total size of the cached contents in bytes.
+     *
+     * @return the total size of the cached contents in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the number of cached representations.
+     *
+     * @return the number of cached representations
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Registers the directory and all of its subdirectories with the watch service.
+     *
+     * @param directory the directory to register
+     *
+     * @throws IOException if an error occurs while registering the directories
+     */
+    private void register(Path directory) throws IOException {
+        try (Stream<Path> directories = Files.walk(directory)) {
+            for (Path d : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                d.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries of changed files for as long as the watch service is open. Run by the watcher thread.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) { // Some changes were lost, so nothing cached can be trusted
+                    clear();
+                    continue;
+                }
+
+                Path changed = directory.resolve((Path) event.context());
+
+                invalidate(changed);
+
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(changed);
+                    } catch (IOException | UncheckedIOException e) { // Also thrown if it is deleted while walked
+                        System.err.println("Could not watch '" + changed + "': " + e.getMessage());
+                    }
+                }
+            }
+
+            if (!key.reset()) { // The directory is gone
+                invalidate(directory);
+            }
+        }
+    }
+
+    /**
+     * Models a cached representation of a static file.
+     *
+     * @author Marko Lazarić
+     */
+    public static class Entry {
+
+        /**
+         * The mime type of the file.
+         */
+        private final String mime;
+
+        /**
+         * The metadata of the file.
+         */
+        private final FileMetadataCache.FileMetadata metadata;
+
+        /**
+         * The entity tag of the representation.
+         */
+        private final String eTag;
+
+        /**
+         * The header lines describing the representation, in ISO-8859-1.
+         */
+        private final byte[] headerLines;
+
+        /**
+         * Whether the representation has a content coding of its own.
+         */
+        private final boolean encoded;
+
+        /**
+         * The contents of the representation, shared by all requests.
+         */
+        private final ByteBuffer body;
+
+        /**
+         * Creates a new {@link Entry} with the given arguments.
+         *
+         * @param mime the mime type of the file
+         * @param metadata the metadata of the file
+         * @param eTag the entity tag of the representation
+         * @param headers the headers which are sent with the representation, besides the usual ones
+         * @param body the contents of the representation
+         */
+        private Entry(String mime, FileMetadataCache.FileMetadata metadata, String eTag, Map<String, String> headers,
+                      ByteBuffer body) {
+            StringBuilder sb = new StringBuilder();
+
+            headers.forEach((name, value) -> sb.append(name).append(": ").append(value).append("\r\n"));
+            sb.append("ETag: ").append(eTag).append("\r\n");
+            sb.append("Last-Modified: ").append(metadata.getLastModifiedHeader()).append("\r\n");
+
+            this.mime = mime;
+            this.metadata = metadata;
+            this.eTag = eTag;
+            this.headerLines = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+            this.encoded = headers.containsKey("Content-Encoding");
+            this.body = body;
+        }
+
+        /**
+         * Returns the mime type of the file.
+         *
+         * @return the mime type of the file
+         */
+        public String getMime() {
+            return mime;
+        }
+
+        /**
+         * Returns the metadata of the file.
+         *
+         * @return the metadata of the file
+         */
+        public FileMetadataCache.FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * Returns the entity tag of the representation.
+         *
+         * @return the entity tag of the representation
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * Returns the header lines describing the representation, its entity tag, its modification time and the
+         * headers it was cached with, each ending with CRLF.
+         *
+         * @return the header lines describing the representation, which must not be modified
+         */
+        public byte[] getHeaderLines() {
+            return headerLines;
+        }
+
+        /**
+         * Returns whether the representation has a content coding of its own, so it must not be compressed again.
+         *
+         * @return whether the representation has a content coding of its own
+         */
+        public boolean isEncoded() {
+            return encoded;
+        }
+
+        /**
+         * Returns a new view of the contents of the representation, which can be consumed independently of the
+         * other requests.
+         *
+         * @return a new view of the contents of the representation
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+    }
+
+    /**
+     * Models the key of a cached representation.
+     *
+     * @author Marko Lazarić
+     */
+    private static class Key {
+
+        /**
+         * The path to the file.
+         */
+        private final Path file;
+
+        /**
+         * Whether the client would be sent the compressed variant of the file if one exists.
+         */
+        private final boolean gzip;
+
+        /**
+         * Creates a new {@link Key} with the given arguments.
+         *
+         * @param file the path to the file
+         * @param gzip whether the client would be sent the compressed variant of the file if one exists
+         */
+        private Key(Path file, boolean gzip) {
+            this.file = file.toAbsolutePath().normalize();
+            this.gzip = gzip;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return gzip == key.gzip && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, gzip);
+        }
+    }
+}
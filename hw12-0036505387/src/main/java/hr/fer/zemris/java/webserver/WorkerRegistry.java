@@ -0,0 +1,384 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * A thread-safe registry of the web workers of a server. Every worker class is instantiated only once, so looking up
+ * a worker, whether it is mapped to a path or requested by its class name under {@code /ext/}, is a map lookup.
+ *
+ * The registry also holds the limits of the concurrent requests and the response caches of the paths, which are set
+ * in the same configuration. The configuration is watched and reloaded as soon as it changes. Lookups always see
+ * either the old or the new configuration as a whole. If the changed configuration is invalid, the old one stays in use.
+ *
+ * @author Marko Lazarić
+ */
+public class WorkerRegistry {
+
+    /**
+     * The package of the workers which can be requested by their class name.
+     */
+    private static final String EXT_PACKAGE = "hr.fer.zemris.java.webserver.workers.";
+
+    /**
+     * The prefix of the keys which set the maximum number of concurrent requests for a path.
+     */
+    private static final String LIMIT_PREFIX = "limit.";
+
+    /**
+     * The prefix of the keys which set the time to live and the key parameters of the cached responses of a path.
+     */
+    private static final String CACHE_PREFIX = "cache.";
+
+    /**
+     * The path to the worker configuration.
+     */
+    private final Path configFile;
+
+    /**
+     * The workers provided by the server itself, which are used unless the configuration maps their paths to other
+     * workers.
+     */
+    private final Map<String, IWebWorker> builtInWorkers;
+
+    /**
+     * The current configuration.
+     */
+    private volatile Configuration configuration;
+
+    /**
+     * The mapping of fully qualified class names to the instances of the workers.
+     */
+    private final ConcurrentMap<String, IWebWorker> instances = new ConcurrentHashMap<>();
+
+    /**
+     * The number of requests rejected by limits which have been removed from the configuration.
+     */
+    private final LongAdder retiredRejections = new LongAdder();
+
+    /**
+     * The service which watches the configuration for changes.
+     */
+    private final WatchService watchService;
+
+    /**
+     * Creates a new {@link WorkerRegistry} with the given arguments, loads the configuration and starts watching it.
+     *
+     * @param configFile the path to the worker configuration
+     * @param builtInWorkers the mapping of paths to the workers provided by the server itself
+     *
+     * @throws NullPointerException if either argument is {@code null}
+     * @throws RuntimeException if the configuration cannot be loaded or watched
+     */
+    public WorkerRegistry(Path configFile, Map<String, IWebWorker> builtInWorkers) {
+        this.configFile = Objects.requireNonNull(configFile, "Config file cannot be null.").toAbsolutePath()
+                                                                                             .normalize();
+        this.builtInWorkers = Map.copyOf(Objects.requireNonNull(builtInWorkers, "Built-in workers cannot be null."));
+        this.configuration = load(new Configuration(Collections.emptyMap(), Collections.emptyMap(),
+                                                     Collections.emptyMap()));
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            this.configFile.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Thread watcher = new Thread(this::watch, "worker-config-watcher");
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns the route of the worker matching the path. Workers can be mapped to exact, parameterized and prefix
+     * routes, see {@link Router}.
+     *
+     * @param path the requested path
+     * @return the route of the worker matching the path, or {@code null} if there is none
+     */
+    public Router.Match<IWebWorker> route(String path) {
+        return configuration.router.match(path);
+    }
+
+    /**
+     * Returns the worker in the workers package with the given class name.
+     *
+     * @param className the class name of the worker, relative to the workers package
+     * @return the worker with the class name, or {@code null} if there is no such worker
+     */
+    public IWebWorker getExtWorker(String className) {
+        String fqcn = EXT_PACKAGE + className;
+        IWebWorker worker = instances.get(fqcn);
+
+        if (worker != null) {
+            return worker;
+        }
+
+        try {
+            return getInstance(fqcn);
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the limit of the concurrent requests for the path.
+     *
+     * @param path the requested path
+     * @return the limit of the concurrent requests for the path, or {@code null} if the path is not limited
+     */
+    public ConcurrencyLimit getLimit(String path) {
+        return configuration.limits.get(path);
+    }
+
+    /**
+     * Returns the cache of the responses of the path.
+     *
+     * @param path the requested path
+     * @return the cache of the responses of the path, or {@code null} if its responses are not cached
+     */
+    public ResponseCache getCache(String path) {
+        return configuration.caches.get(path);
+    }
+
+    /**
+     * Returns the caches of the responses, by their path, sorted by the path.
+     *
+     * @return the caches of the responses, by their path
+     */
+    public Map<String, ResponseCache> getCaches() {
+        return new TreeMap<>(configuration.caches);
+    }
+
+    /**
+     * Returns the number of requests rejected by the limits of the paths, including the limits which have since been
+     * removed.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejected() {
+        long rejected = retiredRejections.sum();
+
+        for (ConcurrencyLimit limit : configuration.limits.values()) {
+            rejected += limit.getRejected();
+        }
+
+        return rejected;
+    }
+
+    /**
+     * Reloads the configuration. If it is invalid, the current configuration stays in use.
+     */
+    public synchronized void reload() {
+        Configuration previous = configuration;
+
+        try {
+            configuration = load(previous);
+        } catch (RuntimeException e) {
+            System.err.println("Could not reload '" + configFile + "', keeping the previous workers: " + e);
+            return;
+        }
+
+        for (var entry : previous.limits.entrySet()) {
+            if (configuration.limits.get(entry.getKey()) != entry.getValue()) {
+                retiredRejections.add(entry.getValue().getRejected());
+            }
+        }
+    }
+
+    /**
+     * Loads the configuration. Limits and caches which have not changed are kept, so the requests in progress stay
+     * counted and the cached responses stay cached.
+     *
+     * @param previous the current configuration
+     * @return the loaded configuration
+     *
+     * @throws RuntimeException if the configuration cannot be read or a worker cannot be created
+     */
+    private Configuration load(Configuration previous) {
+        Properties properties = new Properties();
+
+        try (InputStream is = Files.newInputStream(configFile)) {
+            properties.load(is);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Map<String, IWebWorker> workers = new HashMap<>(builtInWorkers);
+        Map<String, ConcurrencyLimit> limits = new HashMap<>();
+        Map<String, ResponseCache> caches = new HashMap<>();
+
+        for (var entry : properties.entrySet()) {
+            String path = (String) entry.getKey();
+            String value = ((String) entry.getValue()).strip();
+
+            if (path.startsWith(LIMIT_PREFIX)) {
+                path = path.substring(LIMIT_PREFIX.length());
+
+                int limit = Integer.parseInt(value);
+                ConcurrencyLimit current = previous.limits.get(path);
+
+                limits.put(path, current != null && current.getLimit() == limit ? current
+                                                                                  : new ConcurrencyLimit(limit));
+                continue;
+            }
+
+            if (path.startsWith(CACHE_PREFIX)) { // cache.<path> = <time to live in seconds> [<parameter> ...]
+                path = path.substring(CACHE_PREFIX.length());
+
+                String[] parts = value.split("\\s+");
+
+                caches.put(path, new ResponseCache(Long.parseLong(parts[0]),
+                                                   Arrays.asList(parts).subList(1, parts.length)));
+                continue;
+            }
+
+            try {
+                workers.put(path, getInstance(value));
+            } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+                throw new RuntimeException("Could not create the worker for path: " + path, e);
+            }
+        }
+
+        // Cached responses stay valid as long as neither the cache nor the worker of their path has changed
+        for (var entry : caches.entrySet()) {
+            String path = entry.getKey();
+            ResponseCache current = previous.caches.get(path);
+
+            if (current != null && current.getTimeToLive() == entry.getValue().getTimeToLive()
+                && current.getKeyParameters().equals(entry.getValue().getKeyParameters())
+                && previous.workers.get(path) == workers.get(path)) {
+                entry.setValue(current);
+            }
+        }
+
+        return new Configuration(workers, limits, caches);
+    }
+
+    /**
+     * Returns the instance of the worker class, creating it if it has not been created yet.
+     *
+     * @param fqcn the fully qualified class name of the worker
+     * @return the instance of the worker class
+     *
+     * @throws ReflectiveOperationException if the class cannot be found or instantiated
+     * @throws ClassCastException if the class is not a worker
+     */
+    private IWebWorker getInstance(String fqcn) throws ReflectiveOperationException {
+        IWebWorker worker = instances.get(fqcn);
+
+        if (worker != null) {
+            return worker;
+        }
+
+        Class<?> referenceToClass = getClass().getClassLoader().loadClass(fqcn);
+        IWebWorker created = (IWebWorker) referenceToClass.getDeclaredConstructor().newInstance();
+
+        // Two threads may create the same worker at once, only one of the instances is ever used
+        worker = instances.putIfAbsent(fqcn, created);
+
+        return worker == null ? created : worker;
+    }
+
+    /**
+     * Reloads the configuration whenever it changes. Runs on the watcher thread.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean changed = false;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // Editors often replace the file instead of modifying it, so every kind of event counts
+                if (event.kind() == OVERFLOW || configFile.getFileName().equals(event.context())) {
+                    changed = true;
+                }
+            }
+
+            if (changed && Files.exists(configFile)) {
+                reload();
+            }
+
+            if (!key.reset()) { // The directory is gone
+                return;
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the worker configuration.
+     *
+     * @author Marko Lazarić
+     */
+    private static class Configuration {
+
+        /**
+         * The mapping of the routes to workers.
+         */
+        private final Map<String, IWebWorker> workers;
+
+        /**
+         * The router of the paths to the workers.
+         */
+        private final Router<IWebWorker> router = new Router<>();
+
+        /**
+         * The mapping of paths to the limits of their concurrent requests.
+         */
+        private final Map<String, ConcurrencyLimit> limits;
+
+        /**
+         * The mapping of paths to the caches of their responses.
+         */
+        private final Map<String, ResponseCache> caches;
+
+        /**
+         * Creates a new {@link Configuration} with the given arguments.
+         *
+         * @param workers the mapping of paths to workers
+         * @param limits the mapping of paths to the limits of their concurrent requests
+         * @param caches the mapping of paths to the caches of their responses
+         *
+         * @throws IllegalArgumentException if a path of a worker is not a valid route
+         */
+        private Configuration(Map<String, IWebWorker> workers, Map<String, ConcurrencyLimit> limits,
+                              Map<String, ResponseCache> caches) {
+            this.workers = Map.copyOf(workers);
+            this.limits = Map.copyOf(limits);
+            this.caches = Map.copyOf(caches);
+
+            this.workers.forEach(router::add);
+        }
+    }
+}
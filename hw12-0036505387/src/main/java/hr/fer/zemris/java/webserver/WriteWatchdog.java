@@ -0,0 +1,208 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.webserver.ServerMetrics.Rejection;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Enforces the idle timeout and the minimum rate of the writes to blocking connections. A blocking socket write
+ * cannot time out, so every write gets deadlines by which it has to finish, and a background thread closes the
+ * connections whose writes miss their deadlines, which makes the blocked writes fail.
+ *
+ * A write must not take longer than the idle timeout, so writes should be at most {@link #MAX_WRITE} bytes long.
+ * The rate is measured over the time a connection has spent blocked in writes, so the time spent generating responses
+ * or waiting for requests does not count against the client. Connections are given a grace period before the rate
+ * applies, so small responses and slow starts are not penalized.
+ *
+ * @author Marko Lazarić
+ */
+public class WriteWatchdog {
+
+    /**
+     * The maximum length of a single write in bytes. Longer writes are split, so that a client which reads slowly but
+     * steadily does not run into the idle timeout.
+     */
+    public static final int MAX_WRITE = 1 << 16;
+
+    /**
+     * How often the deadlines are checked in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 100;
+
+    /**
+     * The time a single write may take in nanoseconds.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The minimum rate in bytes per second, not enforced if it is not positive.
+     */
+    private final long minDataRate;
+
+    /**
+     * The time a connection may spend writing before the rate applies in nanoseconds.
+     */
+    private final long gracePeriod;
+
+    /**
+     * Called with the reason whenever a connection is closed for being too slow.
+     */
+    private final Consumer<Rejection> onTimeout;
+
+    /**
+     * The guards of the connections which are currently writing.
+     */
+    private final Set<Guard> writing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new {@link WriteWatchdog} with the given arguments and starts checking the deadlines.
+     *
+     * @param idleTimeout the time a single write may take in seconds
+     * @param minDataRate the minimum rate in bytes per second, not enforced if it is not positive
+     * @param gracePeriod the time a connection may spend writing before the rate applies in seconds
+     * @param onTimeout called with the reason whenever a connection is closed for being too slow
+     *
+     * @throws IllegalArgumentException if {@code idleTimeout} is not positive or {@code gracePeriod} is negative
+     */
+    public WriteWatchdog(long idleTimeout, long minDataRate, long gracePeriod, Consumer<Rejection> onTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive, was " + idleTimeout + ".");
+        }
+
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("Grace period cannot be negative, was " + gracePeriod + ".");
+        }
+
+        this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+        this.minDataRate = minDataRate;
+        this.gracePeriod = TimeUnit.SECONDS.toNanos(gracePeriod);
+        this.onTimeout = onTimeout;
+
+        Thread watcher = new Thread(this::watch, "write-watchdog");
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Returns a new guard of the writes to a connection.
+     *
+     * @param connection the connection, closed if the client reads from it too slowly
+     * @return a new guard of the writes to the connection
+     */
+    public Guard guard(Closeable connection) {
+        return new Guard(connection);
+    }
+
+    /**
+     * Closes the connections whose writes have missed their deadline. Runs on the watchdog thread.
+     */
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            for (Guard guard : writing) {
+                Rejection rejection = now - guard.idleDeadline > 0 ? Rejection.IDLE_TIMEOUT
+                                      : now - guard.rateDeadline > 0 ? Rejection.MIN_DATA_RATE : null;
+
+                if (rejection != null && writing.remove(guard)) {
+                    try {
+                        guard.connection.close();
+                    } catch (IOException ignored) {}
+
+                    onTimeout.accept(rejection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Guards the writes to a single connection. Writes must not be made concurrently.
+     *
+     * @author Marko Lazarić
+     */
+    public class Guard {
+
+        /**
+         * The guarded connection.
+         */
+        private final Closeable connection;
+
+        /**
+         * The number of bytes written or being written to the connection.
+         */
+        private long bytes;
+
+        /**
+         * The time spent blocked in the finished writes in nanoseconds.
+         */
+        private long blocked;
+
+        /**
+         * The time at which the current write has started in nanoseconds.
+         */
+        private long started;
+
+        /**
+         * The time by which the current write has to finish to stay within the idle timeout in nanoseconds.
+         */
+        private volatile long idleDeadline;
+
+        /**
+         * The time by which the current write has to finish to stay above the minimum rate in nanoseconds.
+         */
+        private volatile long rateDeadline;
+
+        /**
+         * Creates a new {@link Guard} with the given argument.
+         *
+         * @param connection the guarded connection
+         */
+        private Guard(Closeable connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Starts watching a write. It has to finish within the idle timeout, and before the connection would fall
+         * below the minimum rate.
+         *
+         * @param length the number of bytes being written
+         */
+        public void beginWrite(long length) {
+            started = System.nanoTime();
+            idleDeadline = started + idleTimeout;
+
+            if (minDataRate > 0) {
+                bytes += length;
+
+                long allowed = gracePeriod + TimeUnit.SECONDS.toNanos(bytes / minDataRate)
+                               + TimeUnit.SECONDS.toNanos(bytes % minDataRate) / minDataRate - blocked;
+
+                rateDeadline = started + Math.max(allowed, 0);
+            }
+            else {
+                rateDeadline = idleDeadline;
+            }
+
+            writing.add(this);
+        }
+
+        /**
+         * Stops watching the current write.
+         */
+        public void endWrite() {
+            writing.remove(this);
+            blocked += System.nanoTime() - started;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import hr.fer.zemris.java.webserver.IAsyncWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers after waiting for the number of milliseconds set by the "ms" GET parameter, simulating a worker which waits
+ * for a slow backend. The wait is asynchronous, so waiting requests do not occupy any of the server's threads.
+ *
+ * @author Marko Lazarić
+ */
+public class DelayWorker implements IAsyncWebWorker {
+
+    /**
+     * The delay used if the parameter is not set, in milliseconds.
+     */
+    private static final long DEFAULT_DELAY = 1000;
+
+    /**
+     * The longest allowed delay, in milliseconds.
+     */
+    private static final long MAX_DELAY = 10000;
+
+    @Override
+    public CompletionStage<?> processRequestAsync(RequestContext context) {
+        long delay = parseOrDefault(context.getParameter("ms"), DEFAULT_DELAY);
+
+        return CompletableFuture.runAsync(() -> {
+            context.setMimeType("text/html");
+
+            try {
+                context.write("<html><body><p>Waited " + delay + " ms.</p></body></html>");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tries to parse the {@link String} as a delay between 0 and {@value #MAX_DELAY}, if it is not parsable, it
+     * returns the default value.
+     *
+     * @param toParse the {@link String} to parse
+     * @param defaultValue the default value
+     * @return the parsed delay or default value
+     */
+    private long parseOrDefault(String toParse, long defaultValue) {
+        try {
+            return Math.max(0, Math.min(Long.parseLong(toParse), MAX_DELAY));
+        }
+        catch (NumberFormatException ignored) {}
+
+        return defaultValue;
+    }
+
+}
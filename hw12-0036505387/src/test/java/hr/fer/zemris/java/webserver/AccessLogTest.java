@@ -0,0 +1,209 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Returns the lines of the log file and the rotated ones, from the oldest to the newest.
+     */
+    static List<String> lines(Path file, int maxFiles) throws IOException {
+        List<String> lines = new ArrayList<>();
+
+        for (int i = maxFiles; i >= 1; i--) {
+            Path rotated = Paths.get(file + "." + i);
+
+            if (Files.exists(rotated)) {
+                lines.addAll(Files.readAllLines(rotated, StandardCharsets.UTF_8));
+            }
+        }
+
+        lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        return lines;
+    }
+
+    /**
+     * Returns the number in the path of a line, which the tests set to the index of the entry.
+     */
+    static int index(String line) {
+        return Integer.parseInt(line.split(" ")[2].substring(1));
+    }
+
+    @Test
+    void testFields() throws IOException {
+        Path file = directory.resolve("logs/access.log");
+        AccessLog log = new AccessLog(file, 16, false, 0, 0);
+
+        log.log("GET", "/index.html", 200, 1234, 5_678_000, "ABCDEFGHIJKLMNOPQRST");
+        log.log(null, null, 400, 0, 999, null);
+        log.close();
+
+        List<String> lines = lines(file, 0);
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\S+Z GET /index\\.html 200 1234 5678 ABCDEFGHIJKLMNOPQRST"), lines.get(0));
+        assertTrue(lines.get(1).matches("\\S+Z - - 400 0 0 -"), lines.get(1));
+    }
+
+    @Test
+    void testFieldsEscaped() throws IOException {
+        Path file = directory.resolve("access.log");
+        AccessLog log = new AccessLog(file, 16, false, 0, 0);
+
+        log.log("G T", "/a b\r\n\\x\u007f/č", 200, 0, 0, null);
+        log.close();
+
+        String[] fields = Files.readAllLines(file, StandardCharsets.UTF_8).get(0).split(" ");
+
+        assertEquals(7, fields.length);
+        assertEquals("G\\x20T", fields[1]);
+        assertEquals("/a\\x20b\\x0d\\x0a\\x5cx\\x7f/č", fields[2]);
+    }
+
+    @Test
+    void testOrder() throws IOException {
+        Path file = directory.resolve("access.log");
+        AccessLog log = new AccessLog(file, 64, true, 0, 0);
+
+        for (int i = 0; i < 10_000; i++) {
+            log.log("GET", "/" + i, 200, 0, 0, null);
+        }
+
+        log.close();
+
+        List<String> lines = lines(file, 0);
+
+        assertEquals(10_000, lines.size());
+
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(i, index(lines.get(i)));
+        }
+    }
+
+    @Test
+    void testBlockingKeepsEveryEntry() throws IOException, InterruptedException {
+        Path file = directory.resolve("access.log");
+        AccessLog log = new AccessLog(file, 2, true, 0, 0);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    log.log("GET", "/" + i, 200, 0, 0, null);
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        log.close();
+
+        assertEquals(20_000, lines(file, 0).size());
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    void testDroppedEntriesCounted() throws IOException {
+        Path file = directory.resolve("access.log");
+        AccessLog log = new AccessLog(file, 2, false, 0, 0);
+
+        for (int i = 0; i < 20_000; i++) {
+            log.log("GET", "/" + i, 200, 0, 0, null);
+        }
+
+        log.close();
+
+        List<String> lines = lines(file, 0);
+
+        assertEquals(20_000, lines.size() + log.getDropped());
+
+        // The entries which were not dropped keep their order
+        for (int i = 1; i < lines.size(); i++) {
+            assertTrue(index(lines.get(i - 1)) < index(lines.get(i)));
+        }
+
+        // Entries recorded after closing are dropped as well
+        log.log("GET", "/", 200, 0, 0, null);
+        assertEquals(20_001, lines.size() + log.getDropped());
+    }
+
+    @Test
+    void testRotation() throws IOException {
+        Path file = directory.resolve("access.log");
+        AccessLog log = new AccessLog(file, 1024, true, 1000, 2);
+
+        for (int i = 0; i < 1000; i++) {
+            log.log("GET", "/" + i, 200, 0, 0, null);
+        }
+
+        log.close();
+
+        assertTrue(Files.size(file) <= 1000);
+        assertTrue(Files.size(Paths.get(file + ".1")) <= 1000);
+        assertTrue(Files.size(Paths.get(file + ".2")) <= 1000);
+        assertFalse(Files.exists(Paths.get(file + ".3")));
+
+        // Only the newest entries are kept, without any gaps
+        List<String> lines = lines(file, 2);
+
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(1000 - lines.size() + i, index(lines.get(i)));
+        }
+    }
+
+    @Test
+    void testWritingResumedAfterError() throws IOException, InterruptedException {
+        Path file = directory.resolve("access.log");
+        Path blocker = Paths.get(file + ".1");
+
+        // The log cannot be rotated while a directory which is not empty takes the place of the rotated file
+        Files.createDirectories(blocker.resolve("child"));
+
+        AccessLog log = new AccessLog(file, 1024, true, 1000, 1);
+
+        for (int i = 0; i < 100; i++) {
+            log.log("GET", "/" + i, 200, 0, 0, null);
+        }
+
+        Thread.sleep(100);
+
+        Files.delete(blocker.resolve("child"));
+        Files.delete(blocker);
+
+        for (int i = 100; i < 200; i++) {
+            log.log("GET", "/" + i, 200, 0, 0, null);
+        }
+
+        log.close();
+
+        List<String> lines = lines(file, 1);
+
+        assertTrue(Files.isRegularFile(blocker));
+        assertEquals(0, log.getDropped());
+
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(200 - lines.size() + i, index(lines.get(i)));
+        }
+
+        assertEquals(199, index(lines.get(lines.size() - 1)));
+    }
+}
@@ -0,0 +1,98 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangeTest {
+
+    static List<String> ranges(String header, long size) {
+        List<ByteRange> ranges = ByteRange.parse(header, size);
+
+        return ranges == null ? null : ranges.stream()
+                                             .map(range -> range.getStart() + "-" + range.getEnd())
+                                             .collect(Collectors.toList());
+    }
+
+    @Test
+    void testSingleRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=10-19", 100);
+
+        assertEquals(1, ranges.size());
+        assertEquals(10, ranges.get(0).getStart());
+        assertEquals(19, ranges.get(0).getEnd());
+        assertEquals(10, ranges.get(0).getLength());
+        assertEquals("bytes 10-19/100", ranges.get(0).toContentRange(100));
+    }
+
+    @Test
+    void testOpenEndedRange() {
+        assertEquals(List.of("90-99"), ranges("bytes=90-", 100));
+        assertEquals(List.of("0-99"), ranges("bytes=0-", 100));
+    }
+
+    @Test
+    void testEndClampedToSize() {
+        assertEquals(List.of("90-99"), ranges("bytes=90-1000", 100));
+    }
+
+    @Test
+    void testSuffixRange() {
+        assertEquals(List.of("90-99"), ranges("bytes=-10", 100));
+        assertEquals(List.of("0-99"), ranges("bytes=-1000", 100)); // Longer than the file
+        assertEquals(List.of("99-99"), ranges("bytes=-1", 100));
+    }
+
+    @Test
+    void testOverlappingAndAdjacentRangesMerged() {
+        assertEquals(List.of("0-29"), ranges("bytes=0-9,10-19,15-29", 100));
+        assertEquals(List.of("0-59"), ranges("bytes=20-59,0-30", 100));
+        assertEquals(List.of("0-9", "50-99"), ranges("bytes=50-,0-9,-20", 100));
+        assertEquals(List.of("0-99"), ranges("bytes=0-99,10-20", 100));
+    }
+
+    @Test
+    void testDisjointRangesSorted() {
+        assertEquals(List.of("0-0", "10-19", "50-59"), ranges(" bytes=50-59, 10-19 ,0-0", 100));
+    }
+
+    @Test
+    void testUnsatisfiableRanges() {
+        assertEquals(List.of(), ranges("bytes=100-199", 100));
+        assertEquals(List.of(), ranges("bytes=-0", 100));
+        assertEquals(List.of(), ranges("bytes=100-", 100));
+        assertEquals(List.of(), ranges("bytes=0-", 0));
+        assertEquals(List.of(), ranges("bytes=-10", 0));
+        assertEquals(List.of("0-9"), ranges("bytes=100-,0-9,-0", 100)); // Only the satisfiable ones are kept
+    }
+
+    @Test
+    void testInvalidHeadersIgnored() {
+        assertNull(ranges("items=0-9", 100));
+        assertNull(ranges("bytes=9-0", 100));
+        assertNull(ranges("bytes=abc", 100));
+        assertNull(ranges("bytes=1-x", 100));
+        assertNull(ranges("bytes=0-9,,10-19", 100));
+        assertNull(ranges("bytes=--5", 100));
+    }
+
+    @Test
+    void testTooManyRangesIgnored() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+
+        for (int i = 1; i < 33; i++) {
+            header.append(',').append(2 * i).append('-').append(2 * i);
+        }
+
+        assertNull(ranges(header.toString(), 100));
+        assertEquals(32, ranges(header.substring(0, header.lastIndexOf(",")), 100).size());
+    }
+
+    @Test
+    void testCaseInsensitiveUnit() {
+        assertEquals(List.of("0-9"), ranges("Bytes=0-9", 100));
+    }
+}
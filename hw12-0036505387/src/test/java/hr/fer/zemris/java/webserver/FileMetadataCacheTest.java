@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileMetadataCacheTest {
+
+    @TempDir
+    Path directory;
+
+    static final FileTime TIME = FileTime.fromMillis(1_500_000_000_123L);
+
+    Path file(String name, String text) throws IOException {
+        Path file = directory.resolve(name);
+
+        Files.writeString(file, text);
+        Files.setLastModifiedTime(file, TIME);
+
+        return file;
+    }
+
+    @Test
+    void testCachedUntilChanged() throws IOException {
+        Path file = file("a.txt", "Hello");
+        FileMetadataCache cache = new FileMetadataCache(16);
+        FileMetadataCache.FileMetadata metadata = cache.get(file);
+
+        assertEquals(5, metadata.getSize());
+        assertEquals(TIME, metadata.getLastModified());
+        assertEquals("Fri, 14 Jul 2017 02:40:00 GMT", metadata.getLastModifiedHeader());
+        assertTrue(metadata.getETag().matches("\"5-[0-9a-f]+(-[0-9a-f]+)?\""), metadata.getETag());
+        assertSame(metadata, cache.get(file));
+        assertSame(metadata, cache.get(directory.resolve("x/../a.txt")));
+
+        // A modification within the same second
+        Files.setLastModifiedTime(file, FileTime.fromMillis(TIME.toMillis() + 1));
+
+        assertNotEquals(metadata.getETag(), cache.get(file).getETag());
+    }
+
+    @Test
+    void testResizedFileNewTag() throws IOException {
+        Path file = file("a.txt", "Hello");
+        FileMetadataCache cache = new FileMetadataCache(16);
+        String eTag = cache.get(file).getETag();
+
+        file("a.txt", "Hello, world");
+
+        assertTrue(cache.get(file).getETag().startsWith("\"c-"));
+        assertNotEquals(eTag, cache.get(file).getETag());
+    }
+
+    @Test
+    void testReplacedFileNewTag() throws IOException {
+        Path file = file("a.txt", "Hello");
+        FileMetadataCache cache = new FileMetadataCache(16);
+        String eTag = cache.get(file).getETag();
+
+        // Replaced by renaming a file of the same size and modification time, as a deployment would
+        Path replacement = file("b.txt", "Howdy");
+
+        if (Files.readAttributes(file, BasicFileAttributes.class).fileKey() == null) {
+            return; // The file system cannot tell the files apart
+        }
+
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        assertNotEquals(eTag, cache.get(file).getETag());
+    }
+
+    @Test
+    void testSameFileSameTag() throws IOException {
+        Path file = file("a.txt", "Hello");
+
+        // Tags do not depend on the cache, so they survive a restart of the server
+        assertEquals(new FileMetadataCache(16).get(file).getETag(), new FileMetadataCache(0).get(file).getETag());
+    }
+}
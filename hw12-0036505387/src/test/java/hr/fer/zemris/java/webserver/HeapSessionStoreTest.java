@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeapSessionStoreTest {
+
+    @Test
+    void testCreateAndGet() {
+        HeapSessionStore store = new HeapSessionStore(60_000);
+        SessionMapEntry entry = store.create("localhost");
+
+        assertEquals(SessionStore.SID_LENGTH, entry.sid.length());
+        assertSame(entry, store.get(entry.sid, "localhost"));
+        assertNull(store.get(entry.sid, "example.com"));
+        assertNull(store.get("NOSUCHSESSIONIDXXXXX", "localhost"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void testUniqueIds() {
+        HeapSessionStore store = new HeapSessionStore(60_000);
+        Set<String> sids = new HashSet<>();
+
+        for (int i = 0; i < 1000; i++) {
+            sids.add(store.create("localhost").sid);
+        }
+
+        assertEquals(1000, sids.size());
+        assertEquals(1000, store.size());
+    }
+
+    @Test
+    void testGetExtends() {
+        HeapSessionStore store = new HeapSessionStore(60_000);
+        SessionMapEntry entry = store.create("localhost");
+
+        entry.validUntil = System.currentTimeMillis() + 10;
+
+        store.get(entry.sid, "localhost");
+
+        assertTrue(entry.validUntil > System.currentTimeMillis() + 50_000);
+    }
+
+    @Test
+    void testGetOfOtherHostDoesNotExtend() {
+        HeapSessionStore store = new HeapSessionStore(60_000);
+        SessionMapEntry entry = store.create("localhost");
+        long validUntil = System.currentTimeMillis() + 10_000;
+
+        entry.validUntil = validUntil;
+        store.get(entry.sid, "example.com");
+
+        assertEquals(validUntil, entry.validUntil);
+    }
+
+    @Test
+    void testExpiredSessionNotReturned() throws InterruptedException {
+        HeapSessionStore store = new HeapSessionStore(20);
+        SessionMapEntry entry = store.create("localhost");
+
+        Thread.sleep(50);
+
+        assertNull(store.get(entry.sid, "localhost"));
+        assertEquals(0, store.size()); // Removed right away
+    }
+
+    @Test
+    void testExpire() {
+        long now = System.currentTimeMillis();
+        HeapSessionStore store = new HeapSessionStore(1000);
+
+        for (int i = 0; i < 100; i++) {
+            store.create("localhost");
+        }
+
+        store.expire(now + 500);
+        assertEquals(100, store.size());
+
+        store.expire(now + 5 * SessionStore.TICK);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testExtendedSessionSurvivesExpire() {
+        long now = System.currentTimeMillis();
+        HeapSessionStore store = new HeapSessionStore(1000);
+        SessionMapEntry extended = store.create("localhost");
+        SessionMapEntry abandoned = store.create("localhost");
+
+        extended.validUntil = now + 20 * SessionStore.TICK; // As if it had been used later
+
+        store.expire(now + 5 * SessionStore.TICK);
+
+        assertEquals(1, store.size());
+        assertSame(extended, store.get(extended.sid, "localhost"));
+        assertNull(store.get(abandoned.sid, "localhost"));
+
+        // It has been moved to the slot of its new expiration time
+        extended.validUntil = now + 20 * SessionStore.TICK;
+        store.expire(now + 25 * SessionStore.TICK);
+
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testExpireAfterLongPause() {
+        long now = System.currentTimeMillis();
+        HeapSessionStore store = new HeapSessionStore(1000);
+
+        store.create("localhost");
+
+        // Further than a full turn of the wheel
+        store.expire(now + 10_000 * SessionStore.TICK);
+
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testSessionsUsedWhileExpiring() throws InterruptedException {
+        HeapSessionStore store = new HeapSessionStore(2 * SessionStore.TICK);
+        SessionMapEntry entry = store.create("localhost");
+        long end = System.currentTimeMillis() + 3 * SessionStore.TICK;
+        Thread cleaner = new Thread(() -> {
+            while (System.currentTimeMillis() < end) {
+                store.expire(System.currentTimeMillis());
+            }
+        });
+
+        cleaner.start();
+
+        // A session which keeps being used is never removed
+        while (System.currentTimeMillis() < end) {
+            assertSame(entry, store.get(entry.sid, "localhost"));
+        }
+
+        cleaner.join();
+    }
+}
@@ -0,0 +1,345 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HpackTest {
+
+    static byte[] hex(String s) {
+        s = s.replaceAll("\\s", "");
+
+        byte[] bytes = new byte[s.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+
+    static List<String> decode(Hpack.Decoder decoder, String block) throws Hpack.HpackException {
+        byte[] bytes = hex(block);
+        List<String> fields = new ArrayList<>();
+
+        decoder.decode(bytes, bytes.length, (name, value) -> fields.add(name + ": " + value));
+
+        return fields;
+    }
+
+    static byte[] encode(Hpack.Encoder encoder, String... fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(fields[i], fields[i + 1], true, out);
+        }
+
+        return out.toByteArray();
+    }
+
+    // RFC 7541, C.2.1 - C.2.4
+
+    @Test
+    void testDecodeLiteralWithIndexing() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertEquals(List.of("custom-key: custom-header"),
+                     decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        assertEquals(List.of("custom-key: custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    void testDecodeLiteralWithoutIndexing() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertEquals(List.of(":path: /sample/path"), decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"));
+        assertThrows(Hpack.HpackException.class, () -> decode(decoder, "be"));
+    }
+
+    @Test
+    void testDecodeLiteralNeverIndexed() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertEquals(List.of("password: secret"), decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+        assertThrows(Hpack.HpackException.class, () -> decode(decoder, "be"));
+    }
+
+    @Test
+    void testDecodeIndexed() throws Hpack.HpackException {
+        assertEquals(List.of(":method: GET"), decode(new Hpack.Decoder(4096), "82"));
+    }
+
+    // RFC 7541, C.3
+
+    @Test
+    void testDecodeRequestsWithoutHuffman() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                     decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                             "cache-control: no-cache"),
+                     decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                             "custom-key: custom-value"),
+                     decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    // RFC 7541, C.4
+
+    @Test
+    void testDecodeRequestsWithHuffman() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                     decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                             "cache-control: no-cache"),
+                     decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                             "custom-key: custom-value"),
+                     decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    // RFC 7541, C.5, which evicts entries from a table of 256 bytes
+
+    @Test
+    void testDecodeResponsesWithoutHuffman() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+
+        assertEquals(List.of(":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                             "location: https://www.example.com"),
+                     decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230"
+                                     + "3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65"
+                                     + "7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                             "location: https://www.example.com"),
+                     decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT",
+                             "location: https://www.example.com", "content-encoding: gzip",
+                             "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+                     decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220"
+                                     + "474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157"
+                                     + "454f 5049 5541 5851 5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076"
+                                     + "6572 7369 6f6e 3d31"));
+
+        // Only set-cookie, content-encoding and the second date are left
+        assertEquals(List.of("date: Mon, 21 Oct 2013 20:13:22 GMT"), decode(decoder, "c0"));
+        assertThrows(Hpack.HpackException.class, () -> decode(decoder, "c1"));
+    }
+
+    // RFC 7541, C.6
+
+    @Test
+    void testDecodeResponsesWithHuffman() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+
+        assertEquals(List.of(":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                             "location: https://www.example.com"),
+                     decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0"
+                                     + "82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+        assertEquals(List.of(":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                             "location: https://www.example.com"),
+                     decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT",
+                             "location: https://www.example.com", "content-encoding: gzip",
+                             "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+                     decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b"
+                                     + "d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27"
+                                     + "0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"));
+    }
+
+    @Test
+    void testDecodeHuffmanPadding() throws Hpack.HpackException {
+        // "a" is 00011, padded with ones
+        assertEquals(List.of("a: a"), decode(new Hpack.Decoder(4096), "0081 1f81 1f"));
+
+        // Padded with zeros
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "0081 1f81 18"));
+        // Padded with more than seven bits
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "0081 1f82 1fff"));
+        // The end of string code in the string
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "0081 1f84 ffff ffff"));
+    }
+
+    @Test
+    void testDecodeInvalidBlocks() {
+        // Index 0 and an index past the tables
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "80"));
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "bf"));
+        // Truncated integer and truncated string
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "ff"));
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "0003 6162"));
+        // Missing value
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "0001 61"));
+    }
+
+    @Test
+    void testDecodeTableSizeUpdate() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+
+        // Shrinking the table to 0 evicts everything, growing it back does not bring the entries back
+        assertEquals(List.of(), decode(decoder, "20"));
+        assertThrows(Hpack.HpackException.class, () -> decode(decoder, "3fe1 1fbe"));
+        assertEquals(List.of(":method: GET"), decode(decoder, "3fe1 1f82"));
+    }
+
+    @Test
+    void testDecodeTableSizeUpdateOverMaximum() {
+        // 4097 = 31 + 4066
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "3fe2 1f82"));
+    }
+
+    @Test
+    void testDecodeTableSizeUpdateAfterField() {
+        assertThrows(Hpack.HpackException.class, () -> decode(new Hpack.Decoder(4096), "8220"));
+    }
+
+    @Test
+    void testDecodeInitialTableSize() throws Hpack.HpackException {
+        Hpack.Decoder decoder = new Hpack.Decoder(64);
+
+        // The table fits a single entry of 55 bytes, so the second one evicts the first
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+        decode(decoder, "4001 6101 62");
+
+        assertEquals(List.of("a: b"), decode(decoder, "be"));
+        assertThrows(Hpack.HpackException.class, () -> decode(decoder, "bf"));
+    }
+
+    // RFC 7541, C.4 in reverse
+
+    @Test
+    void testEncodeRequestsWithHuffman() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+
+        assertArrayEquals(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+                          encode(encoder, ":method", "GET", ":scheme", "http", ":path", "/",
+                                 ":authority", "www.example.com"));
+        assertArrayEquals(hex("8286 84be 5886 a8eb 1064 9cbf"),
+                          encode(encoder, ":method", "GET", ":scheme", "http", ":path", "/",
+                                 ":authority", "www.example.com", "cache-control", "no-cache"));
+        assertArrayEquals(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                          encode(encoder, ":method", "GET", ":scheme", "https", ":path", "/index.html",
+                                 ":authority", "www.example.com", "custom-key", "custom-value"));
+    }
+
+    // RFC 7541, C.6 in reverse, after the table has been shrunk to 256 bytes
+
+    @Test
+    void testEncodeResponsesWithEviction() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+
+        encoder.setMaxTableSize(256);
+
+        byte[] first = encode(encoder, ":status", "302", "cache-control", "private",
+                              "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+
+        // The first block starts with the size update, 256 = 31 + 225
+        assertArrayEquals(hex("3fe1 01"), Arrays.copyOf(first, 3));
+        assertArrayEquals(hex("4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+                              + "2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"),
+                          Arrays.copyOfRange(first, 3, first.length));
+        // "307" is as long Huffman coded, so it is sent as it is
+        assertArrayEquals(hex("4803 3330 37c1 c0bf"),
+                          encode(encoder, ":status", "307", "cache-control", "private",
+                                 "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"));
+        assertArrayEquals(hex("88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab"
+                              + "77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f"
+                              + "9587 3160 65c0 03ed 4ee5 b106 3d50 07"),
+                          encode(encoder, ":status", "200", "cache-control", "private",
+                                 "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                                 "content-encoding", "gzip",
+                                 "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+    }
+
+    @Test
+    void testEncodeWithoutIndexing() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        encoder.encode("content-length", "12", false, out);
+        encoder.encode("content-length", "12", false, out);
+
+        // Both are literals with the static name index 28, as nothing has been added to the table
+        assertArrayEquals(hex("0f0d 0231 32 0f0d 0231 32"), out.toByteArray());
+    }
+
+    @Test
+    void testEncodeSizeUpdateOnlyOnce() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+
+        encoder.setMaxTableSize(0);
+
+        assertArrayEquals(hex("2082"), encode(encoder, ":method", "GET"));
+        assertArrayEquals(hex("82"), encode(encoder, ":method", "GET"));
+
+        // Nothing fits into an empty table, so the field is sent as a literal every time
+        assertArrayEquals(hex("4001 6101 62"), encode(encoder, "a", "b"));
+        assertArrayEquals(hex("4001 6101 62"), encode(encoder, "a", "b"));
+    }
+
+    @Test
+    void testEncodeSmallestSizeUpdateFirst() throws Hpack.HpackException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        encoder.encode("a", "b", true, out);
+        decoder.decode(out.toByteArray(), out.size(), (name, value) -> {});
+
+        // Shrunk to nothing, which evicts the field, and grown again before the next header block
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(1000);
+        encoder.setMaxTableSize(100);
+
+        byte[] block = encode(encoder, "a", "b");
+
+        assertArrayEquals(hex("20 3f45 4001 6101 62"), block);
+
+        List<String> fields = new ArrayList<>();
+
+        decoder.decode(block, block.length, (name, value) -> fields.add(name + ": " + value));
+        assertEquals(List.of("a: b"), fields);
+
+        // Growing alone only needs the final size
+        encoder.setMaxTableSize(200);
+        encoder.setMaxTableSize(300);
+
+        assertArrayEquals(hex("3f8d 02be"), encode(encoder, "a", "b"));
+    }
+
+    @Test
+    void testEncodeDecodeRoundTrip() throws Hpack.HpackException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        StringBuilder sb = new StringBuilder();
+
+        for (int c = 0; c < 256; c++) {
+            sb.append((char) c);
+        }
+
+        String[] values = {"", "x", sb.toString(), "text/html; charset=UTF-8", "a".repeat(5000)};
+
+        for (int round = 0; round < 2; round++) {
+            for (String value : values) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                encoder.encode("x-value", value, true, out);
+
+                List<String> fields = new ArrayList<>();
+
+                decoder.decode(out.toByteArray(), out.size(), (name, v) -> fields.add(name + ": " + v));
+
+                assertEquals(List.of("x-value: " + value), fields);
+            }
+        }
+    }
+}
@@ -0,0 +1,1033 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Http2ConnectionTest {
+
+    static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4, PUSH_PROMISE = 0x5,
+            PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1, FLOW_CONTROL_ERROR = 0x3, STREAM_CLOSED = 0x5,
+            FRAME_SIZE_ERROR = 0x6,
+            REFUSED_STREAM = 0x7, CANCEL = 0x8, COMPRESSION_ERROR = 0x9;
+
+    static byte[] int32(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static int int32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+               | bytes[offset + 3] & 0xff;
+    }
+
+    static byte[] setting(int id, int value) {
+        byte[] setting = new byte[6];
+
+        setting[1] = (byte) id;
+        System.arraycopy(int32(value), 0, setting, 2, 4);
+
+        return setting;
+    }
+
+    static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+        byte[] bytes = new byte[9 + payload.length];
+
+        bytes[0] = (byte) (payload.length >>> 16);
+        bytes[1] = (byte) (payload.length >>> 8);
+        bytes[2] = (byte) payload.length;
+        bytes[3] = (byte) type;
+        bytes[4] = (byte) flags;
+        System.arraycopy(int32(streamId), 0, bytes, 5, 4);
+        System.arraycopy(payload, 0, bytes, 9, payload.length);
+
+        return bytes;
+    }
+
+    static void respond(Http2Connection.ResponseStream stream, byte[] body) {
+        try {
+            stream.write(("HTTP/1.1 200 OK\r\n" +
+                          "Content-Type: text/plain\r\n" +
+                          "Connection: keep-alive\r\n" +
+                          "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            stream.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    static void respondLater(Http2Connection.ResponseStream stream, byte[] body) {
+        new Thread(() -> respond(stream, body)).start();
+    }
+
+    static boolean answer(HttpRequest request, Http2Connection.ResponseStream stream) {
+        respond(stream, request.getPath().getBytes(StandardCharsets.ISO_8859_1));
+        return true;
+    }
+
+    @Test
+    void testRequest() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/hello", "accept", "text/plain");
+
+        HttpRequest request = held.requests.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(request);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/hello", request.getPath());
+        assertEquals("localhost", request.getHeader("Host"));
+        assertEquals("text/plain", request.getHeader("Accept"));
+
+        respond(held.take(), "Hello".getBytes(StandardCharsets.ISO_8859_1));
+
+        Frame headers = peer.next();
+
+        assertEquals(HEADERS, headers.type);
+        assertEquals(END_HEADERS, headers.flags);
+        assertEquals(1, headers.streamId);
+
+        Map<String, String> fields = peer.decode(headers);
+
+        assertEquals("200", fields.get(":status"));
+        assertEquals("text/plain", fields.get("content-type"));
+        assertEquals("5", fields.get("content-length"));
+        assertFalse(fields.containsKey("connection"));
+
+        Frame data = peer.next();
+
+        assertEquals(DATA, data.type);
+        assertEquals(END_STREAM, data.flags);
+        assertEquals(1, data.streamId);
+        assertEquals("Hello", new String(data.payload, StandardCharsets.ISO_8859_1));
+
+        assertTrue(peer.finish().isEmpty());
+    }
+
+    @Test
+    void testConcurrentStreams() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/first");
+        peer.request(3, "/second");
+
+        Http2Connection.ResponseStream first = held.take();
+        Http2Connection.ResponseStream second = held.take();
+
+        // Answered in the opposite order
+        respond(second, "2".getBytes(StandardCharsets.ISO_8859_1));
+        respond(first, "1".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(3, peer.next().streamId);
+        assertEquals("2", new String(peer.next().payload, StandardCharsets.ISO_8859_1));
+        assertEquals(1, peer.next().streamId);
+        assertEquals("1", new String(peer.next().payload, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testPingAndSettingsAcknowledged() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+        byte[] opaque = {1, 2, 3, 4, 5, 6, 7, 8};
+
+        peer.send(PING, 0, 0, opaque);
+
+        Frame ping = peer.next();
+
+        assertEquals(PING, ping.type);
+        assertEquals(ACK, ping.flags);
+        assertArrayEquals(opaque, ping.payload);
+
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 1000));
+
+        Frame settings = peer.next();
+
+        assertEquals(SETTINGS, settings.type);
+        assertEquals(ACK, settings.flags);
+        assertEquals(0, settings.payload.length);
+
+        // Acknowledgements of pings are not answered
+        peer.send(PING, ACK, 0, opaque);
+        peer.assertSilent();
+    }
+
+    @Test
+    void testUnknownAndPriorityFramesIgnored() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(0x42, 0xff, 0, new byte[] {1, 2, 3});
+        peer.send(PRIORITY, 0, 1, new byte[5]);
+        peer.send(PING, 0, 0, new byte[8]);
+
+        assertEquals(PING, peer.next().type);
+    }
+
+    @Test
+    void testContinuation() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+        byte[] block = peer.block("/continued");
+        int split = block.length / 2;
+
+        peer.send(HEADERS, END_STREAM, 1, Arrays.copyOf(block, split));
+        peer.send(CONTINUATION, END_HEADERS, 1, Arrays.copyOfRange(block, split, block.length));
+
+        assertEquals(HEADERS, peer.next().type);
+        assertEquals("/continued", new String(peer.next().payload, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testFrameWithinHeaderBlock() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+        byte[] block = peer.block("/interrupted");
+
+        peer.send(HEADERS, END_STREAM, 1, Arrays.copyOf(block, 2));
+        peer.send(PING, 0, 0, new byte[8]);
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testContinuationOfAnotherStream() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+        byte[] block = peer.block("/interrupted");
+
+        peer.send(HEADERS, END_STREAM, 1, Arrays.copyOf(block, 2));
+        peer.send(CONTINUATION, END_HEADERS, 3, Arrays.copyOfRange(block, 2, block.length));
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testContinuationWithoutHeaders() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(CONTINUATION, END_HEADERS, 1, peer.block("/"));
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testResetStream() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/cancelled");
+
+        Http2Connection.ResponseStream stream = held.take();
+
+        peer.send(RST_STREAM, 0, 1, int32(CANCEL));
+        peer.send(PING, 0, 0, new byte[8]);
+        assertEquals(PING, peer.next().type); // The reset has been handled
+
+        // The response is dropped without resetting the stream again
+        respond(stream, "late".getBytes(StandardCharsets.ISO_8859_1));
+        peer.send(PING, 0, 0, new byte[8]);
+
+        assertEquals(PING, peer.next().type);
+        assertTrue(peer.finish().isEmpty());
+    }
+
+    @Test
+    void testResetStreamOfWrongSize() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(RST_STREAM, 0, 1, new byte[3]);
+
+        peer.assertGoAway(0, FRAME_SIZE_ERROR);
+    }
+
+    @Test
+    void testResetConnection() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(RST_STREAM, 0, 0, int32(CANCEL));
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testStreamFlowControl() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 10));
+        assertEquals(ACK, peer.next().flags);
+
+        peer.request(1, "/slow");
+        respondLater(held.take(), "abcdefghijklmnopqrstuvwxy".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(HEADERS, peer.next().type);
+        peer.assertData(1, "abcdefghij", 0);
+        peer.assertSilent();
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(10));
+        peer.assertData(1, "klmnopqrst", 0);
+        peer.assertSilent();
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(10));
+        peer.assertData(1, "uvwxy", END_STREAM);
+    }
+
+    @Test
+    void testInitialWindowSizeChangesOpenStreams() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 4));
+        assertEquals(ACK, peer.next().flags);
+
+        peer.request(1, "/slow");
+        respondLater(held.take(), "abcdefgh".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(HEADERS, peer.next().type);
+        peer.assertData(1, "abcd", 0);
+        peer.assertSilent();
+
+        // The window of the stream grows by the difference, from 0 to 2, which may be used before the acknowledgement
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 6));
+
+        Frame first = peer.next();
+        Frame second = peer.next();
+        Frame data = first.type == DATA ? first : second;
+
+        assertEquals(ACK, (data == first ? second : first).flags);
+        assertEquals("ef", new String(data.payload, StandardCharsets.ISO_8859_1));
+        peer.assertSilent();
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(2));
+        peer.assertData(1, "gh", END_STREAM);
+    }
+
+    @Test
+    void testConnectionFlowControl() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+        byte[] body = new byte[70000];
+
+        // Only the connection window of 65535 bytes limits the response
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 100000));
+        assertEquals(ACK, peer.next().flags);
+
+        peer.request(1, "/large");
+        respondLater(held.take(), body);
+
+        assertEquals(HEADERS, peer.next().type);
+        assertEquals(65535, peer.readData(1, 65535));
+        peer.assertSilent();
+
+        peer.send(WINDOW_UPDATE, 0, 0, int32(10000));
+        assertEquals(70000 - 65535, peer.readData(1, 70000 - 65535));
+    }
+
+    @Test
+    void testRequestBodyCreditReturned() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.send(HEADERS, END_HEADERS, 1, peer.block("/upload")); // The body follows
+        held.take();
+
+        peer.send(DATA, 0, 1, new byte[100]);
+        peer.assertWindowUpdate(0, 100);
+        peer.assertWindowUpdate(1, 100);
+
+        // Once the stream has ended, only the connection window needs to be widened
+        peer.send(DATA, END_STREAM, 1, new byte[50]);
+        peer.assertWindowUpdate(0, 50);
+        peer.assertSilent();
+    }
+
+    @Test
+    void testDataOnIdleStream() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(DATA, END_STREAM, 1, new byte[10]);
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testEmptyStreamWindowUpdate() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/");
+        held.take();
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(0));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(1, reset.streamId);
+        assertEquals(PROTOCOL_ERROR, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testStreamWindowOverflow() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/");
+        held.take();
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(Integer.MAX_VALUE));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(1, reset.streamId);
+        assertEquals(FLOW_CONTROL_ERROR, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testConnectionWindowOverflow() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(WINDOW_UPDATE, 0, 0, int32(Integer.MAX_VALUE));
+
+        peer.assertGoAway(0, FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    void testEmptyConnectionWindowUpdate() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(WINDOW_UPDATE, 0, 0, int32(0));
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testInitialWindowSizeTooLarge() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(SETTINGS, 0, 0, setting(SETTINGS_INITIAL_WINDOW_SIZE, 0x80000000));
+
+        peer.assertGoAway(0, FLOW_CONTROL_ERROR);
+    }
+
+    @Test
+    void testTooManyStreamsRefused() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held, 8192, 1);
+
+        peer.request(1, "/first");
+        held.take();
+        peer.request(3, "/second");
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(3, reset.streamId);
+        assertEquals(REFUSED_STREAM, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testStreamRefusedByHandler() throws Exception {
+        Peer peer = Peer.start((request, stream) -> false);
+
+        peer.request(1, "/");
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(REFUSED_STREAM, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testMalformedRequest() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(HEADERS, END_STREAM | END_HEADERS, 1, peer.encode(":method", "GET", ":scheme", "http"));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(PROTOCOL_ERROR, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testInvalidRequestsReset() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+        String[][] requests = {
+                {":method", "GET", ":path", "/", ":authority", "localhost"},
+                {":method", "GET", ":scheme", "http", ":path", "/a b"},
+                {":method", "GET", ":scheme", "http", ":path", "/a\r\nx: y"},
+                {":method", "G T", ":scheme", "http", ":path", "/"},
+                {":method", "GET", ":scheme", "http", ":path", "/", "Accept", "text/plain"},
+                {":method", "GET", ":scheme", "http", ":path", "/", "accept", "text/plain\r\nx: y"},
+                {":method", "GET", ":scheme", "http", ":path", "/", ":status", "200"},
+                {":method", "GET", ":scheme", "http", ":path", "/", "accept", "text/plain", ":authority", "localhost"}
+        };
+
+        for (int i = 0; i < requests.length; i++) {
+            peer.send(HEADERS, END_STREAM | END_HEADERS, 2 * i + 1, peer.encode(requests[i]));
+
+            Frame reset = peer.next();
+
+            assertEquals(RST_STREAM, reset.type, "Request " + i);
+            assertEquals(2 * i + 1, reset.streamId);
+            assertEquals(PROTOCOL_ERROR, int32(reset.payload, 0));
+        }
+
+        // The connection can still be used
+        peer.request(2 * requests.length + 1, "/valid");
+        assertEquals("200", peer.decode(peer.next()).get(":status"));
+    }
+
+    @Test
+    void testTrailers() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.send(HEADERS, END_HEADERS, 1, peer.block("/upload"));
+        held.take();
+        peer.send(HEADERS, END_STREAM | END_HEADERS, 1, peer.encode("x-checksum", "abc"));
+        peer.assertSilent();
+
+        // The request has ended, so there can be no more trailers
+        peer.send(HEADERS, END_STREAM | END_HEADERS, 1, peer.encode("x-checksum", "abc"));
+        peer.assertGoAway(1, STREAM_CLOSED);
+    }
+
+    @Test
+    void testTrailersWithoutEndOfStream() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.send(HEADERS, END_HEADERS, 1, peer.block("/upload"));
+        held.take();
+        peer.send(HEADERS, END_HEADERS, 1, peer.encode("x-checksum", "abc"));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(1, reset.streamId);
+        assertEquals(PROTOCOL_ERROR, int32(reset.payload, 0));
+    }
+
+    @Test
+    void testHeadersOnClosedStream() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.request(1, "/");
+        assertEquals(HEADERS, peer.next().type);
+        assertEquals(DATA, peer.next().type);
+
+        // Neither a stream which has been answered nor one which has been skipped can be opened again
+        peer.request(1, "/");
+        peer.assertGoAway(1, STREAM_CLOSED);
+
+        Peer other = Peer.start(Http2ConnectionTest::answer);
+
+        other.request(5, "/");
+        assertEquals(HEADERS, other.next().type);
+        assertEquals(DATA, other.next().type);
+        other.request(3, "/");
+        other.assertGoAway(5, STREAM_CLOSED);
+    }
+
+    @Test
+    void testTrailersOfResetStreamIgnored() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        // Malformed, but its body and trailers are already on their way
+        peer.send(HEADERS, END_HEADERS, 1, peer.encode(":method", "GET", ":path", "/"));
+        peer.send(DATA, 0, 1, new byte[10]);
+        peer.send(HEADERS, END_STREAM | END_HEADERS, 1, peer.encode("x-checksum", "abc"));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(PROTOCOL_ERROR, int32(reset.payload, 0));
+        peer.assertWindowUpdate(0, 10);
+
+        peer.request(3, "/valid");
+        assertEquals("200", peer.decode(peer.next()).get(":status"));
+    }
+
+    @Test
+    void testUnendedRequestsCountAsOpen() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer, 8192, 1);
+
+        peer.send(HEADERS, END_HEADERS, 1, peer.block("/first"));
+        assertEquals("200", peer.decode(peer.next()).get(":status"));
+        assertEquals(DATA, peer.next().type);
+
+        // The first request has been answered, but the client has not ended it yet
+        peer.send(HEADERS, END_HEADERS, 3, peer.block("/second"));
+
+        Frame reset = peer.next();
+
+        assertEquals(RST_STREAM, reset.type);
+        assertEquals(3, reset.streamId);
+        assertEquals(REFUSED_STREAM, int32(reset.payload, 0));
+
+        peer.send(DATA, END_STREAM, 1, new byte[0]);
+        peer.request(5, "/third");
+        assertEquals("200", peer.decode(peer.next()).get(":status"));
+    }
+
+    @Test
+    void testHeaderListTooLarge() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer, 200, 100);
+
+        peer.request(1, "/", "x-large", "a".repeat(300));
+
+        Frame headers = peer.next();
+
+        assertEquals(HEADERS, headers.type);
+        assertEquals(END_STREAM | END_HEADERS, headers.flags);
+        assertEquals("431", peer.decode(headers).get(":status"));
+    }
+
+    @Test
+    void testServerStreamIdentifier() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.request(2, "/");
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testCompressionError() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(HEADERS, END_STREAM | END_HEADERS, 1, new byte[] {(byte) 0xbf});
+
+        peer.assertGoAway(0, COMPRESSION_ERROR);
+    }
+
+    @Test
+    void testFrameTooLarge() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(DATA, 0, 1, new byte[16385]);
+
+        peer.assertGoAway(0, FRAME_SIZE_ERROR);
+    }
+
+    @Test
+    void testPushPromiseRejected() throws Exception {
+        Peer peer = Peer.start(Http2ConnectionTest::answer);
+
+        peer.send(PUSH_PROMISE, END_HEADERS, 1, new byte[4]);
+
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testInvalidPreface() throws Exception {
+        Peer peer = new Peer(Http2ConnectionTest::answer, 8192, 100, null, null);
+
+        peer.input.send("XX\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(SETTINGS, peer.next().type);
+        peer.assertGoAway(0, PROTOCOL_ERROR);
+    }
+
+    @Test
+    void testGoAwayFromClient() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/last");
+
+        Http2Connection.ResponseStream stream = held.take();
+
+        // The stream which has already been opened is still answered
+        peer.send(GOAWAY, 0, 0, new byte[8]);
+        respondLater(stream, "bye".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(HEADERS, peer.next().type);
+        peer.assertData(1, "bye", END_STREAM);
+
+        peer.server.join(5000);
+        assertFalse(peer.server.isAlive());
+    }
+
+    @Test
+    void testUpgrade() throws Exception {
+        Held held = new Held();
+        HttpRequest upgrade = new HttpRequest("GET", "/upgraded", "HTTP/1.0", Map.of("host", "localhost"),
+                                              Map.of(), Map.of());
+        Peer peer = new Peer(held, 8192, 100, upgrade, setting(SETTINGS_INITIAL_WINDOW_SIZE, 5));
+
+        // The upgrade request is answered as stream 1, with the settings of the upgrade applied
+        assertSame(upgrade, held.requests.poll(5, TimeUnit.SECONDS));
+
+        Frame settings = peer.next();
+
+        assertEquals(SETTINGS, settings.type);
+        assertEquals(0, settings.flags);
+
+        respondLater(held.take(), "123456789".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(HEADERS, peer.next().type);
+        peer.assertData(1, "12345", 0);
+
+        peer.input.send(Http2Connection.PREFACE);
+        peer.send(SETTINGS, 0, 0, new byte[0]);
+        assertEquals(ACK, peer.next().flags);
+
+        peer.send(WINDOW_UPDATE, 0, 1, int32(4));
+        peer.assertData(1, "6789", END_STREAM);
+
+        // The next stream of the client is 3
+        peer.request(3, "/next");
+        assertEquals("/next", held.requests.poll(5, TimeUnit.SECONDS).getPath());
+    }
+
+    @Test
+    void testRefuse() throws Exception {
+        ServerOutput output = new ServerOutput();
+
+        new Http2Connection(new ClientInput(), output, Http2ConnectionTest::answer, 8192, 100, 5000).refuse();
+
+        List<Frame> frames = output.drain();
+
+        assertEquals(2, frames.size());
+        assertEquals(SETTINGS, frames.get(0).type);
+        assertEquals(GOAWAY, frames.get(1).type);
+        assertEquals(0, int32(frames.get(1).payload, 0));
+        assertEquals(REFUSED_STREAM, int32(frames.get(1).payload, 4));
+    }
+
+    @Test
+    void testClosedConnectionResetsStreams() throws Exception {
+        Held held = new Held();
+        Peer peer = Peer.start(held);
+
+        peer.request(1, "/abandoned");
+
+        Http2Connection.ResponseStream stream = held.take();
+
+        assertTrue(peer.finish().isEmpty());
+
+        // The response is dropped, the connection is gone
+        respond(stream, "gone".getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(peer.output.drain().isEmpty());
+    }
+
+    static class Frame {
+
+        final int type;
+
+        final int flags;
+
+        final int streamId;
+
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The bytes sent by the client, read by the connection. Ends once {@link #end()} is called.
+     */
+    static class ClientInput extends InputStream {
+
+        static final byte[] END = new byte[0];
+
+        final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+        byte[] chunk = new byte[0];
+
+        int position;
+
+        void send(byte[] bytes) {
+            chunks.add(bytes.clone());
+        }
+
+        void end() {
+            chunks.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunk != END && position == chunk.length) {
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+
+                position = 0;
+            }
+
+            if (chunk == END) {
+                return -1;
+            }
+
+            int n = Math.min(len, chunk.length - position);
+
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+
+            return n;
+        }
+    }
+
+    /**
+     * The bytes written by the connection, split into frames as soon as they are complete.
+     */
+    static class ServerOutput extends OutputStream {
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+
+            byte[] bytes = buffer.toByteArray();
+            int start = 0;
+
+            while (bytes.length - start >= 9) {
+                int length = (bytes[start] & 0xff) << 16 | (bytes[start + 1] & 0xff) << 8 | bytes[start + 2] & 0xff;
+
+                if (bytes.length - start < 9 + length) {
+                    break;
+                }
+
+                frames.add(new Frame(bytes[start + 3] & 0xff, bytes[start + 4] & 0xff,
+                                     int32(bytes, start + 5) & 0x7fffffff,
+                                     Arrays.copyOfRange(bytes, start + 9, start + 9 + length)));
+                start += 9 + length;
+            }
+
+            buffer.reset();
+            buffer.write(bytes, start, bytes.length - start);
+        }
+
+        List<Frame> drain() {
+            List<Frame> drained = new java.util.ArrayList<>();
+
+            frames.drainTo(drained);
+
+            return drained;
+        }
+    }
+
+    /**
+     * Keeps the streams, so the test decides when and how they are answered.
+     */
+    static class Held implements Http2Connection.StreamHandler {
+
+        final BlockingQueue<HttpRequest> requests = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<Http2Connection.ResponseStream> streams = new LinkedBlockingQueue<>();
+
+        @Override
+        public boolean handle(HttpRequest request, Http2Connection.ResponseStream stream) {
+            requests.add(request);
+            streams.add(stream);
+
+            return true;
+        }
+
+        Http2Connection.ResponseStream take() throws InterruptedException {
+            Http2Connection.ResponseStream stream = streams.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(stream, "No stream has been opened.");
+
+            return stream;
+        }
+    }
+
+    /**
+     * The client side of a connection served on a thread of its own.
+     */
+    static class Peer {
+
+        final ClientInput input = new ClientInput();
+
+        final ServerOutput output = new ServerOutput();
+
+        final Hpack.Encoder encoder = new Hpack.Encoder();
+
+        final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        final Thread server;
+
+        Peer(Http2Connection.StreamHandler handler, int maxHeaderListSize, int maxStreams, HttpRequest upgrade,
+             byte[] settings) {
+            Http2Connection connection = new Http2Connection(input, output, handler, maxHeaderListSize, maxStreams,
+                                                             5000);
+
+            server = new Thread(() -> connection.serve(upgrade, settings));
+            server.setDaemon(true);
+            server.start();
+        }
+
+        static Peer start(Http2Connection.StreamHandler handler) throws InterruptedException {
+            return start(handler, 8192, 100);
+        }
+
+        static Peer start(Http2Connection.StreamHandler handler, int maxHeaderListSize, int maxStreams)
+                throws InterruptedException {
+            Peer peer = new Peer(handler, maxHeaderListSize, maxStreams, null, null);
+
+            // The first bytes of the preface have already been read as an HTTP/1.x request
+            peer.input.send(Arrays.copyOfRange(Http2Connection.PREFACE, Http2Connection.PREFACE_REQUEST_LENGTH,
+                                               Http2Connection.PREFACE.length));
+            peer.send(SETTINGS, 0, 0, new byte[0]);
+
+            Frame settings = peer.next();
+
+            assertEquals(SETTINGS, settings.type);
+            assertEquals(0, settings.flags);
+
+            Frame ack = peer.next();
+
+            assertEquals(SETTINGS, ack.type);
+            assertEquals(ACK, ack.flags);
+
+            return peer;
+        }
+
+        void send(int type, int flags, int streamId, byte[] payload) {
+            input.send(frame(type, flags, streamId, payload));
+        }
+
+        byte[] encode(String... fields) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+            for (int i = 0; i < fields.length; i += 2) {
+                encoder.encode(fields[i], fields[i + 1], true, block);
+            }
+
+            return block.toByteArray();
+        }
+
+        byte[] block(String path, String... headers) {
+            String[] fields = new String[8 + headers.length];
+
+            System.arraycopy(new String[] {":method", "GET", ":scheme", "http", ":path", path,
+                                           ":authority", "localhost"}, 0, fields, 0, 8);
+            System.arraycopy(headers, 0, fields, 8, headers.length);
+
+            return encode(fields);
+        }
+
+        void request(int streamId, String path, String... headers) {
+            send(HEADERS, END_STREAM | END_HEADERS, streamId, block(path, headers));
+        }
+
+        Map<String, String> decode(Frame headers) throws Hpack.HpackException {
+            Map<String, String> fields = new HashMap<>();
+
+            decoder.decode(headers.payload, headers.payload.length, fields::put);
+
+            return fields;
+        }
+
+        Frame next() throws InterruptedException {
+            Frame frame = output.frames.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(frame, "No frame has been sent.");
+
+            return frame;
+        }
+
+        void assertSilent() throws InterruptedException {
+            assertNull(output.frames.poll(200, TimeUnit.MILLISECONDS));
+        }
+
+        void assertData(int streamId, String data, int flags) throws InterruptedException {
+            Frame frame = next();
+
+            assertEquals(DATA, frame.type);
+            assertEquals(streamId, frame.streamId);
+            assertEquals(flags, frame.flags);
+            assertEquals(data, new String(frame.payload, StandardCharsets.ISO_8859_1));
+        }
+
+        int readData(int streamId, int length) throws InterruptedException {
+            int read = 0;
+
+            while (read < length) {
+                Frame frame = next();
+
+                assertEquals(DATA, frame.type);
+                assertEquals(streamId, frame.streamId);
+                assertTrue(frame.payload.length <= 16384);
+
+                read += frame.payload.length;
+            }
+
+            return read;
+        }
+
+        void assertWindowUpdate(int streamId, int increment) throws InterruptedException {
+            Frame frame = next();
+
+            assertEquals(WINDOW_UPDATE, frame.type);
+            assertEquals(streamId, frame.streamId);
+            assertEquals(increment, int32(frame.payload, 0));
+        }
+
+        void assertGoAway(int lastStreamId, int errorCode) throws InterruptedException {
+            Frame frame = next();
+
+            assertEquals(GOAWAY, frame.type);
+            assertEquals(0, frame.streamId);
+            assertEquals(lastStreamId, int32(frame.payload, 0));
+            assertEquals(errorCode, int32(frame.payload, 4));
+
+            server.join(5000);
+            assertFalse(server.isAlive());
+        }
+
+        List<Frame> finish() throws InterruptedException {
+            input.end();
+            server.join(5000);
+            assertFalse(server.isAlive());
+
+            return output.drain();
+        }
+    }
+}
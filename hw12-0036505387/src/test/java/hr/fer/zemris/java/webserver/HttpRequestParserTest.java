@@ -0,0 +1,193 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRequestParserTest {
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns at most one byte per read, as a slow client would send them.
+     */
+    static InputStream trickle(String s) {
+        return new ByteArrayInputStream(bytes(s)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    void testRequest() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        HttpRequest request = parser.read(new ByteArrayInputStream(bytes(
+                "GET /calc?a=1&b=two+words&c=%C5%A1&d HTTP/1.1\r\n" +
+                "Host: localhost:5721\r\n" +
+                "Accept:   text/html  \r\n" +
+                "Cookie: sid=\"ABC\"; theme=dark\r\n" +
+                "\r\n")));
+
+        assertEquals("GET", request.getMethod());
+        assertEquals("/calc", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals(Map.of("a", "1", "b", "two words", "c", "š", "d", ""), request.getParameters());
+        assertEquals("localhost:5721", request.getHeader("Host"));
+        assertEquals("text/html", request.getHeader("accept"));
+        assertEquals(Map.of("sid", "ABC", "theme", "dark"), request.getCookies());
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    void testRepeatedAndMultilineHeaders() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        HttpRequest request = parser.read(new ByteArrayInputStream(bytes(
+                "GET / HTTP/1.1\r\n" +
+                "Accept: text/html\r\n" +
+                "Accept: text/plain\r\n" +
+                "Cookie: a=1\r\n" +
+                "Cookie: b=2\r\n" +
+                "X-Long: first\r\n" +
+                "\tsecond\r\n" +
+                "\r\n")));
+
+        assertEquals("text/html, text/plain", request.getHeader("accept"));
+        assertEquals(Map.of("a", "1", "b", "2"), request.getCookies());
+        assertEquals("first second", request.getHeader("x-long"));
+    }
+
+    @Test
+    void testSplitInput() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        HttpRequest request = parser.read(trickle("GET /split HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+
+        assertEquals("/split", request.getPath());
+        assertEquals("localhost", request.getHeader("host"));
+    }
+
+    @Test
+    void testHeaderCompletedByLaterBytes() {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        byte[] header = bytes("GET /split HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+        for (int i = 0; i < header.length - 1; i++) {
+            parser.getBuffer().put(header[i]);
+            assertNull(parser.next());
+        }
+
+        parser.getBuffer().put(header[header.length - 1]);
+
+        assertEquals("/split", parser.next().getPath());
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    void testPipelinedRequests() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        InputStream input = new ByteArrayInputStream(bytes("GET /first HTTP/1.1\r\n\r\n" +
+                                                           "GET /second HTTP/1.1\r\nHost: b\r\n\r\n" +
+                                                           "GET /third HT"));
+
+        assertEquals("/first", parser.read(input).getPath());
+        assertTrue(parser.hasBufferedBytes());
+
+        // Already buffered, so nothing more is read
+        HttpRequest second = parser.next();
+
+        assertEquals("/second", second.getPath());
+        assertEquals("b", second.getHeader("host"));
+        assertNull(parser.next());
+        assertNull(parser.read(input)); // The stream ends within the third header
+        assertArrayEquals(bytes("GET /third HT"), parser.takeBufferedBytes());
+        assertFalse(parser.hasBufferedBytes());
+    }
+
+    @Test
+    void testBytesAfterHeaderKept() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+
+        parser.read(new ByteArrayInputStream(bytes("POST /upload HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody")));
+
+        assertArrayEquals(bytes("body"), parser.takeBufferedBytes());
+    }
+
+    @Test
+    void testHeaderTooLarge() {
+        HttpRequestParser parser = new HttpRequestParser(64);
+        InputStream input = new ByteArrayInputStream(bytes("GET / HTTP/1.1\r\nX-Large: " + "a".repeat(100)
+                                                           + "\r\n\r\n"));
+
+        HttpRequestParserException e = assertThrows(HttpRequestParserException.class, () -> parser.read(input));
+
+        assertEquals(431, e.getStatusCode());
+    }
+
+    @Test
+    void testHeaderOfMaximumSize() throws IOException {
+        String header = "GET / HTTP/1.1\r\nX-Fill: ";
+
+        header += "a".repeat(64 - header.length() - 4) + "\r\n\r\n";
+
+        assertEquals(64, header.length());
+        assertEquals("GET", new HttpRequestParser(64).read(trickle(header)).getMethod());
+    }
+
+    @Test
+    void testPipelinedHeaderTooLarge() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(64);
+        String first = "GET /first HTTP/1.1\r\n\r\n";
+        InputStream input = new ByteArrayInputStream(bytes(first + "GET /second HTTP/1.1\r\nX: " + "a".repeat(64)));
+
+        assertEquals("/first", parser.read(input).getPath());
+
+        HttpRequestParserException e = assertThrows(HttpRequestParserException.class, () -> parser.read(input));
+
+        assertEquals(431, e.getStatusCode());
+    }
+
+    @Test
+    void testInvalidHeaders() {
+        for (String header : new String[] {"GET\r\n\r\n", "GET /\r\n\r\n", " / HTTP/1.1\r\n\r\n",
+                                           "GET / HTTP/1.1\r\nNo colon\r\n\r\n",
+                                           "GET / HTTP/1.1\r\n: empty name\r\n\r\n",
+                                           "GET / HTTP/1.1\r\n continued\r\n\r\n"}) {
+            HttpRequestParser parser = new HttpRequestParser(1024);
+            HttpRequestParserException e = assertThrows(HttpRequestParserException.class,
+                                                        () -> parser.read(new ByteArrayInputStream(bytes(header))),
+                                                        header);
+
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+
+    @Test
+    void testEmptyStream() throws IOException {
+        assertNull(new HttpRequestParser(1024).read(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    void testParseFields() {
+        HttpRequestParser parser = new HttpRequestParser(32);
+        HttpRequest request = parser.parse("GET", "/calc?a=1", "HTTP/2", Map.of("cookie", "sid=XYZ"));
+
+        assertEquals("/calc", request.getPath());
+        assertEquals(Map.of("a", "1"), request.getParameters());
+        assertEquals(Map.of("sid", "XYZ"), request.getCookies());
+
+        HttpRequestParserException e = assertThrows(HttpRequestParserException.class,
+                                                    () -> parser.parse("GET", "/" + "a".repeat(32), "HTTP/2",
+                                                                       Map.of()));
+
+        assertEquals(414, e.getStatusCode());
+    }
+}
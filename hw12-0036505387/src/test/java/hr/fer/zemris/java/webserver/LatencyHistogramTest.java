@@ -0,0 +1,128 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 32,
+                   "Expected " + expected + " up to 1/32 more, was " + actual + ".");
+    }
+
+    @Test
+    void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getQuantile(0.5));
+        assertEquals(0, histogram.getQuantile(1));
+    }
+
+    @Test
+    void testTotals() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(10);
+        histogram.record(2000);
+        histogram.record(300);
+        histogram.record(-5); // Counted as zero
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(2310, histogram.getSum());
+        assertEquals(2000, histogram.getMax());
+        assertEquals(0, histogram.getQuantile(0));
+    }
+
+    @Test
+    void testSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int value = 1; value <= 31; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(1, histogram.getQuantile(0));
+        assertEquals(16, histogram.getQuantile(0.5));
+        assertEquals(28, histogram.getQuantile(0.9));
+        assertEquals(31, histogram.getQuantile(1));
+    }
+
+    @Test
+    void testQuantilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+
+        assertWithinBucket(50_000, histogram.getQuantile(0.5));
+        assertWithinBucket(90_000, histogram.getQuantile(0.9));
+        assertWithinBucket(99_000, histogram.getQuantile(0.99));
+        assertWithinBucket(99_900, histogram.getQuantile(0.999));
+        assertEquals(100_000, histogram.getQuantile(1)); // Never above the largest value
+    }
+
+    @Test
+    void testQuantilesOfSkewedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 990; i++) {
+            histogram.record(100);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1_000_000);
+        }
+
+        assertWithinBucket(100, histogram.getQuantile(0.5));
+        assertWithinBucket(100, histogram.getQuantile(0.99));
+        assertWithinBucket(1_000_000, histogram.getQuantile(0.991));
+        assertEquals(1_000_000, histogram.getQuantile(1));
+    }
+
+    @Test
+    void testValuesAboveRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(1L << 40);
+        histogram.record(Long.MAX_VALUE / 2);
+
+        // Both are counted in the last bucket, which ends at 2^37 - 1
+        assertEquals((1L << 37) - 1, histogram.getQuantile(0.5));
+        assertEquals((1L << 37) - 1, histogram.getQuantile(1));
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+    }
+
+    @Test
+    void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int value = 1; value <= 10_000; value++) {
+                    histogram.record(value);
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(4 * 50_005_000L, histogram.getSum());
+        assertEquals(10_000, histogram.getMax());
+        assertWithinBucket(5_000, histogram.getQuantile(0.5));
+    }
+}
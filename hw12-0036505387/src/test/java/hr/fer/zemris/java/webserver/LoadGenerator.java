@@ -0,0 +1,518 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Starts a {@link SmartHttpServer} on localhost with the given configuration and measures the throughput and the
+ * latency of its routes: the static files, {@code /hello}, {@code /cw}, {@code /calc} and every Smart Script in the
+ * document root.
+ *
+ * Every route is measured in two ways. The closed loop keeps a fixed number of persistent connections busy, each
+ * sending its next request as soon as the previous one is answered, which measures the maximum throughput. The open
+ * loop sends requests at a fixed rate, regardless of how quickly they are answered, and measures each latency from
+ * the moment the request should have been sent, so that a stalled server cannot hide its stalls by slowing down the
+ * clients. Requests which could not be sent before the end of the measurement are counted as errors.
+ *
+ * Arguments are given as {@code key=value} pairs:
+ * <ul>
+ *     <li>{@code config} - the path to the server configuration, {@code ./config/server.properties} by default</li>
+ *     <li>{@code mode} - {@code closed}, {@code open} or {@code both} (the default)</li>
+ *     <li>{@code connections} - the number of connections, 16 by default</li>
+ *     <li>{@code duration} - the number of seconds each route is measured for, 10 by default</li>
+ *     <li>{@code warmup} - the number of seconds each route is warmed up for, 3 by default</li>
+ *     <li>{@code rate} - the number of requests per second sent by the open loop, 1000 by default</li>
+ *     <li>{@code routes} - a comma separated list of paths which replaces the default routes</li>
+ * </ul>
+ *
+ * The generator is kept with the tests, so it is not packaged with the server. It is run from the test classes, after
+ * {@code mvn test-compile}, with {@code java -cp target/classes:target/test-classes
+ * hr.fer.zemris.java.webserver.LoadGenerator}.
+ *
+ * @author Marko Lazarić
+ */
+public class LoadGenerator {
+
+    /**
+     * The host the server is reached at.
+     */
+    private static final String HOST = "127.0.0.1";
+
+    /**
+     * The port of the server.
+     */
+    private final int port;
+
+    /**
+     * The number of connections.
+     */
+    private final int connections;
+
+    /**
+     * The number of nanoseconds each route is measured for.
+     */
+    private final long duration;
+
+    /**
+     * The number of nanoseconds each route is warmed up for.
+     */
+    private final long warmup;
+
+    /**
+     * The number of requests per second sent by the open loop.
+     */
+    private final int rate;
+
+    /**
+     * Creates a new {@link LoadGenerator} with the given arguments.
+     *
+     * @param port the port of the server
+     * @param connections the number of connections
+     * @param duration the number of seconds each route is measured for
+     * @param warmup the number of seconds each route is warmed up for
+     * @param rate the number of requests per second sent by the open loop
+     */
+    public LoadGenerator(int port, int connections, int duration, int warmup, int rate) {
+        this.port = port;
+        this.connections = connections;
+        this.duration = TimeUnit.SECONDS.toNanos(duration);
+        this.warmup = TimeUnit.SECONDS.toNanos(warmup);
+        this.rate = rate;
+    }
+
+    /**
+     * Measures a route with a closed loop.
+     *
+     * @param path the path of the route
+     * @return the result of the measurement
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the connections
+     */
+    public Result closedLoop(String path) throws InterruptedException {
+        run(path, warmup, null, new Result());
+
+        return run(path, duration, null, new Result());
+    }
+
+    /**
+     * Measures a route with an open loop.
+     *
+     * @param path the path of the route
+     * @return the result of the measurement
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the connections
+     */
+    public Result openLoop(String path) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        run(path, warmup, interval, new Result());
+
+        return run(path, duration, interval, new Result());
+    }
+
+    /**
+     * Sends requests for the route over all of the connections for the given time.
+     *
+     * @param path the path of the route
+     * @param time the number of nanoseconds to send requests for
+     * @param interval the number of nanoseconds between two requests of the open loop, {@code null} for the closed
+     *                 loop
+     * @param result the result to record the requests to
+     * @return the result of the measurement
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the connections
+     */
+    private Result run(String path, long time, Long interval, Result result) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + time;
+        AtomicLong tickets = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(() -> {
+                try (Client client = new Client(port, path)) {
+                    while (true) {
+                        long scheduled = System.nanoTime();
+
+                        if (interval != null) { // Every request has its own slot, whether or not it is late
+                            scheduled = start + tickets.getAndIncrement() * interval;
+
+                            while (System.nanoTime() < scheduled) {
+                                LockSupport.parkNanos(scheduled - System.nanoTime());
+                            }
+                        }
+
+                        if (scheduled >= end) {
+                            return;
+                        }
+
+                        if (System.nanoTime() >= end) { // The server has fallen too far behind to send it in time
+                            result.record(false, 0);
+                            continue;
+                        }
+
+                        boolean ok = client.request();
+
+                        result.record(ok, System.nanoTime() - scheduled);
+                    }
+                }
+            }, "load-" + i);
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        result.elapsed = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * Models the result of measuring a route.
+     *
+     * @author Marko Lazarić
+     */
+    public static class Result {
+
+        /**
+         * The latencies of the successful requests.
+         */
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        /**
+         * The number of failed requests.
+         */
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * The number of nanoseconds the measurement took.
+         */
+        private long elapsed;
+
+        /**
+         * Records a request.
+         *
+         * @param ok whether the request was successful
+         * @param nanos the latency of the request in nanoseconds
+         */
+        private void record(boolean ok, long nanos) {
+            if (ok) {
+                latencies.record(nanos / 1000);
+            }
+            else {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsed / 1e9;
+
+            return String.format(Locale.ROOT, "%9d %7d %11.1f %9.3f %9.3f %9.3f %9.3f",
+                                 latencies.getCount(), errors.sum(), latencies.getCount() / seconds,
+                                 latencies.getQuantile(0.5) / 1e3, latencies.getQuantile(0.99) / 1e3,
+                                 latencies.getQuantile(0.999) / 1e3, latencies.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Models a persistent connection to the server which keeps requesting the same path. The connection is opened
+     * again whenever the server closes it, and it keeps the session cookie like a browser would.
+     *
+     * @author Marko Lazarić
+     */
+    private static class Client implements AutoCloseable {
+
+        /**
+         * The port of the server.
+         */
+        private final int port;
+
+        /**
+         * The request which is sent.
+         */
+        private final String path;
+
+        /**
+         * The session cookie, {@code null} until the server sets it.
+         */
+        private String cookie;
+
+        /**
+         * The connection, {@code null} if it is closed.
+         */
+        private Socket socket;
+
+        /**
+         * The input stream of the connection.
+         */
+        private InputStream is;
+
+        /**
+         * The output stream of the connection.
+         */
+        private OutputStream os;
+
+        /**
+         * Creates a new {@link Client} with the given arguments.
+         *
+         * @param port the port of the server
+         * @param path the path which is requested
+         */
+        private Client(int port, String path) {
+            this.port = port;
+            this.path = path;
+        }
+
+        /**
+         * Sends the request and reads the whole response.
+         *
+         * @return whether the response was successful
+         */
+        private boolean request() {
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(HOST, port));
+                    is = new BufferedInputStream(socket.getInputStream(), 65536);
+                    os = socket.getOutputStream();
+                }
+
+                String request = "GET " + path + " HTTP/1.1\r\nHost: " + HOST + "\r\n" +
+                                 (cookie == null ? "" : "Cookie: " + cookie + "\r\n") + "\r\n";
+
+                os.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                os.flush();
+
+                return readResponse();
+            } catch (IOException e) {
+                close();
+
+                return false;
+            }
+        }
+
+        /**
+         * Reads the response, closing the connection if the server does not keep it alive.
+         *
+         * @return whether the response was successful
+         *
+         * @throws IOException if an error occurs while reading the response
+         */
+        private boolean readResponse() throws IOException {
+            String statusLine = readLine();
+            Map<String, String> headers = new HashMap<>();
+            String line;
+
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).strip().toLowerCase(), line.substring(colon + 1).strip());
+                }
+            }
+
+            String setCookie = headers.get("set-cookie");
+
+            if (setCookie != null) {
+                cookie = setCookie.split(";")[0];
+            }
+
+            boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+
+            if (headers.containsKey("content-length")) {
+                skip(Long.parseLong(headers.get("content-length")));
+            }
+            else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                long size;
+
+                while ((size = Long.parseLong(readLine().split(";")[0].strip(), 16)) > 0) {
+                    skip(size + 2); // The chunk and its line terminator
+                }
+
+                readLine(); // The empty trailer
+            }
+            else { // The end of the body is marked by closing the connection
+                while (is.read() != -1) {
+                    is.skip(Long.MAX_VALUE);
+                }
+
+                keepAlive = false;
+            }
+
+            if (!keepAlive) {
+                close();
+            }
+
+            return statusLine.startsWith("HTTP/1.1 2") || statusLine.startsWith("HTTP/1.0 2");
+        }
+
+        /**
+         * Reads a line of the header, without its line terminator.
+         *
+         * @return the line which was read
+         *
+         * @throws IOException if an error occurs while reading or the connection is closed
+         */
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+
+            while ((b = is.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Connection closed.");
+                }
+
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+
+            return sb.toString();
+        }
+
+        /**
+         * Skips the given number of bytes of the body.
+         *
+         * @param count the number of bytes to skip
+         *
+         * @throws IOException if an error occurs while reading or the connection is closed
+         */
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = is.skip(count);
+
+                if (skipped <= 0) {
+                    if (is.read() == -1) {
+                        throw new IOException("Connection closed.");
+                    }
+
+                    skipped = 1;
+                }
+
+                count -= skipped;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the default routes: a few static files, the workers and every Smart Script in the document root which
+     * can be requested directly.
+     *
+     * @param documentRoot the document root of the server
+     * @return the default routes
+     *
+     * @throws IOException if an error occurs while looking for the scripts
+     */
+    private static List<String> defaultRoutes(Path documentRoot) throws IOException {
+        List<String> routes = new ArrayList<>(List.of("/index.html", "/sample.txt", "/fruits.png",
+                                                      "/hello", "/cw", "/calc?a=3&b=4"));
+
+        try (Stream<Path> files = Files.walk(documentRoot)) {
+            routes.addAll(files.filter(f -> f.getFileName().toString().endsWith(".smscr"))
+                               .map(f -> "/" + documentRoot.relativize(f).toString().replace('\\', '/'))
+                               .filter(p -> !p.startsWith("/private"))
+                               .sorted()
+                               .collect(Collectors.toList()));
+        }
+
+        return routes;
+    }
+
+    /**
+     * Starts the server and measures its routes.
+     *
+     * @param args the arguments as {@code key=value} pairs, see {@link LoadGenerator}
+     *
+     * @throws Exception if an error occurs while measuring the server
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new HashMap<>();
+
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+
+            if (keyValue.length != 2) {
+                System.out.println("Arguments are expected as key=value pairs, was: " + arg);
+                return;
+            }
+
+            arguments.put(keyValue[0], keyValue[1]);
+        }
+
+        String config = arguments.getOrDefault("config", "./config/server.properties");
+        String mode = arguments.getOrDefault("mode", "both");
+        Properties properties = new Properties();
+
+        try (InputStream is = Files.newInputStream(Paths.get(config))) {
+            properties.load(is);
+        }
+
+        List<String> routes = arguments.containsKey("routes")
+                              ? List.of(arguments.get("routes").split(","))
+                              : defaultRoutes(Paths.get(properties.getProperty("server.documentRoot")));
+        LoadGenerator generator = new LoadGenerator(Integer.parseInt(properties.getProperty("server.port")),
+                                                    Integer.parseInt(arguments.getOrDefault("connections", "16")),
+                                                    Integer.parseInt(arguments.getOrDefault("duration", "10")),
+                                                    Integer.parseInt(arguments.getOrDefault("warmup", "3")),
+                                                    Integer.parseInt(arguments.getOrDefault("rate", "1000")));
+        SmartHttpServer server = new SmartHttpServer(config);
+
+        server.start();
+        Thread.sleep(500); // Give the server thread time to bind
+
+        System.out.printf("Java %s, %d processors, %s, %s%n", System.getProperty("java.version"),
+                          Runtime.getRuntime().availableProcessors(), config, arguments);
+        System.out.printf("%-32s %-6s %9s %7s %11s %9s %9s %9s %9s%n", "route", "loop", "requests", "errors",
+                          "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+
+        for (String route : routes) {
+            if (!mode.equals("open")) {
+                System.out.printf("%-32s %-6s %s%n", route, "closed", generator.closedLoop(route));
+            }
+
+            if (!mode.equals("closed")) {
+                System.out.printf("%-32s %-6s %s%n", route, "open", generator.openLoop(route));
+            }
+        }
+
+        server.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,228 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedSessionStoreTest {
+
+    @TempDir
+    Path directory;
+
+    MappedSessionStore store(long timeout) {
+        return new MappedSessionStore(directory.resolve("sessions.dat"), timeout, 64, 256);
+    }
+
+    @Test
+    void testCreateAndGet() {
+        MappedSessionStore store = store(60_000);
+        SessionMapEntry entry = store.create("localhost");
+        SessionMapEntry found = store.get(entry.sid, "localhost");
+
+        assertEquals(entry.sid, found.sid);
+        assertEquals("localhost", found.host);
+        assertNull(store.get(entry.sid, "example.com"));
+        assertNull(store.get("NOSUCHSESSIONIDXXXXX", "localhost"));
+        assertNull(store.get("short", "localhost"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void testExpiredSessionNotReturned() throws InterruptedException {
+        MappedSessionStore store = store(20);
+        SessionMapEntry entry = store.create("localhost");
+
+        Thread.sleep(50);
+
+        assertNull(store.get(entry.sid, "localhost"));
+    }
+
+    @Test
+    void testGetExtends() throws InterruptedException {
+        MappedSessionStore store = store(200);
+        SessionMapEntry entry = store.create("localhost");
+
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            assertNotNull(store.get(entry.sid, "localhost"));
+        }
+    }
+
+    @Test
+    void testExpireUpdatesSize() {
+        long now = System.currentTimeMillis();
+        MappedSessionStore store = store(1000);
+
+        for (int i = 0; i < 10; i++) {
+            store.create("localhost");
+        }
+
+        assertEquals(10, store.size());
+
+        store.expire(now + 500);
+        assertEquals(10, store.size());
+
+        store.expire(now + 5000);
+        assertEquals(0, store.size());
+
+        // Freed slots are counted again once they are reused
+        store.create("localhost");
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void testEviction() {
+        MappedSessionStore store = new MappedSessionStore(directory.resolve("small.dat"), 60_000, 8, 256);
+
+        for (int i = 0; i < 20; i++) {
+            store.create("localhost");
+        }
+
+        // Every session may be stored in any of the slots, so the oldest ones are evicted
+        assertEquals(8, store.size());
+        assertEquals(12, store.getEvictions());
+    }
+
+    @Test
+    void testNoEvictionWhileSlotsFree() {
+        MappedSessionStore store = store(60_000);
+        List<SessionMapEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 48; i++) {
+            entries.add(store.create("localhost"));
+        }
+
+        for (SessionMapEntry entry : entries) {
+            assertNotNull(store.get(entry.sid, "localhost"));
+        }
+
+        assertEquals(48, store.size());
+        assertEquals(0, store.getEvictions());
+    }
+
+    @Test
+    void testExpireExtendedSession() throws InterruptedException {
+        long created = System.currentTimeMillis();
+        MappedSessionStore store = store(1000);
+        SessionMapEntry entry = store.create("localhost");
+
+        Thread.sleep(200);
+        assertNotNull(store.get(entry.sid, "localhost"));
+
+        store.expire(created + 1150);
+        assertEquals(1, store.size());
+        assertNotNull(store.get(entry.sid, "localhost"));
+
+        store.expire(created + 60_000);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testExpireSessionsOfOtherStores() {
+        long now = System.currentTimeMillis();
+        MappedSessionStore first = store(1000);
+        SessionMapEntry extended = first.create("localhost");
+
+        for (int i = 0; i < 4; i++) {
+            first.create("localhost");
+        }
+
+        // Sessions already in the file are expired by a store which opens it, as are the ones it extends
+        MappedSessionStore second = store(1000);
+
+        first.create("localhost");
+        second.get(extended.sid, "localhost");
+        assertEquals(6, second.size());
+
+        second.expire(now + 60_000);
+        assertEquals(1, second.size());
+        assertNull(first.get(extended.sid, "localhost"));
+
+        // The session created afterwards is expired by the store which created it
+        first.expire(now + 60_000);
+        assertEquals(0, second.size());
+    }
+
+    @Test
+    void testSharedBetweenStores() {
+        MappedSessionStore first = store(60_000);
+        SessionMapEntry entry = first.create("localhost");
+
+        entry.map.put("name", "value");
+
+        MappedSessionStore second = store(60_000);
+        SessionMapEntry found = second.get(entry.sid, "localhost");
+
+        assertEquals(Map.of("name", "value"), found.map);
+        assertEquals(1, second.size());
+
+        // Changes are merged with the ones made through the other store
+        found.map.put("other", "x");
+        entry.map.remove("name");
+
+        assertEquals(Map.of("other", "x"), first.get(entry.sid, "localhost").map);
+    }
+
+    @Test
+    void testDataTooLarge() {
+        SessionMapEntry entry = store(60_000).create("localhost");
+
+        assertThrows(IllegalArgumentException.class, () -> entry.map.put("large", "a".repeat(300)));
+        assertNull(entry.map.get("large"));
+    }
+
+    @Test
+    void testDifferentLayout() {
+        store(60_000);
+
+        assertThrows(RuntimeException.class,
+                     () -> new MappedSessionStore(directory.resolve("sessions.dat"), 60_000, 32, 256));
+        assertThrows(IllegalArgumentException.class,
+                     () -> new MappedSessionStore(directory.resolve("other.dat"), 60_000, 32, 100));
+    }
+
+    @Test
+    void testLockOfExitedProcessTakenOver() throws IOException, InterruptedException {
+        MappedSessionStore store = store(60_000);
+        SessionMapEntry entry = store.create("localhost");
+        Process process = new ProcessBuilder(ProcessHandle.current().info().command().orElseThrow(), "-version")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        process.waitFor();
+
+        try (FileChannel channel = FileChannel.open(directory.resolve("sessions.dat"), StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+
+            buffer.order(ByteOrder.nativeOrder());
+
+            // The header takes 64 bytes, the lock word starts a slot and the session ID follows at 16
+            for (int slot = 64; slot < buffer.capacity(); slot += 256) {
+                byte[] sid = new byte[SessionStore.SID_LENGTH];
+
+                buffer.position(slot + 16);
+                buffer.get(sid);
+
+                if (entry.sid.equals(new String(sid, StandardCharsets.ISO_8859_1))) {
+                    buffer.putLong(slot, process.pid() << 32 | 1);
+                }
+            }
+        }
+
+        assertNotNull(store.get(entry.sid, "localhost"));
+    }
+}
@@ -0,0 +1,278 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestContextTest {
+
+    static RequestContext context(ByteArrayOutputStream out) {
+        RequestContext context = new RequestContext(out, null, null, null);
+
+        context.setKeepAlive(true);
+        context.setChunkingAllowed(true);
+        context.setBuffering(true);
+
+        return context;
+    }
+
+    static String head(ByteArrayOutputStream out) {
+        String response = out.toString(StandardCharsets.ISO_8859_1);
+
+        return response.substring(0, response.indexOf("\r\n\r\n") + 4);
+    }
+
+    static byte[] body(ByteArrayOutputStream out) {
+        byte[] response = out.toByteArray();
+
+        return Arrays.copyOfRange(response, head(out).length(), response.length);
+    }
+
+    /**
+     * Returns the body of a response in the chunked transfer coding, checking that it ends with the last chunk.
+     */
+    static byte[] unchunk(byte[] chunked) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String s = new String(chunked, StandardCharsets.ISO_8859_1);
+        int position = 0;
+
+        while (true) {
+            int lineEnd = s.indexOf("\r\n", position);
+            int length = Integer.parseInt(s.substring(position, lineEnd), 16);
+
+            position = lineEnd + 2;
+
+            if (length == 0) {
+                assertEquals("\r\n", s.substring(position), "Nothing may follow the last chunk.");
+                return body.toByteArray();
+            }
+
+            assertTrue(length > 0);
+            body.write(chunked, position, length);
+            position += length;
+            assertEquals("\r\n", s.substring(position, position + 2));
+            position += 2;
+        }
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        try (input) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Test
+    void testGzipCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+        String text = "Hello, world! ".repeat(1000);
+
+        context.setCompression("gzip", Set.of("text/html"));
+        context.write(text);
+        context.finish();
+
+        String head = head(out);
+
+        assertTrue(head.contains("Content-Encoding: gzip\r\n"), head);
+        assertTrue(head.contains("Transfer-Encoding: chunked\r\n"), head);
+        assertFalse(head.contains("Content-Length"), head);
+        assertEquals(text, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(unchunk(body(out))))),
+                                      StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testDeflateCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+        String text = "Hello, world! ".repeat(1000);
+
+        context.setCompression("deflate", Set.of("text/html"));
+        context.write(text);
+        context.finish();
+        context.finish(); // Ends the compressor only once
+
+        assertTrue(head(out).contains("Content-Encoding: deflate\r\n"));
+        assertEquals(text, new String(readAll(new InflaterInputStream(new ByteArrayInputStream(unchunk(body(out))))),
+                                      StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testOtherTypesNotCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        context.setMimeType("image/png");
+        context.setCompression("gzip", Set.of("text/html"));
+        context.write(new byte[] {1, 2, 3});
+        context.finish();
+
+        assertFalse(head(out).contains("Content-Encoding"));
+        assertTrue(head(out).contains("Content-Length: 3\r\n"));
+        assertArrayEquals(new byte[] {1, 2, 3}, body(out));
+    }
+
+    @Test
+    void testBodylessResponsesNotCompressed() throws IOException {
+        for (int statusCode : new int[] {204, 304}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RequestContext context = context(out);
+
+            context.setStatusCode(statusCode);
+            context.setCompression("deflate", Set.of("text/html"));
+            context.writeHeader();
+            context.finish();
+
+            assertFalse(head(out).contains("Content-Encoding"), head(out));
+            assertFalse(head(out).contains("Transfer-Encoding"), head(out));
+            assertEquals(0, body(out).length);
+        }
+    }
+
+    @Test
+    void testEmptyBodyNotCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        // As an error without a body is sent
+        context.setStatusCode(404);
+        context.setContentLength(0L);
+        context.setCompression("gzip", Set.of("text/html"));
+        context.write("");
+        context.finish();
+
+        assertFalse(head(out).contains("Content-Encoding"), head(out));
+        assertTrue(head(out).contains("Content-Length: 0\r\n"), head(out));
+        assertEquals(0, body(out).length);
+    }
+
+    @Test
+    void testBufferedEmptyBodyNotCompressed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        context.setCompression("gzip", Set.of("text/html"));
+        context.write("");
+        context.finish();
+
+        assertFalse(head(out).contains("Content-Encoding"), head(out));
+        assertTrue(head(out).contains("Content-Length: 0\r\n"), head(out));
+        assertEquals(0, body(out).length);
+    }
+
+    @Test
+    void testBufferedBodySentWithLength() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        for (int i = 0; i < 100; i++) {
+            context.write("0123456789");
+        }
+
+        assertEquals(0, out.size(), "Nothing is written before the buffer fills up or the response finishes.");
+
+        context.finish();
+
+        String head = head(out);
+
+        assertTrue(head.contains("Content-Length: 1000\r\n"), head);
+        assertFalse(head.contains("Transfer-Encoding"), head);
+        assertTrue(head.contains("Connection: keep-alive\r\n"), head);
+        assertEquals("0123456789".repeat(100), new String(body(out), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testOverflowingBodyChunked() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+        String text = "0123456789".repeat(1000);
+
+        for (int i = 0; i < 1000; i++) {
+            context.write("0123456789");
+        }
+
+        context.finish();
+        context.finish(); // Writes the last chunk only once
+
+        String head = head(out);
+
+        assertTrue(head.contains("Transfer-Encoding: chunked\r\n"), head);
+        assertFalse(head.contains("Content-Length"), head);
+        assertTrue(head.contains("Connection: keep-alive\r\n"), head);
+        assertEquals(text, new String(unchunk(body(out)), StandardCharsets.UTF_8));
+        // The small writes are sent as a few large chunks rather than a chunk each
+        assertTrue(body(out).length < text.length() + 50, "Body of " + body(out).length + " bytes.");
+    }
+
+    @Test
+    void testLargeWriteChunked() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+        byte[] data = new byte[20_000];
+
+        Arrays.fill(data, (byte) 'x');
+        context.write("start");
+        context.write(data);
+        context.finish();
+
+        assertTrue(head(out).contains("Transfer-Encoding: chunked\r\n"), head(out));
+        assertEquals("start" + "x".repeat(20_000), new String(unchunk(body(out)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testHeaderWrittenEarlyChunked() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        context.write("before");
+        context.writeHeader();
+
+        assertTrue(head(out).contains("Transfer-Encoding: chunked\r\n"), head(out));
+
+        context.write("after");
+        context.finish();
+
+        assertEquals("beforeafter", new String(unchunk(body(out)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testEmptyChunkedBodyOnlyLastChunk() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+
+        context.writeHeader();
+        context.write("");
+        context.finish();
+
+        assertTrue(head(out).contains("Transfer-Encoding: chunked\r\n"), head(out));
+        assertEquals("0\r\n\r\n", new String(body(out), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testWithoutChunkingConnectionClosed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RequestContext context = context(out);
+        String text = "0123456789".repeat(1000);
+
+        context.setChunkingAllowed(false); // As for an HTTP/1.0 client
+        context.write(text);
+        context.finish();
+
+        String head = head(out);
+
+        assertFalse(head.contains("Transfer-Encoding"), head);
+        assertFalse(head.contains("Content-Length"), head);
+        assertTrue(head.contains("Connection: close\r\n"), head);
+        assertFalse(context.isKeepAlive());
+        assertEquals(text, new String(body(out), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,158 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    static ResponseCache.Response response(int statusCode, String body) {
+        return new ResponseCache.Response(statusCode, "Status", "text/plain", "UTF-8", Map.of(), List.of(),
+                                          body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String body(CompletionStage<ResponseCache.Response> response) {
+        return new String(response.toCompletableFuture().join().getBody(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testCachedResponseReused() {
+        ResponseCache cache = new ResponseCache(60, List.of("a"));
+        AtomicInteger generated = new AtomicInteger();
+        String key = cache.keyOf(Map.of("a", "1"), Map.of());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("first", body(cache.get(key, () -> {
+                generated.incrementAndGet();
+                return CompletableFuture.completedFuture(response(200, "first"));
+            }, Runnable::run)));
+        }
+
+        assertEquals(1, generated.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void testKeysSelectResponses() {
+        ResponseCache cache = new ResponseCache(60, List.of("a", "session.b"));
+
+        assertEquals(cache.keyOf(Map.of("a", "1", "c", "x"), Map.of("b", "2")),
+                     cache.keyOf(Map.of("a", "1"), Map.of("b", "2")));
+        assertNotEquals(cache.keyOf(Map.of("a", "1"), Map.of("b", "2")),
+                        cache.keyOf(Map.of("a", "1"), Map.of("b", "3")));
+        assertNotEquals(cache.keyOf(Map.of("a", ""), Map.of()), cache.keyOf(Map.of(), Map.of()));
+        assertNotEquals(cache.keyOf(Map.of("a", "1;2:"), Map.of()), cache.keyOf(Map.of("a", "1"), Map.of("b", "2:")));
+    }
+
+    @Test
+    void testUncacheableResponseNotReused() {
+        ResponseCache cache = new ResponseCache(60, List.of());
+        AtomicInteger generated = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            cache.get("", () -> CompletableFuture.completedFuture(response(404, "" + generated.incrementAndGet())),
+                      Runnable::run);
+        }
+
+        assertEquals(3, generated.get());
+    }
+
+    @Test
+    void testCoalescedRequestsWaitForLeader() {
+        ResponseCache cache = new ResponseCache(60, List.of());
+        CompletableFuture<ResponseCache.Response> leader = new CompletableFuture<>();
+        CompletionStage<ResponseCache.Response> first = cache.get("", () -> leader, Runnable::run);
+        CompletionStage<ResponseCache.Response> second = cache.get("", () -> {
+            throw new AssertionError("The response is already being generated.");
+        }, Runnable::run);
+
+        assertFalse(second.toCompletableFuture().isDone());
+
+        leader.complete(response(200, "shared"));
+
+        assertEquals("shared", body(first));
+        assertEquals("shared", body(second));
+    }
+
+    @Test
+    void testWaiterGeneratesOnOwnExecutor() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(60, List.of());
+        ExecutorService waiterExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "waiter"));
+        CompletableFuture<ResponseCache.Response> leader = new CompletableFuture<>();
+        AtomicReference<String> leaderThread = new AtomicReference<>();
+        AtomicReference<String> waiterThread = new AtomicReference<>();
+
+        CompletionStage<ResponseCache.Response> first = cache.get("", () -> {
+            leaderThread.set(Thread.currentThread().getName());
+            return leader;
+        }, Runnable::run);
+        CompletionStage<ResponseCache.Response> second = cache.get("", () -> {
+            waiterThread.set(Thread.currentThread().getName());
+            return CompletableFuture.completedFuture(response(200, "own"));
+        }, waiterExecutor);
+
+        // The leader's response turns out to set a cookie, so it is not shared
+        Thread completer = new Thread(() -> leader.complete(new ResponseCache.Response(
+                200, "OK", "text/plain", "UTF-8", Map.of(), List.of(new RequestContext.RCCookie("a", "b", null, null,
+                                                                                              null)),
+                "mine".getBytes(StandardCharsets.UTF_8))), "leader");
+
+        completer.start();
+        completer.join();
+
+        assertEquals("mine", body(first));
+        assertEquals("own", body(second));
+        assertEquals(Thread.currentThread().getName(), leaderThread.get());
+        assertEquals("waiter", waiterThread.get());
+        assertEquals(2, cache.getMisses());
+
+        waiterExecutor.shutdown();
+        assertTrue(waiterExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testRejectedWaiterFails() {
+        ResponseCache cache = new ResponseCache(60, List.of());
+        CompletableFuture<ResponseCache.Response> leader = new CompletableFuture<>();
+
+        cache.get("", () -> leader, Runnable::run);
+
+        CompletionStage<ResponseCache.Response> second = cache.get("", () -> {
+            throw new AssertionError("The executor has rejected the generator.");
+        }, task -> {
+            throw new RejectedExecutionException();
+        });
+
+        leader.complete(response(500, "error"));
+
+        CompletionException e = assertThrows(CompletionException.class, () -> second.toCompletableFuture().join());
+
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    void testFailedGeneratorNotCached() {
+        ResponseCache cache = new ResponseCache(60, List.of());
+
+        assertThrows(CompletionException.class, () -> cache.get("", () -> {
+            throw new IllegalStateException();
+        }, Runnable::run).toCompletableFuture().join());
+
+        assertEquals("second", body(cache.get("", () -> CompletableFuture.completedFuture(response(200, "second")),
+                                              Runnable::run)));
+    }
+}
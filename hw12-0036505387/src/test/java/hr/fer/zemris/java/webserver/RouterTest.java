@@ -0,0 +1,129 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouterTest {
+
+    static Router<String> router(String... patterns) {
+        Router<String> router = new Router<>();
+
+        for (String pattern : patterns) {
+            router.add(pattern, pattern);
+        }
+
+        return router;
+    }
+
+    static String route(Router<String> router, String path) {
+        Router.Match<String> match = router.match(path);
+
+        return match == null ? null : match.getValue();
+    }
+
+    @Test
+    void testExactRoutes() {
+        Router<String> router = router("/", "/hello", "/hello/world");
+
+        assertEquals(3, router.size());
+        assertEquals("/", route(router, "/"));
+        assertEquals("/hello", route(router, "/hello"));
+        assertEquals("/hello/world", route(router, "/hello/world"));
+        assertNull(route(router, "/hello/"));
+        assertNull(route(router, "/hello/world/again"));
+        assertNull(route(router, "/other"));
+        assertNull(route(router, ""));
+        assertNull(route(router, "hello"));
+    }
+
+    @Test
+    void testParameters() {
+        Router<String> router = router("/users/{id}/posts/{post}");
+        Router.Match<String> match = router.match("/users/42/posts/7");
+
+        assertEquals("/users/{id}/posts/{post}", match.getPattern());
+        assertEquals(Map.of("id", "42", "post", "7"), match.getParameters());
+        assertThrows(UnsupportedOperationException.class, () -> match.getParameters().put("id", "1"));
+
+        // Parameters only match non-empty segments
+        assertNull(router.match("/users//posts/7"));
+        assertNull(router.match("/users/42/posts/"));
+    }
+
+    @Test
+    void testLiteralBeforeParameter() {
+        Router<String> router = router("/users/{id}", "/users/me");
+
+        assertEquals("/users/me", route(router, "/users/me"));
+        assertEquals("/users/{id}", route(router, "/users/you"));
+        assertEquals(Map.of(), router.match("/users/me").getParameters());
+    }
+
+    @Test
+    void testParameterBeforePrefix() {
+        Router<String> router = router("/users/*", "/users/{id}");
+
+        assertEquals("/users/{id}", route(router, "/users/42"));
+        assertEquals("/users/*", route(router, "/users/42/posts"));
+        assertEquals(Map.of(), router.match("/users/42/posts").getParameters());
+    }
+
+    @Test
+    void testLiteralBacktracksToParameter() {
+        Router<String> router = router("/users/me/settings", "/users/{id}/posts");
+        Router.Match<String> match = router.match("/users/me/posts");
+
+        assertEquals("/users/{id}/posts", match.getPattern());
+        assertEquals(Map.of("id", "me"), match.getParameters());
+        assertEquals("/users/me/settings", route(router, "/users/me/settings"));
+    }
+
+    @Test
+    void testLongestPrefix() {
+        Router<String> router = router("/*", "/static/*", "/static/css/*");
+
+        assertEquals("/static/css/*", route(router, "/static/css/main.css"));
+        assertEquals("/static/*", route(router, "/static/js/main.js"));
+        assertEquals("/static/*", route(router, "/static/css"));
+        assertEquals("/*", route(router, "/index.html"));
+        assertEquals("/*", route(router, "/"));
+    }
+
+    @Test
+    void testPrefixNeedsAnotherSegment() {
+        Router<String> router = router("/files/*");
+
+        assertEquals("/files/*", route(router, "/files/a/b/c"));
+        assertEquals("/files/*", route(router, "/files/"));
+        assertNull(route(router, "/files"));
+    }
+
+    @Test
+    void testPrefixAfterParameter() {
+        Router<String> router = router("/users/{id}/*", "/users/{id}/posts");
+        Router.Match<String> match = router.match("/users/42/photos/1");
+
+        assertEquals("/users/{id}/*", match.getPattern());
+        assertEquals(Map.of("id", "42"), match.getParameters());
+        assertEquals("/users/{id}/posts", route(router, "/users/42/posts"));
+    }
+
+    @Test
+    void testInvalidPatterns() {
+        Router<String> router = router("/users/{id}", "/files/*");
+
+        assertThrows(IllegalArgumentException.class, () -> router.add("users", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/*/files", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/users/{id}", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/files/*", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/users/{name}", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/posts/{}", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("/posts/{id}/{id}", "x"));
+        assertThrows(NullPointerException.class, () -> router.add(null, "x"));
+        assertThrows(NullPointerException.class, () -> router.add("/x", null));
+        assertEquals(2, router.size());
+    }
+}
@@ -0,0 +1,328 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartHttpServerTest {
+
+    @TempDir
+    Path directory;
+
+    SmartHttpServer server;
+
+    int port;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Starts a server with the default configuration, serving files from a temporary directory, changed by the given
+     * properties.
+     */
+    void start(String... properties) throws IOException, InterruptedException {
+        Properties config = new Properties();
+
+        try (InputStream is = Files.newInputStream(Path.of("config/server.properties"))) {
+            config.load(is);
+        }
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        Path documentRoot = Files.createDirectories(directory.resolve("webroot"));
+
+        Files.writeString(documentRoot.resolve("a.txt"), "Hello from a file");
+
+        config.setProperty("server.port", Integer.toString(port));
+        config.setProperty("server.documentRoot", documentRoot.toString());
+        config.setProperty("server.compressionCache", directory.resolve("cache").toString());
+        config.setProperty("server.accessLog", "");
+        config.setProperty("session.store", "heap");
+
+        for (int i = 0; i < properties.length; i += 2) {
+            config.setProperty(properties[i], properties[i + 1]);
+        }
+
+        Path file = directory.resolve("server.properties");
+
+        try (OutputStream os = Files.newOutputStream(file)) {
+            config.store(os, null);
+        }
+
+        server = new SmartHttpServer(file.toString());
+        server.start();
+
+        // Waits until the server thread has bound its socket, with a whole request so that the connection does not
+        // wait to be accepted after the method returns
+        for (int attempt = 0; ; attempt++) {
+            try {
+                pipeline(get("/a.txt", true));
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Models a response read from a connection, whose header names are kept as they were sent.
+     */
+    static class Response {
+
+        int statusCode;
+
+        Map<String, String> headers = new LinkedHashMap<>();
+
+        String body;
+    }
+
+    static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        for (int b = input.read(); b != '\n'; b = input.read()) {
+            if (b == -1) {
+                throw new IOException("Connection closed in the middle of a line.");
+            }
+
+            line.write(b);
+        }
+
+        String s = line.toString(StandardCharsets.ISO_8859_1);
+
+        assertTrue(s.endsWith("\r"), "Lines end with CRLF.");
+        return s.substring(0, s.length() - 1);
+    }
+
+    /**
+     * Reads a single response, whose body is delimited by its length, the chunked transfer coding or the end of the
+     * connection.
+     */
+    static Response read(InputStream input) throws IOException {
+        Response response = new Response();
+        String statusLine = readLine(input);
+
+        response.statusCode = Integer.parseInt(statusLine.split(" ")[1]);
+
+        for (String line = readLine(input); !line.isEmpty(); line = readLine(input)) {
+            int colon = line.indexOf(':');
+
+            response.headers.put(line.substring(0, colon), line.substring(colon + 1).strip());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        if (response.headers.containsKey("Content-Length")) {
+            body.write(input.readNBytes(Integer.parseInt(response.headers.get("Content-Length"))));
+        } else if ("chunked".equals(response.headers.get("Transfer-Encoding"))) {
+            for (int length = Integer.parseInt(readLine(input), 16); length > 0;
+                 length = Integer.parseInt(readLine(input), 16)) {
+                body.write(input.readNBytes(length));
+                assertEquals("", readLine(input));
+            }
+
+            assertEquals("", readLine(input), "The last chunk ends the body.");
+        } else {
+            body.write(input.readAllBytes());
+        }
+
+        response.body = body.toString(StandardCharsets.UTF_8);
+        return response;
+    }
+
+    static String get(String path, boolean close) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n";
+    }
+
+    /**
+     * Sends the requests in a single write, without waiting for any of the responses.
+     */
+    List<Response> pipeline(String... requests) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write(String.join("", requests).getBytes(StandardCharsets.ISO_8859_1));
+
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            List<Response> responses = new ArrayList<>();
+
+            for (int i = 0; i < requests.length; i++) {
+                responses.add(read(input));
+            }
+
+            assertEquals(-1, input.read(), "The connection is closed after the last response.");
+            return responses;
+        }
+    }
+
+    void testPipelinedResponsesInOrder(String connectionMode) throws IOException, InterruptedException {
+        start("server.connectionMode", connectionMode);
+
+        // The slow response is the first one, so the others would overtake it if they were not kept in order
+        List<Response> responses = pipeline(get("/delay?ms=300", false), get("/a.txt", false),
+                                            get("/missing.txt", false), get("/hello", true));
+
+        assertEquals(List.of(200, 200, 404, 200), List.of(responses.get(0).statusCode, responses.get(1).statusCode,
+                                                          responses.get(2).statusCode, responses.get(3).statusCode));
+        assertTrue(responses.get(0).body.contains("Waited 300 ms."), responses.get(0).body);
+        assertEquals("Hello from a file", responses.get(1).body);
+        assertTrue(responses.get(3).body.contains("Hello!!!"), responses.get(3).body);
+        assertEquals("close", responses.get(3).headers.get("Connection"));
+    }
+
+    @Test
+    void testPipelinedResponsesInOrderBlocking() throws IOException, InterruptedException {
+        testPipelinedResponsesInOrder("blocking");
+    }
+
+    @Test
+    void testPipelinedResponsesInOrderNio() throws IOException, InterruptedException {
+        testPipelinedResponsesInOrder("nio");
+    }
+
+    @Test
+    void testMaxKeepAliveRequests() throws IOException, InterruptedException {
+        start("server.maxKeepAliveRequests", "2");
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write((get("/a.txt", false) + get("/a.txt", false) + get("/a.txt", false))
+                                                   .getBytes(StandardCharsets.ISO_8859_1));
+
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+
+            assertNotEquals("close", read(input).headers.get("Connection"));
+            assertEquals("close", read(input).headers.get("Connection"));
+            assertEquals(-1, input.read(), "The third request is not answered.");
+        }
+    }
+
+    /**
+     * Waits until every admitted task has finished. Tasks end only after closing their connection, so the client may
+     * notice the closed connection first.
+     */
+    void awaitIdle() throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+
+        while (server.getAdmittedTasks() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, server.getAdmittedTasks(), "Every permit has been released.");
+    }
+
+    /**
+     * Opens a connection which the server has certainly accepted, as it has already answered a request over it.
+     */
+    Socket accepted() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+
+        socket.setSoTimeout(10_000);
+        socket.getOutputStream().write(get("/a.txt", false).getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(200, read(new BufferedInputStream(socket.getInputStream())).statusCode);
+
+        return socket;
+    }
+
+    @Test
+    void testOverloadedServerAnswers503() throws IOException, InterruptedException {
+        // A single connection in blocking mode takes the only permit for as long as it is open
+        start("server.workerThreads", "1", "server.queueCapacity", "0", "server.retryAfter", "7");
+        awaitIdle();
+
+        try (Socket ignored = accepted()) {
+            Response rejected;
+
+            // Rejected right after it is accepted, so the request is not sent, which could otherwise be left unread
+            // and reset the connection before the response is read
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(10_000);
+                rejected = read(new BufferedInputStream(socket.getInputStream()));
+            }
+
+            assertEquals(503, rejected.statusCode);
+            assertEquals("7", rejected.headers.get("Retry-After"));
+            assertEquals("close", rejected.headers.get("Connection"));
+            assertEquals("", rejected.body);
+            assertEquals(1, server.getRejectedRequests());
+            assertEquals(1, server.getAdmittedTasks());
+        }
+
+        awaitIdle();
+        assertEquals(200, pipeline(get("/a.txt", true)).get(0).statusCode);
+    }
+
+    @Test
+    void testPermitReleasedOnErrors() throws IOException, InterruptedException {
+        start("server.workerThreads", "1", "server.queueCapacity", "0");
+        awaitIdle();
+
+        // A malformed request is answered with an error and its connection closed
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write("NOT A REQUEST\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals(400, read(new BufferedInputStream(socket.getInputStream())).statusCode);
+        }
+
+        awaitIdle();
+
+        // The client goes away in the middle of a header
+        try (Socket socket = accepted()) {
+            socket.getOutputStream().write("GET /a.txt HTTP/1.1\r\nHost: loc".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        awaitIdle();
+
+        // The client goes away before an asynchronous worker has finished its response
+        try (Socket socket = accepted()) {
+            socket.getOutputStream().write(get("/delay?ms=200", false).getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        Thread.sleep(400); // The connection does not take a permit while the worker is waiting
+        awaitIdle();
+        assertEquals(200, pipeline(get("/a.txt", true)).get(0).statusCode);
+        assertEquals(0, server.getRejectedRequests());
+    }
+
+    @Test
+    void testPermitReleasedOnTimeout() throws IOException, InterruptedException {
+        start("server.workerThreads", "1", "server.queueCapacity", "0", "server.headerTimeout", "1");
+        awaitIdle();
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write("GET /a.txt HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals(408, read(new BufferedInputStream(socket.getInputStream())).statusCode);
+        }
+
+        awaitIdle();
+        assertEquals(200, pipeline(get("/a.txt", true)).get(0).statusCode);
+        assertEquals(0, server.getRejectedRequests());
+    }
+}
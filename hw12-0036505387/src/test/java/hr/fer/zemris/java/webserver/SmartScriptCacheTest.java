@@ -0,0 +1,121 @@
+package hr.fer.zemris.java.webserver;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartScriptCacheTest {
+
+    @TempDir
+    Path directory;
+
+    Path script(String name, String text) throws IOException {
+        Path file = directory.resolve(name);
+
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, text);
+
+        return file;
+    }
+
+    @Test
+    void testCachedUntilModified() throws IOException {
+        Path file = script("a.smscr", "Hello {$= \"world\" $}");
+        SmartScriptCache cache = new SmartScriptCache(16);
+        DocumentNode first = cache.getDocumentNode(file);
+
+        assertSame(first, cache.getDocumentNode(file));
+        // Cached by the absolute path, however the file is referred to
+        assertSame(first, cache.getDocumentNode(directory.resolve("x/../a.smscr")));
+
+        Files.writeString(file, "Changed");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+
+        DocumentNode second = cache.getDocumentNode(file);
+
+        assertNotSame(first, second);
+        assertSame(second, cache.getDocumentNode(file));
+    }
+
+    @Test
+    void testOlderModificationTimeReparsed() throws IOException {
+        Path file = script("a.smscr", "Hello");
+        SmartScriptCache cache = new SmartScriptCache(16);
+        DocumentNode first = cache.getDocumentNode(file);
+
+        // Restored from a backup, for example, so the time only has to differ
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 60_000));
+
+        assertNotSame(first, cache.getDocumentNode(file));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEvicted() throws IOException {
+        Path a = script("a.smscr", "a");
+        Path b = script("b.smscr", "b");
+        Path c = script("c.smscr", "c");
+        SmartScriptCache cache = new SmartScriptCache(2);
+        DocumentNode nodeA = cache.getDocumentNode(a);
+        DocumentNode nodeB = cache.getDocumentNode(b);
+
+        cache.getDocumentNode(a); // Now b is the least recently used
+
+        DocumentNode nodeC = cache.getDocumentNode(c);
+
+        assertSame(nodeA, cache.getDocumentNode(a));
+        assertSame(nodeC, cache.getDocumentNode(c));
+        assertNotSame(nodeB, cache.getDocumentNode(b));
+    }
+
+    @Test
+    void testWithoutCapacityNotCached() throws IOException {
+        Path file = script("a.smscr", "a");
+        SmartScriptCache cache = new SmartScriptCache(0);
+
+        assertNotSame(cache.getDocumentNode(file), cache.getDocumentNode(file));
+    }
+
+    @Test
+    void testInvalidScriptNotCached() throws IOException {
+        Path file = script("a.smscr", "{$ FOR $}");
+        SmartScriptCache cache = new SmartScriptCache(16);
+
+        assertThrows(SmartScriptParserException.class, () -> cache.getDocumentNode(file));
+
+        Files.writeString(file, "Fixed");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+
+        assertNotNull(cache.getDocumentNode(file));
+    }
+
+    @Test
+    void testPrewarm() throws IOException {
+        Path a = script("a.smscr", "a");
+        Path b = script("dir/b.SMSCR", "b");
+
+        script("c.txt", "{$ FOR $}"); // Only scripts are parsed
+        script("dir/invalid.smscr", "{$ FOR $}"); // Skipped
+
+        SmartScriptCache cache = new SmartScriptCache(16);
+
+        cache.prewarm(directory);
+
+        // Broken without changing the modification time, so only a cached script can still be returned
+        for (Path file : new Path[] {a, b}) {
+            FileTime lastModified = Files.getLastModifiedTime(file);
+
+            Files.writeString(file, "{$ FOR $}");
+            Files.setLastModifiedTime(file, lastModified);
+
+            assertNotNull(cache.getDocumentNode(file));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package hr.fer.zemris.java.webserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticFileCacheTest {
+
+    @TempDir
+    Path root;
+
+    final FileMetadataCache metadata = new FileMetadataCache(16);
+
+    /**
+     * Creates a file of the given size. Files are created before the cache, whose watcher would otherwise drop them
+     * once it notices they have been created.
+     */
+    Path file(String name, int size) throws IOException {
+        Path file = root.resolve(name);
+
+        Files.createDirectories(file.getParent());
+        Files.write(file, "x".repeat(size).getBytes(StandardCharsets.ISO_8859_1));
+
+        return file;
+    }
+
+    StaticFileCache.Entry put(StaticFileCache cache, Path file) throws IOException {
+        FileMetadataCache.FileMetadata current = metadata.get(file);
+
+        return cache.put(file, false, file, "text/plain", current, current.getETag(), Map.of());
+    }
+
+    @Test
+    void testPutAndGet() throws IOException {
+        Path file = file("a.txt", 10);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+
+        assertNull(cache.get(file, false));
+
+        FileMetadataCache.FileMetadata current = metadata.get(file);
+        StaticFileCache.Entry entry = cache.put(file, true, file, "text/plain", current, "\"tag\"",
+                                                Map.of("Vary", "Accept-Encoding"));
+
+        assertSame(entry, cache.get(file, true));
+        assertNull(cache.get(file, false)); // A different representation
+        assertEquals(10, entry.getBody().remaining());
+        assertEquals("\"tag\"", entry.getETag());
+        assertFalse(entry.isEncoded());
+        assertEquals("Vary: Accept-Encoding\r\nETag: \"tag\"\r\nLast-Modified: " + current.getLastModifiedHeader()
+                     + "\r\n", new String(entry.getHeaderLines(), StandardCharsets.ISO_8859_1));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(10, cache.getSize());
+    }
+
+    @Test
+    void testBodyViewsIndependent() throws IOException {
+        Path file = file("a.txt", 10);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+        StaticFileCache.Entry entry = put(cache, file);
+        ByteBuffer first = entry.getBody();
+
+        first.get(new byte[5]);
+
+        assertEquals(10, entry.getBody().remaining());
+        assertThrows(ReadOnlyBufferException.class, () -> entry.getBody().put((byte) 0));
+    }
+
+    @Test
+    void testEncodedRepresentation() throws IOException {
+        Path file = file("a.txt", 10);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+        FileMetadataCache.FileMetadata current = metadata.get(file);
+
+        assertTrue(cache.put(file, true, file, "text/plain", current, current.getETag(),
+                             Map.of("Content-Encoding", "gzip")).isEncoded());
+    }
+
+    @Test
+    void testTooLargeNotCached() throws IOException {
+        Path file = file("large.txt", 101);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+
+        assertNull(put(cache, file));
+        assertNull(cache.get(file, false));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void testEvictionWithinBudget() throws IOException {
+        Path a = file("a.txt", 40);
+        Path b = file("b.txt", 40);
+        Path c = file("c.txt", 40);
+        StaticFileCache cache = new StaticFileCache(root, 100, 100);
+
+        put(cache, a);
+        put(cache, b);
+        cache.get(a, false); // Now b is the least recently used
+        put(cache, c);
+
+        assertNotNull(cache.get(a, false));
+        assertNull(cache.get(b, false));
+        assertNotNull(cache.get(c, false));
+        assertEquals(80, cache.getSize());
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictions());
+
+        // Replacing an entry only counts its new size
+        put(cache, a);
+
+        assertEquals(80, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    void testInvalidate() throws IOException {
+        Path a = file("a.txt", 10);
+        Path b = file("dir/b.txt", 20);
+        Path c = file("dir/sub/c.txt", 30);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+
+        put(cache, a);
+        put(cache, b);
+        put(cache, c);
+
+        cache.invalidate(a);
+
+        assertNull(cache.get(a, false));
+        assertEquals(50, cache.getSize());
+
+        cache.invalidate(root.resolve("dir"));
+
+        assertNull(cache.get(b, false));
+        assertNull(cache.get(c, false));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void testModifiedFileInvalidated() throws IOException, InterruptedException {
+        Path file = file("dir/a.txt", 10);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+
+        put(cache, file);
+        Files.write(file, "changed".getBytes(StandardCharsets.ISO_8859_1));
+
+        // Noticed by the watcher in the background
+        long end = System.currentTimeMillis() + 10_000;
+
+        while (cache.get(file, false) != null && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+
+        assertNull(cache.get(file, false));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void testChangedWhileReadingNotCached() throws IOException {
+        Path file = file("a.txt", 10);
+        StaticFileCache cache = new StaticFileCache(root, 1000, 100);
+        FileMetadataCache.FileMetadata stale = metadata.get(file);
+
+        // Replaced by a file of the same size, which only the modification time gives away
+        file("a.txt", 10);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(stale.getLastModified().toMillis() - 60_000));
+
+        assertNull(cache.put(file, false, file, "text/plain", stale, stale.getETag(), Map.of()));
+        assertNull(cache.get(file, false));
+
+        // Resized
+        file("a.txt", 20);
+
+        assertNull(cache.put(file, false, file, "text/plain", stale, stale.getETag(), Map.of()));
+        assertEquals(0, cache.getSize());
+    }
+}